@@ -0,0 +1,134 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding stage: raw NATS message bytes into {@link TimeSeriesEvent}, from arrays, parts of arrays
+ * and buffers, compared against reading through an input stream ({@code decodeStream}). The interned
+ * variants deduplicate header fields and map keys, run with {@code -prof gc} to compare allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AvroConverterBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+  // Bytes before the message in a frame, e.g. a transport header.
+  private static final int FRAME_HEADER_LENGTH = 16;
+
+  @Param
+  private TimeSeriesEventPayloads.Shape shape;
+
+  private byte[] payload;
+  private AvroConverter<TimeSeriesEvent> converter;
+  private AvroConverter<TimeSeriesEvent> projectingConverter;
+  private AvroConverter<TimeSeriesEvent> internedConverter;
+  private TimeSeriesEvent internedReuse;
+  private TimeSeriesEvent reuse;
+  private byte[] frame;
+  private ByteBuffer heapBuffer;
+  private ByteBuffer directBuffer;
+  private List<byte[]> batch;
+  private SpecificDatumReader<TimeSeriesEvent> streamReader;
+  private BinaryDecoder streamDecoder;
+
+  @Setup
+  public void setUp() {
+    payload = TimeSeriesEventPayloads.payload(shape, "endpoint-1");
+    converter = new AvroConverter<>(TimeSeriesEvent.class);
+    projectingConverter = new AvroConverter<>(TimeSeriesEvent.class,
+        Collections.singleton("dataPoints"), Collections.singleton("event_type"));
+    internedConverter = new AvroConverter<>(TimeSeriesEvent.class, null, null, null,
+        new StringInterner(StringInterner.TIME_SERIES_EVENT_FIELDS, 1024, new ValueKeys(1024)));
+    reuse = converter.decode(payload);
+    internedReuse = internedConverter.decode(payload);
+    frame = new byte[FRAME_HEADER_LENGTH + payload.length];
+    System.arraycopy(payload, 0, frame, FRAME_HEADER_LENGTH, payload.length);
+    heapBuffer = ByteBuffer.wrap(payload);
+    directBuffer = ByteBuffer.allocateDirect(payload.length);
+    directBuffer.put(payload).flip();
+    batch = new ArrayList<>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch.add(TimeSeriesEventPayloads.payload(shape, "endpoint-" + i));
+    }
+    streamReader = new SpecificDatumReader<>(TimeSeriesEvent.class);
+  }
+
+  @Benchmark
+  public TimeSeriesEvent decodeStream() throws IOException {
+    streamDecoder = DecoderFactory.get().directBinaryDecoder(new ByteArrayInputStream(payload), streamDecoder);
+    return streamReader.read(null, streamDecoder);
+  }
+
+  @Benchmark
+  public TimeSeriesEvent decode() {
+    return converter.decode(payload);
+  }
+
+  @Benchmark
+  public TimeSeriesEvent decodeInto() {
+    return converter.decodeInto(payload, reuse);
+  }
+
+  @Benchmark
+  public TimeSeriesEvent decodeInterned() {
+    return internedConverter.decode(payload);
+  }
+
+  @Benchmark
+  public TimeSeriesEvent decodeIntoInterned() {
+    return internedConverter.decodeInto(payload, internedReuse);
+  }
+
+  @Benchmark
+  public TimeSeriesEvent decodeFrame() {
+    return converter.decode(frame, FRAME_HEADER_LENGTH, payload.length);
+  }
+
+  @Benchmark
+  public TimeSeriesEvent decodeHeapBuffer() {
+    return converter.decode(heapBuffer);
+  }
+
+  @Benchmark
+  public TimeSeriesEvent decodeDirectBuffer() {
+    return converter.decode(directBuffer);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public List<TimeSeriesEvent> decodeAll() {
+    return converter.decodeAll(batch);
+  }
+
+  @Benchmark
+  public TimeSeriesEvent decodeProjected() {
+    return projectingConverter.decode(payload);
+  }
+}
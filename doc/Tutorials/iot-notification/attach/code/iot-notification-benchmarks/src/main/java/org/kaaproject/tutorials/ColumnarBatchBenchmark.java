@@ -0,0 +1,130 @@
+package org.kaaproject.tutorials;
+
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregating a value over the data points of many events: from the value maps of decoded events versus from
+ * a {@link ColumnarBatch} column, as well as building the batch from primitive events.
+ * Scores are batches per millisecond, each batch holding {@code eventCount} events of 1000 data points.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColumnarBatchBenchmark {
+
+  private static final String VALUE_NAME = "value_1";
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+  @Param({"4", "64"})
+  private int eventCount;
+
+  private List<TimeSeriesEvent> events;
+  private PrimitiveTimeSeriesEvent[] primitiveEvents;
+  private ColumnarBatch batch;
+  private ColumnarBatch.Column column;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(1);
+    PrimitiveEventDecoder decoder = new PrimitiveEventDecoder(new ValueKeys(1024), null);
+    events = new ArrayList<>(eventCount);
+    primitiveEvents = new PrimitiveTimeSeriesEvent[eventCount];
+    batch = new ColumnarBatch(decoder.getKeys(), eventCount * 1000);
+    for (int i = 0; i < eventCount; i++) {
+      TimeSeriesEvent event = TimeSeriesEventPayloads.event(TimeSeriesEventPayloads.Shape.MANY_POINTS_FEW_VALUES,
+          "endpoint-" + i);
+      for (DataPoint dataPoint : event.getDataPoints()) {
+        dataPoint.getValues().put(VALUE_NAME, 20 + 5 * random.nextGaussian());
+      }
+      events.add(event);
+      primitiveEvents[i] = decoder.decode(TimeSeriesEventPayloads.encode(event));
+      batch.append(primitiveEvents[i]);
+    }
+    column = batch.getColumn(VALUE_NAME);
+  }
+
+  @Benchmark
+  public double aggregateBoxed() {
+    double sum = 0;
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+    int count = 0;
+    for (TimeSeriesEvent event : events) {
+      for (DataPoint dataPoint : event.getDataPoints()) {
+        Object value = dataPoint.getValues().get(VALUE_NAME);
+        if (value instanceof Number) {
+          double number = ((Number) value).doubleValue();
+          sum += number;
+          min = Math.min(min, number);
+          max = Math.max(max, number);
+          count++;
+        }
+      }
+    }
+    return sum / count + min + max;
+  }
+
+  @Benchmark
+  public double aggregateColumn() {
+    return column.sum() / column.count() + column.min() + column.max();
+  }
+
+  @Benchmark
+  public double percentilesBoxed() {
+    double[] values = new double[events.size() * 1000];
+    int count = 0;
+    for (TimeSeriesEvent event : events) {
+      for (DataPoint dataPoint : event.getDataPoints()) {
+        Object value = dataPoint.getValues().get(VALUE_NAME);
+        if (value instanceof Number) {
+          values[count++] = ((Number) value).doubleValue();
+        }
+      }
+    }
+    Arrays.sort(values, 0, count);
+    double result = 0;
+    for (double quantile : QUANTILES) {
+      result += values[(int) Math.max(1, Math.ceil(quantile * count)) - 1];
+    }
+    return result;
+  }
+
+  @Benchmark
+  public double percentilesColumn() {
+    double result = 0;
+    for (double value : column.percentiles(QUANTILES)) {
+      result += value;
+    }
+    return result;
+  }
+
+  @Benchmark
+  public int buildBatch() {
+    batch.clear();
+    for (PrimitiveTimeSeriesEvent event : primitiveEvents) {
+      batch.append(event);
+    }
+    return batch.getRowCount();
+  }
+}
@@ -0,0 +1,88 @@
+package org.kaaproject.tutorials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mail.SimpleMailMessage;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery stage against a local SMTP stand-in: a new connection per message as done by
+ * {@link JavaMailSenderImpl#send(SimpleMailMessage)} versus pooled transports and batched asynchronous sending.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailServiceBenchmark {
+
+  private static final int BATCH_SIZE = 100;
+
+  // Connection setup cost emulated by the SMTP stand-in.
+  @Param({"0", "20"})
+  private long connectDelayMillis;
+
+  private LocalSmtpServer smtpServer;
+  private JavaMailSenderImpl mailSender;
+  private EmailService emailService;
+
+  @Setup
+  public void setUp() throws Exception {
+    smtpServer = new LocalSmtpServer(connectDelayMillis);
+    mailSender = new JavaMailSenderImpl();
+    mailSender.setHost("localhost");
+    mailSender.setPort(smtpServer.getPort());
+    mailSender.getJavaMailProperties().put("mail.transport.protocol", "smtp");
+    emailService = new EmailService(mailSender, 2, 10_000, EmailService.OverflowPolicy.BLOCK);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    emailService.shutdown(Duration.ofSeconds(10));
+    smtpServer.close();
+    System.out.println(String.format("SMTP connections: %d, messages: %d",
+        smtpServer.getConnectionCount(), smtpServer.getMessageCount()));
+  }
+
+  @Benchmark
+  public void perMessageConnection() {
+    SimpleMailMessage message = new SimpleMailMessage();
+    message.setTo("recipient@localhost");
+    message.setSubject("Smart house notifications");
+    message.setText("Next events has occurred: DOOR_OPENED");
+    mailSender.send(message);
+  }
+
+  @Benchmark
+  public void pooledTransport() {
+    emailService.sendNotification("recipient@localhost", "Smart house notifications",
+        "Next events has occurred: DOOR_OPENED");
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void asyncBatched() {
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[BATCH_SIZE];
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      futures[i] = emailService.sendNotificationAsync("recipient@localhost", "Smart house notifications",
+          "Next events has occurred: DOOR_OPENED");
+    }
+    CompletableFuture.allOf(futures).join();
+  }
+}
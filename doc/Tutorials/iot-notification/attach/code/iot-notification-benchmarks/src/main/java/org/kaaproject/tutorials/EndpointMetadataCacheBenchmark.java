@@ -0,0 +1,80 @@
+package org.kaaproject.tutorials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-event cost of the metadata lookup on the dispatcher thread against a local EPR stand-in, compared to
+ * a direct EPR request per event. The endpoint population is larger than the cache in the eviction case.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndpointMetadataCacheBenchmark {
+
+  private static final int CACHE_SIZE = 10_000;
+
+  @Param({"1000", "100000"})
+  private int endpoints;
+
+  // Response latency emulated by the EPR stand-in.
+  @Param({"5"})
+  private long responseDelayMillis;
+
+  private String[] endpointIds;
+  private LocalEprServer eprServer;
+  private EprMetadataLoader loader;
+  private EndpointMetadataCache metadataCache;
+
+  @Setup
+  public void setUp() {
+    endpointIds = new String[endpoints];
+    for (int i = 0; i < endpoints; i++) {
+      endpointIds[i] = (i % 100 == 0 ? "unknown-" : "endpoint-") + i;
+    }
+    try {
+      eprServer = new LocalEprServer(responseDelayMillis);
+    } catch (Exception ex) {
+      throw new RuntimeException("Failed to start EPR stand-in", ex);
+    }
+    loader = new EprMetadataLoader(eprServer.getUrl(), Duration.ofSeconds(5));
+    metadataCache = new EndpointMetadataCache(loader, CACHE_SIZE, Duration.ofMinutes(10), Duration.ofMinutes(1),
+        Duration.ofMinutes(1), 4);
+  }
+
+  @TearDown
+  public void tearDown() {
+    metadataCache.shutdown();
+    eprServer.close();
+    System.out.println(String.format("EPR requests: %d, cache hits: %d, misses: %d", eprServer.getRequestCount(),
+        metadataCache.getHitCount(), metadataCache.getMissCount()));
+  }
+
+  @Benchmark
+  public Map<String, Object> cachedLookup() {
+    return metadataCache.get(endpointIds[ThreadLocalRandom.current().nextInt(endpoints)]);
+  }
+
+  @Benchmark
+  public Map<String, Object> directRequest() throws Exception {
+    return loader.load(endpointIds[ThreadLocalRandom.current().nextInt(endpoints)]);
+  }
+}
@@ -0,0 +1,57 @@
+package org.kaaproject.tutorials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-event cost of the endpoint rate limiter on the dispatcher thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndpointRateLimiterBenchmark {
+
+  @Param({"1000", "1000000"})
+  private int endpoints;
+
+  private String[] endpointIds;
+  private EndpointRateLimiter rateLimiter;
+
+  @Setup
+  public void setUp() {
+    endpointIds = new String[endpoints];
+    for (int i = 0; i < endpoints; i++) {
+      endpointIds[i] = "endpoint-" + i;
+    }
+    rateLimiter = new EndpointRateLimiter(new EndpointRateLimiter.Rate(1, 10), Collections.emptyMap(), 4);
+  }
+
+  @Benchmark
+  public boolean tryAcquire() {
+    String endpointId = endpointIds[ThreadLocalRandom.current().nextInt(endpoints)];
+    return rateLimiter.tryAcquire(endpointId, "smart-house-v1");
+  }
+
+  @Benchmark
+  @Threads(4)
+  public boolean tryAcquireContended() {
+    return tryAcquire();
+  }
+}
@@ -0,0 +1,70 @@
+package org.kaaproject.tutorials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Per-event cost of spooling on the dispatcher thread: append of the raw message and its acknowledgement.
+ * Compare with {@link AvroConverterBenchmark} of the same shape to see the share of durability in ingest cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventSpoolBenchmark {
+
+  private static final String SUBJECT = TimeSeriesEventService.subject("epts", "notification");
+
+  @Param({"ONE_POINT_FEW_VALUES", "MANY_POINTS_FEW_VALUES"})
+  private TimeSeriesEventPayloads.Shape shape;
+
+  @Param({"100"})
+  private int flushIntervalMillis;
+
+  private Path directory;
+  private EventSpool spool;
+  private byte[] payload;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("event-spool-benchmark");
+    spool = new EventSpool(directory, 64 * 1024 * 1024, 1 << 16, Duration.ofMillis(flushIntervalMillis));
+    payload = TimeSeriesEventPayloads.payload(shape, "endpoint-1");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    spool.close();
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  public long appendAndAcknowledge() throws IOException, InterruptedException {
+    long sequence = spool.append(SUBJECT, payload);
+    spool.acknowledge(sequence);
+    return sequence;
+  }
+}
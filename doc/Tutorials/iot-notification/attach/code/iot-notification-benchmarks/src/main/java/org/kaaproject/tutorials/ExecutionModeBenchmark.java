@@ -0,0 +1,110 @@
+package org.kaaproject.tutorials;
+
+import io.nats.client.Message;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of callbacks sending a notification synchronously per event against a slow SMTP stand-in,
+ * with callbacks run on a platform thread per shard versus in endpoint lanes on virtual threads
+ * (on a platform pool of {@value #FALLBACK_THREADS} threads on JDKs without virtual threads).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ExecutionModeBenchmark {
+
+  private static final int BATCH_SIZE = 256;
+  private static final int ENDPOINTS = 1024;
+  private static final int SHARD_COUNT = 8;
+  private static final int LANE_COUNT = 1024;
+  private static final int FALLBACK_THREADS = 64;
+  // SMTP connections used by the virtual thread lanes, which hand their sends over to the email workers.
+  private static final int EMAIL_WORKERS = 64;
+
+  public enum ExecutionMode {
+    SHARDS, LANES
+  }
+
+  @Param({"SHARDS", "LANES"})
+  private ExecutionMode mode;
+
+  // Time for the SMTP stand-in to accept a message.
+  @Param({"5", "50"})
+  private long smtpDelayMillis;
+
+  private LocalSmtpServer smtpServer;
+  private EmailService emailService;
+  private Message[] messages;
+  private TimeSeriesEventService service;
+  private final AtomicLong processed = new AtomicLong();
+  private int next;
+
+  @Setup
+  public void setUp() throws Exception {
+    smtpServer = new LocalSmtpServer(0, smtpDelayMillis);
+    JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+    mailSender.setHost("localhost");
+    mailSender.setPort(smtpServer.getPort());
+    mailSender.getJavaMailProperties().put("mail.transport.protocol", "smtp");
+    emailService = new EmailService(mailSender, EMAIL_WORKERS, 10_000, EmailService.OverflowPolicy.BLOCK);
+    messages = new Message[ENDPOINTS];
+    for (int i = 0; i < ENDPOINTS; i++) {
+      messages[i] = new PayloadMessage(TimeSeriesEventPayloads.payload(
+          TimeSeriesEventPayloads.Shape.ONE_POINT_FEW_VALUES, "endpoint-" + i));
+    }
+    service = new TimeSeriesEventService(null, new AvroConverter<>(TimeSeriesEvent.class), true);
+    service.setEventLog(new EventLog(EventLog.Level.WARN, 10, 1024));
+    if (mode == ExecutionMode.SHARDS) {
+      service.setShards(SHARD_COUNT, 1024);
+    } else {
+      service.setEndpointLanes(LANE_COUNT, 10_000, FALLBACK_THREADS);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    service.shutdown(Duration.ofSeconds(30));
+    emailService.shutdown(Duration.ofSeconds(10));
+    smtpServer.close();
+    System.out.println(String.format("Virtual threads: %s, SMTP connections: %d, messages: %d",
+        VirtualThreads.isSupported(), smtpServer.getConnectionCount(), smtpServer.getMessageCount()));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void handleNatsMessages() {
+    long target = processed.get() + BATCH_SIZE;
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      service.handleNatsMessage(messages[next++ & (ENDPOINTS - 1)], event -> {
+        emailService.sendNotification("recipient@localhost", "Smart house notifications",
+            "Next events has occurred: " + event.getEndpointId());
+        processed.incrementAndGet();
+      });
+    }
+    while (processed.get() < target) {
+      LockSupport.parkNanos(100_000);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package org.kaaproject.tutorials;
+
+import io.nats.client.Message;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Overload of a single shard handling about 10k events/s. Each invocation offers one second of events on the
+ * dispatcher thread at {@code overload} times that rate, in a 4:4:1:1 mix of low, normal and high priority
+ * and expired events, and waits until the shard has handled all events that were not shed.
+ * Without shedding, the dispatcher blocks on the full shard queue, so the score, the time to get through
+ * the burst, grows with the overload, while with shedding it stays close to the burst length.
+ * Per iteration, handled high priority events, shed events and the p99 queue wait are printed to stderr.
+ * The queue wait is measured from the time an event is due to arrive, so it includes time the dispatcher
+ * falls behind, as messages would wait in the NATS pending buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LoadSheddingBenchmark {
+
+  private static final String EPTS_SERVICE_INSTANCE_NAME = "epts";
+  // Callback work per event, so that the shard handles about 10k events/s.
+  private static final long HANDLING_NANOS = 100_000;
+  private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final int QUEUE_CAPACITY = 1024;
+  // Time series of the events offered in a cycle of ten.
+  private static final String[] MIX = {"low", "normal", "low", "normal", "high", "low", "normal", "expired",
+      "low", "normal"};
+
+  @Param({"true", "false"})
+  private boolean shedding;
+
+  @Param({"10"})
+  private int overload;
+
+  private Message[] messages;
+  private long intervalNanos;
+  // Time each event is due to arrive, indexed by its correlation ID.
+  private long[] dueAt;
+  private TimeSeriesEventService service;
+  private LoadShedder loadShedder;
+  private LatencyHistogram queueWait;
+  private final AtomicLong handledCount = new AtomicLong();
+  private final AtomicLong handledHighCount = new AtomicLong();
+  private long offeredHighCount;
+  private PrintStream stdout;
+
+  @Setup
+  public void setUp() {
+    stdout = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    }));
+    intervalNanos = HANDLING_NANOS / overload;
+    int eventCount = (int) (BURST_NANOS / intervalNanos);
+    messages = new Message[eventCount];
+    dueAt = new long[eventCount];
+    for (int i = 0; i < eventCount; i++) {
+      String timeSeriesName = MIX[i % MIX.length];
+      TimeSeriesEvent event = TimeSeriesEventPayloads.event(TimeSeriesEventPayloads.Shape.ONE_POINT_FEW_VALUES,
+          "endpoint-" + i % 1024);
+      event.setCorrelationId(Integer.toString(i));
+      if (timeSeriesName.equals("expired")) {
+        // Expired long ago, of a normal priority time series.
+        event.setTimestamp(1L);
+        event.setTimeout(1000L);
+        timeSeriesName = "normal";
+      }
+      event.setTimeSeriesName(timeSeriesName);
+      if (timeSeriesName.equals("high")) {
+        offeredHighCount++;
+      }
+      messages[i] = new PayloadMessage(TimeSeriesEventService.subject(EPTS_SERVICE_INSTANCE_NAME, timeSeriesName),
+          TimeSeriesEventPayloads.encode(event));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(stdout);
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpIteration() {
+    service = new TimeSeriesEventService(null, new AvroConverter<>(TimeSeriesEvent.class), true);
+    service.setShards(1, QUEUE_CAPACITY);
+    loadShedder = new LoadShedder(0.5, 0.7, 0.9, Duration.ofSeconds(1));
+    loadShedder.setPriority("low", LoadShedder.Priority.LOW);
+    loadShedder.setPriority("high", LoadShedder.Priority.HIGH);
+    if (shedding) {
+      service.setLoadShedder(loadShedder);
+    }
+    queueWait = new LatencyHistogram();
+    handledCount.set(0);
+    handledHighCount.set(0);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDownIteration() {
+    service.shutdown(Duration.ofSeconds(30));
+    System.err.println(String.format("overload %dx, shedding %s: high priority handled %d of %d, "
+            + "shed low %d, normal %d, expired %d, p99 queue wait %.1f ms",
+        overload, shedding, handledHighCount.get(), offeredHighCount, loadShedder.getLowPriorityCount(),
+        loadShedder.getNormalPriorityCount(), loadShedder.getExpiredCount(),
+        queueWait.getValueAtQuantile(0.99) / 1e6));
+  }
+
+  @Benchmark
+  public long offerBurst() {
+    long start = System.nanoTime();
+    for (int i = 0; i < messages.length; i++) {
+      long due = start + i * intervalNanos;
+      while (System.nanoTime() < due) {
+        // Busy wait, as parking overshoots the 10 microsecond interval.
+      }
+      dueAt[i] = due;
+      service.handleNatsMessage(messages[i], this::handle);
+    }
+    while (handledCount.get() + shedCount() < messages.length) {
+      LockSupport.parkNanos(100_000);
+    }
+    return handledCount.get();
+  }
+
+  private void handle(TimeSeriesEvent event) {
+    queueWait.recordSince(dueAt[Integer.parseInt(event.getCorrelationId())]);
+    long until = System.nanoTime() + HANDLING_NANOS;
+    while (System.nanoTime() < until) {
+      // Busy wait standing for the CPU work of a callback.
+    }
+    if (event.getTimeSeriesName().equals("high")) {
+      handledHighCount.incrementAndGet();
+    }
+    handledCount.incrementAndGet();
+  }
+
+  private long shedCount() {
+    return loadShedder.getLowPriorityCount() + loadShedder.getNormalPriorityCount() + loadShedder.getExpiredCount();
+  }
+}
@@ -0,0 +1,74 @@
+package org.kaaproject.tutorials;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal local stand-in for the EPR metadata REST API.
+ * Endpoints with IDs starting with {@code unknown} are not registered, the others have a location and a floor.
+ * Responses are delayed to emulate the latency of a real EPR.
+ */
+public class LocalEprServer implements AutoCloseable {
+  private static final String METADATA_PATH = "/api/v1/endpoints/";
+
+  private final HttpServer server;
+  private final long responseDelayMillis;
+  private final AtomicLong requests = new AtomicLong();
+
+  public LocalEprServer(long responseDelayMillis) throws IOException {
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+    this.responseDelayMillis = responseDelayMillis;
+    server.createContext(METADATA_PATH, this::handle);
+    server.setExecutor(Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "local-epr");
+      thread.setDaemon(true);
+      return thread;
+    }));
+    server.start();
+  }
+
+  public String getUrl() {
+    return String.format("http://localhost:%d", server.getAddress().getPort());
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      Thread.sleep(responseDelayMillis);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    String path = exchange.getRequestURI().getPath();
+    String endpointId = path.endsWith("/metadata")
+        ? path.substring(METADATA_PATH.length(), path.length() - "/metadata".length()) : "unknown";
+    if (endpointId.startsWith("unknown")) {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+    byte[] body = String.format("{\"location\":\"Room of %s\",\"floor\":\"%d\"}",
+        endpointId, Math.abs(endpointId.hashCode() % 10)).getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+}
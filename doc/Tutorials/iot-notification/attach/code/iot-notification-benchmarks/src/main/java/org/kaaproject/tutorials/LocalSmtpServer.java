@@ -0,0 +1,112 @@
+package org.kaaproject.tutorials;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal local SMTP stand-in accepting every message.
+ * The greeting is delayed to emulate the connection setup cost of a real server (TLS handshake, authentication),
+ * and the acceptance of each message to emulate the latency of a remote one.
+ */
+public class LocalSmtpServer implements AutoCloseable {
+  private final ServerSocket serverSocket;
+  private final long connectDelayMillis;
+  private final long messageDelayMillis;
+  private final AtomicLong connections = new AtomicLong();
+  private final AtomicLong messages = new AtomicLong();
+  private volatile boolean closed;
+
+  public LocalSmtpServer(long connectDelayMillis) throws IOException {
+    this(connectDelayMillis, 0);
+  }
+
+  public LocalSmtpServer(long connectDelayMillis, long messageDelayMillis) throws IOException {
+    this.serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+    this.connectDelayMillis = connectDelayMillis;
+    this.messageDelayMillis = messageDelayMillis;
+    Thread acceptor = new Thread(this::acceptConnections, "local-smtp-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  public long getConnectionCount() {
+    return connections.get();
+  }
+
+  public long getMessageCount() {
+    return messages.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    serverSocket.close();
+  }
+
+  private void acceptConnections() {
+    while (!closed) {
+      try {
+        Socket socket = serverSocket.accept();
+        connections.incrementAndGet();
+        Thread handler = new Thread(() -> handle(socket), "local-smtp-session");
+        handler.setDaemon(true);
+        handler.start();
+      } catch (IOException ex) {
+        if (!closed) {
+          System.err.println(String.format("Local SMTP server failed to accept connection: %s", ex));
+        }
+      }
+    }
+  }
+
+  private void handle(Socket socket) {
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+         OutputStream out = s.getOutputStream()) {
+      Thread.sleep(connectDelayMillis);
+      reply(out, "220 localhost ESMTP");
+      String line;
+      while ((line = in.readLine()) != null) {
+        String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+        switch (command) {
+          case "EHLO":
+            reply(out, "250-localhost\r\n250 8BITMIME");
+            break;
+          case "DATA":
+            reply(out, "354 End data with <CR><LF>.<CR><LF>");
+            while ((line = in.readLine()) != null && !line.equals(".")) {
+              // message content is discarded
+            }
+            Thread.sleep(messageDelayMillis);
+            messages.incrementAndGet();
+            reply(out, "250 OK");
+            break;
+          case "QUIT":
+            reply(out, "221 Bye");
+            return;
+          default:
+            // HELO, MAIL, RCPT, RSET and NOOP
+            reply(out, "250 OK");
+        }
+      }
+    } catch (IOException | InterruptedException ex) {
+      // connection dropped by the client
+    }
+  }
+
+  private static void reply(OutputStream out, String reply) throws IOException {
+    out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+  }
+}
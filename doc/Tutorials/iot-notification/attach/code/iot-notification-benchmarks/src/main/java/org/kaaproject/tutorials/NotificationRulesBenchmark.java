@@ -0,0 +1,66 @@
+package org.kaaproject.tutorials;
+
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Per-event cost of notification rule evaluation for the number of active rules.
+ * Rules combine the event type with a threshold on one of the numeric values, so many of their
+ * subexpressions are shared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationRulesBenchmark {
+
+  private static final String[] EVENT_TYPES = {"DOOR_OPENED", "DOOR_CLOSED", "WINDOW_OPENED", "SMOKE"};
+
+  @Param({"ONE_POINT_FEW_VALUES", "MANY_POINTS_FEW_VALUES"})
+  private TimeSeriesEventPayloads.Shape shape;
+
+  @Param({"10", "1000", "10000"})
+  private int ruleCount;
+
+  private List<DataPoint> dataPoints;
+  private NotificationRules rules;
+  private Consumer<String> action;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    dataPoints = TimeSeriesEventPayloads.event(shape, "endpoint-1").getDataPoints();
+    Map<String, String> expressions = new LinkedHashMap<>();
+    for (int i = 0; i < ruleCount; i++) {
+      expressions.put("rule-" + i, String.format("event_type = %s and value_1 > %d or event_type = SMOKE",
+          EVENT_TYPES[i % EVENT_TYPES.length], i % 100));
+    }
+    rules = new NotificationRules(expressions);
+    action = blackhole::consume;
+  }
+
+  @Benchmark
+  public void match() {
+    for (DataPoint dataPoint : dataPoints) {
+      rules.match(dataPoint.getValues(), action);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package org.kaaproject.tutorials;
+
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Notification stage: building the notification from a decoded event. SMTP delivery is stubbed out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationServiceBenchmark {
+
+  private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+  private static final Runnable NO_ACKNOWLEDGEMENT = () -> { };
+
+  @Param
+  private TimeSeriesEventPayloads.Shape shape;
+
+  private TimeSeriesEvent event;
+  private NotificationRules rules;
+  private EmailService emailService;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    event = TimeSeriesEventPayloads.event(shape, "endpoint-1");
+    rules = new NotificationRules(Collections.singletonMap("Any event", "event_type != ''"));
+    emailService = new EmailService() {
+      @Override
+      public CompletableFuture<Void> sendNotificationAsync(String to, String subject, String text) {
+        blackhole.consume(text);
+        return COMPLETED;
+      }
+    };
+  }
+
+  @Benchmark
+  public void handleTimeSeriesEvent() {
+    NotificationService.handleTimeSeriesEvent(event, rules, null, emailService, NO_ACKNOWLEDGEMENT);
+  }
+}
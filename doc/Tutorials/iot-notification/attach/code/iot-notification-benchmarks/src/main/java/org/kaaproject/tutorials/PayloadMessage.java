@@ -0,0 +1,54 @@
+package org.kaaproject.tutorials;
+
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.Subscription;
+
+/**
+ * NATS message carrying a time series event payload, for feeding handlers without a NATS server.
+ */
+class PayloadMessage implements Message {
+  private static final String DEFAULT_SUBJECT = "kaa.v1.events.epts.endpoint.data-collection.data-points-received.notification";
+
+  private final String subject;
+  private final byte[] data;
+
+  PayloadMessage(byte[] data) {
+    this(DEFAULT_SUBJECT, data);
+  }
+
+  PayloadMessage(String subject, byte[] data) {
+    this.subject = subject;
+    this.data = data;
+  }
+
+  @Override
+  public String getSubject() {
+    return subject;
+  }
+
+  @Override
+  public String getReplyTo() {
+    return null;
+  }
+
+  @Override
+  public byte[] getData() {
+    return data;
+  }
+
+  @Override
+  public Subscription getSubscription() {
+    return null;
+  }
+
+  @Override
+  public String getSID() {
+    return "1";
+  }
+
+  @Override
+  public Connection getConnection() {
+    return null;
+  }
+}
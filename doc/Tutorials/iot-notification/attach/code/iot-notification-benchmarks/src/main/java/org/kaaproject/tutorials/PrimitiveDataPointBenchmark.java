@@ -0,0 +1,104 @@
+package org.kaaproject.tutorials;
+
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summing a numeric value over all data points of an event: decoded into value maps of boxed values
+ * versus into {@link PrimitiveDataPoint}s read by key ID, with and without the decoding.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrimitiveDataPointBenchmark {
+
+  private static final String VALUE_NAME = "value_1";
+
+  @Param({"ONE_POINT_MANY_VALUES", "MANY_POINTS_FEW_VALUES", "MANY_POINTS_MANY_VALUES"})
+  private TimeSeriesEventPayloads.Shape shape;
+
+  private byte[] payload;
+  private AvroConverter<TimeSeriesEvent> converter;
+  private PrimitiveEventDecoder decoder;
+  private PrimitiveEventDecoder internedDecoder;
+  private int keyId;
+  private TimeSeriesEvent event;
+  private PrimitiveTimeSeriesEvent primitiveEvent;
+
+  @Setup
+  public void setUp() {
+    payload = TimeSeriesEventPayloads.payload(shape, "endpoint-1");
+    converter = new AvroConverter<>(TimeSeriesEvent.class);
+    decoder = new PrimitiveEventDecoder(new ValueKeys(1024), null);
+    event = converter.decode(payload);
+    // Key IDs are assigned while decoding, in the order the values are encoded.
+    primitiveEvent = decoder.decode(payload);
+    keyId = decoder.getKeys().find(VALUE_NAME);
+    // Shares the value keys, so the key ID holds for both decoders.
+    internedDecoder = new PrimitiveEventDecoder(decoder.getKeys(), null,
+        new StringInterner(StringInterner.TIME_SERIES_EVENT_FIELDS, 1024, decoder.getKeys()));
+  }
+
+  @Benchmark
+  public double decodeAndSumBoxed() {
+    return sumBoxed(converter.decodeInto(payload, event));
+  }
+
+  @Benchmark
+  public double decodeAndSumPrimitive() {
+    return sumPrimitive(decoder.decodeInto(payload, 0, payload.length, primitiveEvent));
+  }
+
+  @Benchmark
+  public double decodeAndSumPrimitiveInterned() {
+    return sumPrimitive(internedDecoder.decodeInto(payload, 0, payload.length, primitiveEvent));
+  }
+
+  @Benchmark
+  public double sumBoxed() {
+    return sumBoxed(event);
+  }
+
+  @Benchmark
+  public double sumPrimitive() {
+    return sumPrimitive(primitiveEvent);
+  }
+
+  private static double sumBoxed(TimeSeriesEvent event) {
+    double sum = 0;
+    for (DataPoint dataPoint : event.getDataPoints()) {
+      Object value = dataPoint.getValues().get(VALUE_NAME);
+      if (value instanceof Number) {
+        sum += ((Number) value).doubleValue();
+      }
+    }
+    return sum;
+  }
+
+  private double sumPrimitive(PrimitiveTimeSeriesEvent event) {
+    double sum = 0;
+    for (int i = 0; i < event.getDataPointCount(); i++) {
+      double value = event.getDataPoint(i).getDouble(keyId);
+      if (!Double.isNaN(value)) {
+        sum += value;
+      }
+    }
+    return sum;
+  }
+}
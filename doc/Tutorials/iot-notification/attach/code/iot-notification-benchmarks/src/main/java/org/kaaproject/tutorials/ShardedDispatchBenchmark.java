@@ -0,0 +1,98 @@
+package org.kaaproject.tutorials;
+
+import io.nats.client.Message;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ingest throughput of a single NATS dispatcher thread handing messages over to endpoint shards,
+ * compared against handling everything on the dispatcher thread ({@code shards = 0}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardedDispatchBenchmark {
+
+  private static final int BATCH_SIZE = 10_000;
+  private static final int ENDPOINTS = 1024;
+
+  @Param({"0", "1", "2", "4", "8"})
+  private int shards;
+
+  // Callback CPU work per event in JMH consumeCPU tokens.
+  @Param({"1000"})
+  private long callbackWork;
+
+  private Message[] messages;
+  private TimeSeriesEventService service;
+  private final AtomicLong processed = new AtomicLong();
+  private PrintStream stdout;
+
+  @Setup
+  public void setUp() {
+    // Event logging is not what is measured here, and the lock of a real PrintStream would serialize the shards.
+    stdout = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    }) {
+      @Override
+      public void println(String x) {
+      }
+    });
+    messages = new Message[ENDPOINTS];
+    for (int i = 0; i < ENDPOINTS; i++) {
+      messages[i] = new PayloadMessage(TimeSeriesEventPayloads.payload(
+          TimeSeriesEventPayloads.Shape.ONE_POINT_FEW_VALUES, "endpoint-" + i));
+    }
+    service = new TimeSeriesEventService(null, new AvroConverter<>(TimeSeriesEvent.class), true);
+    if (shards > 0) {
+      service.setShards(shards, 1024);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    service.shutdown(Duration.ofSeconds(10));
+    System.setOut(stdout);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void handleNatsMessages() {
+    long target = processed.get() + BATCH_SIZE;
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      service.handleNatsMessage(messages[i & (ENDPOINTS - 1)], event -> {
+        Blackhole.consumeCPU(callbackWork);
+        processed.incrementAndGet();
+      });
+    }
+    while (processed.get() < target) {
+      LockSupport.parkNanos(1000);
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Synthetic raw Avro encoded {@link TimeSeriesEvent} payloads as they arrive from EPTS.
+ */
+public final class TimeSeriesEventPayloads {
+
+  private static final String[] EVENT_TYPES = {"DOOR_OPENED", "DOOR_CLOSED", "WINDOW_OPENED", "SMOKE"};
+
+  /**
+   * Payload shapes covering the number of data points, values per data point and value types.
+   * Every data point carries an {@code event_type} string value.
+   */
+  public enum Shape {
+    ONE_POINT_FEW_VALUES(1, 2, false),
+    ONE_POINT_MANY_VALUES(1, 50, false),
+    MANY_POINTS_FEW_VALUES(1000, 2, false),
+    MANY_POINTS_MANY_VALUES(1000, 50, false),
+    ONE_POINT_ALL_UNION_TYPES(1, 16, true),
+    MANY_POINTS_ALL_UNION_TYPES(1000, 16, true);
+
+    private final int dataPoints;
+    private final int valuesPerDataPoint;
+    private final boolean allUnionTypes;
+
+    Shape(int dataPoints, int valuesPerDataPoint, boolean allUnionTypes) {
+      this.dataPoints = dataPoints;
+      this.valuesPerDataPoint = valuesPerDataPoint;
+      this.allUnionTypes = allUnionTypes;
+    }
+  }
+
+  private TimeSeriesEventPayloads() {
+  }
+
+  /**
+   * Creates event of the specified shape.
+   */
+  public static TimeSeriesEvent event(Shape shape, String endpointId) {
+    long now = System.currentTimeMillis();
+    List<DataPoint> dataPoints = new ArrayList<>(shape.dataPoints);
+    for (int i = 0; i < shape.dataPoints; i++) {
+      Map<String, Object> values = new HashMap<>();
+      values.put("event_type", EVENT_TYPES[i % EVENT_TYPES.length]);
+      for (int j = 1; j < shape.valuesPerDataPoint; j++) {
+        values.put("value_" + j, shape.allUnionTypes ? unionValue(i + j) : (Object) (20.0 + j));
+      }
+      dataPoints.add(new DataPoint(now - shape.dataPoints + i, values));
+    }
+    return TimeSeriesEvent.newBuilder()
+        .setCorrelationId(UUID.randomUUID().toString())
+        .setTimestamp(now)
+        .setTimeout(0L)
+        .setAppVersionName("smart-house-v1")
+        .setEndpointId(endpointId)
+        .setTimeSeriesName("notification")
+        .setDataPoints(dataPoints)
+        .build();
+  }
+
+  /**
+   * Creates raw Avro bytes of the event of the specified shape.
+   */
+  public static byte[] payload(Shape shape, String endpointId) {
+    return encode(event(shape, endpointId));
+  }
+
+  /**
+   * Encodes event the same way EPTS does: plain Avro binary without any header.
+   */
+  public static byte[] encode(TimeSeriesEvent event) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      DatumWriter<TimeSeriesEvent> writer = new SpecificDatumWriter<>(TimeSeriesEvent.class);
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+      writer.write(event, encoder);
+      encoder.flush();
+      return out.toByteArray();
+    } catch (IOException ex) {
+      throw new RuntimeException("Failed to encode time series event", ex);
+    }
+  }
+
+  private static Object unionValue(int index) {
+    switch (index % 8) {
+      case 0:
+        return true;
+      case 1:
+        return index;
+      case 2:
+        return (long) index << 32;
+      case 3:
+        return index * 0.5f;
+      case 4:
+        return index * 0.25;
+      case 5:
+        return "value-" + index;
+      case 6:
+        return ByteBuffer.wrap(new byte[] {(byte) index, (byte) (index >> 8)});
+      default:
+        return null;
+    }
+  }
+}
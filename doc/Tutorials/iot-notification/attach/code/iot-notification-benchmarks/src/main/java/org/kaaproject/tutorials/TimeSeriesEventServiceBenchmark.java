@@ -0,0 +1,80 @@
+package org.kaaproject.tutorials;
+
+import io.nats.client.Message;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Ingest stage: NATS message handling including decoding, logging and callback dispatch.
+ * Compare runs by {@code metricsSampleInterval} to see the cost of the stage instrumentation, 0 disables metrics.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeSeriesEventServiceBenchmark {
+
+  @Param
+  private TimeSeriesEventPayloads.Shape shape;
+
+  @Param({"false", "true"})
+  private boolean reuseEvents;
+
+  @Param({"0", "1", "16"})
+  private int metricsSampleInterval;
+
+  private Message message;
+  private TimeSeriesEventService service;
+  private Consumer<TimeSeriesEvent> callback;
+  private PrintStream stdout;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    // Event logging is part of the measured path, but its output would flood the benchmark report.
+    stdout = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    }));
+    message = new PayloadMessage(TimeSeriesEventPayloads.payload(shape, "endpoint-1"));
+    service = new TimeSeriesEventService(null, new AvroConverter<>(TimeSeriesEvent.class), reuseEvents);
+    if (metricsSampleInterval > 0) {
+      service.setMetrics(new PipelineMetrics(), metricsSampleInterval);
+    }
+    callback = blackhole::consume;
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(stdout);
+  }
+
+  @Benchmark
+  public void handleNatsMessage() {
+    service.handleNatsMessage(message, callback);
+  }
+}
@@ -1,23 +1,90 @@
 package org.kaaproject.tutorials;
 
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DatumReader;
-import org.apache.avro.io.Decoder;
 import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.message.MissingSchemaException;
+import org.apache.avro.message.SchemaStore;
 import org.apache.avro.specific.SpecificDatumReader;
 
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
 
 public class AvroConverter<T> {
+  // Initial size of the per-thread array that direct buffers are copied into.
+  private static final int INITIAL_SCRATCH_SIZE = 4096;
+
   private final ThreadLocal<BinaryDecoder> threadLocalDecoder = new ThreadLocal<>();
+  private final ThreadLocal<byte[]> threadLocalScratch = new ThreadLocal<>();
   private final DatumReader<T> datumReader;
+  private final Supplier<SpecificDatumReader<T>> readerFactory;
+  private final SchemaStore schemaStore;
+  private final long readerFingerprint;
+  // Copy-on-write list of readers resolving known writer schemas. There are only a few
+  // schema versions alive at a time, so a linear scan beats hashing a boxed fingerprint.
+  private volatile WriterReader<T>[] writerReaders;
 
   /**
    * Creates converter instance for specified class type.
    * @param type - object type for which this converter will be initialized
    */
   public AvroConverter(Class<T> type) {
-    this.datumReader = new SpecificDatumReader<>(type);
+    this(type, null, null, null);
+  }
+
+  /**
+   * Creates converter instance that decodes only a projection of the specified class type.
+   * Fields and map entries outside of the projection are skipped and left {@code null}.
+   * @param type - object type for which this converter will be initialized
+   * @param fields - names of top-level fields to decode, or {@code null} for all fields
+   * @param mapKeys - map keys to decode, or {@code null} for all keys
+   */
+  public AvroConverter(Class<T> type, Set<String> fields, Set<String> mapKeys) {
+    this(type, fields, mapKeys, null);
+  }
+
+  /**
+   * Creates converter instance that resolves writer schemas of single-object encoded messages.
+   * Messages starting with the single-object header are decoded with the writer schema found in
+   * {@code schemaStore} by its fingerprint and resolved into the specified class type. One reader is
+   * cached per fingerprint, so schema lookup and resolution happen once per writer schema version.
+   * Messages without the header are decoded with the compiled schema as before.
+   * @param type - object type for which this converter will be initialized
+   * @param fields - names of top-level fields to decode, or {@code null} for all fields
+   * @param mapKeys - map keys to decode, or {@code null} for all keys
+   * @param schemaStore - store of writer schemas, or {@code null} to decode everything with the compiled schema
+   */
+  public AvroConverter(Class<T> type, Set<String> fields, Set<String> mapKeys, SchemaStore schemaStore) {
+    this(type, fields, mapKeys, schemaStore, null);
+  }
+
+  /**
+   * Creates converter instance that deduplicates low-cardinality strings of the decoded instances, e.g. endpoint IDs
+   * and map keys, through the tables of the interner rather than decoding them into new strings of every message.
+   * @param type - object type for which this converter will be initialized
+   * @param fields - names of top-level fields to decode, or {@code null} for all fields
+   * @param mapKeys - map keys to decode, or {@code null} for all keys
+   * @param schemaStore - store of writer schemas, or {@code null} to decode everything with the compiled schema
+   * @param interner - tables of the interned fields and map keys, or {@code null} to decode new strings
+   */
+  public AvroConverter(Class<T> type, Set<String> fields, Set<String> mapKeys, SchemaStore schemaStore,
+                       StringInterner interner) {
+    if (fields == null && mapKeys == null && interner == null) {
+      this.readerFactory = () -> new SpecificDatumReader<>(type);
+    } else {
+      this.readerFactory = () -> new ProjectingDatumReader<>(type, fields, mapKeys, interner);
+    }
+    SpecificDatumReader<T> reader = readerFactory.get();
+    this.datumReader = reader;
+    this.schemaStore = schemaStore;
+    this.readerFingerprint = SchemaNormalization.parsingFingerprint64(reader.getSchema());
+    this.writerReaders = newWriterReaders();
   }
 
   /**
@@ -25,22 +92,170 @@ public class AvroConverter<T> {
    * @return Java class
    */
   public T decode(byte[] bytes) {
-    ByteArrayInputStream byteIn = new ByteArrayInputStream(bytes);
-    Decoder decoder = getDecoder(byteIn);
+    return decodeInto(bytes, 0, bytes.length, null);
+  }
+
+  /**
+   * Converts part of byte array into Java class passed in constructor, e.g. a message within a larger frame.
+   * @param offset - index of the first byte of the message
+   * @param length - number of bytes of the message
+   */
+  public T decode(byte[] bytes, int offset, int length) {
+    return decodeInto(bytes, offset, length, null);
+  }
+
+  /**
+   * Converts remaining bytes of the buffer into Java class passed in constructor, the buffer position is not changed.
+   * Heap buffers are decoded in place, direct ones are copied into a per-thread array first, as Avro only reads
+   * buffers through a stream.
+   */
+  public T decode(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      return decodeInto(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), null);
+    }
+    int length = buffer.remaining();
+    byte[] scratch = getScratch(length);
+    buffer.duplicate().get(scratch, 0, length);
+    return decodeInto(scratch, 0, length, null);
+  }
+
+  /**
+   * Converts byte array into Java class passed in constructor reusing the passed instance.
+   * Nested records, arrays and maps of {@code reuse} are recycled as well, so decoding
+   * into an instance obtained from a previous call allocates close to nothing.
+   * @param reuse - instance to fill, or {@code null} to allocate a new one
+   * @return decoded instance, which is {@code reuse} itself when it was passed
+   */
+  public T decodeInto(byte[] bytes, T reuse) {
+    return decodeInto(bytes, 0, bytes.length, reuse);
+  }
+
+  /**
+   * Converts part of byte array into Java class passed in constructor reusing the passed instance.
+   * @param offset - index of the first byte of the message
+   * @param length - number of bytes of the message
+   * @param reuse - instance to fill, or {@code null} to allocate a new one
+   * @return decoded instance, which is {@code reuse} itself when it was passed
+   */
+  public T decodeInto(byte[] bytes, int offset, int length, T reuse) {
     try {
-      return datumReader.read(null, decoder);
+      return read(bytes, offset, length, reuse, getDecoder());
     } catch (Exception ex) {
       String msg = "Failed to deserialize submitted byte array into object.";
       throw new RuntimeException(msg, ex);
     }
   }
 
-  private BinaryDecoder getDecoder(ByteArrayInputStream byteIn) {
-    BinaryDecoder reuse = threadLocalDecoder.get();
-    BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(byteIn, reuse);
-    if (reuse == null) {
+  /**
+   * Converts batch of byte arrays into Java classes passed in constructor. The decoder and the reader of the
+   * last writer schema are looked up once and reused across the batch.
+   * @return decoded instances in the order of the messages
+   */
+  public List<T> decodeAll(List<byte[]> messages) {
+    List<T> decoded = new ArrayList<>(messages.size());
+    BinaryDecoder decoder = getDecoder();
+    long lastFingerprint = readerFingerprint;
+    DatumReader<T> lastReader = datumReader;
+    try {
+      for (byte[] bytes : messages) {
+        if (schemaStore != null && SingleObjectEncoding.hasHeader(bytes, 0, bytes.length)) {
+          long fingerprint = SingleObjectEncoding.readFingerprint(bytes, 0);
+          if (fingerprint != lastFingerprint) {
+            lastReader = getWriterReader(fingerprint);
+            lastFingerprint = fingerprint;
+          }
+          decoder = DecoderFactory.get().binaryDecoder(bytes, SingleObjectEncoding.HEADER_LENGTH,
+              bytes.length - SingleObjectEncoding.HEADER_LENGTH, decoder);
+          decoded.add(lastReader.read(null, decoder));
+        } else {
+          decoder = DecoderFactory.get().binaryDecoder(bytes, 0, bytes.length, decoder);
+          decoded.add(datumReader.read(null, decoder));
+        }
+      }
+    } catch (Exception ex) {
+      String msg = String.format("Failed to deserialize message %d of the submitted batch into object.", decoded.size());
+      throw new RuntimeException(msg, ex);
+    }
+    return decoded;
+  }
+
+  private T read(byte[] bytes, int offset, int length, T reuse, BinaryDecoder decoder) throws Exception {
+    if (schemaStore != null && SingleObjectEncoding.hasHeader(bytes, offset, length)) {
+      decoder = DecoderFactory.get().binaryDecoder(bytes, offset + SingleObjectEncoding.HEADER_LENGTH,
+          length - SingleObjectEncoding.HEADER_LENGTH, decoder);
+      return getWriterReader(SingleObjectEncoding.readFingerprint(bytes, offset)).read(reuse, decoder);
+    }
+    decoder = DecoderFactory.get().binaryDecoder(bytes, offset, length, decoder);
+    return datumReader.read(reuse, decoder);
+  }
+
+  private DatumReader<T> getWriterReader(long fingerprint) {
+    if (fingerprint == readerFingerprint) {
+      return datumReader;
+    }
+    for (WriterReader<T> writerReader : writerReaders) {
+      if (writerReader.fingerprint == fingerprint) {
+        return writerReader.reader;
+      }
+    }
+    return addWriterReader(fingerprint);
+  }
+
+  private synchronized DatumReader<T> addWriterReader(long fingerprint) {
+    WriterReader<T>[] current = writerReaders;
+    for (WriterReader<T> writerReader : current) {
+      if (writerReader.fingerprint == fingerprint) {
+        return writerReader.reader;
+      }
+    }
+    Schema writerSchema = schemaStore.findByFingerprint(fingerprint);
+    if (writerSchema == null) {
+      throw new MissingSchemaException(String.format("Cannot resolve writer schema with fingerprint [%d]", fingerprint));
+    }
+    SpecificDatumReader<T> reader = readerFactory.get();
+    reader.setSchema(writerSchema);
+    WriterReader<T>[] updated = Arrays.copyOf(current, current.length + 1);
+    updated[current.length] = new WriterReader<>(fingerprint, reader);
+    writerReaders = updated;
+    System.out.println(String.format("Registered reader for writer schema with fingerprint [%d]", fingerprint));
+    return reader;
+  }
+
+  /**
+   * Returns decoder of the calling thread. It is reconfigured for each message to read straight from
+   * the message array, rather than byte by byte through an input stream.
+   */
+  private BinaryDecoder getDecoder() {
+    BinaryDecoder decoder = threadLocalDecoder.get();
+    if (decoder == null) {
+      decoder = DecoderFactory.get().binaryDecoder(new byte[0], null);
       threadLocalDecoder.set(decoder);
     }
     return decoder;
   }
+
+  private byte[] getScratch(int length) {
+    byte[] scratch = threadLocalScratch.get();
+    if (scratch == null || scratch.length < length) {
+      scratch = new byte[Math.max(length, INITIAL_SCRATCH_SIZE)];
+      threadLocalScratch.set(scratch);
+    }
+    return scratch;
+  }
+
+  // Generic arrays cannot be created directly, the empty array holds no readers of another type.
+  @SuppressWarnings("unchecked")
+  private static <T> WriterReader<T>[] newWriterReaders() {
+    return (WriterReader<T>[]) new WriterReader<?>[0];
+  }
+
+  private static class WriterReader<T> {
+    private final long fingerprint;
+    private final DatumReader<T> reader;
+
+    private WriterReader(long fingerprint, DatumReader<T> reader) {
+      this.fingerprint = fingerprint;
+      this.reader = reader;
+    }
+  }
 }
@@ -0,0 +1,415 @@
+package org.kaaproject.tutorials;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Micro-batch of data points of many events laid out in columns, see {@link ColumnarBatcher}.
+ * Each data point is a row: its timestamp goes to a {@code long[]} column, the endpoint ID of its event
+ * to an {@code int[]} column of indexes into the endpoint IDs of the batch, and each value to the column
+ * of its {@link ValueKeys} ID. Value columns hold numbers and booleans as doubles, with a bitmap of the rows
+ * that have the value; rows without it hold 0. Aggregations run over the plain arrays in loops the JIT can
+ * unroll and vectorize, rather than over value maps of boxed numbers.
+ * Instances are reused by the batcher, so a batch is only valid until the batch consumer returns.
+ */
+public class ColumnarBatch {
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final ValueKeys keys;
+  private int rowCount;
+  private long[] timestamps;
+  private int[] endpointIndexes;
+  private String[] endpointIds = new String[16];
+  private int endpointCount;
+  private final Map<String, Integer> endpointIndexesById = new HashMap<>();
+  // Columns by key ID, and the key IDs of the columns having values in this batch.
+  private Column[] columns = new Column[16];
+  private int[] usedKeyIds = new int[16];
+  private int usedColumnCount;
+
+  /**
+   * Creates empty batch.
+   * @param keys - table of value names the value columns are numbered by
+   * @param capacity - initial number of rows, grown as needed
+   */
+  ColumnarBatch(ValueKeys keys, int capacity) {
+    this.keys = keys;
+    int initialCapacity = Math.max(capacity, INITIAL_CAPACITY);
+    this.timestamps = new long[initialCapacity];
+    this.endpointIndexes = new int[initialCapacity];
+  }
+
+  public ValueKeys getKeys() {
+    return keys;
+  }
+
+  /**
+   * Returns number of rows, i.e. data points, in the batch.
+   */
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * Returns timestamps of the data points. The array is shared and only its first
+   * {@link #getRowCount()} elements belong to the batch.
+   */
+  public long[] getTimestamps() {
+    return timestamps;
+  }
+
+  /**
+   * Returns indexes of the endpoint IDs of the rows, see {@link #getEndpointId(int)}. The array is shared
+   * and only its first {@link #getRowCount()} elements belong to the batch.
+   */
+  public int[] getEndpointIndexes() {
+    return endpointIndexes;
+  }
+
+  /**
+   * Returns number of distinct endpoints in the batch, endpoint indexes are below this number.
+   */
+  public int getEndpointCount() {
+    return endpointCount;
+  }
+
+  public String getEndpointId(int endpointIndex) {
+    return endpointIds[endpointIndex];
+  }
+
+  /**
+   * Returns column of the value with the key ID.
+   * @return column, or {@code null} if no row of the batch has the value
+   */
+  public Column getColumn(int keyId) {
+    if (keyId < 0 || keyId >= columns.length) {
+      return null;
+    }
+    Column column = columns[keyId];
+    return column != null && column.used ? column : null;
+  }
+
+  /**
+   * Returns column of the named value.
+   * @return column, or {@code null} if no row of the batch has the value
+   */
+  public Column getColumn(String name) {
+    return getColumn(keys.find(name));
+  }
+
+  /**
+   * Returns key IDs of the values some row of the batch has.
+   */
+  public int[] getKeyIds() {
+    return Arrays.copyOf(usedKeyIds, usedColumnCount);
+  }
+
+  /**
+   * Appends data points of the event, one row each. Numbers and booleans go to the value columns, other
+   * values are left out.
+   */
+  void append(PrimitiveTimeSeriesEvent event) {
+    int endpointIndex = endpointIndex(event.getEndpointId());
+    for (int i = 0; i < event.getDataPointCount(); i++) {
+      PrimitiveDataPoint dataPoint = event.getDataPoint(i);
+      int row = addRow(dataPoint.getTimestamp(), endpointIndex);
+      for (int slot = 0; slot < dataPoint.size(); slot++) {
+        switch (dataPoint.getSlotType(slot)) {
+          case BOOLEAN:
+          case INT:
+          case LONG:
+          case FLOAT:
+          case DOUBLE:
+            column(dataPoint.getKeyId(slot)).set(row, dataPoint.getSlotNumber(slot));
+            break;
+          default:
+            break;
+        }
+      }
+    }
+  }
+
+  private int endpointIndex(String endpointId) {
+    Integer index = endpointIndexesById.get(endpointId);
+    if (index != null) {
+      return index;
+    }
+    if (endpointCount == endpointIds.length) {
+      endpointIds = Arrays.copyOf(endpointIds, 2 * endpointCount);
+    }
+    endpointIds[endpointCount] = endpointId;
+    endpointIndexesById.put(endpointId, endpointCount);
+    return endpointCount++;
+  }
+
+  private int addRow(long timestamp, int endpointIndex) {
+    if (rowCount == timestamps.length) {
+      int capacity = 2 * rowCount;
+      timestamps = Arrays.copyOf(timestamps, capacity);
+      endpointIndexes = Arrays.copyOf(endpointIndexes, capacity);
+      for (int i = 0; i < usedColumnCount; i++) {
+        columns[usedKeyIds[i]].grow(capacity);
+      }
+    }
+    timestamps[rowCount] = timestamp;
+    endpointIndexes[rowCount] = endpointIndex;
+    return rowCount++;
+  }
+
+  private Column column(int keyId) {
+    if (keyId >= columns.length) {
+      columns = Arrays.copyOf(columns, Math.max(keyId + 1, 2 * columns.length));
+    }
+    Column column = columns[keyId];
+    if (column == null) {
+      column = new Column(keyId, timestamps.length);
+      columns[keyId] = column;
+    }
+    if (!column.used) {
+      column.grow(timestamps.length);
+      column.used = true;
+      if (usedColumnCount == usedKeyIds.length) {
+        usedKeyIds = Arrays.copyOf(usedKeyIds, 2 * usedColumnCount);
+      }
+      usedKeyIds[usedColumnCount++] = keyId;
+    }
+    return column;
+  }
+
+  /**
+   * Empties the batch, keeping its arrays for the next one.
+   */
+  void clear() {
+    for (int i = 0; i < usedColumnCount; i++) {
+      columns[usedKeyIds[i]].clear(rowCount);
+    }
+    usedColumnCount = 0;
+    Arrays.fill(endpointIds, 0, endpointCount, null);
+    endpointCount = 0;
+    endpointIndexesById.clear();
+    rowCount = 0;
+  }
+
+  /**
+   * Column of a value: doubles of the rows having the value, 0 in the others, and a bitmap of those rows.
+   * Integers are exact up to 2<sup>53</sup>, booleans are 1 and 0. Aggregates cover the rows having the value.
+   */
+  public final class Column {
+    private final int keyId;
+    private double[] values;
+    // Bit of each row having the value, 64 rows per word.
+    private long[] present;
+    private boolean used;
+    // Copy of the values sorted for percentiles, kept across batches.
+    private double[] sorted = new double[0];
+
+    private Column(int keyId, int capacity) {
+      this.keyId = keyId;
+      this.values = new double[capacity];
+      this.present = new long[words(capacity)];
+    }
+
+    public int getKeyId() {
+      return keyId;
+    }
+
+    public String getName() {
+      return keys.name(keyId);
+    }
+
+    /**
+     * Returns values of the rows. The array is shared and only its first {@link #getRowCount()} elements
+     * belong to the batch, rows without the value hold 0.
+     */
+    public double[] getValues() {
+      return values;
+    }
+
+    /**
+     * Returns bitmap of the rows having the value: bit {@code row % 64} of word {@code row / 64}.
+     * The array is shared, words past the last row are 0.
+     */
+    public long[] getPresence() {
+      return present;
+    }
+
+    public boolean isPresent(int row) {
+      return (present[row >>> 6] & (1L << row)) != 0;
+    }
+
+    /**
+     * Returns value of the row.
+     * @return value, or {@link Double#NaN} if the row has none
+     */
+    public double get(int row) {
+      return isPresent(row) ? values[row] : Double.NaN;
+    }
+
+    /**
+     * Returns number of rows having the value.
+     */
+    public int count() {
+      int count = 0;
+      int words = words(rowCount);
+      for (int i = 0; i < words; i++) {
+        count += Long.bitCount(present[i]);
+      }
+      return count;
+    }
+
+    /**
+     * Returns sum of the values. Rows without the value hold 0, so all rows are summed without looking
+     * at the bitmap, into independent partial sums that the loop does not serialize on.
+     */
+    public double sum() {
+      double[] values = this.values;
+      int rows = rowCount;
+      double sum0 = 0;
+      double sum1 = 0;
+      double sum2 = 0;
+      double sum3 = 0;
+      int i = 0;
+      for (; i + 3 < rows; i += 4) {
+        sum0 += values[i];
+        sum1 += values[i + 1];
+        sum2 += values[i + 2];
+        sum3 += values[i + 3];
+      }
+      for (; i < rows; i++) {
+        sum0 += values[i];
+      }
+      return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    /**
+     * Returns mean of the values.
+     * @return mean, or {@link Double#NaN} if no row has the value
+     */
+    public double mean() {
+      int count = count();
+      return count > 0 ? sum() / count : Double.NaN;
+    }
+
+    /**
+     * Returns minimum of the values, NaN values left out.
+     * @return minimum, or {@link Double#NaN} if no row has the value
+     */
+    public double min() {
+      double min = Double.POSITIVE_INFINITY;
+      int words = words(rowCount);
+      for (int word = 0; word < words; word++) {
+        long bits = present[word];
+        int base = word << 6;
+        if (bits == -1L) {
+          // All 64 rows have the value, the common case of a value every data point carries.
+          // A plain comparison rather than Math.min, which orders NaN and -0.0 at twice the cost.
+          for (int i = base; i < base + 64; i++) {
+            double value = values[i];
+            min = value < min ? value : min;
+          }
+        } else {
+          for (; bits != 0; bits &= bits - 1) {
+            double value = values[base + Long.numberOfTrailingZeros(bits)];
+            min = value < min ? value : min;
+          }
+        }
+      }
+      return min != Double.POSITIVE_INFINITY || count() > 0 ? min : Double.NaN;
+    }
+
+    /**
+     * Returns maximum of the values, NaN values left out.
+     * @return maximum, or {@link Double#NaN} if no row has the value
+     */
+    public double max() {
+      double max = Double.NEGATIVE_INFINITY;
+      int words = words(rowCount);
+      for (int word = 0; word < words; word++) {
+        long bits = present[word];
+        int base = word << 6;
+        if (bits == -1L) {
+          for (int i = base; i < base + 64; i++) {
+            double value = values[i];
+            max = value > max ? value : max;
+          }
+        } else {
+          for (; bits != 0; bits &= bits - 1) {
+            double value = values[base + Long.numberOfTrailingZeros(bits)];
+            max = value > max ? value : max;
+          }
+        }
+      }
+      return max != Double.NEGATIVE_INFINITY || count() > 0 ? max : Double.NaN;
+    }
+
+    /**
+     * Returns value below which the specified share of the values fall, by the nearest rank.
+     * @param quantile - share of values, from 0 to 1, e.g. 0.99
+     * @return value, or {@link Double#NaN} if no row has the value
+     */
+    public double percentile(double quantile) {
+      return percentiles(quantile)[0];
+    }
+
+    /**
+     * Returns values at the quantiles, sorting the values once for all of them.
+     * @param quantiles - shares of values, from 0 to 1
+     * @return value per quantile, {@link Double#NaN} if no row has the value
+     */
+    public double[] percentiles(double... quantiles) {
+      int count = sortValues();
+      double[] result = new double[quantiles.length];
+      for (int i = 0; i < quantiles.length; i++) {
+        long rank = Math.max(1, (long) Math.ceil(quantiles[i] * count));
+        result[i] = count > 0 ? sorted[(int) Math.min(rank, count) - 1] : Double.NaN;
+      }
+      return result;
+    }
+
+    private int sortValues() {
+      if (sorted.length < rowCount) {
+        sorted = new double[values.length];
+      }
+      int count = 0;
+      int words = words(rowCount);
+      for (int word = 0; word < words; word++) {
+        long bits = present[word];
+        int base = word << 6;
+        if (bits == -1L) {
+          System.arraycopy(values, base, sorted, count, 64);
+          count += 64;
+        } else {
+          for (; bits != 0; bits &= bits - 1) {
+            sorted[count++] = values[base + Long.numberOfTrailingZeros(bits)];
+          }
+        }
+      }
+      Arrays.sort(sorted, 0, count);
+      return count;
+    }
+
+    private void set(int row, double value) {
+      values[row] = value;
+      present[row >>> 6] |= 1L << row;
+    }
+
+    private void grow(int capacity) {
+      if (values.length < capacity) {
+        values = Arrays.copyOf(values, capacity);
+        present = Arrays.copyOf(present, words(capacity));
+      }
+    }
+
+    // Rows without the value must hold 0 for the sum, so the rows of the batch are zeroed rather than left over.
+    private void clear(int rows) {
+      Arrays.fill(values, 0, rows, 0);
+      Arrays.fill(present, 0, words(rows), 0);
+      used = false;
+    }
+  }
+
+  private static int words(int rows) {
+    return (rows + 63) >>> 6;
+  }
+}
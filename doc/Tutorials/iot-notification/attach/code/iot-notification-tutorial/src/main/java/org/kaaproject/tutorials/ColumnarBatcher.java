@@ -0,0 +1,142 @@
+package org.kaaproject.tutorials;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Collects data points of {@link PrimitiveTimeSeriesEvent}s into {@link ColumnarBatch}es, passed to the consumer
+ * when they reach the number of rows or when the delay since their first event has passed, see
+ * {@link TimeSeriesEventService#startColumnar(ColumnarBatcher)}. Events may be appended from several threads.
+ * The consumer is invoked by one thread at a time, the one whose event fills the batch or the timer thread
+ * of the batcher, and appending waits meanwhile, so a slow consumer holds up ingest rather than batches piling up.
+ * Each batcher has a timer thread of its own, so a slow consumer does not delay the timed flushes of others.
+ * A single batch is reused, so the consumer must not keep it after returning.
+ */
+public class ColumnarBatcher {
+
+  private static final AtomicInteger TIMER_COUNT = new AtomicInteger();
+
+  private final PrimitiveEventDecoder decoder;
+  private final int maxRows;
+  private final long maxDelayNanos;
+  private final Consumer<ColumnarBatch> consumer;
+  private final ColumnarBatch batch;
+  // Thread flushing batches that did not fill up within their delay.
+  private final ScheduledExecutorService flushTimer;
+  // Acknowledgements of the events in the batch, run once the consumer has returned.
+  private final List<Runnable> acknowledgements = new ArrayList<>();
+  // Identifies the batch being filled, so that a timer of an earlier batch does not flush it.
+  private long generation;
+  private ScheduledFuture<?> timer;
+  private long flushedBatchCount;
+  private boolean closed;
+
+  /**
+   * Creates batcher instance.
+   * @param decoder - decoder of raw messages into events, whose value keys number the value columns
+   * @param maxRows - number of data points at which a batch is passed on, e.g. 4096
+   * @param maxDelay - maximum time a batch is filled before it is passed on
+   * @param consumer - consumer of the batches
+   */
+  public ColumnarBatcher(PrimitiveEventDecoder decoder, int maxRows, Duration maxDelay,
+                         Consumer<ColumnarBatch> consumer) {
+    if (maxRows <= 0) {
+      throw new IllegalArgumentException("Maximum number of rows must be positive");
+    }
+    this.decoder = decoder;
+    this.maxRows = maxRows;
+    this.maxDelayNanos = maxDelay.toNanos();
+    this.consumer = consumer;
+    this.batch = new ColumnarBatch(decoder.getKeys(), maxRows);
+    this.flushTimer = Executors.newSingleThreadScheduledExecutor(command -> {
+      Thread thread = new Thread(command, "columnar-batch-timer-" + TIMER_COUNT.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public PrimitiveEventDecoder getDecoder() {
+    return decoder;
+  }
+
+  public ValueKeys getKeys() {
+    return decoder.getKeys();
+  }
+
+  /**
+   * Appends data points of the event, one row each. Numbers and booleans go to the value columns, other
+   * values are left out. The event may be reused once this returns.
+   * @param event - event to append
+   * @param acknowledgement - run once the batch holding the event is consumed, may be {@code null}
+   */
+  public synchronized void append(PrimitiveTimeSeriesEvent event, Runnable acknowledgement) {
+    batch.append(event);
+    if (acknowledgement != null) {
+      acknowledgements.add(acknowledgement);
+    }
+    if (batch.getRowCount() >= maxRows || closed) {
+      flush();
+    } else if (timer == null) {
+      long batchGeneration = generation;
+      timer = flushTimer.schedule(() -> flush(batchGeneration), maxDelayNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * Passes the batch being filled to the consumer, if it has any rows, e.g. on shutdown.
+   */
+  public synchronized void flush() {
+    if (timer != null) {
+      timer.cancel(false);
+      timer = null;
+    }
+    generation++;
+    try {
+      if (batch.getRowCount() > 0) {
+        flushedBatchCount++;
+        consumer.accept(batch);
+      }
+    } catch (Exception ex) {
+      System.err.println(String.format("Exception occurred during handling columnar batch: %s", ex));
+    } finally {
+      // Not redelivered on failure, same as events whose callback throws.
+      for (Runnable acknowledgement : acknowledgements) {
+        acknowledgement.run();
+      }
+      acknowledgements.clear();
+      batch.clear();
+    }
+  }
+
+  /**
+   * Flushes the batch being filled and stops the timer thread. Events appended afterwards are flushed
+   * right away, one batch each.
+   */
+  public void close() {
+    synchronized (this) {
+      flush();
+      closed = true;
+    }
+    flushTimer.shutdown();
+  }
+
+  private synchronized void flush(long batchGeneration) {
+    if (batchGeneration == generation) {
+      flush();
+    }
+  }
+
+  /**
+   * Returns number of batches passed to the consumer so far.
+   */
+  public synchronized long getFlushedBatchCount() {
+    return flushedBatchCount;
+  }
+}
@@ -0,0 +1,170 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.util.Utf8;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, time-expiring set of recently seen correlation IDs used to drop redelivered events.
+ * IDs are stored as 64-bit hashes in open-addressed {@code long[]} tables instead of {@code String} objects.
+ * Each of the independently locked segments keeps two generations of hashes: the current one receives new IDs
+ * and the previous one is still checked. Generations are rotated every TTL, or earlier when the current one
+ * is full, so an ID is remembered for at least one TTL unless the capacity is exceeded within it.
+ */
+public class CorrelationIdDeduplicator {
+  private static final long EMPTY = 0;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final Segment[] segments;
+  private final int segmentMask;
+  private final long ttlNanos;
+  private final LongAdder duplicateCount = new LongAdder();
+
+  /**
+   * Creates deduplicator instance.
+   * @param ttl - time for which seen IDs are remembered
+   * @param capacity - number of IDs remembered within one TTL
+   * @param concurrency - expected number of concurrently calling threads
+   */
+  public CorrelationIdDeduplicator(Duration ttl, int capacity, int concurrency) {
+    int segmentCount = Integer.highestOneBit(Math.max(1, concurrency * 4 - 1) << 1);
+    int segmentCapacity = Math.max(16, capacity / segmentCount);
+    this.segments = new Segment[segmentCount];
+    for (int i = 0; i < segmentCount; i++) {
+      segments[i] = new Segment(segmentCapacity);
+    }
+    this.segmentMask = segmentCount - 1;
+    this.ttlNanos = ttl.toNanos();
+  }
+
+  /**
+   * Remembers correlation ID.
+   * @return {@code true} if the ID is seen for the first time, {@code false} if it is a duplicate
+   */
+  public boolean markSeen(String correlationId) {
+    return markSeen(hash(correlationId));
+  }
+
+  /**
+   * Remembers correlation ID decoded as UTF-8 bytes, without converting it into a string. An ID is the same
+   * whether it is passed as a string or as bytes.
+   * @return {@code true} if the ID is seen for the first time, {@code false} if it is a duplicate
+   */
+  public boolean markSeen(Utf8 correlationId) {
+    byte[] bytes = correlationId.getBytes();
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0, length = correlationId.getByteLength(); i < length; i++) {
+      if (bytes[i] < 0) {
+        // Beyond ASCII, UTF-8 bytes are not the UTF-16 chars the string hash is computed over.
+        return markSeen(correlationId.toString());
+      }
+      hash ^= bytes[i];
+      hash *= FNV_PRIME;
+    }
+    return markSeen(mix(hash));
+  }
+
+  private boolean markSeen(long hash) {
+    Segment segment = segments[(int) (hash >>> 32) & segmentMask];
+    boolean firstSeen;
+    synchronized (segment) {
+      firstSeen = segment.add(hash, System.nanoTime(), ttlNanos);
+    }
+    if (!firstSeen) {
+      duplicateCount.increment();
+    }
+    return firstSeen;
+  }
+
+  public long getDuplicateCount() {
+    return duplicateCount.sum();
+  }
+
+  // 64-bit FNV-1a over UTF-16 chars followed by the MurmurHash3 finalizer to spread the bits.
+  private static long hash(String value) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= FNV_PRIME;
+    }
+    return mix(hash);
+  }
+
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash == EMPTY ? 1 : hash;
+  }
+
+  private static class Segment {
+    private final int capacity;
+    private final int tableMask;
+    private long[] current;
+    private long[] previous;
+    private int currentSize;
+    private long rotatedAt = System.nanoTime();
+
+    private Segment(int capacity) {
+      this.capacity = capacity;
+      // Keep load factor at or below one half so that probe sequences stay short.
+      int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+      this.tableMask = tableSize - 1;
+      this.current = new long[tableSize];
+      this.previous = new long[tableSize];
+    }
+
+    private boolean add(long hash, long now, long ttlNanos) {
+      long sinceRotation = now - rotatedAt;
+      if (sinceRotation >= ttlNanos) {
+        rotate(now);
+        if (sinceRotation >= ttlNanos * 2) {
+          // The segment was idle for two TTLs, so the previous generation has expired as well.
+          rotate(now);
+        }
+      }
+      if (contains(previous, hash)) {
+        return false;
+      }
+      int slot = (int) hash & tableMask;
+      while (current[slot] != EMPTY) {
+        if (current[slot] == hash) {
+          return false;
+        }
+        slot = (slot + 1) & tableMask;
+      }
+      if (currentSize >= capacity) {
+        rotate(now);
+        slot = (int) hash & tableMask;
+      }
+      current[slot] = hash;
+      currentSize++;
+      return true;
+    }
+
+    private boolean contains(long[] table, long hash) {
+      int slot = (int) hash & tableMask;
+      while (table[slot] != EMPTY) {
+        if (table[slot] == hash) {
+          return true;
+        }
+        slot = (slot + 1) & tableMask;
+      }
+      return false;
+    }
+
+    private void rotate(long now) {
+      long[] recycled = previous;
+      Arrays.fill(recycled, EMPTY);
+      previous = current;
+      current = recycled;
+      currentSize = 0;
+      rotatedAt = now;
+    }
+  }
+}
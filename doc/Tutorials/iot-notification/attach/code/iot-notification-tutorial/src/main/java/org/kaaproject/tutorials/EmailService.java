@@ -1,18 +1,100 @@
 package org.kaaproject.tutorials;
 
-import org.springframework.mail.SimpleMailMessage;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mail.javamail.MimeMessageHelper;
 
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class EmailService {
 
-  private final String USERNAME = "apasika@kaaiot.io"; // Email from the GMAIL account from which emails will be sent
-  private final String PASSWORD = "Blablabla1"; // Password from the email box. Keep it in secret.
+  private static final String USERNAME = "apasika@kaaiot.io"; // Email from the GMAIL account from which emails will be sent
+  private static final String PASSWORD = "Blablabla1"; // Password from the email box. Keep it in secret.
+
+  private static final int DEFAULT_WORKER_COUNT = 2;
+  private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+  // How often idle workers check whether the service is shut down.
+  private static final long WORKER_POLL_MILLIS = 100;
+  // Maximum number of queued notifications a worker sends over its transport in one go.
+  private static final int MAX_BATCH_SIZE = 50;
+  // SMTP servers commonly drop connections idle for a few minutes, so check and retire idle ones earlier.
+  private static final long TRANSPORT_VALIDATE_AFTER_IDLE_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  private static final long TRANSPORT_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(4);
+
+  /**
+   * What to do with a notification submitted while the delivery queue is full.
+   */
+  public enum OverflowPolicy {
+    // Block the submitting thread until there is space in the queue.
+    BLOCK,
+    // Fail the oldest queued notification to make space for the new one.
+    DROP_OLDEST,
+    // Fail the submitted notification.
+    REJECT
+  }
 
   private final JavaMailSenderImpl mailSender;
+  private final SmtpTransportPool transportPool;
+  private final BlockingQueue<PendingNotification> queue;
+  private final int workerCount;
+  private final OverflowPolicy overflowPolicy;
+  private final List<Thread> workers = new ArrayList<>();
+  private volatile boolean shutdown;
+  private volatile DeliveryMetrics deliveryMetrics;
 
   public EmailService() {
+    this(DEFAULT_WORKER_COUNT, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.BLOCK);
+  }
+
+  /**
+   * Creates service instance with asynchronous delivery settings.
+   * Worker threads are started on the first asynchronous submission.
+   * @param workerCount - number of threads sending notifications
+   * @param queueCapacity - maximum number of notifications waiting to be sent
+   * @param overflowPolicy - what to do when the queue is full
+   */
+  public EmailService(int workerCount, int queueCapacity, OverflowPolicy overflowPolicy) {
+    this(createMailSender(), workerCount, queueCapacity, overflowPolicy);
+  }
+
+  /**
+   * Creates service instance sending through the specified SMTP server settings.
+   * @param mailSender - SMTP server settings and mail session
+   * @param workerCount - number of threads sending notifications
+   * @param queueCapacity - maximum number of notifications waiting to be sent
+   * @param overflowPolicy - what to do when the queue is full
+   */
+  public EmailService(JavaMailSenderImpl mailSender, int workerCount, int queueCapacity, OverflowPolicy overflowPolicy) {
+    if (workerCount <= 0 || queueCapacity <= 0) {
+      throw new IllegalArgumentException("Worker count and queue capacity must be positive");
+    }
+    this.mailSender = mailSender;
+    // Each worker holds at most one transport, plus one for the calling threads of synchronous sends.
+    this.transportPool = new SmtpTransportPool(mailSender, workerCount + 1,
+        TRANSPORT_VALIDATE_AFTER_IDLE_MILLIS, TRANSPORT_MAX_IDLE_MILLIS);
+    this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    this.workerCount = workerCount;
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  private static JavaMailSenderImpl createMailSender() {
     JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
     mailSender.setHost("smtp.gmail.com");
     mailSender.setPort(587);
@@ -24,14 +106,251 @@ public class EmailService {
     props.put("mail.smtp.auth", "true");
     props.put("mail.smtp.starttls.enable", "true");
     props.put("mail.debug", "true");
-    this.mailSender = mailSender;
+    return mailSender;
   }
 
+  /**
+   * Sends notification on the calling thread over a pooled SMTP transport. Called on a virtual thread,
+   * the notification is handed over to the worker threads and awaited instead: JavaMail sends while holding
+   * the transport monitor, which would pin the virtual thread to its carrier for the whole SMTP exchange.
+   */
   public void sendNotification(String to, String subject, String text) {
-    SimpleMailMessage message = new SimpleMailMessage();
-    message.setTo(to);
-    message.setSubject(subject);
-    message.setText(text);
-    this.mailSender.send(message);
+    CompletableFuture<Void> future;
+    if (VirtualThreads.isVirtual(Thread.currentThread())) {
+      future = sendNotificationAsync(to, subject, text);
+    } else {
+      PendingNotification notification = new PendingNotification(to, subject, text);
+      sendBatch(Collections.singletonList(notification));
+      future = notification.future;
+    }
+    try {
+      future.get();
+    } catch (ExecutionException ex) {
+      throw new MailSendException("Failed to send notification", ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new MailSendException("Interrupted while sending notification", ex);
+    }
+  }
+
+  /**
+   * Queues notification for delivery by the worker threads.
+   * @return future completed once the notification is sent, or completed exceptionally when it fails,
+   *         is rejected or dropped because of the queue overflow
+   */
+  public CompletableFuture<Void> sendNotificationAsync(String to, String subject, String text) {
+    PendingNotification notification = new PendingNotification(to, subject, text);
+    if (shutdown) {
+      notification.future.completeExceptionally(new RejectedExecutionException("Email service is shut down"));
+      return notification.future;
+    }
+    startWorkers();
+    switch (overflowPolicy) {
+      case BLOCK:
+        try {
+          queue.put(notification);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          notification.future.completeExceptionally(ex);
+        }
+        break;
+      case DROP_OLDEST:
+        while (!queue.offer(notification)) {
+          PendingNotification oldest = queue.poll();
+          if (oldest != null) {
+            oldest.future.completeExceptionally(new RejectedExecutionException("Notification dropped due to queue overflow"));
+          }
+        }
+        break;
+      default:
+        if (!queue.offer(notification)) {
+          notification.future.completeExceptionally(new RejectedExecutionException("Notification queue is full"));
+        }
+    }
+    // Shutdown may have started after the check above, and its final drain may have missed the notification.
+    // Whoever takes it out of the queue completes it, so it is failed here only if still queued.
+    if (shutdown && queue.remove(notification)) {
+      notification.future.completeExceptionally(new RejectedExecutionException("Email service is shut down"));
+    }
+    return notification.future;
+  }
+
+  /**
+   * Enables measurement of notification delivery: time waiting in the queue and time to send over SMTP.
+   * @param metrics - registry to add the delivery metrics to
+   */
+  public void setMetrics(PipelineMetrics metrics) {
+    metrics.gauge("email_queue_depth", "Notifications waiting to be sent", this::getPendingCount);
+    deliveryMetrics = new DeliveryMetrics(metrics);
+  }
+
+  /**
+   * Returns number of notifications waiting to be sent.
+   */
+  public int getPendingCount() {
+    return queue.size();
+  }
+
+  /**
+   * Stops accepting notifications and waits for queued ones to be sent.
+   * Notifications still queued after the timeout are failed.
+   * @param timeout - time given to queued notifications to be sent
+   * @return {@code true} if all queued notifications were handled within the timeout
+   */
+  public boolean shutdown(Duration timeout) {
+    shutdown = true;
+    long deadline = System.nanoTime() + timeout.toNanos();
+    List<Thread> workers;
+    synchronized (this.workers) {
+      workers = new ArrayList<>(this.workers);
+    }
+    try {
+      for (Thread worker : workers) {
+        worker.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    boolean flushed = queue.isEmpty();
+    PendingNotification notification;
+    while ((notification = queue.poll()) != null) {
+      notification.future.completeExceptionally(new RejectedExecutionException("Email service is shut down"));
+    }
+    transportPool.close();
+    System.out.println(String.format("Email service is shut down, all notifications handled: %s", flushed));
+    return flushed;
+  }
+
+  private void startWorkers() {
+    synchronized (workers) {
+      while (workers.size() < workerCount) {
+        Thread worker = new Thread(this::processQueue, "email-sender-" + workers.size());
+        worker.setDaemon(true);
+        worker.start();
+        workers.add(worker);
+      }
+    }
+  }
+
+  private void processQueue() {
+    List<PendingNotification> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while (!shutdown || !queue.isEmpty()) {
+      PendingNotification notification;
+      try {
+        notification = queue.poll(WORKER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        return;
+      }
+      if (notification != null) {
+        batch.add(notification);
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        sendBatch(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Sends notifications over one pooled transport, completing their futures.
+   */
+  private void sendBatch(List<PendingNotification> batch) {
+    DeliveryMetrics deliveryMetrics = this.deliveryMetrics;
+    Transport transport = null;
+    try {
+      for (PendingNotification notification : batch) {
+        long sendStart = System.nanoTime();
+        if (deliveryMetrics != null) {
+          deliveryMetrics.queueWait.record(sendStart - notification.createdAt);
+        }
+        Address[] recipients = null;
+        for (int attempt = 0; ; attempt++) {
+          try {
+            if (transport == null) {
+              transport = transportPool.borrow();
+            }
+            send(transport, notification, recipients);
+            break;
+          } catch (SendFailedException ex) {
+            // The server rejected the message or some recipients, or closed the connection in reply to a command.
+            // Only valid recipients it was not sent to are retried, so that nobody gets it twice. They are known
+            // for recipients rejected before the content went out or when delivery to the others is confirmed.
+            Address[] unsent = ex.getValidUnsentAddresses();
+            Address[] sent = ex.getValidSentAddresses();
+            boolean unsentKnown = !SmtpTransportPool.mayHaveSentContent(transport) || (sent != null && sent.length > 0);
+            if (attempt > 0 || !unsentKnown || unsent == null || unsent.length == 0) {
+              notification.future.completeExceptionally(ex);
+              break;
+            }
+            recipients = unsent;
+            if (!transport.isConnected()) {
+              transportPool.discard(transport);
+              transport = null;
+            }
+          } catch (Exception ex) {
+            // The server might have dropped the connection, so retry once over a new one,
+            // unless the message content already went out and the server might have accepted it.
+            boolean contentSent = transport != null && SmtpTransportPool.mayHaveSentContent(transport);
+            transportPool.discard(transport);
+            transport = null;
+            if (attempt > 0 || contentSent) {
+              notification.future.completeExceptionally(ex);
+              break;
+            }
+          }
+        }
+        if (deliveryMetrics != null) {
+          deliveryMetrics.send.recordSince(sendStart);
+          (notification.future.isCompletedExceptionally() ? deliveryMetrics.failed : deliveryMetrics.sent).increment();
+        }
+      }
+    } finally {
+      if (transport != null) {
+        transportPool.release(transport);
+      }
+    }
+  }
+
+  /**
+   * @param recipients - recipients to send to, or {@code null} to send to all recipients of the notification
+   */
+  private void send(Transport transport, PendingNotification notification, Address[] recipients)
+      throws MessagingException {
+    MimeMessage message = mailSender.createMimeMessage();
+    MimeMessageHelper helper = new MimeMessageHelper(message);
+    helper.setTo(notification.to);
+    helper.setSubject(notification.subject);
+    helper.setText(notification.text);
+    message.setSentDate(new Date());
+    message.saveChanges();
+    transport.sendMessage(message, recipients != null ? recipients : message.getAllRecipients());
+    notification.future.complete(null);
+  }
+
+  private static class DeliveryMetrics {
+    private final LongAdder sent;
+    private final LongAdder failed;
+    private final LatencyHistogram queueWait;
+    private final LatencyHistogram send;
+
+    private DeliveryMetrics(PipelineMetrics metrics) {
+      sent = metrics.counter("email_sent_total", "Notifications sent");
+      failed = metrics.counter("email_failed_total", "Notifications failed to be sent");
+      queueWait = metrics.histogram("email_queue_wait_seconds", "Time from submission of notification until sending starts");
+      send = metrics.histogram("email_send_seconds", "Time to send notification over SMTP, including a retry");
+    }
+  }
+
+  private static class PendingNotification {
+    private final String to;
+    private final String subject;
+    private final String text;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private final long createdAt = System.nanoTime();
+
+    private PendingNotification(String to, String subject, String text) {
+      this.to = to;
+      this.subject = subject;
+      this.text = text;
+    }
   }
 }
@@ -0,0 +1,200 @@
+package org.kaaproject.tutorials;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of endpoint metadata, e.g. location and floor, loaded from the
+ * <a href="https://docs.kaaiot.io/EPR/docs/current/Overview/">Endpoint Register</a>.
+ * Lookups never block: a missing entry is loaded on a background thread, and concurrent lookups
+ * of the same endpoint share one load. Entries are refreshed in the background some time before they expire,
+ * so metadata of active endpoints is always at hand. Unregistered endpoints and failed loads are cached
+ * for a shorter time so that they are not requested on every event. The least recently used entries are evicted
+ * when the cache is full.
+ */
+public class EndpointMetadataCache {
+  // Marker of endpoints without metadata.
+  private static final Map<String, Object> NOT_FOUND = Collections.unmodifiableMap(new HashMap<>());
+
+  /**
+   * Source of endpoint metadata.
+   */
+  public interface Loader {
+    /**
+     * Loads metadata of the endpoint, called on a background thread.
+     * @return metadata of the endpoint, or {@code null} if the endpoint is not registered
+     */
+    Map<String, Object> load(String endpointId) throws Exception;
+  }
+
+  private final Loader loader;
+  private final long ttlNanos;
+  private final long refreshAheadNanos;
+  private final long negativeTtlNanos;
+  private final LinkedHashMap<String, CachedMetadata> entries;
+  private final ExecutorService executor;
+  private final LongSupplier clock;
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder loadCount = new LongAdder();
+
+  /**
+   * Creates cache instance and starts loader threads.
+   * @param loader - source of endpoint metadata
+   * @param maxSize - maximum number of cached endpoints
+   * @param ttl - time for which loaded metadata is used
+   * @param refreshAhead - time before expiry at which metadata of a requested endpoint is reloaded in the background
+   * @param negativeTtl - time for which unregistered endpoints and failed loads are cached
+   * @param loaderThreads - number of concurrent loads
+   */
+  public EndpointMetadataCache(Loader loader, int maxSize, Duration ttl, Duration refreshAhead,
+                               Duration negativeTtl, int loaderThreads) {
+    this(loader, maxSize, ttl, refreshAhead, negativeTtl, loaderThreads, System::nanoTime);
+  }
+
+  // Visible for tests, to expire entries without waiting.
+  EndpointMetadataCache(Loader loader, int maxSize, Duration ttl, Duration refreshAhead,
+                        Duration negativeTtl, int loaderThreads, LongSupplier clock) {
+    if (maxSize <= 0 || loaderThreads <= 0 || refreshAhead.compareTo(ttl) > 0) {
+      throw new IllegalArgumentException("Cache size and loader threads must be positive, refresh must be ahead of expiry");
+    }
+    this.loader = loader;
+    this.ttlNanos = ttl.toNanos();
+    this.refreshAheadNanos = refreshAhead.toNanos();
+    this.negativeTtlNanos = negativeTtl.toNanos();
+    this.clock = clock;
+    this.entries = new LinkedHashMap<String, CachedMetadata>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedMetadata> eldest) {
+        return size() > maxSize;
+      }
+    };
+    AtomicInteger threadNumber = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(loaderThreads, runnable -> {
+      Thread thread = new Thread(runnable, "endpoint-metadata-" + threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Returns cached metadata of the endpoint without waiting for it to be loaded.
+   * @return metadata, or {@code null} if it is not loaded yet or the endpoint is not registered
+   */
+  public Map<String, Object> get(String endpointId) {
+    Map<String, Object> metadata = lookup(endpointId).getNow(null);
+    return metadata == NOT_FOUND ? null : metadata;
+  }
+
+  /**
+   * Returns future of the endpoint metadata, completed right away if metadata is cached.
+   * The future never completes exceptionally, it completes with {@code null} if metadata is not available.
+   */
+  public CompletableFuture<Map<String, Object>> getAsync(String endpointId) {
+    return lookup(endpointId).thenApply(metadata -> metadata == NOT_FOUND ? null : metadata);
+  }
+
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  public long getLoadCount() {
+    return loadCount.sum();
+  }
+
+  /**
+   * Stops loader threads. Lookups afterwards return cached metadata only.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private CompletableFuture<Map<String, Object>> lookup(String endpointId) {
+    long now = clock.getAsLong();
+    CompletableFuture<Map<String, Object>> result;
+    CompletableFuture<Map<String, Object>> load = null;
+    synchronized (entries) {
+      CachedMetadata entry = entries.get(endpointId);
+      if (entry == null) {
+        entry = new CachedMetadata();
+        entries.put(endpointId, entry);
+      }
+      boolean valid = entry.metadata != null && now - entry.expiresAt < 0;
+      if (entry.loading == null && (!valid || now - entry.refreshAt >= 0)) {
+        entry.loading = new CompletableFuture<>();
+        load = entry.loading;
+      }
+      // Valid metadata is returned while it is refreshed, the load is only awaited when there is nothing to return.
+      result = valid ? CompletableFuture.completedFuture(entry.metadata) : entry.loading;
+      (valid ? hitCount : missCount).increment();
+    }
+    if (load != null) {
+      CompletableFuture<Map<String, Object>> loading = load;
+      try {
+        executor.execute(() -> load(endpointId, loading));
+      } catch (RejectedExecutionException ex) {
+        complete(endpointId, loading, null, ex);
+      }
+    }
+    return result;
+  }
+
+  private void load(String endpointId, CompletableFuture<Map<String, Object>> loading) {
+    loadCount.increment();
+    try {
+      Map<String, Object> metadata = loader.load(endpointId);
+      complete(endpointId, loading, metadata != null ? metadata : NOT_FOUND, null);
+    } catch (Exception ex) {
+      System.err.println(String.format("Failed to load metadata of endpoint %s: %s", endpointId, ex));
+      complete(endpointId, loading, null, ex);
+    }
+  }
+
+  private void complete(String endpointId, CompletableFuture<Map<String, Object>> loading,
+                        Map<String, Object> metadata, Exception failure) {
+    long now = clock.getAsLong();
+    Map<String, Object> result = metadata;
+    synchronized (entries) {
+      CachedMetadata entry = entries.get(endpointId);
+      if (entry != null && entry.loading == loading) {
+        entry.loading = null;
+        if (failure == null) {
+          entry.metadata = metadata;
+          long ttl = metadata != NOT_FOUND ? ttlNanos : negativeTtlNanos;
+          entry.expiresAt = now + ttl;
+          entry.refreshAt = now + ttl - (metadata != NOT_FOUND ? refreshAheadNanos : 0);
+        } else if (entry.metadata != null && now - entry.expiresAt < 0) {
+          // Metadata that is still valid is kept and the load is retried later.
+          entry.refreshAt = Math.min(entry.expiresAt, now + negativeTtlNanos);
+          result = entry.metadata;
+        } else {
+          entry.metadata = NOT_FOUND;
+          entry.expiresAt = now + negativeTtlNanos;
+          entry.refreshAt = entry.expiresAt;
+        }
+      }
+    }
+    loading.complete(result != null ? result : NOT_FOUND);
+  }
+
+  private static class CachedMetadata {
+    private Map<String, Object> metadata;
+    private long expiresAt;
+    private long refreshAt;
+    private CompletableFuture<Map<String, Object>> loading;
+  }
+}
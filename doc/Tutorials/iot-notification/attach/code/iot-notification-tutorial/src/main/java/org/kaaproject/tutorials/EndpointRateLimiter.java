@@ -0,0 +1,150 @@
+package org.kaaproject.tutorials;
+
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Token-bucket rate limiter keyed by endpoint ID, so that a single misbehaving device cannot flood notifications.
+ * Buckets are spread over independently locked stripes. A bucket idle for long enough to refill completely
+ * is indistinguishable from a new one, so such buckets are evicted a few at a time on every call into
+ * their stripe, see {@link IdleEvictingMap}, and memory is proportional to the number of recently active endpoints.
+ */
+public class EndpointRateLimiter {
+
+  /**
+   * Rate of a token bucket.
+   */
+  public static class Rate {
+    private final double permitsPerNano;
+    private final double burst;
+    private final long refillNanos;
+
+    /**
+     * @param permitsPerSecond - sustained number of notifications per second
+     * @param burst - number of notifications allowed at once, i.e. bucket capacity
+     */
+    public Rate(double permitsPerSecond, double burst) {
+      if (permitsPerSecond <= 0 || burst < 1) {
+        throw new IllegalArgumentException("Rate must be positive and burst must allow at least one permit");
+      }
+      this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+      this.burst = burst;
+      this.refillNanos = (long) Math.ceil(burst / permitsPerNano);
+    }
+  }
+
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final Rate defaultRate;
+  private final Map<String, Rate> appVersionRates;
+  private final LongAdder allowedCount = new LongAdder();
+  private final LongAdder suppressedCount = new LongAdder();
+
+  /**
+   * Creates limiter instance.
+   * @param defaultRate - rate of endpoints whose application version has no dedicated rate
+   * @param appVersionRates - rates by application version name
+   * @param concurrency - expected number of concurrently calling threads, rounded up to the power of two stripes
+   */
+  public EndpointRateLimiter(Rate defaultRate, Map<String, Rate> appVersionRates, int concurrency) {
+    int stripeCount = Integer.highestOneBit(Math.max(1, concurrency * 4 - 1) << 1);
+    this.stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe();
+    }
+    this.stripeMask = stripeCount - 1;
+    this.defaultRate = defaultRate;
+    this.appVersionRates = new HashMap<>(appVersionRates);
+  }
+
+  /**
+   * Takes one permit from the bucket of the endpoint.
+   * @return {@code true} if the notification may be sent, {@code false} if it must be suppressed
+   */
+  public boolean tryAcquire(String endpointId, String appVersionName) {
+    return tryAcquire(endpointId, appVersionName, System.nanoTime());
+  }
+
+  // Visible for tests, which pass the time explicitly.
+  boolean tryAcquire(String endpointId, String appVersionName, long now) {
+    int hash = endpointId.hashCode();
+    Stripe stripe = stripes[(hash ^ (hash >>> 16)) & stripeMask];
+    boolean allowed;
+    synchronized (stripe) {
+      Bucket bucket = stripe.buckets.get(endpointId, now);
+      if (bucket == null) {
+        Rate rate = appVersionName != null ? appVersionRates.getOrDefault(appVersionName, defaultRate) : defaultRate;
+        bucket = new Bucket(rate, now);
+        stripe.buckets.put(endpointId, bucket);
+      }
+      allowed = bucket.tryAcquire(now);
+    }
+    (allowed ? allowedCount : suppressedCount).increment();
+    return allowed;
+  }
+
+  /**
+   * Wraps callback so that it is only invoked for events of endpoints within their rate.
+   */
+  public Consumer<TimeSeriesEvent> wrap(Consumer<TimeSeriesEvent> callback) {
+    return event -> {
+      if (tryAcquire(event.getEndpointId(), event.getAppVersionName())) {
+        callback.accept(event);
+      }
+    };
+  }
+
+  public long getAllowedCount() {
+    return allowedCount.sum();
+  }
+
+  public long getSuppressedCount() {
+    return suppressedCount.sum();
+  }
+
+  /**
+   * Returns number of buckets currently tracked, i.e. recently active endpoints.
+   */
+  public int getBucketCount() {
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.buckets.size();
+      }
+    }
+    return count;
+  }
+
+  private static class Stripe {
+    // A bucket is refilled on every call, so the least recently used one was refilled the longest ago.
+    private final IdleEvictingMap<String, Bucket> buckets =
+        new IdleEvictingMap<>((bucket, now) -> now - bucket.lastRefillNanos >= bucket.rate.refillNanos);
+  }
+
+  private static class Bucket {
+    private final Rate rate;
+    private double tokens;
+    private long lastRefillNanos;
+
+    private Bucket(Rate rate, long now) {
+      this.rate = rate;
+      this.tokens = rate.burst;
+      this.lastRefillNanos = now;
+    }
+
+    private boolean tryAcquire(long now) {
+      tokens = Math.min(rate.burst, tokens + (now - lastRefillNanos) * rate.permitsPerNano);
+      lastRefillNanos = now;
+      if (tokens >= 1) {
+        tokens -= 1;
+        return true;
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package org.kaaproject.tutorials;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Loads endpoint metadata with the <a href="https://docs.kaaiot.io/EPR/docs/current/REST-API/">EPR REST API</a>.
+ * Response bodies are read to the end so that HTTP connections are kept alive and reused between loads.
+ */
+public class EprMetadataLoader implements EndpointMetadataCache.Loader {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final TypeReference<Map<String, Object>> METADATA_TYPE = new TypeReference<Map<String, Object>>() { };
+
+  private final String eprUrl;
+  private final int timeoutMillis;
+
+  /**
+   * Creates loader instance.
+   * @param eprUrl - base URL of EPR, e.g. {@code http://localhost:8080}
+   * @param timeout - connect and read timeout of one request
+   */
+  public EprMetadataLoader(String eprUrl, Duration timeout) {
+    this.eprUrl = eprUrl.endsWith("/") ? eprUrl.substring(0, eprUrl.length() - 1) : eprUrl;
+    this.timeoutMillis = (int) timeout.toMillis();
+  }
+
+  @Override
+  public Map<String, Object> load(String endpointId) throws IOException {
+    URL url = new URL(String.format("%s/api/v1/endpoints/%s/metadata", eprUrl,
+        URLEncoder.encode(endpointId, StandardCharsets.UTF_8.name())));
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(timeoutMillis);
+    connection.setReadTimeout(timeoutMillis);
+    connection.setRequestProperty("Accept", "application/json");
+    int status = connection.getResponseCode();
+    if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+      drain(connection.getErrorStream());
+      return null;
+    }
+    if (status != HttpURLConnection.HTTP_OK) {
+      drain(connection.getErrorStream());
+      throw new IOException(String.format("EPR responded with status %d to %s", status, url));
+    }
+    try (InputStream body = connection.getInputStream()) {
+      return OBJECT_MAPPER.readValue(body, METADATA_TYPE);
+    }
+  }
+
+  private static void drain(InputStream stream) throws IOException {
+    if (stream != null) {
+      try (InputStream body = stream) {
+        byte[] buffer = new byte[1024];
+        while (body.read(buffer) >= 0) {
+          // Discarded.
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package org.kaaproject.tutorials;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log for messages written per event, e.g. for every received time series event, that keeps logging off
+ * the hot path. A message below the level costs a field read. Enabled messages are rate limited, and only
+ * the ones within the rate are formatted, on the calling thread, as arguments might be reused after the call.
+ * Formatted messages are handed over through a lock-free ring buffer to a writer thread, and are dropped rather
+ * than block the caller when the buffer is full. Suppressed and dropped messages are counted and reported.
+ */
+public class EventLog implements AutoCloseable {
+  // Rate limit permits are handed out in ticks, so that a burst cannot use up the budget of a whole second.
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int TICKS_PER_SECOND = 10;
+  // How long the idle writer sleeps before checking the buffer again.
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  // How often the counts of suppressed and dropped messages are reported.
+  private static final long REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  /**
+   * Message levels in increasing severity. Warnings and errors are written to stderr, the rest to stdout.
+   */
+  public enum Level {
+    DEBUG, INFO, WARN, ERROR, OFF
+  }
+
+  private final int permitsPerTick;
+  private final AtomicReferenceArray<String> buffer;
+  // Levels of buffered messages, published along with the messages.
+  private final byte[] levels;
+  private final int mask;
+  private final AtomicLong producerIndex = new AtomicLong();
+  private final AtomicInteger permits = new AtomicInteger();
+  private final LongAdder suppressedCount = new LongAdder();
+  private final LongAdder droppedCount = new LongAdder();
+  private final PrintStream out;
+  private final PrintStream err;
+  private final Thread writer;
+  private volatile long consumerIndex;
+  private volatile Level level;
+  private volatile boolean closed;
+
+  /**
+   * Creates log writing to stdout and stderr and starts the writer thread.
+   * @param level - minimum level of written messages
+   * @param maxMessagesPerSecond - rate above which messages are suppressed
+   * @param bufferCapacity - maximum number of messages waiting for the writer, rounded up to a power of two
+   */
+  public EventLog(Level level, int maxMessagesPerSecond, int bufferCapacity) {
+    this(System.out, System.err, level, maxMessagesPerSecond, bufferCapacity);
+  }
+
+  /**
+   * Creates log writing to the specified streams and starts the writer thread.
+   * @param out - stream for debug and info messages
+   * @param err - stream for warnings and errors
+   * @param level - minimum level of written messages
+   * @param maxMessagesPerSecond - rate above which messages are suppressed
+   * @param bufferCapacity - maximum number of messages waiting for the writer, rounded up to a power of two
+   */
+  public EventLog(PrintStream out, PrintStream err, Level level, int maxMessagesPerSecond, int bufferCapacity) {
+    if (maxMessagesPerSecond <= 0 || bufferCapacity <= 0 || bufferCapacity > 1 << 30) {
+      throw new IllegalArgumentException("Message rate and buffer capacity must be positive");
+    }
+    int capacity = Integer.highestOneBit(bufferCapacity - 1) << 1;
+    this.buffer = new AtomicReferenceArray<>(Math.max(1, capacity));
+    this.levels = new byte[buffer.length()];
+    this.mask = buffer.length() - 1;
+    this.permitsPerTick = Math.max(1, (maxMessagesPerSecond + TICKS_PER_SECOND - 1) / TICKS_PER_SECOND);
+    this.permits.set(permitsPerTick);
+    this.out = out;
+    this.err = err;
+    this.level = level;
+    this.writer = new Thread(this::write, "event-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  public void setLevel(Level level) {
+    this.level = level;
+  }
+
+  /**
+   * Returns whether messages of the level are written, e.g. to skip preparing arguments of disabled ones.
+   */
+  public boolean isEnabled(Level level) {
+    return level.compareTo(this.level) >= 0;
+  }
+
+  public void debug(String format, Object arg) {
+    log(Level.DEBUG, format, arg);
+  }
+
+  public void info(String format, Object arg) {
+    log(Level.INFO, format, arg);
+  }
+
+  public void warn(String format, Object arg) {
+    log(Level.WARN, format, arg);
+  }
+
+  public void error(String format, Object arg) {
+    log(Level.ERROR, format, arg);
+  }
+
+  /**
+   * Formats and queues message if its level is enabled and the rate limit allows.
+   * @param format - format string as of {@link String#format(String, Object...)}
+   * @param arg - argument of the format, only rendered if the message is written
+   */
+  public void log(Level level, String format, Object arg) {
+    if (!isEnabled(level) || closed) {
+      return;
+    }
+    if (permits.get() <= 0 || permits.getAndDecrement() <= 0) {
+      suppressedCount.increment();
+      return;
+    }
+    if (!offer(level, String.format(format, arg))) {
+      droppedCount.increment();
+    }
+  }
+
+  /**
+   * Returns number of messages over the rate limit.
+   */
+  public long getSuppressedCount() {
+    return suppressedCount.sum();
+  }
+
+  /**
+   * Returns number of messages dropped because the writer fell behind.
+   */
+  public long getDroppedCount() {
+    return droppedCount.sum();
+  }
+
+  /**
+   * Writes queued messages and stops the writer thread. Messages logged afterwards are ignored.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private boolean offer(Level level, String message) {
+    while (true) {
+      long index = producerIndex.get();
+      if (index - consumerIndex >= buffer.length()) {
+        return false;
+      }
+      if (producerIndex.compareAndSet(index, index + 1)) {
+        int slot = (int) index & mask;
+        levels[slot] = (byte) level.ordinal();
+        buffer.lazySet(slot, message);
+        return true;
+      }
+    }
+  }
+
+  private void write() {
+    long nextTick = System.nanoTime() + TICK_NANOS;
+    long nextReport = System.nanoTime() + REPORT_INTERVAL_NANOS;
+    long reportedSuppressed = 0;
+    long reportedDropped = 0;
+    while (true) {
+      // Closed is read before draining, so that messages queued before close are written.
+      boolean stop = closed;
+      boolean written = drain();
+      long now = System.nanoTime();
+      if (now - nextTick >= 0) {
+        permits.set(permitsPerTick);
+        nextTick = now + TICK_NANOS;
+      }
+      if (stop || now - nextReport >= 0) {
+        long suppressed = getSuppressedCount();
+        long dropped = getDroppedCount();
+        if (suppressed != reportedSuppressed || dropped != reportedDropped) {
+          err.println(String.format("Event log suppressed %d messages over the rate limit and dropped %d",
+              suppressed - reportedSuppressed, dropped - reportedDropped));
+          reportedSuppressed = suppressed;
+          reportedDropped = dropped;
+        }
+        nextReport = now + REPORT_INTERVAL_NANOS;
+      }
+      if (stop) {
+        return;
+      }
+      if (!written) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  private boolean drain() {
+    long index = consumerIndex;
+    boolean written = false;
+    while (index < producerIndex.get()) {
+      int slot = (int) index & mask;
+      String message = buffer.get(slot);
+      if (message == null) {
+        // The slot is claimed, but the message is not stored yet.
+        Thread.yield();
+        continue;
+      }
+      buffer.lazySet(slot, null);
+      consumerIndex = ++index;
+      (levels[slot] >= Level.WARN.ordinal() ? err : out).println(message);
+      written = true;
+    }
+    return written;
+  }
+}
@@ -0,0 +1,522 @@
+package org.kaaproject.tutorials;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Durable local spool of raw messages that are received but not yet processed, because core NATS
+ * does not redeliver messages lost when the process dies.
+ * Messages are appended to memory-mapped segment files, so an append is a memory copy and survives
+ * a process crash as soon as it returns. Segments are forced to disk by a background thread once per flush
+ * interval, which bounds the loss on an OS crash or power failure and shares one fsync between all messages
+ * appended within the interval. Processed messages are acknowledged by sequence in any order, the offset
+ * before which all messages are processed is checkpointed on every flush, and segments entirely before
+ * the checkpoint are deleted. On start, messages after the checkpoint are replayed, so delivery is at least once.
+ */
+public class EventSpool implements AutoCloseable {
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CHECKPOINT_FILE = "checkpoint";
+  private static final String CHECKPOINT_TEMP_FILE = "checkpoint.tmp";
+  private static final long CHECKPOINT_MAGIC = 0x6b61615f73706f6fL;
+  // Record header: record length, CRC32 of the rest of the record and subject length.
+  private static final int HEADER_SIZE = 4 + 4 + 2;
+  // Pages of new segments are touched in advance, so that appends do not pay for page faults.
+  private static final int PAGE_SIZE = 4096;
+
+  /**
+   * Handler of replayed messages.
+   */
+  public interface RecordHandler {
+    /**
+     * @param subject - subject the message was received on
+     * @param data - raw message data
+     * @param sequence - sequence to acknowledge the message with once processed
+     */
+    void accept(String subject, byte[] data, long sequence);
+  }
+
+  private final Path directory;
+  private final int segmentSize;
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  private final CRC32 crc = new CRC32();
+  // End offsets of unacknowledged messages by sequence, acknowledged ones are stored inverted.
+  private final long[] pending;
+  private final int pendingMask;
+  private final Object flushLock = new Object();
+  private final ScheduledExecutorService flusher;
+  private Segment activeSegment;
+  private Segment preparedSegment;
+  private long headSequence;
+  private long tailSequence;
+  private long committedOffset;
+  private long checkpointedOffset;
+  private long recoveredEndOffset;
+  private int recoveredCount;
+  private boolean appended;
+  private boolean closed;
+  private String lastSubject;
+  private byte[] lastSubjectBytes;
+
+  /**
+   * Opens spool in the directory, recovering segments and checkpoint left by the previous run,
+   * and starts the flush timer.
+   * @param directory - directory of segment and checkpoint files, created if missing
+   * @param segmentSize - size of one segment file, which also limits the size of one message
+   * @param maxUnacknowledged - number of appended messages awaiting acknowledgement at which appends block
+   * @param flushInterval - time between forcing segments to disk and writing the checkpoint
+   */
+  public EventSpool(Path directory, int segmentSize, int maxUnacknowledged, Duration flushInterval) throws IOException {
+    if (segmentSize <= HEADER_SIZE || maxUnacknowledged <= 0) {
+      throw new IllegalArgumentException("Segment size and maximum of unacknowledged messages must be positive");
+    }
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    int pendingCapacity = Integer.highestOneBit(Math.max(1, maxUnacknowledged - 1) << 1);
+    this.pending = new long[pendingCapacity];
+    this.pendingMask = pendingCapacity - 1;
+    Files.createDirectories(directory);
+    recover();
+    this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "event-spool-flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long intervalMillis = Math.max(1, flushInterval.toMillis());
+    flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    flusher.execute(this::prepareNextSegment);
+  }
+
+  /**
+   * Returns number of messages recovered from the previous run that are not replayed yet.
+   */
+  public synchronized int getRecoveredCount() {
+    return recoveredCount;
+  }
+
+  /**
+   * Passes messages recovered from the previous run to the handler in their original order.
+   * Must be called before the first {@link #append(String, byte[])}.
+   */
+  public void replay(RecordHandler handler) throws InterruptedException {
+    List<long[]> records = new ArrayList<>();
+    synchronized (this) {
+      if (appended) {
+        throw new IllegalStateException("Spooled messages can only be replayed before new ones are appended");
+      }
+      scan(committedOffset, (segment, position, length) -> {
+        if (segment.baseOffset + position < recoveredEndOffset) {
+          records.add(new long[] {segment.baseOffset, position, length});
+        }
+      });
+      recoveredCount = 0;
+    }
+    for (long[] record : records) {
+      Segment segment = findSegment(record[0]);
+      ByteBuffer buffer = segment.buffer.duplicate();
+      int position = (int) record[1];
+      int length = (int) record[2];
+      byte[] subjectBytes = new byte[buffer.getShort(position + 8) & 0xffff];
+      byte[] data = new byte[length - HEADER_SIZE - subjectBytes.length];
+      buffer.position(position + HEADER_SIZE);
+      buffer.get(subjectBytes);
+      buffer.get(data);
+      long sequence = register(segment.baseOffset + position + length);
+      handler.accept(new String(subjectBytes, StandardCharsets.UTF_8), data, sequence);
+    }
+  }
+
+  /**
+   * Appends message, blocking while the maximum of unacknowledged messages is reached.
+   * @return sequence to acknowledge the message with once processed
+   */
+  public synchronized long append(String subject, byte[] data) throws IOException, InterruptedException {
+    if (closed) {
+      throw new IOException("Event spool is closed");
+    }
+    appended = true;
+    if (!subject.equals(lastSubject)) {
+      lastSubjectBytes = subject.getBytes(StandardCharsets.UTF_8);
+      lastSubject = subject;
+    }
+    byte[] subjectBytes = lastSubjectBytes;
+    if (subjectBytes.length > 0xffff) {
+      throw new IllegalArgumentException(String.format("Subject of %d bytes is too long", subjectBytes.length));
+    }
+    int length = HEADER_SIZE + subjectBytes.length + data.length;
+    if (length > segmentSize || length < 0) {
+      throw new IllegalArgumentException(
+          String.format("Message of %d bytes does not fit into a spool segment of %d bytes", length, segmentSize));
+    }
+    awaitPendingCapacity();
+    if (activeSegment.writePosition + length > segmentSize) {
+      rollSegment();
+    }
+    Segment segment = activeSegment;
+    int position = segment.writePosition;
+    crc.reset();
+    crc.update(subjectBytes.length >>> 8);
+    crc.update(subjectBytes.length);
+    crc.update(subjectBytes, 0, subjectBytes.length);
+    crc.update(data, 0, data.length);
+    MappedByteBuffer buffer = segment.buffer;
+    buffer.putInt(position + 4, (int) crc.getValue());
+    buffer.putShort(position + 8, (short) subjectBytes.length);
+    buffer.position(position + HEADER_SIZE);
+    buffer.put(subjectBytes);
+    buffer.put(data);
+    // The length is written last, so a record is never seen with a length but without its content.
+    buffer.putInt(position, length);
+    segment.writePosition = position + length;
+    return register(segment.baseOffset + segment.writePosition);
+  }
+
+  /**
+   * Marks message as processed. Messages may be acknowledged in any order, the checkpoint only advances
+   * over messages that are all acknowledged.
+   */
+  public synchronized void acknowledge(long sequence) {
+    if (sequence < headSequence || sequence >= tailSequence) {
+      return;
+    }
+    int index = (int) sequence & pendingMask;
+    if (pending[index] >= 0) {
+      pending[index] = ~pending[index];
+    }
+    boolean advanced = false;
+    while (headSequence < tailSequence && pending[(int) headSequence & pendingMask] < 0) {
+      committedOffset = ~pending[(int) headSequence & pendingMask];
+      headSequence++;
+      advanced = true;
+    }
+    if (advanced) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns number of unacknowledged messages at which appends block.
+   */
+  public int getMaxUnacknowledged() {
+    return pending.length;
+  }
+
+  /**
+   * Returns number of appended or replayed messages that are not acknowledged yet.
+   */
+  public synchronized long getUnacknowledgedCount() {
+    return tailSequence - headSequence;
+  }
+
+  /**
+   * Forces appended messages to disk, writes the checkpoint and deletes segments before it.
+   */
+  public void flush() throws IOException {
+    synchronized (flushLock) {
+      List<Segment> dirty = new ArrayList<>();
+      List<Integer> dirtyPositions = new ArrayList<>();
+      long committed;
+      synchronized (this) {
+        for (Segment segment : segments) {
+          if (segment.writePosition > segment.flushedPosition) {
+            dirty.add(segment);
+            dirtyPositions.add(segment.writePosition);
+          }
+        }
+        committed = committedOffset;
+      }
+      for (int i = 0; i < dirty.size(); i++) {
+        dirty.get(i).buffer.force();
+        dirty.get(i).flushedPosition = dirtyPositions.get(i);
+      }
+      if (committed != checkpointedOffset) {
+        writeCheckpoint(committed);
+        checkpointedOffset = committed;
+      }
+      deleteSegmentsBefore(checkpointedOffset);
+    }
+  }
+
+  /**
+   * Stops the flush timer, flushes the spool and closes segment files.
+   * Unacknowledged messages are replayed when the spool is opened again.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    synchronized (this) {
+      for (Segment segment : segments) {
+        segment.channel.close();
+      }
+      if (preparedSegment != null) {
+        preparedSegment.channel.close();
+      }
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException ex) {
+      System.err.println(String.format("Failed to flush event spool: %s", ex));
+    }
+  }
+
+  private void rollSegment() throws IOException {
+    long baseOffset = activeSegment.baseOffset + segmentSize;
+    Segment segment = preparedSegment;
+    preparedSegment = null;
+    if (segment == null || segment.baseOffset != baseOffset) {
+      segment = openSegment(baseOffset);
+    }
+    activeSegment = segment;
+    segments.addLast(segment);
+    flusher.execute(this::prepareNextSegment);
+  }
+
+  private void prepareNextSegment() {
+    long baseOffset;
+    synchronized (this) {
+      if (closed || preparedSegment != null) {
+        return;
+      }
+      baseOffset = activeSegment.baseOffset + segmentSize;
+    }
+    try {
+      Segment segment = openSegment(baseOffset);
+      touchPages(segment, 0);
+      synchronized (this) {
+        if (!closed && preparedSegment == null && activeSegment.baseOffset + segmentSize == baseOffset) {
+          preparedSegment = segment;
+          return;
+        }
+      }
+      segment.channel.close();
+    } catch (IOException ex) {
+      System.err.println(String.format("Failed to prepare spool segment: %s", ex));
+    }
+  }
+
+  private long register(long endOffset) throws InterruptedException {
+    synchronized (this) {
+      awaitPendingCapacity();
+      pending[(int) tailSequence & pendingMask] = endOffset;
+      return tailSequence++;
+    }
+  }
+
+  private void awaitPendingCapacity() throws InterruptedException {
+    while (tailSequence - headSequence > pendingMask) {
+      if (closed) {
+        throw new InterruptedException("Event spool is closed");
+      }
+      wait();
+    }
+  }
+
+  private void recover() throws IOException {
+    List<Long> baseOffsets = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        baseOffsets.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+      }
+    }
+    baseOffsets.sort(null);
+    for (long baseOffset : baseOffsets) {
+      segments.addLast(openSegment(baseOffset));
+    }
+    if (segments.isEmpty()) {
+      segments.addLast(openSegment(0));
+    }
+    committedOffset = Math.max(readCheckpoint(), segments.getFirst().baseOffset);
+    checkpointedOffset = committedOffset;
+    int[] count = new int[1];
+    long[] end = {committedOffset};
+    scan(committedOffset, (segment, position, length) -> {
+      count[0]++;
+      end[0] = segment.baseOffset + position + length;
+    });
+    activeSegment = segments.getLast();
+    // Earlier segments are only read, new messages go after the last valid record of the last segment.
+    int writePosition = (int) Math.max(0, Math.min(segmentSize, end[0] - activeSegment.baseOffset));
+    clearTail(activeSegment, writePosition);
+    touchPages(activeSegment, writePosition);
+    activeSegment.writePosition = writePosition;
+    for (Segment segment : segments) {
+      if (segment != activeSegment) {
+        segment.writePosition = segmentSize;
+      }
+      segment.flushedPosition = segment.writePosition;
+    }
+    recoveredEndOffset = end[0];
+    recoveredCount = count[0];
+    if (recoveredCount > 0) {
+      System.out.println(String.format("Recovered %d unprocessed events from spool %s", recoveredCount, directory));
+    }
+  }
+
+  private void scan(long fromOffset, RecordVisitor visitor) {
+    for (Segment segment : segments) {
+      if (segment.baseOffset + segmentSize <= fromOffset) {
+        continue;
+      }
+      int position = (int) Math.max(0, fromOffset - segment.baseOffset);
+      int length;
+      while ((length = validRecordLength(segment, position)) > 0) {
+        visitor.visit(segment, position, length);
+        position += length;
+      }
+    }
+  }
+
+  private int validRecordLength(Segment segment, int position) {
+    if (position > segmentSize - HEADER_SIZE) {
+      return 0;
+    }
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int length = buffer.getInt(position);
+    if (length < HEADER_SIZE || length > segmentSize - position
+        || HEADER_SIZE + (buffer.getShort(position + 8) & 0xffff) > length) {
+      return 0;
+    }
+    // Records torn by an OS crash or power failure do not match their checksum.
+    buffer.limit(position + length).position(position + 8);
+    crc.reset();
+    crc.update(buffer);
+    return (int) crc.getValue() == buffer.getInt(position + 4) ? length : 0;
+  }
+
+  private void clearTail(Segment segment, int fromPosition) {
+    MappedByteBuffer buffer = segment.buffer;
+    int end = segmentSize;
+    while (end > fromPosition && buffer.get(end - 1) == 0) {
+      end--;
+    }
+    for (int position = fromPosition; position < end; position++) {
+      buffer.put(position, (byte) 0);
+    }
+  }
+
+  private void touchPages(Segment segment, int fromPosition) {
+    MappedByteBuffer buffer = segment.buffer;
+    for (int position = fromPosition; position < segmentSize; position += PAGE_SIZE) {
+      buffer.put(position, (byte) 0);
+    }
+  }
+
+  private Segment findSegment(long baseOffset) {
+    synchronized (this) {
+      for (Segment segment : segments) {
+        if (segment.baseOffset == baseOffset) {
+          return segment;
+        }
+      }
+    }
+    throw new IllegalStateException(String.format("Spool segment %d is deleted", baseOffset));
+  }
+
+  private Segment openSegment(long baseOffset) throws IOException {
+    Path path = directory.resolve(String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    return new Segment(baseOffset, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+  }
+
+  private void deleteSegmentsBefore(long offset) {
+    List<Segment> deleted = new ArrayList<>();
+    synchronized (this) {
+      while (segments.size() > 1 && segments.getFirst().baseOffset + segmentSize <= offset) {
+        deleted.add(segments.removeFirst());
+      }
+    }
+    for (Segment segment : deleted) {
+      try {
+        segment.channel.close();
+        Files.deleteIfExists(segment.path);
+      } catch (IOException ex) {
+        System.err.println(String.format("Failed to delete spool segment %s: %s", segment.path, ex));
+      }
+    }
+  }
+
+  private long readCheckpoint() throws IOException {
+    Path path = directory.resolve(CHECKPOINT_FILE);
+    if (!Files.exists(path)) {
+      return 0;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+    if (buffer.remaining() != 16) {
+      throw new IOException(String.format("Spool checkpoint %s is corrupted", path));
+    }
+    long offset = buffer.getLong();
+    if ((offset ^ CHECKPOINT_MAGIC) != buffer.getLong()) {
+      throw new IOException(String.format("Spool checkpoint %s is corrupted", path));
+    }
+    return offset;
+  }
+
+  private void writeCheckpoint(long offset) throws IOException {
+    Path temp = directory.resolve(CHECKPOINT_TEMP_FILE);
+    ByteBuffer buffer = ByteBuffer.allocate(16);
+    buffer.putLong(offset).putLong(offset ^ CHECKPOINT_MAGIC);
+    buffer.flip();
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+    }
+    Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private interface RecordVisitor {
+    void visit(Segment segment, int position, int length);
+  }
+
+  private static class Segment {
+    private final long baseOffset;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private volatile int flushedPosition;
+
+    private Segment(long baseOffset, Path path, FileChannel channel, MappedByteBuffer buffer) {
+      this.baseOffset = baseOffset;
+      this.path = path;
+      this.channel = channel;
+      this.buffer = buffer;
+    }
+  }
+}
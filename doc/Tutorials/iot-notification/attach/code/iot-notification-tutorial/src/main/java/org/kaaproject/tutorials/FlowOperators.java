@@ -0,0 +1,637 @@
+package org.kaaproject.tutorials;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Operators composing {@link Flow.Publisher}s, e.g. of {@link TimeSeriesEventPublisher}, into backpressured
+ * pipelines. Each stage requests from its upstream only what it can pass on, so demand of the final subscriber
+ * travels up to the event source, and buffers of the stages are bounded.
+ */
+public final class FlowOperators {
+  // Items a parallel rail emits before giving its thread up to other rails.
+  private static final int MAX_ITEMS_PER_RUN = 64;
+
+  static final Flow.Subscription NO_SUBSCRIPTION = new Flow.Subscription() {
+    @Override
+    public void request(long n) {
+    }
+
+    @Override
+    public void cancel() {
+    }
+  };
+
+  // Thread flushing batches that did not fill up within their delay.
+  private static final ScheduledExecutorService BATCH_TIMER = Executors.newSingleThreadScheduledExecutor(command -> {
+    Thread thread = new Thread(command, "flow-batch-timer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private FlowOperators() {
+  }
+
+  /**
+   * Passes on items matching the predicate. Each dropped item is replaced by requesting another one.
+   */
+  public static <T> Flow.Publisher<T> filter(Flow.Publisher<T> upstream, Predicate<? super T> predicate) {
+    return subscriber -> upstream.subscribe(new FilterRelay<>(subscriber, predicate));
+  }
+
+  /**
+   * Passes on items transformed by the mapper, which must not return {@code null}.
+   */
+  public static <T, R> Flow.Publisher<R> map(Flow.Publisher<T> upstream, Function<? super T, ? extends R> mapper) {
+    return subscriber -> upstream.subscribe(new MapRelay<>(subscriber, mapper));
+  }
+
+  /**
+   * Collects items into batches, passed on when full or when the delay since their first item has passed.
+   * At most one batch is buffered: while the subscriber has no demand, no more items are requested.
+   * Batches flushed by the delay are passed on from a timer thread shared by all batching stages.
+   * @param maxSize - maximum number of items in a batch
+   * @param maxDelay - maximum time an item waits for its batch to fill up
+   */
+  public static <T> Flow.Publisher<List<T>> batch(Flow.Publisher<T> upstream, int maxSize, Duration maxDelay) {
+    if (maxSize <= 0 || maxDelay.isNegative() || maxDelay.isZero()) {
+      throw new IllegalArgumentException("Batch size and delay must be positive");
+    }
+    return subscriber -> upstream.subscribe(new Batch<>(subscriber, maxSize, maxDelay.toNanos()));
+  }
+
+  /**
+   * Splits items into rails handled in parallel, each rail being a publisher with a subscriber of its own.
+   * Items of the same key go to the same rail in order, e.g. events of an endpoint. Upstream is subscribed once
+   * all rails are, and is requested no more items than the fullest rail buffer has room for.
+   * Each rail emits on the executor, one run at a time, so rails need as many executor threads to run in parallel.
+   * @param railCount - number of rails
+   * @param keyHash - well-mixed hash of the key that items are ordered by
+   * @param railCapacity - maximum number of items buffered per rail
+   * @param executor - executor the rails emit on
+   */
+  public static <T> List<Flow.Publisher<T>> parallel(Flow.Publisher<T> upstream, int railCount,
+                                                    ToLongFunction<? super T> keyHash, int railCapacity,
+                                                    Executor executor) {
+    if (railCount <= 0 || railCapacity <= 0) {
+      throw new IllegalArgumentException("Rail count and capacity must be positive");
+    }
+    return new Parallel<>(upstream, railCount, keyHash, railCapacity, executor).rails;
+  }
+
+  private static long addDemand(long demand, long n) {
+    return demand + n < 0 ? Long.MAX_VALUE : demand + n;
+  }
+
+  /**
+   * Stage passing signals between its upstream and a single subscriber.
+   */
+  private abstract static class Relay<T, R> implements Flow.Subscriber<T>, Flow.Subscription {
+    protected final Flow.Subscriber<? super R> downstream;
+    protected Flow.Subscription upstream;
+    private boolean done;
+
+    private Relay(Flow.Subscriber<? super R> downstream) {
+      this.downstream = Objects.requireNonNull(downstream, "Subscriber must not be null");
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      upstream = subscription;
+      downstream.onSubscribe(this);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      if (!done) {
+        done = true;
+        downstream.onError(throwable);
+      }
+    }
+
+    @Override
+    public void onComplete() {
+      if (!done) {
+        done = true;
+        downstream.onComplete();
+      }
+    }
+
+    @Override
+    public void request(long n) {
+      upstream.request(n);
+    }
+
+    @Override
+    public void cancel() {
+      upstream.cancel();
+    }
+
+    /**
+     * Fails the stage because of an exception thrown by its function, which ends the upstream too.
+     */
+    protected void fail(RuntimeException ex) {
+      upstream.cancel();
+      onError(ex);
+    }
+
+    protected boolean isDone() {
+      return done;
+    }
+  }
+
+  private static class FilterRelay<T> extends Relay<T, T> {
+    private final Predicate<? super T> predicate;
+
+    private FilterRelay(Flow.Subscriber<? super T> downstream, Predicate<? super T> predicate) {
+      super(downstream);
+      this.predicate = predicate;
+    }
+
+    @Override
+    public void onNext(T item) {
+      if (isDone()) {
+        return;
+      }
+      boolean matches;
+      try {
+        matches = predicate.test(item);
+      } catch (RuntimeException ex) {
+        fail(ex);
+        return;
+      }
+      if (matches) {
+        downstream.onNext(item);
+      } else {
+        upstream.request(1);
+      }
+    }
+  }
+
+  private static class MapRelay<T, R> extends Relay<T, R> {
+    private final Function<? super T, ? extends R> mapper;
+
+    private MapRelay(Flow.Subscriber<? super R> downstream, Function<? super T, ? extends R> mapper) {
+      super(downstream);
+      this.mapper = mapper;
+    }
+
+    @Override
+    public void onNext(T item) {
+      if (isDone()) {
+        return;
+      }
+      R mapped;
+      try {
+        mapped = Objects.requireNonNull(mapper.apply(item), "Mapper returned null");
+      } catch (RuntimeException ex) {
+        fail(ex);
+        return;
+      }
+      downstream.onNext(mapped);
+    }
+  }
+
+  /**
+   * Batching stage. Signals arrive from the upstream, the subscriber and the timer, so state is guarded
+   * by the stage monitor, and a single thread at a time drains it, emitting outside the monitor.
+   */
+  private static class Batch<T> implements Flow.Subscriber<T>, Flow.Subscription {
+    private final Flow.Subscriber<? super List<T>> downstream;
+    private final int maxSize;
+    private final long maxDelayNanos;
+    private Flow.Subscription upstream;
+    private List<T> buffer;
+    // Identifies the batch being filled, so that a timer of an earlier batch does not flush it.
+    private long generation;
+    private ScheduledFuture<?> timer;
+    private boolean flushDue;
+    private long demand;
+    // Items requested from upstream and not received yet.
+    private long outstanding;
+    private boolean upstreamDone;
+    private Throwable error;
+    private boolean terminated;
+    private boolean cancelled;
+    private boolean draining;
+    private boolean missed;
+
+    private Batch(Flow.Subscriber<? super List<T>> downstream, int maxSize, long maxDelayNanos) {
+      this.downstream = Objects.requireNonNull(downstream, "Subscriber must not be null");
+      this.maxSize = maxSize;
+      this.maxDelayNanos = maxDelayNanos;
+      this.buffer = new ArrayList<>(maxSize);
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      synchronized (this) {
+        upstream = subscription;
+      }
+      downstream.onSubscribe(this);
+    }
+
+    @Override
+    public void onNext(T item) {
+      synchronized (this) {
+        if (upstreamDone || cancelled) {
+          return;
+        }
+        outstanding--;
+        buffer.add(item);
+        if (buffer.size() == 1) {
+          long batchGeneration = generation;
+          timer = BATCH_TIMER.schedule(() -> flush(batchGeneration), maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+      }
+      drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      synchronized (this) {
+        if (upstreamDone) {
+          return;
+        }
+        upstreamDone = true;
+        error = throwable;
+      }
+      drain();
+    }
+
+    @Override
+    public void onComplete() {
+      synchronized (this) {
+        upstreamDone = true;
+      }
+      drain();
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        synchronized (this) {
+          if (upstreamDone) {
+            return;
+          }
+          buffer.clear();
+          upstreamDone = true;
+          error = new IllegalArgumentException("Requested number of batches must be positive");
+        }
+        upstream.cancel();
+      } else {
+        synchronized (this) {
+          demand = addDemand(demand, n);
+        }
+      }
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (this) {
+        cancelled = true;
+        buffer.clear();
+        if (timer != null) {
+          timer.cancel(false);
+        }
+      }
+      upstream.cancel();
+    }
+
+    private void flush(long batchGeneration) {
+      synchronized (this) {
+        if (batchGeneration != generation) {
+          return;
+        }
+        flushDue = true;
+      }
+      drain();
+    }
+
+    private void drain() {
+      synchronized (this) {
+        if (draining) {
+          missed = true;
+          return;
+        }
+        draining = true;
+      }
+      while (true) {
+        List<T> batch = null;
+        boolean terminate = false;
+        Throwable terminalError = null;
+        long toRequest = 0;
+        synchronized (this) {
+          if (cancelled || terminated) {
+            draining = false;
+            return;
+          }
+          if (!buffer.isEmpty() && demand > 0 && (buffer.size() >= maxSize || flushDue || upstreamDone)) {
+            batch = buffer;
+            buffer = new ArrayList<>(maxSize);
+            generation++;
+            flushDue = false;
+            timer.cancel(false);
+            timer = null;
+            if (demand != Long.MAX_VALUE) {
+              demand--;
+            }
+          } else if (buffer.isEmpty() && upstreamDone) {
+            terminate = true;
+            terminated = true;
+            terminalError = error;
+          } else if (demand > 0 && !upstreamDone && upstream != null) {
+            // Outstanding items always fit into the current batch.
+            toRequest = Math.max(0, maxSize - buffer.size() - outstanding);
+            outstanding += toRequest;
+          }
+          if (batch == null && !terminate && toRequest == 0) {
+            if (!missed) {
+              draining = false;
+              return;
+            }
+            missed = false;
+            continue;
+          }
+        }
+        if (batch != null) {
+          downstream.onNext(batch);
+        } else if (terminate) {
+          if (terminalError != null) {
+            downstream.onError(terminalError);
+          } else {
+            downstream.onComplete();
+          }
+        } else {
+          upstream.request(toRequest);
+        }
+      }
+    }
+  }
+
+  /**
+   * Parallel stage. State of all rails is guarded by the stage monitor, as every item both fills a rail
+   * and changes how many items the stage can request.
+   */
+  private static class Parallel<T> implements Flow.Subscriber<T> {
+    private final Flow.Publisher<T> source;
+    private final ToLongFunction<? super T> keyHash;
+    private final int railCapacity;
+    private final Executor executor;
+    private final List<Flow.Publisher<T>> rails = new ArrayList<>();
+    private final List<Rail> railList = new ArrayList<>();
+    private Flow.Subscription upstream;
+    private long outstanding;
+    private int subscribedRails;
+    private int cancelledRails;
+    private boolean upstreamDone;
+    private Throwable error;
+
+    private Parallel(Flow.Publisher<T> source, int railCount, ToLongFunction<? super T> keyHash, int railCapacity,
+                     Executor executor) {
+      this.source = source;
+      this.keyHash = keyHash;
+      this.railCapacity = railCapacity;
+      this.executor = executor;
+      for (int i = 0; i < railCount; i++) {
+        Rail rail = new Rail();
+        railList.add(rail);
+        rails.add(rail);
+      }
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      synchronized (this) {
+        upstream = subscription;
+      }
+      replenish();
+    }
+
+    @Override
+    public void onNext(T item) {
+      Rail rail;
+      try {
+        rail = railList.get((int) Math.floorMod(keyHash.applyAsLong(item), (long) railList.size()));
+      } catch (RuntimeException ex) {
+        upstream.cancel();
+        onError(ex);
+        return;
+      }
+      synchronized (this) {
+        if (upstreamDone) {
+          return;
+        }
+        outstanding--;
+        if (!rail.cancelled) {
+          rail.queue.add(item);
+        }
+      }
+      rail.schedule();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      synchronized (this) {
+        if (upstreamDone) {
+          return;
+        }
+        upstreamDone = true;
+        error = throwable;
+      }
+      scheduleAll();
+    }
+
+    @Override
+    public void onComplete() {
+      synchronized (this) {
+        upstreamDone = true;
+      }
+      scheduleAll();
+    }
+
+    private void scheduleAll() {
+      for (Rail rail : railList) {
+        rail.schedule();
+      }
+    }
+
+    /**
+     * Requests as many items as the fullest rail has room for, as any of them might go to that rail.
+     */
+    private void replenish() {
+      long toRequest;
+      synchronized (this) {
+        if (upstream == null || upstreamDone) {
+          return;
+        }
+        int free = railCapacity;
+        for (Rail rail : railList) {
+          if (!rail.cancelled) {
+            free = Math.min(free, railCapacity - rail.queue.size());
+          }
+        }
+        toRequest = free - outstanding;
+        if (toRequest <= 0) {
+          return;
+        }
+        outstanding += toRequest;
+      }
+      upstream.request(toRequest);
+    }
+
+    private class Rail implements Flow.Publisher<T>, Flow.Subscription, Runnable {
+      private final ArrayDeque<T> queue = new ArrayDeque<>();
+      private Flow.Subscriber<? super T> subscriber;
+      private long demand;
+      private boolean scheduled;
+      private boolean cancelled;
+      private boolean terminated;
+      private Throwable failure;
+
+      @Override
+      public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber, "Subscriber must not be null");
+        boolean allSubscribed;
+        synchronized (Parallel.this) {
+          if (this.subscriber != null) {
+            subscriber.onSubscribe(NO_SUBSCRIPTION);
+            subscriber.onError(new IllegalStateException("Parallel rail only supports one subscriber"));
+            return;
+          }
+          this.subscriber = subscriber;
+          allSubscribed = ++subscribedRails == railList.size();
+        }
+        subscriber.onSubscribe(this);
+        if (allSubscribed) {
+          source.subscribe(Parallel.this);
+        }
+      }
+
+      @Override
+      public void request(long n) {
+        synchronized (Parallel.this) {
+          if (n <= 0) {
+            if (failure == null) {
+              failure = new IllegalArgumentException("Requested number of items must be positive");
+            }
+          } else {
+            demand = addDemand(demand, n);
+          }
+        }
+        schedule();
+        if (n <= 0) {
+          cancel();
+        }
+      }
+
+      @Override
+      public void cancel() {
+        boolean allCancelled;
+        synchronized (Parallel.this) {
+          if (cancelled) {
+            return;
+          }
+          cancelled = true;
+          queue.clear();
+          allCancelled = ++cancelledRails == railList.size();
+        }
+        if (allCancelled) {
+          Flow.Subscription upstream;
+          synchronized (Parallel.this) {
+            upstream = Parallel.this.upstream;
+          }
+          if (upstream != null) {
+            upstream.cancel();
+          }
+        } else {
+          replenish();
+        }
+      }
+
+      private boolean hasWork() {
+        if (terminated || subscriber == null) {
+          return false;
+        }
+        if (failure != null) {
+          return true;
+        }
+        if (cancelled) {
+          return false;
+        }
+        return queue.isEmpty() ? upstreamDone : demand > 0;
+      }
+
+      private void schedule() {
+        synchronized (Parallel.this) {
+          if (scheduled || !hasWork()) {
+            return;
+          }
+          scheduled = true;
+        }
+        executor.execute(this);
+      }
+
+      @Override
+      public void run() {
+        int emitted = 0;
+        boolean more = false;
+        while (true) {
+          T item = null;
+          Throwable terminalError = null;
+          boolean terminate = false;
+          synchronized (Parallel.this) {
+            if (emitted == MAX_ITEMS_PER_RUN && hasWork()) {
+              more = true;
+              break;
+            }
+            if (!hasWork()) {
+              scheduled = false;
+              break;
+            }
+            if (failure != null || queue.isEmpty()) {
+              terminate = true;
+              terminated = true;
+              terminalError = failure != null ? failure : error;
+            } else {
+              item = queue.poll();
+              if (demand != Long.MAX_VALUE) {
+                demand--;
+              }
+            }
+          }
+          if (terminate) {
+            if (terminalError != null) {
+              subscriber.onError(terminalError);
+            } else {
+              subscriber.onComplete();
+            }
+          } else {
+            subscriber.onNext(item);
+            emitted++;
+          }
+        }
+        if (emitted > 0) {
+          replenish();
+        }
+        if (more) {
+          // The run stopped at the item limit with items left, the rail stays scheduled for the next run.
+          executor.execute(this);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package org.kaaproject.tutorials;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Map of per-key state kept in access order, whose idle entries are evicted from the least recently
+ * accessed end a few at a time on every lookup. Each lookup adds at most one entry and may evict several,
+ * so idle entries do not pile up, and no lookup pays for a scan of the whole map.
+ * Not thread-safe, callers guard it with their own lock.
+ */
+class IdleEvictingMap<K, V> {
+  // Idle entries evicted per lookup, more than one so that eviction keeps up with new entries.
+  private static final int MAX_EVICTIONS_PER_LOOKUP = 4;
+
+  /**
+   * Check of whether an entry has been idle for long enough to be evicted.
+   */
+  interface IdleCheck<V> {
+    boolean isIdle(V value, long now);
+  }
+
+  private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final IdleCheck<V> idleCheck;
+
+  /**
+   * @param idleCheck - check of entries at the least recently accessed end, which must become idle
+   *                  in about the order they were last accessed
+   */
+  IdleEvictingMap(IdleCheck<V> idleCheck) {
+    this.idleCheck = idleCheck;
+  }
+
+  /**
+   * Evicts some idle entries and returns the entry of the key, marking it as the most recently accessed one.
+   * @param now - current time the idle check compares with
+   * @return entry of the key, or {@code null} if there is none or it was idle and got evicted
+   */
+  V get(K key, long now) {
+    Iterator<V> eldest = entries.values().iterator();
+    for (int i = 0; i < MAX_EVICTIONS_PER_LOOKUP && eldest.hasNext(); i++) {
+      if (!idleCheck.isIdle(eldest.next(), now)) {
+        break;
+      }
+      eldest.remove();
+    }
+    return entries.get(key);
+  }
+
+  void put(K key, V value) {
+    entries.put(key, value);
+  }
+
+  int size() {
+    return entries.size();
+  }
+}
@@ -0,0 +1,34 @@
+package org.kaaproject.tutorials;
+
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executor running tasks of the same key in submission order, and tasks of different keys concurrently.
+ * Submission blocks while the executor is at capacity, which pushes back on the submitter.
+ */
+public interface KeyedExecutor {
+  /**
+   * Queues task after the earlier tasks of its key, blocking while the executor is at capacity.
+   * @param keyHash - well-mixed hash of the key that tasks are ordered by
+   * @throws RejectedExecutionException if the executor is shut down or the calling thread is interrupted
+   */
+  void execute(long keyHash, Runnable task);
+
+  /**
+   * Returns number of tasks not completed yet.
+   */
+  int getQueuedCount();
+
+  /**
+   * Returns how close submission is to blocking, from 0 for idle to 1 for blocking.
+   */
+  double getFillRatio();
+
+  /**
+   * Stops accepting tasks and waits for the queued ones to complete.
+   * @param timeout - time given to queued tasks to complete
+   * @return {@code true} if all queued tasks completed within the timeout
+   */
+  boolean shutdown(Duration timeout);
+}
@@ -0,0 +1,209 @@
+package org.kaaproject.tutorials;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes tasks in lanes selected by a key hash, each lane running its tasks one by one in submission order.
+ * Unlike {@link ShardedExecutor}, a lane has no thread of its own: while it has tasks, it runs them on a virtual
+ * thread, so there can be many more lanes than cores and tasks blocked on I/O only hold their own lane.
+ * On JDKs without virtual threads, lanes run on a fixed pool of platform threads instead.
+ * The number of tasks queued in all lanes is bounded and submission blocks when it is reached.
+ */
+public class LaneExecutor implements KeyedExecutor {
+  // Tasks a lane runs before giving its thread up, so that on the platform pool busy lanes do not starve others.
+  private static final int MAX_TASKS_PER_RUN = 64;
+
+  private final Lane[] lanes;
+  private final int maxQueued;
+  private final Semaphore permits;
+  private final Executor launcher;
+  private final ExecutorService fallbackPool;
+  private volatile boolean shutdown;
+
+  /**
+   * Creates executor instance.
+   * @param name - prefix of lane thread names
+   * @param laneCount - number of lanes, e.g. thousands, as idle lanes cost no thread
+   * @param maxQueued - maximum number of tasks queued or running in all lanes
+   * @param fallbackThreads - number of platform threads running lanes where virtual threads are not supported
+   */
+  public LaneExecutor(String name, int laneCount, int maxQueued, int fallbackThreads) {
+    this(name, laneCount, maxQueued, fallbackThreads, VirtualThreads.isSupported());
+  }
+
+  // Visible for tests, to run lanes on the fallback pool where virtual threads are supported.
+  LaneExecutor(String name, int laneCount, int maxQueued, int fallbackThreads, boolean virtual) {
+    if (laneCount <= 0 || maxQueued <= 0 || fallbackThreads <= 0) {
+      throw new IllegalArgumentException("Lane count, task limit and thread count must be positive");
+    }
+    this.lanes = new Lane[laneCount];
+    for (int i = 0; i < laneCount; i++) {
+      lanes[i] = new Lane();
+    }
+    this.maxQueued = maxQueued;
+    this.permits = new Semaphore(maxQueued);
+    if (virtual) {
+      ThreadFactory threadFactory = VirtualThreads.factory(name + "-");
+      this.launcher = command -> threadFactory.newThread(command).start();
+      this.fallbackPool = null;
+    } else {
+      AtomicInteger threadCount = new AtomicInteger();
+      this.fallbackPool = Executors.newFixedThreadPool(fallbackThreads, command -> {
+        Thread thread = new Thread(command, name + "-" + threadCount.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+      });
+      this.launcher = fallbackPool;
+    }
+  }
+
+  /**
+   * Returns whether lanes run on virtual threads rather than on the fallback pool.
+   */
+  public boolean isVirtual() {
+    return fallbackPool == null;
+  }
+
+  /**
+   * Queues task in the lane of the key, blocking while the executor holds the maximum number of tasks.
+   * @param keyHash - well-mixed hash of the key that tasks are ordered by
+   */
+  @Override
+  public void execute(long keyHash, Runnable task) {
+    if (shutdown) {
+      throw new RejectedExecutionException("Lane executor is shut down");
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while queueing task", ex);
+    }
+    Lane lane = lanes[(int) Math.floorMod(keyHash, (long) lanes.length)];
+    boolean start;
+    synchronized (lane) {
+      lane.tasks.add(task);
+      start = !lane.running;
+      lane.running = true;
+    }
+    if (start) {
+      launch(lane);
+    }
+  }
+
+  public int getLaneCount() {
+    return lanes.length;
+  }
+
+  /**
+   * Returns number of tasks queued or running in all lanes.
+   */
+  @Override
+  public int getQueuedCount() {
+    return maxQueued - permits.availablePermits();
+  }
+
+  @Override
+  public double getFillRatio() {
+    return (double) getQueuedCount() / maxQueued;
+  }
+
+  /**
+   * Stops accepting tasks and waits for the queued ones to complete. Tasks still queued when the timeout
+   * elapses are abandoned as by {@link #shutdownNow()}, and their number is logged.
+   * @param timeout - time given to queued tasks to complete
+   * @return {@code true} if all queued tasks completed within the timeout
+   */
+  @Override
+  public boolean shutdown(Duration timeout) {
+    shutdown = true;
+    boolean drained;
+    try {
+      // All permits are back once no task is queued or running.
+      drained = permits.tryAcquire(maxQueued, timeout.toNanos(), TimeUnit.NANOSECONDS);
+      if (drained) {
+        permits.release(maxQueued);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      drained = false;
+    }
+    List<Runnable> abandoned = shutdownNow();
+    if (!abandoned.isEmpty()) {
+      System.err.println(String.format("Lane executor abandoned %d queued tasks", abandoned.size()));
+    }
+    return drained;
+  }
+
+  /**
+   * Stops accepting tasks, removes the queued ones from their lanes and interrupts tasks running on the fallback pool.
+   * Tasks already running on virtual threads complete, but their lanes run nothing after them.
+   * @return tasks that were queued and never started, lane by lane in submission order
+   */
+  public List<Runnable> shutdownNow() {
+    shutdown = true;
+    List<Runnable> abandoned = new ArrayList<>();
+    for (Lane lane : lanes) {
+      synchronized (lane) {
+        abandoned.addAll(lane.tasks);
+        lane.tasks.clear();
+        // A run of the lane still queued on the fallback pool is dropped below, so the lane is reset here.
+        // A run in progress finds the lane empty and resets it again.
+        lane.running = false;
+      }
+    }
+    // Permits of removed tasks are returned, so that the queued count only covers the tasks still running.
+    permits.release(abandoned.size());
+    if (fallbackPool != null) {
+      fallbackPool.shutdownNow();
+    }
+    return abandoned;
+  }
+
+  private void launch(Lane lane) {
+    try {
+      launcher.execute(() -> run(lane));
+    } catch (RejectedExecutionException ex) {
+      // The fallback pool is shut down after a timed out shutdown, the late tasks run on the submitting thread.
+      run(lane);
+    }
+  }
+
+  private void run(Lane lane) {
+    for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+      Runnable task;
+      synchronized (lane) {
+        task = lane.tasks.poll();
+        if (task == null) {
+          lane.running = false;
+          return;
+        }
+      }
+      try {
+        task.run();
+      } catch (Exception ex) {
+        System.err.println(String.format("Exception occurred in lane task: %s", ex));
+      } finally {
+        permits.release();
+      }
+    }
+    // The lane stays marked as running, so its remaining tasks are only picked up by the next run.
+    launch(lane);
+  }
+
+  private static class Lane {
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean running;
+  }
+}
@@ -0,0 +1,90 @@
+package org.kaaproject.tutorials;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with log-linear buckets, in the spirit of
+ * <a href="http://hdrhistogram.org/">HdrHistogram</a>: each power of two is split into equal sub-buckets,
+ * so any recorded value is reported within about 3% of its actual value, from nanoseconds to days.
+ * Recording is lock-free and does not allocate, reading walks all buckets. Values are kept since creation.
+ */
+public class LatencyHistogram {
+  // Sub-buckets per power of two, the relative error of reported values is 1 / SUB_BUCKET_COUNT.
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Records duration, negative ones are recorded as zero.
+   * @param nanos - duration in nanoseconds
+   */
+  public void record(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucketIndex(value));
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  /**
+   * Records time elapsed since the start.
+   * @param startNanos - start time as returned by {@link System#nanoTime()}
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  public long getSumNanos() {
+    return sum.sum();
+  }
+
+  public long getMaxNanos() {
+    return max.get();
+  }
+
+  /**
+   * Returns value below which the specified share of recorded values fall.
+   * @param quantile - share of values, from 0 to 1, e.g. 0.99
+   * @return upper bound of the bucket holding the quantile, or 0 if nothing is recorded
+   */
+  public long getValueAtQuantile(double quantile) {
+    long total = getCount();
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(bucketUpperBound(i), getMaxNanos());
+      }
+    }
+    return getMaxNanos();
+  }
+
+  private static int bucketIndex(long value) {
+    // Values below 2 * SUB_BUCKET_COUNT get a bucket each, larger ones are shifted down to SUB_BUCKET_BITS + 1 bits.
+    int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+    return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+  }
+
+  private static long bucketUpperBound(int index) {
+    int shift = Math.max(0, (index >>> SUB_BUCKET_BITS) - 1);
+    long lowerBound = (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+}
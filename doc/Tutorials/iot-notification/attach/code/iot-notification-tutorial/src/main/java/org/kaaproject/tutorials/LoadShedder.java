@@ -0,0 +1,142 @@
+package org.kaaproject.tutorials;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Policy of dropping received events before they are spooled and queued, so that under overload the service
+ * sheds the events that matter least instead of NATS dropping arbitrary ones as a slow consumer.
+ * The load is measured as pressure: the fill ratio of the fullest queue between NATS and the callbacks,
+ * 1 meaning that the queue is full. As pressure grows, expired events are dropped first,
+ * then events of low priority time series, then events of normal priority ones. High priority events are only
+ * dropped when expired. A slow consumer reported by NATS keeps pressure at least at the low priority threshold
+ * for a cooldown period, as the queues might have drained by the time the report arrives.
+ */
+public class LoadShedder {
+  // Maximum number of distinct subjects whose priorities are cached.
+  private static final int MAX_CACHED_SUBJECTS = 10_000;
+
+  /**
+   * Priority of time series events under load.
+   */
+  public enum Priority {
+    LOW, NORMAL, HIGH
+  }
+
+  private final double expiredThreshold;
+  private final double lowPriorityThreshold;
+  private final double normalPriorityThreshold;
+  private final long slowConsumerCooldownNanos;
+  private final Map<String, Priority> priorities = new ConcurrentHashMap<>();
+  // Priorities resolved by message subject, so that subjects are parsed once rather than per message.
+  private final Map<String, Priority> subjectPriorities = new ConcurrentHashMap<>();
+  private final LongAdder expiredCount = new LongAdder();
+  private final LongAdder lowPriorityCount = new LongAdder();
+  private final LongAdder normalPriorityCount = new LongAdder();
+  private final LongAdder slowConsumerCount = new LongAdder();
+  private volatile long slowConsumerDetectedAt;
+  private volatile boolean slowConsumerDetected;
+
+  /**
+   * Creates policy instance. Thresholds are pressure values from 0 to 1 in increasing order.
+   * @param expiredThreshold - pressure from which expired events are dropped
+   * @param lowPriorityThreshold - pressure from which events of low priority time series are dropped
+   * @param normalPriorityThreshold - pressure from which events of normal priority time series are dropped
+   * @param slowConsumerCooldown - time for which a slow consumer report keeps dropping low priority events
+   */
+  public LoadShedder(double expiredThreshold, double lowPriorityThreshold, double normalPriorityThreshold,
+                     Duration slowConsumerCooldown) {
+    if (!(0 <= expiredThreshold && expiredThreshold <= lowPriorityThreshold
+        && lowPriorityThreshold <= normalPriorityThreshold && normalPriorityThreshold <= 1)) {
+      throw new IllegalArgumentException("Thresholds must be between 0 and 1 in increasing order");
+    }
+    this.expiredThreshold = expiredThreshold;
+    this.lowPriorityThreshold = lowPriorityThreshold;
+    this.normalPriorityThreshold = normalPriorityThreshold;
+    this.slowConsumerCooldownNanos = slowConsumerCooldown.toNanos();
+  }
+
+  /**
+   * Sets priority of the time series, time series without one have normal priority.
+   */
+  public void setPriority(String timeSeriesName, Priority priority) {
+    priorities.put(timeSeriesName, priority);
+    subjectPriorities.clear();
+  }
+
+  /**
+   * Decides whether the received event is dropped.
+   * @param pressure - current load, see {@link LoadShedder}
+   * @param subject - message subject, the time series name is taken from
+   * @param data - raw message, its expiry is read from
+   * @return {@code true} if the event should be dropped, it is counted then
+   */
+  public boolean shed(double pressure, String subject, byte[] data) {
+    if (slowConsumerDetected) {
+      if (System.nanoTime() - slowConsumerDetectedAt < slowConsumerCooldownNanos) {
+        pressure = Math.max(pressure, lowPriorityThreshold);
+      } else {
+        slowConsumerDetected = false;
+      }
+    }
+    if (pressure < expiredThreshold) {
+      return false;
+    }
+    if (pressure >= lowPriorityThreshold) {
+      Priority priority = priority(subject);
+      if (priority == Priority.LOW) {
+        lowPriorityCount.increment();
+        return true;
+      }
+      if (priority == Priority.NORMAL && pressure >= normalPriorityThreshold) {
+        normalPriorityCount.increment();
+        return true;
+      }
+    }
+    long expiresAt = TimeSeriesEventKeys.expiresAt(data);
+    if (expiresAt != TimeSeriesEventKeys.NEVER && expiresAt <= System.currentTimeMillis()) {
+      expiredCount.increment();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reacts to NATS reporting that messages are dropped because the service does not keep up.
+   */
+  public void onSlowConsumer() {
+    slowConsumerCount.increment();
+    slowConsumerDetectedAt = System.nanoTime();
+    slowConsumerDetected = true;
+  }
+
+  public long getExpiredCount() {
+    return expiredCount.sum();
+  }
+
+  public long getLowPriorityCount() {
+    return lowPriorityCount.sum();
+  }
+
+  public long getNormalPriorityCount() {
+    return normalPriorityCount.sum();
+  }
+
+  public long getSlowConsumerCount() {
+    return slowConsumerCount.sum();
+  }
+
+  private Priority priority(String subject) {
+    Priority priority = subjectPriorities.get(subject);
+    if (priority == null) {
+      String timeSeriesName = TimeSeriesEventService.timeSeriesName(subject);
+      priority = timeSeriesName != null ? priorities.getOrDefault(timeSeriesName, Priority.NORMAL) : Priority.NORMAL;
+      if (subjectPriorities.size() < MAX_CACHED_SUBJECTS) {
+        subjectPriorities.put(subject, priority);
+      }
+    }
+    return priority;
+  }
+}
@@ -0,0 +1,221 @@
+package org.kaaproject.tutorials;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Aggregates notification events per recipient, and optionally per endpoint, into one summarized email
+ * per time or count window. Events are summarized in per-event-type counters, and listed event types
+ * and endpoints are capped, so the summary of an open digest does not grow with the number of events.
+ * Acknowledgements passed with events are kept until the digest is sent, one per acknowledged event,
+ * so an open digest holds at most {@code maxEventsPerDigest} of them. The number of open digests is capped as well.
+ */
+public class NotificationDigest {
+  // Event types and endpoints listed in one digest, the rest is reported in aggregate.
+  private static final int MAX_LISTED_EVENT_TYPES = 32;
+  private static final int MAX_LISTED_ENDPOINTS = 32;
+  private static final String OTHER_EVENT_TYPES = "other";
+
+  private final EmailService emailService;
+  private final String subject;
+  private final long windowMillis;
+  private final int maxEventsPerDigest;
+  private final int maxOpenDigests;
+  private final boolean perEndpoint;
+  private final Function<String, String> endpointLabels;
+  // Insertion order is the opening order, so the eldest digest is the first one to expire.
+  private final LinkedHashMap<String, Digest> openDigests = new LinkedHashMap<>();
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * Creates digest instance and starts the window timer.
+   * @param emailService - service sending digest emails
+   * @param subject - subject of digest emails
+   * @param window - time after the first event at which a digest is sent
+   * @param maxEventsPerDigest - number of events at which a digest is sent before its window ends
+   * @param maxOpenDigests - number of digests collected at once, the eldest one is sent early when exceeded
+   * @param perEndpoint - whether events of different endpoints go into separate digests
+   */
+  public NotificationDigest(EmailService emailService, String subject, Duration window,
+                            int maxEventsPerDigest, int maxOpenDigests, boolean perEndpoint) {
+    this(emailService, subject, window, maxEventsPerDigest, maxOpenDigests, perEndpoint, Function.identity());
+  }
+
+  /**
+   * Creates digest instance that describes endpoints with labels, e.g. their location, and starts the window timer.
+   * @param endpointLabels - label of an endpoint by its ID, called when a digest is sent
+   */
+  public NotificationDigest(EmailService emailService, String subject, Duration window,
+                            int maxEventsPerDigest, int maxOpenDigests, boolean perEndpoint,
+                            Function<String, String> endpointLabels) {
+    if (maxEventsPerDigest <= 0 || maxOpenDigests <= 0) {
+      throw new IllegalArgumentException("Digest limits must be positive");
+    }
+    this.emailService = emailService;
+    this.subject = subject;
+    this.windowMillis = window.toMillis();
+    this.maxEventsPerDigest = maxEventsPerDigest;
+    this.maxOpenDigests = maxOpenDigests;
+    this.perEndpoint = perEndpoint;
+    this.endpointLabels = endpointLabels;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "notification-digest");
+      thread.setDaemon(true);
+      return thread;
+    });
+    long tickMillis = Math.max(1, Math.min(windowMillis, TimeUnit.SECONDS.toMillis(1)));
+    scheduler.scheduleWithFixedDelay(this::sendExpired, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Adds event into the open digest of the recipient.
+   */
+  public void add(String recipient, String endpointId, String eventType) {
+    add(recipient, endpointId, eventType, null);
+  }
+
+  /**
+   * Adds event into the open digest of the recipient.
+   * @param onSent - task run once the digest with the event is sent or failed to be sent, may be {@code null};
+   *               it is held by the digest until then
+   */
+  public void add(String recipient, String endpointId, String eventType, Runnable onSent) {
+    String key = perEndpoint ? recipient + '\n' + endpointId : recipient;
+    List<Digest> ready = new ArrayList<>(2);
+    synchronized (openDigests) {
+      Digest digest = openDigests.get(key);
+      if (digest == null) {
+        if (openDigests.size() >= maxOpenDigests) {
+          Iterator<Digest> eldest = openDigests.values().iterator();
+          ready.add(eldest.next());
+          eldest.remove();
+        }
+        digest = new Digest(recipient, System.currentTimeMillis());
+        openDigests.put(key, digest);
+      }
+      digest.add(endpointId, eventType);
+      if (onSent != null) {
+        digest.onSent.add(onSent);
+      }
+      if (digest.eventCount >= maxEventsPerDigest) {
+        openDigests.remove(key);
+        ready.add(digest);
+      }
+    }
+    send(ready);
+  }
+
+  /**
+   * Sends all open digests regardless of their windows.
+   */
+  public void flush() {
+    List<Digest> ready;
+    synchronized (openDigests) {
+      ready = new ArrayList<>(openDigests.values());
+      openDigests.clear();
+    }
+    send(ready);
+  }
+
+  /**
+   * Stops the window timer and sends all open digests.
+   */
+  public void shutdown() {
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(windowMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  private void sendExpired() {
+    long expiredBefore = System.currentTimeMillis() - windowMillis;
+    List<Digest> ready = new ArrayList<>();
+    synchronized (openDigests) {
+      Iterator<Digest> digests = openDigests.values().iterator();
+      while (digests.hasNext()) {
+        Digest digest = digests.next();
+        if (digest.openedAt > expiredBefore) {
+          break;
+        }
+        ready.add(digest);
+        digests.remove();
+      }
+    }
+    send(ready);
+  }
+
+  private void send(List<Digest> digests) {
+    for (Digest digest : digests) {
+      emailService.sendNotificationAsync(digest.recipient, subject, digest.summarize(endpointLabels))
+          .whenComplete((result, ex) -> {
+            if (ex != null) {
+              System.err.println(String.format("Failed to send notification digest: %s", ex));
+            }
+            digest.onSent.forEach(Runnable::run);
+          });
+    }
+  }
+
+  private static class Digest {
+    private final String recipient;
+    private final long openedAt;
+    private final Map<String, int[]> eventTypeCounts = new LinkedHashMap<>();
+    private final Set<String> endpointIds = new LinkedHashSet<>();
+    private final List<Runnable> onSent = new ArrayList<>();
+    private int eventCount;
+    private int unlistedEndpointEvents;
+    private long lastEventAt;
+
+    private Digest(String recipient, long openedAt) {
+      this.recipient = recipient;
+      this.openedAt = openedAt;
+    }
+
+    private void add(String endpointId, String eventType) {
+      eventCount++;
+      lastEventAt = System.currentTimeMillis();
+      int[] count = eventTypeCounts.get(eventType);
+      if (count == null) {
+        String countedType = eventTypeCounts.size() < MAX_LISTED_EVENT_TYPES ? eventType : OTHER_EVENT_TYPES;
+        count = eventTypeCounts.computeIfAbsent(countedType, type -> new int[1]);
+      }
+      count[0]++;
+      if (!endpointIds.contains(endpointId)) {
+        if (endpointIds.size() < MAX_LISTED_ENDPOINTS) {
+          endpointIds.add(endpointId);
+        } else {
+          unlistedEndpointEvents++;
+        }
+      }
+    }
+
+    private String summarize(Function<String, String> endpointLabels) {
+      StringBuilder text = new StringBuilder();
+      text.append(String.format("%d events have occurred between %s and %s:%n",
+          eventCount, Instant.ofEpochMilli(openedAt), Instant.ofEpochMilli(lastEventAt)));
+      for (Map.Entry<String, int[]> entry : eventTypeCounts.entrySet()) {
+        text.append(String.format("  %s: %d%n", entry.getKey(), entry.getValue()[0]));
+      }
+      text.append(String.format("Endpoints: %s", endpointIds.stream().map(endpointLabels).collect(Collectors.joining(", "))));
+      if (unlistedEndpointEvents > 0) {
+        text.append(String.format(" and others with %d events", unlistedEndpointEvents));
+      }
+      return text.toString();
+    }
+  }
+}
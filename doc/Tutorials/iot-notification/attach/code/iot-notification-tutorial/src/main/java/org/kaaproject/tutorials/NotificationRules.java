@@ -0,0 +1,626 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.util.Utf8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Set of named notification rules over data point values, e.g. {@code event_type in (DOOR_OPENED, SMOKE) and temperature > 60}.
+ * <p>
+ * Grammar: {@code or}, {@code and} and {@code not} over comparisons {@code key = value}, {@code key != value},
+ * {@code key > number}, {@code key >= number}, {@code key < number}, {@code key <= number},
+ * {@code key in (value, ...)} and {@code key not in (value, ...)}, grouped with parentheses.
+ * Values are numbers, {@code true}, {@code false}, quoted strings or bare words, which are strings as well.
+ * A comparison with a missing value, or with a value of another type, is false. This includes {@code !=} and
+ * {@code not in}, unlike a comparison negated with {@code not}, e.g. {@code not key = value}.
+ * <p>
+ * Rules are parsed once into a graph of distinct subexpressions shared by all rules. Per data point, each key
+ * is looked up once, all comparisons of a key are resolved with one hash lookup for strings and binary searches
+ * over sorted thresholds for numbers, and then every distinct subexpression is evaluated once.
+ * Values are compared as decoded, without conversion to strings.
+ */
+public class NotificationRules {
+  private static final int ATOM = 0;
+  private static final int AND = 1;
+  private static final int OR = 2;
+  private static final int NOT = 3;
+
+  private final List<String> names = new ArrayList<>();
+  private final int[] ruleNodes;
+  private final KeyAtoms[] keyAtoms;
+  private final Set<String> keys;
+  private final int[] nodeOps;
+  private final int[] nodeLeft;
+  private final int[] nodeRight;
+  private final ThreadLocal<boolean[]> threadLocalResults;
+
+  /**
+   * Parses and compiles rules.
+   * @param expressionsByName - rule expressions by rule name, matches are reported in the iteration order of the map
+   * @throws IllegalArgumentException if an expression is malformed
+   */
+  public NotificationRules(Map<String, String> expressionsByName) {
+    Compiler compiler = new Compiler();
+    this.ruleNodes = new int[expressionsByName.size()];
+    int rule = 0;
+    for (Map.Entry<String, String> entry : expressionsByName.entrySet()) {
+      try {
+        ruleNodes[rule++] = new Parser(entry.getValue(), compiler).parseRule();
+      } catch (IllegalArgumentException ex) {
+        throw new IllegalArgumentException(String.format("Invalid notification rule [%s]: %s", entry.getKey(), ex.getMessage()), ex);
+      }
+      names.add(entry.getKey());
+    }
+    int nodeCount = compiler.ops.size();
+    this.nodeOps = new int[nodeCount];
+    this.nodeLeft = new int[nodeCount];
+    this.nodeRight = new int[nodeCount];
+    for (int i = 0; i < nodeCount; i++) {
+      nodeOps[i] = compiler.ops.get(i);
+      nodeLeft[i] = compiler.left.get(i);
+      nodeRight[i] = compiler.right.get(i);
+    }
+    this.keyAtoms = compiler.keyAtoms.values().toArray(new KeyAtoms[0]);
+    this.keys = Collections.unmodifiableSet(new LinkedHashSet<>(compiler.keyAtoms.keySet()));
+    for (KeyAtoms atoms : keyAtoms) {
+      atoms.compile();
+    }
+    this.threadLocalResults = ThreadLocal.withInitial(() -> new boolean[nodeCount]);
+  }
+
+  /**
+   * Returns names of the rules in definition order.
+   */
+  public List<String> getNames() {
+    return Collections.unmodifiableList(names);
+  }
+
+  /**
+   * Returns value keys referenced by the rules, e.g. to decode only the values that rules need.
+   */
+  public Set<String> getKeys() {
+    return keys;
+  }
+
+  /**
+   * Returns number of distinct subexpressions evaluated per data point.
+   */
+  public int getNodeCount() {
+    return nodeOps.length;
+  }
+
+  /**
+   * Evaluates rules against data point values and passes names of the matching rules to the action
+   * in definition order.
+   */
+  public void match(Map<String, Object> values, Consumer<String> action) {
+    boolean[] results = evaluate(values);
+    for (int rule = 0; rule < ruleNodes.length; rule++) {
+      if (results[ruleNodes[rule]]) {
+        action.accept(names.get(rule));
+      }
+    }
+  }
+
+  /**
+   * Evaluates rules against data point values and passes indexes of the matching rules, in definition order,
+   * to the action.
+   */
+  public void matchIndexes(Map<String, Object> values, IntConsumer action) {
+    boolean[] results = evaluate(values);
+    for (int rule = 0; rule < ruleNodes.length; rule++) {
+      if (results[ruleNodes[rule]]) {
+        action.accept(rule);
+      }
+    }
+  }
+
+  private boolean[] evaluate(Map<String, Object> values) {
+    boolean[] results = threadLocalResults.get();
+    Arrays.fill(results, false);
+    for (KeyAtoms atoms : keyAtoms) {
+      Object value = values.get(atoms.key);
+      if (value != null) {
+        atoms.evaluate(value, results);
+      }
+    }
+    // Children are always created before their parents, so one pass in creation order is enough.
+    for (int i = 0; i < results.length; i++) {
+      switch (nodeOps[i]) {
+        case AND:
+          results[i] = results[nodeLeft[i]] & results[nodeRight[i]];
+          break;
+        case OR:
+          results[i] = results[nodeLeft[i]] | results[nodeRight[i]];
+          break;
+        case NOT:
+          results[i] = !results[nodeLeft[i]];
+          break;
+        default:
+          break;
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Builds the graph of distinct subexpressions. Identical subexpressions of different rules get the same node.
+   */
+  private static class Compiler {
+    private final List<Integer> ops = new ArrayList<>();
+    private final List<Integer> left = new ArrayList<>();
+    private final List<Integer> right = new ArrayList<>();
+    private final Map<String, Integer> nodesBySignature = new HashMap<>();
+    private final Map<String, KeyAtoms> keyAtoms = new LinkedHashMap<>();
+
+    private int stringAtom(String key, List<String> constants) {
+      List<String> sorted = new ArrayList<>(constants);
+      Collections.sort(sorted);
+      String signature = "s\0" + key + "\0" + String.join("\0", sorted);
+      Integer existing = nodesBySignature.get(signature);
+      if (existing != null) {
+        return existing;
+      }
+      int node = node(signature, ATOM, -1, -1);
+      KeyAtoms atoms = keyAtoms(key);
+      for (String constant : sorted) {
+        atoms.addString(constant, node);
+      }
+      return node;
+    }
+
+    private int booleanAtom(String key, boolean constant) {
+      String signature = "b\0" + key + "\0" + constant;
+      Integer existing = nodesBySignature.get(signature);
+      if (existing != null) {
+        return existing;
+      }
+      int node = node(signature, ATOM, -1, -1);
+      keyAtoms(key).addBoolean(constant, node);
+      return node;
+    }
+
+    // Atom true when the value is of the type, regardless of what it is.
+    private int typeAtom(String key, ValueType type) {
+      String signature = "t\0" + key + "\0" + type;
+      Integer existing = nodesBySignature.get(signature);
+      if (existing != null) {
+        return existing;
+      }
+      int node = node(signature, ATOM, -1, -1);
+      keyAtoms(key).addType(type, node);
+      return node;
+    }
+
+    private int numberAtom(String key, NumericOp op, double threshold) {
+      String signature = "n\0" + key + "\0" + op + "\0" + threshold;
+      Integer existing = nodesBySignature.get(signature);
+      if (existing != null) {
+        return existing;
+      }
+      int node = node(signature, ATOM, -1, -1);
+      keyAtoms(key).addNumber(op, threshold, node);
+      return node;
+    }
+
+    private int and(int a, int b) {
+      return a == b ? a : binary(AND, Math.min(a, b), Math.max(a, b));
+    }
+
+    private int or(int a, int b) {
+      return a == b ? a : binary(OR, Math.min(a, b), Math.max(a, b));
+    }
+
+    private int not(int a) {
+      if (ops.get(a) == NOT) {
+        return left.get(a);
+      }
+      String signature = NOT + "\0" + a;
+      Integer existing = nodesBySignature.get(signature);
+      return existing != null ? existing : node(signature, NOT, a, -1);
+    }
+
+    private int binary(int op, int a, int b) {
+      String signature = op + "\0" + a + "\0" + b;
+      Integer existing = nodesBySignature.get(signature);
+      return existing != null ? existing : node(signature, op, a, b);
+    }
+
+    private int node(String signature, int op, int a, int b) {
+      int node = ops.size();
+      ops.add(op);
+      left.add(a);
+      right.add(b);
+      nodesBySignature.put(signature, node);
+      return node;
+    }
+
+    private KeyAtoms keyAtoms(String key) {
+      return keyAtoms.computeIfAbsent(key, KeyAtoms::new);
+    }
+  }
+
+  private enum NumericOp {
+    EQ, NE, GT, GE, LT, LE
+  }
+
+  private enum ValueType {
+    NUMBER, STRING, BOOLEAN
+  }
+
+  /**
+   * Comparisons of one value key, resolved together from a single lookup of the value.
+   */
+  private static class KeyAtoms {
+    private static final int[] NONE = new int[0];
+
+    private final String key;
+    private final Map<String, int[]> stringAtoms = new HashMap<>();
+    // Same atoms keyed by Utf8, for readers that decode strings as Utf8.
+    private final Map<Utf8, int[]> utf8Atoms = new HashMap<>();
+    private int[] trueAtoms = NONE;
+    private int[] falseAtoms = NONE;
+    // Type atoms by value type ordinal.
+    private final int[][] typeAtoms = {NONE, NONE, NONE};
+    private final Map<NumericOp, List<double[]>> numberBuilders = new HashMap<>();
+    // Per numeric operator, thresholds sorted ascending and their atoms.
+    private final double[][] thresholds = new double[NumericOp.values().length][];
+    private final int[][] thresholdAtoms = new int[NumericOp.values().length][];
+
+    private KeyAtoms(String key) {
+      this.key = key;
+    }
+
+    private void addString(String constant, int node) {
+      stringAtoms.merge(constant, new int[] {node}, KeyAtoms::concat);
+      utf8Atoms.merge(new Utf8(constant), new int[] {node}, KeyAtoms::concat);
+    }
+
+    private void addBoolean(boolean constant, int node) {
+      if (constant) {
+        trueAtoms = concat(trueAtoms, new int[] {node});
+      } else {
+        falseAtoms = concat(falseAtoms, new int[] {node});
+      }
+    }
+
+    private void addType(ValueType type, int node) {
+      typeAtoms[type.ordinal()] = concat(typeAtoms[type.ordinal()], new int[] {node});
+    }
+
+    private void addNumber(NumericOp op, double threshold, int node) {
+      numberBuilders.computeIfAbsent(op, o -> new ArrayList<>()).add(new double[] {threshold, node});
+    }
+
+    private void compile() {
+      for (NumericOp op : NumericOp.values()) {
+        List<double[]> entries = numberBuilders.getOrDefault(op, Collections.emptyList());
+        entries.sort((a, b) -> Double.compare(a[0], b[0]));
+        thresholds[op.ordinal()] = new double[entries.size()];
+        thresholdAtoms[op.ordinal()] = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+          thresholds[op.ordinal()][i] = entries.get(i)[0];
+          thresholdAtoms[op.ordinal()][i] = (int) entries.get(i)[1];
+        }
+      }
+      numberBuilders.clear();
+    }
+
+    private void evaluate(Object value, boolean[] results) {
+      if (value instanceof Number) {
+        set(typeAtoms[ValueType.NUMBER.ordinal()], results);
+        evaluateNumber(((Number) value).doubleValue(), results);
+      } else if (value instanceof String) {
+        set(typeAtoms[ValueType.STRING.ordinal()], results);
+        set(stringAtoms.get(value), results);
+      } else if (value instanceof Utf8) {
+        set(typeAtoms[ValueType.STRING.ordinal()], results);
+        set(utf8Atoms.get(value), results);
+      } else if (value instanceof Boolean) {
+        set(typeAtoms[ValueType.BOOLEAN.ordinal()], results);
+        set((Boolean) value ? trueAtoms : falseAtoms, results);
+      } else if (value instanceof CharSequence) {
+        set(typeAtoms[ValueType.STRING.ordinal()], results);
+        set(stringAtoms.get(value.toString()), results);
+      }
+    }
+
+    private void evaluateNumber(double value, boolean[] results) {
+      if (Double.isNaN(value)) {
+        return;
+      }
+      // Thresholds t with t < value match "> t", with t <= value match ">= t", and so on.
+      setRange(NumericOp.GT, 0, lowerBound(NumericOp.GT, value), results);
+      setRange(NumericOp.GE, 0, upperBound(NumericOp.GE, value), results);
+      setRange(NumericOp.LT, upperBound(NumericOp.LT, value), Integer.MAX_VALUE, results);
+      setRange(NumericOp.LE, lowerBound(NumericOp.LE, value), Integer.MAX_VALUE, results);
+      setRange(NumericOp.EQ, lowerBound(NumericOp.EQ, value), upperBound(NumericOp.EQ, value), results);
+      setRange(NumericOp.NE, 0, lowerBound(NumericOp.NE, value), results);
+      setRange(NumericOp.NE, upperBound(NumericOp.NE, value), Integer.MAX_VALUE, results);
+    }
+
+    private void setRange(NumericOp op, int from, int to, boolean[] results) {
+      int[] atoms = thresholdAtoms[op.ordinal()];
+      for (int i = from, end = Math.min(to, atoms.length); i < end; i++) {
+        results[atoms[i]] = true;
+      }
+    }
+
+    // Index of the first threshold not less than the value.
+    private int lowerBound(NumericOp op, double value) {
+      double[] sorted = thresholds[op.ordinal()];
+      int low = 0;
+      int high = sorted.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (sorted[middle] < value) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    // Index of the first threshold greater than the value.
+    private int upperBound(NumericOp op, double value) {
+      double[] sorted = thresholds[op.ordinal()];
+      int low = 0;
+      int high = sorted.length;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (sorted[middle] <= value) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+
+    private static void set(int[] atoms, boolean[] results) {
+      if (atoms != null) {
+        for (int atom : atoms) {
+          results[atom] = true;
+        }
+      }
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+      int[] result = Arrays.copyOf(a, a.length + b.length);
+      System.arraycopy(b, 0, result, a.length, b.length);
+      return result;
+    }
+  }
+
+  /**
+   * Recursive descent parser of one rule expression.
+   */
+  private static class Parser {
+    private final String text;
+    private final Compiler compiler;
+    private int position;
+
+    private Parser(String text, Compiler compiler) {
+      this.text = text;
+      this.compiler = compiler;
+    }
+
+    private int parseRule() {
+      int node = parseOr();
+      skipWhitespace();
+      if (position < text.length()) {
+        throw error("unexpected input");
+      }
+      return node;
+    }
+
+    private int parseOr() {
+      int node = parseAnd();
+      while (acceptKeyword("or")) {
+        node = compiler.or(node, parseAnd());
+      }
+      return node;
+    }
+
+    private int parseAnd() {
+      int node = parseNot();
+      while (acceptKeyword("and")) {
+        node = compiler.and(node, parseNot());
+      }
+      return node;
+    }
+
+    private int parseNot() {
+      if (acceptKeyword("not")) {
+        return compiler.not(parseNot());
+      }
+      if (accept("(")) {
+        int node = parseOr();
+        expect(")");
+        return node;
+      }
+      return parseComparison();
+    }
+
+    private int parseComparison() {
+      String key = parseWord();
+      if (key == null) {
+        throw error("value key expected");
+      }
+      boolean negated = acceptKeyword("not");
+      if (acceptKeyword("in")) {
+        return parseIn(key, negated);
+      }
+      if (negated) {
+        throw error("'in' expected");
+      }
+      String operator = parseOperator();
+      Object constant = parseConstant();
+      if (constant instanceof Double) {
+        double threshold = (Double) constant;
+        switch (operator) {
+          case "=":
+            return compiler.numberAtom(key, NumericOp.EQ, threshold);
+          case "!=":
+            return compiler.numberAtom(key, NumericOp.NE, threshold);
+          case ">":
+            return compiler.numberAtom(key, NumericOp.GT, threshold);
+          case ">=":
+            return compiler.numberAtom(key, NumericOp.GE, threshold);
+          case "<":
+            return compiler.numberAtom(key, NumericOp.LT, threshold);
+          default:
+            return compiler.numberAtom(key, NumericOp.LE, threshold);
+        }
+      }
+      if (!"=".equals(operator) && !"!=".equals(operator)) {
+        throw error(String.format("operator %s only applies to numbers", operator));
+      }
+      boolean equal = "=".equals(operator);
+      if (constant instanceof Boolean) {
+        // A boolean other than the constant is its opposite.
+        return compiler.booleanAtom(key, equal == (Boolean) constant);
+      }
+      int node = compiler.stringAtom(key, Collections.singletonList((String) constant));
+      return equal ? node : compiler.and(compiler.typeAtom(key, ValueType.STRING), compiler.not(node));
+    }
+
+    private int parseIn(String key, boolean negated) {
+      expect("(");
+      List<String> strings = new ArrayList<>();
+      Set<ValueType> types = new LinkedHashSet<>();
+      int node = -1;
+      do {
+        Object constant = parseConstant();
+        int atom;
+        if (constant instanceof String) {
+          strings.add((String) constant);
+          types.add(ValueType.STRING);
+          continue;
+        } else if (constant instanceof Boolean) {
+          atom = compiler.booleanAtom(key, (Boolean) constant);
+          types.add(ValueType.BOOLEAN);
+        } else {
+          atom = compiler.numberAtom(key, NumericOp.EQ, (Double) constant);
+          types.add(ValueType.NUMBER);
+        }
+        node = node < 0 ? atom : compiler.or(node, atom);
+      } while (accept(","));
+      expect(")");
+      if (!strings.isEmpty()) {
+        // All strings of the list form one atom resolved with a single lookup.
+        int atom = compiler.stringAtom(key, strings);
+        node = node < 0 ? atom : compiler.or(node, atom);
+      }
+      if (!negated) {
+        return node;
+      }
+      // Not in the list, but present with the type of one of its values.
+      int typed = -1;
+      for (ValueType type : types) {
+        int atom = compiler.typeAtom(key, type);
+        typed = typed < 0 ? atom : compiler.or(typed, atom);
+      }
+      return compiler.and(typed, compiler.not(node));
+    }
+
+    private String parseOperator() {
+      for (String operator : new String[] {"!=", ">=", "<=", "=", ">", "<"}) {
+        if (accept(operator)) {
+          return operator;
+        }
+      }
+      throw error("comparison operator expected");
+    }
+
+    private Object parseConstant() {
+      skipWhitespace();
+      if (position < text.length() && (text.charAt(position) == '\'' || text.charAt(position) == '"')) {
+        char quote = text.charAt(position);
+        int end = text.indexOf(quote, position + 1);
+        if (end < 0) {
+          throw error("unterminated string");
+        }
+        String value = text.substring(position + 1, end);
+        position = end + 1;
+        return value;
+      }
+      String word = parseWord();
+      if (word == null) {
+        throw error("value expected");
+      }
+      if (word.equalsIgnoreCase("true") || word.equalsIgnoreCase("false")) {
+        return Boolean.valueOf(word);
+      }
+      char first = word.charAt(0);
+      if (Character.isDigit(first) || first == '-' || first == '+' || first == '.') {
+        try {
+          return Double.valueOf(word);
+        } catch (NumberFormatException ex) {
+          return word;
+        }
+      }
+      return word;
+    }
+
+    private String parseWord() {
+      skipWhitespace();
+      int start = position;
+      while (position < text.length() && isWordChar(text.charAt(position))) {
+        position++;
+      }
+      return position > start ? text.substring(start, position) : null;
+    }
+
+    private boolean acceptKeyword(String keyword) {
+      skipWhitespace();
+      int end = position + keyword.length();
+      if (text.regionMatches(true, position, keyword, 0, keyword.length())
+          && (end == text.length() || !isWordChar(text.charAt(end)))) {
+        position = end;
+        return true;
+      }
+      return false;
+    }
+
+    private boolean accept(String symbol) {
+      skipWhitespace();
+      if (text.startsWith(symbol, position)) {
+        position += symbol.length();
+        return true;
+      }
+      return false;
+    }
+
+    private void expect(String symbol) {
+      if (!accept(symbol)) {
+        throw error(String.format("'%s' expected", symbol));
+      }
+    }
+
+    private void skipWhitespace() {
+      while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+        position++;
+      }
+    }
+
+    private static boolean isWordChar(char c) {
+      return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == '+';
+    }
+
+    private IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(String.format("%s at position %d of [%s]", message, position, text));
+    }
+  }
+}
@@ -1,28 +1,269 @@
 package org.kaaproject.tutorials;
 
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
 import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
 
-import java.util.stream.Collectors;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class NotificationService {
 
   private static String RECIPIENT_EMAIL = "pasika2012@ukr.net"; // Specify recipient of email notifications.
+  // Notification rules by name, a notification is sent for every data point matching any of them.
+  private static final Map<String, String> NOTIFICATION_RULES = new LinkedHashMap<>();
+  static {
+    NOTIFICATION_RULES.put("Door", "event_type in (DOOR_OPENED, DOOR_CLOSED)");
+    NOTIFICATION_RULES.put("Window opened", "event_type = WINDOW_OPENED");
+    NOTIFICATION_RULES.put("Fire", "event_type = SMOKE or temperature > 60");
+  }
+  // Replicas of the application share events of the time series through the NATS queue group.
+  private static final String TIME_SERIES_SUBJECT = TimeSeriesEventService.subject("epts", "notification");
+  private static final String QUEUE_GROUP = "notification-service";
+  private static final String EMAIL_SUBJECT = "Smart house notifications";
+  // Time given to queued notifications to be sent on shutdown.
+  private static final Duration EMAIL_FLUSH_TIMEOUT = Duration.ofSeconds(30);
+  // Events are summarized into one email per recipient and window. Set to null to send an email per event.
+  private static final Duration DIGEST_WINDOW = Duration.ofMinutes(1);
+  private static final int DIGEST_MAX_EVENTS = 1000;
+  private static final int DIGEST_MAX_OPEN = 10_000;
+  // Events are handled on one shard thread per core, events of the same endpoint stay in order. Notifications are
+  // sent asynchronously, so handlers do not block; blocking handlers would rather use setEndpointLanes.
+  private static final int SHARD_COUNT = Runtime.getRuntime().availableProcessors();
+  private static final int SHARD_QUEUE_CAPACITY = 1024;
+  // Messages waiting for the NATS dispatcher are bounded, beyond that NATS drops them as for a slow consumer.
+  private static final long PENDING_MESSAGE_LIMIT = 100_000;
+  private static final long PENDING_BYTE_LIMIT = 64 * 1024 * 1024;
+  // Under load, expired events are dropped from half-full queues, normal priority events from nearly full ones.
+  private static final double SHED_EXPIRED_PRESSURE = 0.5;
+  private static final double SHED_LOW_PRIORITY_PRESSURE = 0.7;
+  private static final double SHED_NORMAL_PRIORITY_PRESSURE = 0.9;
+  private static final Duration SLOW_CONSUMER_COOLDOWN = Duration.ofSeconds(5);
+  // Redelivered events are recognized by correlation IDs seen within this time.
+  private static final Duration DEDUPLICATION_TTL = Duration.ofMinutes(5);
+  private static final int DEDUPLICATION_CAPACITY = 1_000_000;
+  // Received events are spooled until their notifications are sent, and replayed after a crash.
+  private static final Path SPOOL_DIRECTORY = Paths.get("spool");
+  private static final int SPOOL_SEGMENT_SIZE = 64 * 1024 * 1024;
+  private static final int SPOOL_MAX_UNACKNOWLEDGED = 1 << 20;
+  private static final Duration SPOOL_FLUSH_INTERVAL = Duration.ofMillis(100);
+  // Conditions over sliding windows of event time, alerted once when they become true.
+  private static final List<WindowedAlerts.Condition> WINDOWED_ALERTS = Arrays.asList(
+      WindowedAlerts.Condition.above("High average temperature", WindowedAlerts.Aggregation.AVERAGE, "temperature",
+          Duration.ofMinutes(5), 30),
+      WindowedAlerts.Condition.countAbove("Window opened repeatedly", "event_type = WINDOW_OPENED",
+          Duration.ofMinutes(1), 3));
+  private static final int WINDOW_BUCKETS = 12;
+  private static final Duration WINDOW_ALLOWED_LATENESS = Duration.ofSeconds(30);
+  // Endpoint metadata from EPR that notifications describe endpoints with.
+  private static final String EPR_URL = "http://localhost:8080";
+  private static final Duration EPR_TIMEOUT = Duration.ofSeconds(5);
+  private static final List<String> METADATA_LABEL_KEYS = Arrays.asList("location", "floor");
+  private static final int METADATA_CACHE_SIZE = 100_000;
+  private static final Duration METADATA_TTL = Duration.ofMinutes(10);
+  private static final Duration METADATA_REFRESH_AHEAD = Duration.ofMinutes(1);
+  private static final Duration METADATA_NEGATIVE_TTL = Duration.ofMinutes(1);
+  private static final int METADATA_LOADER_THREADS = 4;
+  // Notification rate allowed per endpoint, events above it are suppressed.
+  private static final EndpointRateLimiter.Rate ENDPOINT_RATE = new EndpointRateLimiter.Rate(1, 10);
+  // Received events are logged at debug level, sampled to the rate. Set level to INFO to log failures only.
+  private static final EventLog.Level EVENT_LOG_LEVEL = EventLog.Level.DEBUG;
+  private static final int EVENT_LOG_RATE = 10;
+  private static final int EVENT_LOG_CAPACITY = 1024;
+  // Pipeline metrics are served to Prometheus on localhost and registered in JMX. Set port to null to disable HTTP.
+  private static final Integer METRICS_PORT = 9464;
+  private static final String METRICS_MBEAN_NAME = "org.kaaproject.tutorials:type=PipelineMetrics";
+  // Stage latencies are measured for one in this many events, events themselves are all counted.
+  private static final int METRICS_SAMPLE_INTERVAL = 16;
 
   /**
    * Application entrypoint.
    */
   public static void main(String[] args) throws Exception {
     System.out.println("Starting notification application...");
+    PipelineMetrics metrics = new PipelineMetrics();
     EmailService emailService = new EmailService();
-    TimeSeriesEventService timeSeriesEventService = new TimeSeriesEventService();
-    timeSeriesEventService.onTimeSeriesEvent(timeSeriesEvent -> handleTimeSeriesEvent(timeSeriesEvent, emailService));
+    emailService.setMetrics(metrics);
+    EndpointMetadataCache metadataCache = new EndpointMetadataCache(new EprMetadataLoader(EPR_URL, EPR_TIMEOUT),
+        METADATA_CACHE_SIZE, METADATA_TTL, METADATA_REFRESH_AHEAD, METADATA_NEGATIVE_TTL, METADATA_LOADER_THREADS);
+    NotificationRules rules = new NotificationRules(NOTIFICATION_RULES);
+    WindowedAlerts windowedAlerts = new WindowedAlerts(WINDOWED_ALERTS, WINDOW_BUCKETS, WINDOW_ALLOWED_LATENESS,
+        (endpointId, condition, value) -> sendAlert(emailService, metadataCache, endpointId, condition, value), SHARD_COUNT);
+    metrics.counter("endpoint_metadata_hits_total", "Endpoint metadata lookups served from cache",
+        metadataCache::getHitCount);
+    metrics.counter("endpoint_metadata_misses_total", "Endpoint metadata lookups not served from cache",
+        metadataCache::getMissCount);
+    metrics.counter("endpoint_metadata_loads_total", "Endpoint metadata loads from EPR", metadataCache::getLoadCount);
+    metrics.counter("windowed_alerts_total", "Windowed alerts fired", windowedAlerts::getAlertCount);
+    metrics.counter("windowed_alerts_late_points_total", "Data points dropped as too late for their windows",
+        windowedAlerts::getLateCount);
+    metrics.gauge("windowed_alerts_endpoints", "Endpoints with open windows", windowedAlerts::getEndpointCount);
+    // Only data point values that the rules and windowed alerts refer to are decoded.
+    Set<String> valueKeys = new HashSet<>(rules.getKeys());
+    valueKeys.addAll(windowedAlerts.getKeys());
+    AvroConverter<TimeSeriesEvent> avroConverter = new AvroConverter<>(TimeSeriesEvent.class,
+        new HashSet<>(Arrays.asList("correlationId", "timestamp", "appVersionName", "endpointId", "dataPoints")), valueKeys);
+    TimeSeriesEventService timeSeriesEventService = new TimeSeriesEventService(avroConverter, true);
+    timeSeriesEventService.addSubscription(TIME_SERIES_SUBJECT, QUEUE_GROUP);
+    timeSeriesEventService.setShards(SHARD_COUNT, SHARD_QUEUE_CAPACITY);
+    timeSeriesEventService.setPendingLimits(PENDING_MESSAGE_LIMIT, PENDING_BYTE_LIMIT);
+    timeSeriesEventService.setLoadShedder(new LoadShedder(SHED_EXPIRED_PRESSURE, SHED_LOW_PRIORITY_PRESSURE,
+        SHED_NORMAL_PRIORITY_PRESSURE, SLOW_CONSUMER_COOLDOWN));
+    timeSeriesEventService.setSpool(
+        new EventSpool(SPOOL_DIRECTORY, SPOOL_SEGMENT_SIZE, SPOOL_MAX_UNACKNOWLEDGED, SPOOL_FLUSH_INTERVAL));
+    timeSeriesEventService.setDeduplicator(
+        new CorrelationIdDeduplicator(DEDUPLICATION_TTL, DEDUPLICATION_CAPACITY, SHARD_COUNT));
+    timeSeriesEventService.setMetrics(metrics, METRICS_SAMPLE_INTERVAL);
+    EventLog eventLog = new EventLog(EVENT_LOG_LEVEL, EVENT_LOG_RATE, EVENT_LOG_CAPACITY);
+    timeSeriesEventService.setEventLog(eventLog);
+    metrics.counter("event_log_suppressed_total", "Log messages over the rate limit", eventLog::getSuppressedCount);
+    metrics.counter("event_log_dropped_total", "Log messages dropped as the writer fell behind", eventLog::getDroppedCount);
+    Consumer<TimeSeriesEvent> callback;
+    if (DIGEST_WINDOW != null) {
+      NotificationDigest digest = new NotificationDigest(emailService, EMAIL_SUBJECT, DIGEST_WINDOW,
+          DIGEST_MAX_EVENTS, DIGEST_MAX_OPEN, false, endpointId -> label(endpointId, metadataCache.get(endpointId)));
+      // Open digests are flushed before the email queue.
+      timeSeriesEventService.addShutdownTask(digest::shutdown);
+      callback = timeSeriesEvent -> handleTimeSeriesEvent(timeSeriesEvent, rules, digest,
+          timeSeriesEventService.deferAcknowledgement());
+    } else {
+      callback = timeSeriesEvent -> handleTimeSeriesEvent(timeSeriesEvent, rules, metadataCache, emailService,
+          timeSeriesEventService.deferAcknowledgement());
+    }
+    timeSeriesEventService.addShutdownTask(() -> emailService.shutdown(EMAIL_FLUSH_TIMEOUT));
+    timeSeriesEventService.addShutdownTask(metadataCache::shutdown);
+    EndpointRateLimiter rateLimiter = new EndpointRateLimiter(ENDPOINT_RATE, Collections.emptyMap(), SHARD_COUNT);
+    timeSeriesEventService.addShutdownTask(() -> System.out.println(
+        String.format("Notifications suppressed by endpoint rate limit: %d", rateLimiter.getSuppressedCount())));
+    metrics.counter("notifications_suppressed_total", "Notifications suppressed by endpoint rate limit",
+        rateLimiter::getSuppressedCount);
+    metrics.registerMBean(METRICS_MBEAN_NAME);
+    if (METRICS_PORT != null) {
+      metrics.startHttpServer(METRICS_PORT);
+    }
+    timeSeriesEventService.addShutdownTask(metrics::close);
+    Consumer<TimeSeriesEvent> rateLimitedCallback = rateLimiter.wrap(callback);
+    // Windows see all events, including the ones whose notifications are suppressed by the rate limit.
+    timeSeriesEventService.onTimeSeriesEvent(timeSeriesEvent -> {
+      // Metadata is requested in advance, so that it is usually cached by the time a notification is sent.
+      metadataCache.get(timeSeriesEvent.getEndpointId());
+      windowedAlerts.add(timeSeriesEvent);
+      rateLimitedCallback.accept(timeSeriesEvent);
+    });
+  }
+
+  /**
+   * Adds names of the rules matched by data points of the event into the digest.
+   * @param acknowledgement - run once the digest with the event is sent
+   */
+  static void handleTimeSeriesEvent(TimeSeriesEvent event, NotificationRules rules, NotificationDigest digest,
+                                    Runnable acknowledgement) {
+    List<String> matchedRules;
+    try {
+      matchedRules = match(event, rules);
+    } catch (RuntimeException ex) {
+      acknowledgement.run();
+      throw ex;
+    }
+    if (matchedRules.isEmpty()) {
+      acknowledgement.run();
+      return;
+    }
+    int last = matchedRules.size() - 1;
+    for (int i = 0; i <= last; i++) {
+      // The event is acknowledged with its last match, all of them go into the same digest or earlier ones.
+      try {
+        digest.add(RECIPIENT_EMAIL, event.getEndpointId(), matchedRules.get(i), i == last ? acknowledgement : null);
+      } catch (RuntimeException ex) {
+        acknowledgement.run();
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Sends notification listing names of the rules matched by data points of the event.
+   * @param metadataCache - metadata the endpoint is described with, or {@code null} to use the endpoint ID only
+   * @param acknowledgement - run once the notification is sent or failed to be sent
+   */
+  static void handleTimeSeriesEvent(TimeSeriesEvent event, NotificationRules rules,
+                                    EndpointMetadataCache metadataCache, EmailService emailService,
+                                    Runnable acknowledgement) {
+    List<String> matchedRules;
+    try {
+      matchedRules = match(event, rules);
+    } catch (RuntimeException ex) {
+      acknowledgement.run();
+      throw ex;
+    }
+    if (matchedRules.isEmpty()) {
+      acknowledgement.run();
+      return;
+    }
+    String endpointId = event.getEndpointId();
+    // Sending is asynchronous so that a slow mail server or EPR does not stall the NATS dispatcher.
+    withMetadata(metadataCache, endpointId)
+        .thenCompose(metadata -> emailService.sendNotificationAsync(RECIPIENT_EMAIL, EMAIL_SUBJECT,
+            String.format("Next events has occurred on %s: %s", label(endpointId, metadata), String.join(", ", matchedRules))))
+        .whenComplete((result, ex) -> {
+          if (ex != null) {
+            System.err.println(String.format("Failed to send notification: %s", ex));
+          }
+          acknowledgement.run();
+        });
+  }
+
+  static void sendAlert(EmailService emailService, EndpointMetadataCache metadataCache, String endpointId,
+                        WindowedAlerts.Condition condition, double value) {
+    withMetadata(metadataCache, endpointId)
+        .thenCompose(metadata -> emailService.sendNotificationAsync(RECIPIENT_EMAIL, EMAIL_SUBJECT,
+            String.format("%s on %s: %.2f, condition %s", condition.getName(), label(endpointId, metadata), value, condition)))
+        .whenComplete((result, ex) -> {
+          if (ex != null) {
+            System.err.println(String.format("Failed to send alert: %s", ex));
+          }
+        });
+  }
+
+  private static CompletableFuture<Map<String, Object>> withMetadata(EndpointMetadataCache metadataCache,
+                                                                     String endpointId) {
+    return metadataCache != null ? metadataCache.getAsync(endpointId) : CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Describes endpoint with its ID and metadata values, e.g. {@code 73a3c935 (living room, 2nd floor)}.
+   */
+  static String label(String endpointId, Map<String, Object> metadata) {
+    if (metadata == null) {
+      return endpointId;
+    }
+    StringJoiner details = new StringJoiner(", ", endpointId + " (", ")");
+    details.setEmptyValue(endpointId);
+    for (String key : METADATA_LABEL_KEYS) {
+      Object value = metadata.get(key);
+      if (value != null) {
+        details.add(value.toString());
+      }
+    }
+    return details.toString();
   }
 
-  private static void handleTimeSeriesEvent(TimeSeriesEvent event, EmailService emailService) {
-    String eventType = event.getDataPoints().stream()
-        .map(dataPoint -> dataPoint.getValues().get("event_type").toString())
-        .collect(Collectors.joining(", "));
-    String emailMessageText = String.format("Next events has occurred: %s", eventType);
-    emailService.sendNotification(RECIPIENT_EMAIL, "Smart house notifications", emailMessageText);
+  private static List<String> match(TimeSeriesEvent event, NotificationRules rules) {
+    List<String> matchedRules = new ArrayList<>();
+    for (DataPoint dataPoint : event.getDataPoints()) {
+      rules.match(dataPoint.getValues(), matchedRules::add);
+    }
+    return matchedRules;
   }
 }
@@ -0,0 +1,281 @@
+package org.kaaproject.tutorials;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, gauges and latency histograms of the notification pipeline, exposed through JMX
+ * and as a <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">Prometheus</a> text endpoint.
+ * Updating a metric does not allocate or lock, values are only formatted when they are read.
+ */
+public class PipelineMetrics {
+  // Quantiles of latency histograms reported to Prometheus and JMX.
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+  private static final String[] QUANTILE_SUFFIXES = {"p50", "p90", "p99", "p999"};
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final String PROMETHEUS_PATH = "/metrics";
+  private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final Map<String, Metric> metrics = new LinkedHashMap<>();
+  private HttpServer httpServer;
+  private ObjectName objectName;
+
+  /**
+   * Registers counter incremented by the caller.
+   * @param name - metric name, e.g. {@code tstp_events_received_total}
+   * @param help - metric description
+   */
+  public LongAdder counter(String name, String help) {
+    LongAdder counter = new LongAdder();
+    register(name, new Metric("counter", help, counter::sum, null));
+    return counter;
+  }
+
+  /**
+   * Registers counter maintained elsewhere, e.g. by a client library.
+   */
+  public void counter(String name, String help, LongSupplier value) {
+    register(name, new Metric("counter", help, value, null));
+  }
+
+  /**
+   * Registers gauge sampled when metrics are read, e.g. a queue depth.
+   */
+  public void gauge(String name, String help, LongSupplier value) {
+    register(name, new Metric("gauge", help, value, null));
+  }
+
+  /**
+   * Registers latency histogram, reported in seconds as quantiles, sum, count and maximum.
+   * @param name - metric name, e.g. {@code tstp_decode_seconds}
+   */
+  public LatencyHistogram histogram(String name, String help) {
+    LatencyHistogram histogram = new LatencyHistogram();
+    register(name, new Metric("summary", help, null, histogram));
+    return histogram;
+  }
+
+  private synchronized void register(String name, Metric metric) {
+    if (metrics.putIfAbsent(name, metric) != null) {
+      throw new IllegalArgumentException(String.format("Metric %s is already registered", name));
+    }
+  }
+
+  private synchronized List<Map.Entry<String, Metric>> snapshot() {
+    return new ArrayList<>(metrics.entrySet());
+  }
+
+  /**
+   * Formats current values in the Prometheus text exposition format.
+   */
+  public String toPrometheusText() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, Metric> entry : snapshot()) {
+      String name = entry.getKey();
+      Metric metric = entry.getValue();
+      text.append("# HELP ").append(name).append(' ').append(metric.help).append('\n');
+      text.append("# TYPE ").append(name).append(' ').append(metric.type).append('\n');
+      if (metric.histogram == null) {
+        text.append(name).append(' ').append(metric.value.getAsLong()).append('\n');
+        continue;
+      }
+      LatencyHistogram histogram = metric.histogram;
+      for (double quantile : QUANTILES) {
+        text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+            .append(seconds(histogram.getValueAtQuantile(quantile))).append('\n');
+      }
+      text.append(name).append("_sum ").append(seconds(histogram.getSumNanos())).append('\n');
+      text.append(name).append("_count ").append(histogram.getCount()).append('\n');
+      text.append("# TYPE ").append(name).append("_max gauge\n");
+      text.append(name).append("_max ").append(seconds(histogram.getMaxNanos())).append('\n');
+    }
+    return text.toString();
+  }
+
+  /**
+   * Serves metrics to Prometheus at {@code http://localhost:<port>/metrics}. The endpoint is bound to the loopback
+   * interface only, so it is scraped by a local agent or through a port forward.
+   * @param port - port to listen on
+   */
+  public synchronized void startHttpServer(int port) throws IOException {
+    if (httpServer != null) {
+      throw new IllegalStateException("Metrics HTTP server is already started");
+    }
+    httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    httpServer.createContext(PROMETHEUS_PATH, exchange -> {
+      byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", PROMETHEUS_CONTENT_TYPE);
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    });
+    httpServer.start();
+    System.out.println(String.format("Serving metrics on http://%s:%d%s",
+        httpServer.getAddress().getHostString(), httpServer.getAddress().getPort(), PROMETHEUS_PATH));
+  }
+
+  /**
+   * Registers metrics as attributes of a platform MBean, e.g. to be browsed with JConsole. Latency histograms
+   * are represented by attributes with {@code _count}, {@code _p50} ... {@code _max} suffixes, in seconds.
+   * @param name - object name, e.g. {@code org.kaaproject.tutorials:type=PipelineMetrics}
+   */
+  public synchronized void registerMBean(String name) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      objectName = new ObjectName(name);
+      server.registerMBean(new MetricsMBean(), objectName);
+    } catch (JMException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Stops HTTP server and unregisters the MBean.
+   */
+  public synchronized void close() {
+    if (httpServer != null) {
+      httpServer.stop(0);
+      httpServer = null;
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException ex) {
+        System.err.println(String.format("Failed to unregister metrics MBean: %s", ex));
+      }
+      objectName = null;
+    }
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / NANOS_PER_SECOND;
+  }
+
+  /**
+   * Reads attribute of the metrics MBean.
+   * @return attribute value, or {@code null} if there is no such attribute
+   */
+  private Object readAttribute(String attribute) {
+    for (Map.Entry<String, Metric> entry : snapshot()) {
+      String name = entry.getKey();
+      Metric metric = entry.getValue();
+      if (metric.histogram == null) {
+        if (name.equals(attribute)) {
+          return metric.value.getAsLong();
+        }
+        continue;
+      }
+      if (!attribute.startsWith(name + "_")) {
+        continue;
+      }
+      String suffix = attribute.substring(name.length() + 1);
+      if (suffix.equals("count")) {
+        return metric.histogram.getCount();
+      } else if (suffix.equals("max")) {
+        return seconds(metric.histogram.getMaxNanos());
+      }
+      for (int i = 0; i < QUANTILES.length; i++) {
+        if (suffix.equals(QUANTILE_SUFFIXES[i])) {
+          return seconds(metric.histogram.getValueAtQuantile(QUANTILES[i]));
+        }
+      }
+    }
+    return null;
+  }
+
+  private static class Metric {
+    private final String type;
+    private final String help;
+    private final LongSupplier value;
+    private final LatencyHistogram histogram;
+
+    private Metric(String type, String help, LongSupplier value, LatencyHistogram histogram) {
+      this.type = type;
+      this.help = help;
+      this.value = value;
+      this.histogram = histogram;
+    }
+  }
+
+  private class MetricsMBean implements DynamicMBean {
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Object value = readAttribute(attribute);
+      if (value == null) {
+        throw new AttributeNotFoundException(attribute);
+      }
+      return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList values = new AttributeList();
+      for (String attribute : attributes) {
+        Object value = readAttribute(attribute);
+        if (value != null) {
+          values.add(new Attribute(attribute, value));
+        }
+      }
+      return values;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException("Metrics MBean has no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<>();
+      for (Map.Entry<String, Metric> entry : snapshot()) {
+        String name = entry.getKey();
+        Metric metric = entry.getValue();
+        if (metric.histogram == null) {
+          attributes.add(new MBeanAttributeInfo(name, "long", metric.help, true, false, false));
+          continue;
+        }
+        attributes.add(new MBeanAttributeInfo(name + "_count", "long", metric.help + ", count", true, false, false));
+        for (String suffix : QUANTILE_SUFFIXES) {
+          attributes.add(new MBeanAttributeInfo(name + "_" + suffix, "double",
+              metric.help + ", " + suffix + " in seconds", true, false, false));
+        }
+        attributes.add(new MBeanAttributeInfo(name + "_max", "double",
+            metric.help + ", maximum in seconds", true, false, false));
+      }
+      return new MBeanInfo(PipelineMetrics.class.getName(), "Notification pipeline metrics",
+          attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+  }
+}
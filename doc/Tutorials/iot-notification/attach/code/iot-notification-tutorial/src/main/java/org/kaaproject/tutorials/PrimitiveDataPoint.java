@@ -0,0 +1,286 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.util.Utf8;
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Data point with values kept unboxed, an alternative to the value map of {@link DataPoint}.
+ * Values are stored in slots: the {@link ValueKeys} ID of the value name, a type tag, and the value itself
+ * in a {@code long} array for booleans and integers, a {@code double} array for floating point numbers,
+ * or an object array for strings and bytes. Values are looked up by key ID with a scan of the few IDs
+ * of the point, so reading a metric neither hashes a string nor unboxes a number. Key IDs are assigned in the
+ * order names are first seen, so points of a device usually hold them in ascending order, and larger points
+ * in that order are binary searched instead. String values are kept as decoded bytes until read.
+ * Instances are reused by {@link PrimitiveEventDecoder}, which fills them in place.
+ */
+public class PrimitiveDataPoint {
+  // Initial number of value slots, grown as needed and kept across reuse.
+  private static final int INITIAL_CAPACITY = 8;
+  // Points with more values than this are binary searched when their key IDs are in ascending order.
+  private static final int MAX_SCANNED_SIZE = 8;
+
+  /**
+   * Value types in the order of the branches of the value union in the time series event schema.
+   */
+  public enum ValueType {
+    BOOLEAN, INT, LONG, FLOAT, DOUBLE, STRING, BYTES, NULL;
+
+    private static final ValueType[] VALUES = values();
+
+    static ValueType ofBranch(int index) {
+      return VALUES[index];
+    }
+  }
+
+  private long timestamp;
+  private int size;
+  private boolean sorted = true;
+  private int[] keyIds = new int[INITIAL_CAPACITY];
+  private byte[] types = new byte[INITIAL_CAPACITY];
+  private long[] longValues = new long[INITIAL_CAPACITY];
+  private double[] doubleValues = new double[INITIAL_CAPACITY];
+  // Allocated on the first string or bytes value only, numeric telemetry does without.
+  private Object[] objectValues;
+
+  /**
+   * Converts data point decoded into a value map, e.g. by {@link AvroConverter}, into this instance.
+   * Values whose names get no ID, as the key table is full, are left out.
+   * @param dataPoint - data point to copy
+   * @param keys - table of value names
+   */
+  public void copyFrom(DataPoint dataPoint, ValueKeys keys) {
+    clear();
+    timestamp = dataPoint.getTimestamp();
+    if (dataPoint.getValues() == null) {
+      return;
+    }
+    for (Map.Entry<String, Object> entry : dataPoint.getValues().entrySet()) {
+      int keyId = keys.idOf(entry.getKey());
+      if (keyId == ValueKeys.UNKNOWN) {
+        continue;
+      }
+      Object value = entry.getValue();
+      if (value instanceof Boolean) {
+        addLong(keyId, ValueType.BOOLEAN, (Boolean) value ? 1 : 0);
+      } else if (value instanceof Integer) {
+        addLong(keyId, ValueType.INT, (Integer) value);
+      } else if (value instanceof Long) {
+        addLong(keyId, ValueType.LONG, (Long) value);
+      } else if (value instanceof Float) {
+        addDouble(keyId, ValueType.FLOAT, (Float) value);
+      } else if (value instanceof Double) {
+        addDouble(keyId, ValueType.DOUBLE, (Double) value);
+      } else if (value instanceof CharSequence) {
+        addObject(keyId, ValueType.STRING, value.toString());
+      } else if (value instanceof ByteBuffer) {
+        addObject(keyId, ValueType.BYTES, value);
+      } else {
+        addObject(keyId, ValueType.NULL, null);
+      }
+    }
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Returns number of values of the point.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns key ID of the value in the slot, slots being numbered from 0 to {@link #size()}.
+   */
+  public int getKeyId(int slot) {
+    return keyIds[slot];
+  }
+
+  /**
+   * Returns slot of the value with the key ID.
+   * @return slot, or -1 if the point has no such value
+   */
+  public int slotOf(int keyId) {
+    if (sorted && size > MAX_SCANNED_SIZE) {
+      int slot = Arrays.binarySearch(keyIds, 0, size, keyId);
+      return slot >= 0 ? slot : -1;
+    }
+    for (int slot = 0; slot < size; slot++) {
+      if (keyIds[slot] == keyId) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns type of the value with the key ID.
+   * @return value type, or {@code null} if the point has no such value
+   */
+  public ValueType getType(int keyId) {
+    int slot = slotOf(keyId);
+    return slot >= 0 ? getSlotType(slot) : null;
+  }
+
+  public ValueType getSlotType(int slot) {
+    return ValueType.ofBranch(types[slot]);
+  }
+
+  /**
+   * Returns numeric value with the key ID as a double, booleans excluded.
+   * @return value, or {@link Double#NaN} if the point has no such value or the value is not a number
+   */
+  public double getDouble(int keyId) {
+    int slot = slotOf(keyId);
+    return slot >= 0 ? getSlotDouble(slot) : Double.NaN;
+  }
+
+  /**
+   * Returns numeric value in the slot as a double, see {@link #getDouble(int)}.
+   */
+  public double getSlotDouble(int slot) {
+    switch (getSlotType(slot)) {
+      case INT:
+      case LONG:
+        return longValues[slot];
+      case FLOAT:
+      case DOUBLE:
+        return doubleValues[slot];
+      default:
+        return Double.NaN;
+    }
+  }
+
+  /**
+   * Returns numeric or boolean value in the slot as a double, booleans being 1 and 0.
+   * @return value, or {@link Double#NaN} if the value is neither a number nor a boolean
+   */
+  public double getSlotNumber(int slot) {
+    return getSlotType(slot) == ValueType.BOOLEAN ? longValues[slot] : getSlotDouble(slot);
+  }
+
+  /**
+   * Returns integer value with the key ID, {@code int} or {@code long} typed.
+   * @param defaultValue - returned if the point has no such value or the value is not an integer
+   */
+  public long getLong(int keyId, long defaultValue) {
+    int slot = slotOf(keyId);
+    if (slot < 0) {
+      return defaultValue;
+    }
+    ValueType type = getSlotType(slot);
+    return type == ValueType.INT || type == ValueType.LONG ? longValues[slot] : defaultValue;
+  }
+
+  /**
+   * Returns boolean value with the key ID.
+   * @param defaultValue - returned if the point has no such value or the value is not a boolean
+   */
+  public boolean getBoolean(int keyId, boolean defaultValue) {
+    int slot = slotOf(keyId);
+    return slot >= 0 && getSlotType(slot) == ValueType.BOOLEAN ? longValues[slot] != 0 : defaultValue;
+  }
+
+  /**
+   * Returns string value with the key ID.
+   * @return value, or {@code null} if the point has no such value or the value is not a string
+   */
+  public String getString(int keyId) {
+    int slot = slotOf(keyId);
+    return slot >= 0 && getSlotType(slot) == ValueType.STRING ? slotString(slot) : null;
+  }
+
+  /**
+   * Returns bytes value with the key ID.
+   * @return value, or {@code null} if the point has no such value or the value is not bytes
+   */
+  public ByteBuffer getBytes(int keyId) {
+    int slot = slotOf(keyId);
+    return slot >= 0 && getSlotType(slot) == ValueType.BYTES ? (ByteBuffer) objectValues[slot] : null;
+  }
+
+  /**
+   * Returns value in the slot boxed as in the value map of {@link DataPoint}, e.g. for logging.
+   */
+  public Object getSlotValue(int slot) {
+    switch (getSlotType(slot)) {
+      case BOOLEAN:
+        return longValues[slot] != 0;
+      case INT:
+        return (int) longValues[slot];
+      case LONG:
+        return longValues[slot];
+      case FLOAT:
+        return (float) doubleValues[slot];
+      case DOUBLE:
+        return doubleValues[slot];
+      case STRING:
+        return slotString(slot);
+      default:
+        return objectValues[slot];
+    }
+  }
+
+  // Strings decoded into Utf8 are turned into a String on first read, which replaces them.
+  private String slotString(int slot) {
+    Object value = objectValues[slot];
+    if (value instanceof Utf8) {
+      value = value.toString();
+      objectValues[slot] = value;
+    }
+    return (String) value;
+  }
+
+  void clear() {
+    if (objectValues != null) {
+      Arrays.fill(objectValues, 0, size, null);
+    }
+    size = 0;
+    sorted = true;
+  }
+
+  void setTimestamp(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  void addLong(int keyId, ValueType type, long value) {
+    int slot = add(keyId, type);
+    longValues[slot] = value;
+  }
+
+  void addDouble(int keyId, ValueType type, double value) {
+    int slot = add(keyId, type);
+    doubleValues[slot] = value;
+  }
+
+  void addObject(int keyId, ValueType type, Object value) {
+    int slot = add(keyId, type);
+    if (objectValues == null) {
+      objectValues = new Object[keyIds.length];
+    }
+    objectValues[slot] = value;
+  }
+
+  private int add(int keyId, ValueType type) {
+    if (size == keyIds.length) {
+      int capacity = 2 * size;
+      keyIds = Arrays.copyOf(keyIds, capacity);
+      types = Arrays.copyOf(types, capacity);
+      longValues = Arrays.copyOf(longValues, capacity);
+      doubleValues = Arrays.copyOf(doubleValues, capacity);
+      if (objectValues != null) {
+        objectValues = Arrays.copyOf(objectValues, capacity);
+      }
+    }
+    sorted &= size == 0 || keyIds[size - 1] < keyId;
+    keyIds[size] = keyId;
+    types[size] = (byte) type.ordinal();
+    return size++;
+  }
+}
@@ -0,0 +1,203 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.util.Utf8;
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decodes raw {@link TimeSeriesEvent} messages into {@link PrimitiveTimeSeriesEvent}s, with values unboxed and
+ * value names resolved to {@link ValueKeys} IDs straight from their bytes. Messages written with the compiled
+ * schema are read field by field without a datum reader. Single-object encoded messages of other writer schemas
+ * are decoded by the fallback converter, which resolves them, and are converted afterwards.
+ * The correlation ID and string values are kept as decoded bytes until read, and header fields interned by
+ * a {@link StringInterner} are looked up in its tables, so a decoded event of a known device allocates no strings.
+ */
+public class PrimitiveEventDecoder {
+  private static final long SCHEMA_FINGERPRINT = SchemaNormalization.parsingFingerprint64(TimeSeriesEvent.getClassSchema());
+
+  private final ValueKeys keys;
+  private final AvroConverter<TimeSeriesEvent> fallbackConverter;
+  private final ValueKeys appVersionNames;
+  private final ValueKeys endpointIds;
+  private final ValueKeys timeSeriesNames;
+  private final ThreadLocal<BinaryDecoder> threadLocalDecoder = new ThreadLocal<>();
+  private final ThreadLocal<Utf8> threadLocalKey = ThreadLocal.withInitial(Utf8::new);
+
+  /**
+   * Creates decoder instance.
+   * @param keys - table of value names shared by the decoded events
+   * @param fallbackConverter - converter resolving messages of other writer schemas, e.g. with a schema store,
+   *                          or {@code null} to fail on such messages
+   */
+  public PrimitiveEventDecoder(ValueKeys keys, AvroConverter<TimeSeriesEvent> fallbackConverter) {
+    this(keys, fallbackConverter, null);
+  }
+
+  /**
+   * Creates decoder instance interning header fields.
+   * @param keys - table of value names shared by the decoded events
+   * @param fallbackConverter - converter resolving messages of other writer schemas, or {@code null}
+   * @param interner - tables of the interned header fields, e.g. {@link StringInterner#TIME_SERIES_EVENT_FIELDS},
+   *                 or {@code null} to decode them into new strings
+   */
+  public PrimitiveEventDecoder(ValueKeys keys, AvroConverter<TimeSeriesEvent> fallbackConverter,
+                               StringInterner interner) {
+    checkValueUnion();
+    this.keys = keys;
+    this.fallbackConverter = fallbackConverter;
+    this.appVersionNames = interner != null ? interner.getFieldTable("appVersionName") : null;
+    this.endpointIds = interner != null ? interner.getFieldTable("endpointId") : null;
+    this.timeSeriesNames = interner != null ? interner.getFieldTable("timeSeriesName") : null;
+  }
+
+  // Union branches are read by their index, so the compiled schema must list them in the order of ValueType.
+  private static void checkValueUnion() {
+    List<Schema> branches = DataPoint.getClassSchema().getField("values").schema().getValueType().getTypes();
+    PrimitiveDataPoint.ValueType[] valueTypes = PrimitiveDataPoint.ValueType.values();
+    boolean matches = branches.size() == valueTypes.length;
+    for (int i = 0; matches && i < valueTypes.length; i++) {
+      matches = branches.get(i).getType().name().equals(valueTypes[i].name());
+    }
+    if (!matches) {
+      throw new IllegalStateException(String.format("Unsupported data point value union %s", branches));
+    }
+  }
+
+  public ValueKeys getKeys() {
+    return keys;
+  }
+
+  /**
+   * Decodes raw message into a new event.
+   */
+  public PrimitiveTimeSeriesEvent decode(byte[] bytes) {
+    return decodeInto(bytes, 0, bytes.length, new PrimitiveTimeSeriesEvent());
+  }
+
+  /**
+   * Decodes raw message into the passed event, reusing its data points.
+   * @param offset - index of the first byte of the message
+   * @param length - number of bytes of the message
+   * @param reuse - event to fill
+   * @return {@code reuse} itself
+   */
+  public PrimitiveTimeSeriesEvent decodeInto(byte[] bytes, int offset, int length, PrimitiveTimeSeriesEvent reuse) {
+    try {
+      if (SingleObjectEncoding.hasHeader(bytes, offset, length)) {
+        if (SingleObjectEncoding.readFingerprint(bytes, offset) != SCHEMA_FINGERPRINT) {
+          if (fallbackConverter == null) {
+            throw new IllegalArgumentException("Message is written with an unknown schema");
+          }
+          reuse.copyFrom(fallbackConverter.decode(bytes, offset, length), keys);
+          return reuse;
+        }
+        offset += SingleObjectEncoding.HEADER_LENGTH;
+        length -= SingleObjectEncoding.HEADER_LENGTH;
+      }
+      BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(bytes, offset, length, threadLocalDecoder.get());
+      threadLocalDecoder.set(decoder);
+      read(decoder, reuse);
+      return reuse;
+    } catch (Exception ex) {
+      String msg = "Failed to deserialize submitted byte array into object.";
+      throw new RuntimeException(msg, ex);
+    }
+  }
+
+  private void read(BinaryDecoder decoder, PrimitiveTimeSeriesEvent event) throws IOException {
+    Utf8 correlationId = decoder.readString(event.correlationIdBuffer());
+    long timestamp = decoder.readLong();
+    long timeout = decoder.readLong();
+    Utf8 key = threadLocalKey.get();
+    String appVersionName = readString(decoder, appVersionNames, key);
+    String endpointId = readString(decoder, endpointIds, key);
+    String timeSeriesName = readString(decoder, timeSeriesNames, key);
+    event.setHeader(null, timestamp, timeout, appVersionName, endpointId, timeSeriesName);
+    event.setLazyCorrelationId(correlationId);
+    event.clearDataPoints();
+    for (long count = decoder.readArrayStart(); count > 0; count = decoder.arrayNext()) {
+      for (long i = 0; i < count; i++) {
+        PrimitiveDataPoint dataPoint = event.addDataPoint();
+        dataPoint.setTimestamp(decoder.readLong());
+        for (long entries = decoder.readMapStart(); entries > 0; entries = decoder.mapNext()) {
+          for (long j = 0; j < entries; j++) {
+            key = decoder.readString(key);
+            readValue(decoder, dataPoint, keys.idOf(key.getBytes(), 0, key.getByteLength()));
+          }
+        }
+      }
+    }
+    threadLocalKey.set(key);
+  }
+
+  private static String readString(BinaryDecoder decoder, ValueKeys table, Utf8 buffer) throws IOException {
+    if (table == null) {
+      return decoder.readString();
+    }
+    Utf8 utf8 = decoder.readString(buffer);
+    return table.intern(utf8.getBytes(), 0, utf8.getByteLength());
+  }
+
+  // Values whose names get no ID are read and dropped.
+  private static void readValue(BinaryDecoder decoder, PrimitiveDataPoint dataPoint, int keyId) throws IOException {
+    PrimitiveDataPoint.ValueType type = PrimitiveDataPoint.ValueType.ofBranch(decoder.readIndex());
+    switch (type) {
+      case BOOLEAN:
+        boolean booleanValue = decoder.readBoolean();
+        if (keyId != ValueKeys.UNKNOWN) {
+          dataPoint.addLong(keyId, type, booleanValue ? 1 : 0);
+        }
+        break;
+      case INT:
+        int intValue = decoder.readInt();
+        if (keyId != ValueKeys.UNKNOWN) {
+          dataPoint.addLong(keyId, type, intValue);
+        }
+        break;
+      case LONG:
+        long longValue = decoder.readLong();
+        if (keyId != ValueKeys.UNKNOWN) {
+          dataPoint.addLong(keyId, type, longValue);
+        }
+        break;
+      case FLOAT:
+        float floatValue = decoder.readFloat();
+        if (keyId != ValueKeys.UNKNOWN) {
+          dataPoint.addDouble(keyId, type, floatValue);
+        }
+        break;
+      case DOUBLE:
+        double doubleValue = decoder.readDouble();
+        if (keyId != ValueKeys.UNKNOWN) {
+          dataPoint.addDouble(keyId, type, doubleValue);
+        }
+        break;
+      case STRING:
+        if (keyId != ValueKeys.UNKNOWN) {
+          dataPoint.addObject(keyId, type, decoder.readString(null));
+        } else {
+          decoder.skipString();
+        }
+        break;
+      case BYTES:
+        if (keyId != ValueKeys.UNKNOWN) {
+          dataPoint.addObject(keyId, type, decoder.readBytes(null));
+        } else {
+          decoder.skipBytes();
+        }
+        break;
+      default:
+        decoder.readNull();
+        if (keyId != ValueKeys.UNKNOWN) {
+          dataPoint.addObject(keyId, type, null);
+        }
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.util.Utf8;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.util.Arrays;
+
+/**
+ * Time series event with data points decoded into {@link PrimitiveDataPoint}s, see {@link PrimitiveEventDecoder}.
+ * Instances are meant to be reused: decoding into an instance recycles its data points and their arrays.
+ * The correlation ID, unique per message, is kept as decoded bytes and turned into a string on first read only.
+ */
+public class PrimitiveTimeSeriesEvent {
+  private String correlationId;
+  // Decoded correlation ID not read as a string yet, or null; its bytes are reused by the next decoding.
+  private Utf8 lazyCorrelationId;
+  private final Utf8 correlationIdBuffer = new Utf8();
+  private long timestamp;
+  private long timeout;
+  private String appVersionName;
+  private String endpointId;
+  private String timeSeriesName;
+  private int dataPointCount;
+  private PrimitiveDataPoint[] dataPoints = new PrimitiveDataPoint[0];
+
+  /**
+   * Converts event decoded with value maps, e.g. by {@link AvroConverter}, into this instance.
+   * @param event - event to copy
+   * @param keys - table of value names
+   */
+  public void copyFrom(TimeSeriesEvent event, ValueKeys keys) {
+    setHeader(event.getCorrelationId(), event.getTimestamp(), event.getTimeout(), event.getAppVersionName(),
+        event.getEndpointId(), event.getTimeSeriesName());
+    clearDataPoints();
+    if (event.getDataPoints() != null) {
+      for (int i = 0; i < event.getDataPoints().size(); i++) {
+        addDataPoint().copyFrom(event.getDataPoints().get(i), keys);
+      }
+    }
+  }
+
+  public String getCorrelationId() {
+    if (lazyCorrelationId != null) {
+      correlationId = lazyCorrelationId.toString();
+      lazyCorrelationId = null;
+    }
+    return correlationId;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public long getTimeout() {
+    return timeout;
+  }
+
+  public String getAppVersionName() {
+    return appVersionName;
+  }
+
+  public String getEndpointId() {
+    return endpointId;
+  }
+
+  public String getTimeSeriesName() {
+    return timeSeriesName;
+  }
+
+  public int getDataPointCount() {
+    return dataPointCount;
+  }
+
+  /**
+   * Returns data point with the index, from 0 to {@link #getDataPointCount()}.
+   */
+  public PrimitiveDataPoint getDataPoint(int index) {
+    if (index >= dataPointCount) {
+      throw new IndexOutOfBoundsException(String.format("Data point %d of %d", index, dataPointCount));
+    }
+    return dataPoints[index];
+  }
+
+  void setHeader(String correlationId, long timestamp, long timeout, String appVersionName, String endpointId,
+                 String timeSeriesName) {
+    this.lazyCorrelationId = null;
+    this.correlationId = correlationId;
+    this.timestamp = timestamp;
+    this.timeout = timeout;
+    this.appVersionName = appVersionName;
+    this.endpointId = endpointId;
+    this.timeSeriesName = timeSeriesName;
+  }
+
+  /**
+   * Returns buffer to decode the correlation ID into, passed to {@link #setLazyCorrelationId(Utf8)} afterwards.
+   */
+  Utf8 correlationIdBuffer() {
+    return correlationIdBuffer;
+  }
+
+  /**
+   * Returns correlation ID as decoded, or {@code null} if it is already a string, see {@link #getCorrelationId()}.
+   */
+  Utf8 getLazyCorrelationId() {
+    return lazyCorrelationId;
+  }
+
+  void setLazyCorrelationId(Utf8 correlationId) {
+    this.correlationId = null;
+    this.lazyCorrelationId = correlationId;
+  }
+
+  void clearDataPoints() {
+    dataPointCount = 0;
+  }
+
+  /**
+   * Appends data point, reusing one left from an earlier event if there is one.
+   * @return cleared data point to fill
+   */
+  PrimitiveDataPoint addDataPoint() {
+    if (dataPointCount == dataPoints.length) {
+      dataPoints = Arrays.copyOf(dataPoints, Math.max(4, 2 * dataPointCount));
+    }
+    PrimitiveDataPoint dataPoint = dataPoints[dataPointCount];
+    if (dataPoint == null) {
+      dataPoint = new PrimitiveDataPoint();
+      dataPoints[dataPointCount] = dataPoint;
+    }
+    dataPointCount++;
+    dataPoint.clear();
+    return dataPoint;
+  }
+}
@@ -0,0 +1,179 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.ResolvingDecoder;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.util.Utf8;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Specific datum reader that materializes only the requested top-level fields and map keys.
+ * Everything else is passed over with Avro skip primitives, so its decoding cost does not depend on
+ * how many values a device sends. Skipped fields are set to {@code null}; fields of primitive types
+ * are always decoded since skipping them costs the same as reading. Strings of the fields and map keys
+ * interned by a {@link StringInterner} are read into a reused buffer and looked up in its tables.
+ */
+public class ProjectingDatumReader<T> extends SpecificDatumReader<T> {
+  private final Set<Schema.Field> skippedFields;
+  private final Map<Utf8, String> mapKeys;
+  // Intern tables by top-level field, keyed by identity as nested records have fields at the same positions.
+  private final Map<Schema.Field, ValueKeys> internedFields;
+  private final ValueKeys internedMapKeys;
+  private final ThreadLocal<Utf8> threadLocalKey = ThreadLocal.withInitial(Utf8::new);
+
+  /**
+   * Creates reader instance.
+   * @param type - record type to decode
+   * @param fields - names of top-level fields to decode, or {@code null} to decode all of them
+   * @param mapKeys - map keys to decode, or {@code null} to decode all map entries
+   */
+  public ProjectingDatumReader(Class<T> type, Set<String> fields, Set<String> mapKeys) {
+    this(type, fields, mapKeys, null);
+  }
+
+  /**
+   * Creates reader instance that interns strings.
+   * @param type - record type to decode
+   * @param fields - names of top-level fields to decode, or {@code null} to decode all of them
+   * @param mapKeys - map keys to decode, or {@code null} to decode all map entries
+   * @param interner - tables of the interned top-level string fields and map keys, or {@code null}
+   */
+  public ProjectingDatumReader(Class<T> type, Set<String> fields, Set<String> mapKeys, StringInterner interner) {
+    super(type);
+    this.skippedFields = Collections.newSetFromMap(new IdentityHashMap<>());
+    if (fields != null) {
+      for (String name : fields) {
+        if (getSchema().getField(name) == null) {
+          throw new IllegalArgumentException(String.format("Unknown field [%s] in schema [%s]", name, getSchema().getFullName()));
+        }
+      }
+      for (Schema.Field field : getSchema().getFields()) {
+        if (!fields.contains(field.name()) && !isPrimitive(field.schema())) {
+          skippedFields.add(field);
+        }
+      }
+    }
+    if (mapKeys != null) {
+      this.mapKeys = new HashMap<>();
+      for (String key : mapKeys) {
+        this.mapKeys.put(new Utf8(key), key);
+      }
+    } else {
+      this.mapKeys = null;
+    }
+    this.internedFields = new IdentityHashMap<>();
+    if (interner != null) {
+      for (String name : interner.getFields()) {
+        Schema.Field field = getSchema().getField(name);
+        if (field == null || field.schema().getType() != Schema.Type.STRING) {
+          throw new IllegalArgumentException(String.format("Unknown string field [%s] in schema [%s]", name, getSchema().getFullName()));
+        }
+        internedFields.put(field, interner.getFieldTable(name));
+      }
+    }
+    this.internedMapKeys = interner != null ? interner.getMapKeys() : null;
+  }
+
+  @Override
+  protected void readField(Object r, Schema.Field f, Object oldDatum, ResolvingDecoder in, Object state)
+      throws IOException {
+    ValueKeys internedField;
+    if (skippedFields.contains(f)) {
+      skipValue(f.schema(), in);
+      getData().setField(r, f.name(), f.pos(), null);
+    } else if ((internedField = internedFields.get(f)) != null) {
+      getData().setField(r, f.name(), f.pos(), readInterned(internedField, in));
+    } else {
+      super.readField(r, f, oldDatum, in, state);
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  protected Object readMap(Object old, Schema expected, ResolvingDecoder in) throws IOException {
+    if (mapKeys == null) {
+      return super.readMap(old, expected, in);
+    }
+    Schema valueSchema = expected.getValueType();
+    Map<Object, Object> map = (Map<Object, Object>) newMap(old, 0);
+    Utf8 key = threadLocalKey.get();
+    for (long l = in.readMapStart(); l > 0; l = in.mapNext()) {
+      for (long i = 0; i < l; i++) {
+        key = in.readString(key);
+        String projectedKey = mapKeys.get(key);
+        if (projectedKey != null) {
+          map.put(projectedKey, read(null, valueSchema, in));
+        } else {
+          skipValue(valueSchema, in);
+        }
+      }
+    }
+    return map;
+  }
+
+  @Override
+  protected Object readMapKey(Object old, Schema expected, Decoder in) throws IOException {
+    return internedMapKeys != null ? readInterned(internedMapKeys, in) : super.readMapKey(old, expected, in);
+  }
+
+  private String readInterned(ValueKeys table, Decoder in) throws IOException {
+    Utf8 buffer = threadLocalKey.get();
+    buffer = in.readString(buffer);
+    return table.intern(buffer.getBytes(), 0, buffer.getByteLength());
+  }
+
+  // GenericDatumReader.skip passes over nulls without reading them, which leaves a resolving decoder expecting
+  // the null, e.g. after skipping a map value of the null branch.
+  private static void skipValue(Schema schema, ResolvingDecoder in) throws IOException {
+    switch (schema.getType()) {
+      case NULL:
+        in.readNull();
+        break;
+      case UNION:
+        skipValue(schema.getTypes().get(in.readIndex()), in);
+        break;
+      case RECORD:
+        for (Schema.Field field : in.readFieldOrder()) {
+          skipValue(field.schema(), in);
+        }
+        break;
+      case ARRAY:
+        for (long l = in.skipArray(); l > 0; l = in.skipArray()) {
+          for (long i = 0; i < l; i++) {
+            skipValue(schema.getElementType(), in);
+          }
+        }
+        break;
+      case MAP:
+        for (long l = in.skipMap(); l > 0; l = in.skipMap()) {
+          for (long i = 0; i < l; i++) {
+            in.skipString();
+            skipValue(schema.getValueType(), in);
+          }
+        }
+        break;
+      default:
+        skip(schema, in);
+    }
+  }
+
+  private static boolean isPrimitive(Schema schema) {
+    switch (schema.getType()) {
+      case BOOLEAN:
+      case INT:
+      case LONG:
+      case FLOAT:
+      case DOUBLE:
+        return true;
+      default:
+        return false;
+    }
+  }
+}
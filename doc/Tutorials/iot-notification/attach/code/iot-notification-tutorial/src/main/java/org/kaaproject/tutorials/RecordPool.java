@@ -0,0 +1,48 @@
+package org.kaaproject.tutorials;
+
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+/**
+ * Small per-thread pool of reusable decoded records.
+ * Instances are handed out by {@link #acquire()} and must be given back with {@link #release(Object)}
+ * on the same thread once nobody references them anymore.
+ */
+public class RecordPool<T> {
+  private final Supplier<T> factory;
+  private final int maxSizePerThread;
+  private final ThreadLocal<ArrayDeque<T>> threadLocalPool = ThreadLocal.withInitial(ArrayDeque::new);
+
+  /**
+   * Creates pool instance.
+   * @param factory - creates new record instances when the pool of the current thread is empty
+   * @param maxSizePerThread - maximum number of idle records kept per thread
+   */
+  public RecordPool(Supplier<T> factory, int maxSizePerThread) {
+    if (maxSizePerThread <= 0) {
+      throw new IllegalArgumentException("Pool size must be positive");
+    }
+    this.factory = factory;
+    this.maxSizePerThread = maxSizePerThread;
+  }
+
+  /**
+   * Takes an idle record from the pool of the current thread or creates a new one.
+   * @return record instance, possibly still holding data from its previous use
+   */
+  public T acquire() {
+    T record = threadLocalPool.get().pollLast();
+    return record != null ? record : factory.get();
+  }
+
+  /**
+   * Returns record into the pool of the current thread. Records exceeding the pool size are left to GC.
+   * @param record - record that is no longer referenced by its consumer
+   */
+  public void release(T record) {
+    ArrayDeque<T> pool = threadLocalPool.get();
+    if (record != null && pool.size() < maxSizePerThread) {
+      pool.addLast(record);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package org.kaaproject.tutorials;
+
+import java.time.Duration;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes tasks on a fixed number of single-threaded shards selected by a key hash.
+ * Tasks with the same key run on the same shard in submission order, while different keys run in parallel.
+ * Shard queues are bounded and submission blocks when a queue is full, which pushes back on the submitter.
+ */
+public class ShardedExecutor implements KeyedExecutor {
+  private static final Runnable STOP = () -> { };
+
+  private final Shard[] shards;
+  private final int queueCapacity;
+  private volatile boolean shutdown;
+
+  /**
+   * Creates executor instance and starts shard threads.
+   * @param name - prefix of shard thread names
+   * @param shardCount - number of shard threads
+   * @param queueCapacity - maximum number of tasks waiting per shard
+   */
+  public ShardedExecutor(String name, int shardCount, int queueCapacity) {
+    if (shardCount <= 0 || queueCapacity <= 0) {
+      throw new IllegalArgumentException("Shard count and queue capacity must be positive");
+    }
+    this.queueCapacity = queueCapacity;
+    this.shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new Shard(name + "-" + i, queueCapacity);
+    }
+  }
+
+  /**
+   * Queues task on the shard of the key, blocking while the shard queue is full.
+   * @param keyHash - well-mixed hash of the key that tasks are ordered by
+   */
+  @Override
+  public void execute(long keyHash, Runnable task) {
+    if (shutdown) {
+      throw new RejectedExecutionException("Sharded executor is shut down");
+    }
+    try {
+      shards[(int) Math.floorMod(keyHash, (long) shards.length)].queue.put(task);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while queueing task", ex);
+    }
+  }
+
+  public int getShardCount() {
+    return shards.length;
+  }
+
+  /**
+   * Returns fill ratio of the fullest shard queue, the one that blocks submission first.
+   */
+  @Override
+  public double getFillRatio() {
+    int count = 0;
+    for (Shard shard : shards) {
+      count = Math.max(count, shard.queue.size());
+    }
+    return (double) count / queueCapacity;
+  }
+
+  /**
+   * Returns number of tasks waiting in all shard queues.
+   */
+  @Override
+  public int getQueuedCount() {
+    int count = 0;
+    for (Shard shard : shards) {
+      count += shard.queue.size();
+    }
+    return count;
+  }
+
+  /**
+   * Stops accepting tasks and waits for the queued ones to complete.
+   * @param timeout - time given to queued tasks to complete
+   * @return {@code true} if all queued tasks completed within the timeout
+   */
+  @Override
+  public boolean shutdown(Duration timeout) {
+    shutdown = true;
+    long deadline = System.nanoTime() + timeout.toNanos();
+    try {
+      for (Shard shard : shards) {
+        // The stop marker goes after all queued tasks, so a shard finishes its queue before exiting.
+        if (!shard.queue.offer(STOP, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+          shard.thread.interrupt();
+        }
+      }
+      boolean drained = true;
+      for (Shard shard : shards) {
+        shard.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        if (shard.thread.isAlive()) {
+          shard.thread.interrupt();
+          drained = false;
+        }
+      }
+      return drained;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  private static class Shard {
+    private final BlockingQueue<Runnable> queue;
+    private final Thread thread;
+
+    private Shard(String name, int queueCapacity) {
+      this.queue = new ArrayBlockingQueue<>(queueCapacity);
+      this.thread = new Thread(this::run, name);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void run() {
+      while (true) {
+        Runnable task;
+        try {
+          task = queue.take();
+        } catch (InterruptedException ex) {
+          return;
+        }
+        if (task == STOP) {
+          return;
+        }
+        try {
+          task.run();
+        } catch (Exception ex) {
+          System.err.println(String.format("Exception occurred in sharded task: %s", ex));
+        }
+      }
+    }
+  }
+}
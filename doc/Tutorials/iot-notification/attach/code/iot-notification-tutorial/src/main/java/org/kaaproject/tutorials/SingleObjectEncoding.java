@@ -0,0 +1,37 @@
+package org.kaaproject.tutorials;
+
+/**
+ * Header of the <a href="https://avro.apache.org/docs/1.9.1/spec.html#single_object_encoding">single-object encoding</a>:
+ * two marker bytes followed by the little-endian CRC-64-AVRO fingerprint of the writer schema.
+ */
+final class SingleObjectEncoding {
+  static final int HEADER_LENGTH = 10;
+
+  private static final byte MARKER_0 = (byte) 0xC3;
+  private static final byte MARKER_1 = (byte) 0x01;
+
+  private SingleObjectEncoding() {
+  }
+
+  /**
+   * Returns whether the message starts with the header. Raw records cannot be mistaken for it:
+   * the marker would decode as a negative string length.
+   * @param offset - index of the first byte of the message
+   * @param length - number of bytes of the message
+   */
+  static boolean hasHeader(byte[] bytes, int offset, int length) {
+    return length >= HEADER_LENGTH && bytes[offset] == MARKER_0 && bytes[offset + 1] == MARKER_1;
+  }
+
+  /**
+   * Returns writer schema fingerprint of the message starting with the header.
+   * @param offset - index of the first byte of the message
+   */
+  static long readFingerprint(byte[] bytes, int offset) {
+    long fingerprint = 0;
+    for (int i = offset + HEADER_LENGTH - 1; i >= offset + 2; i--) {
+      fingerprint = (fingerprint << 8) | (bytes[i] & 0xFF);
+    }
+    return fingerprint;
+  }
+}
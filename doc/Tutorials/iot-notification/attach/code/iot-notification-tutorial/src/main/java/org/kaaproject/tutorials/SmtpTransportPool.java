@@ -0,0 +1,191 @@
+package org.kaaproject.tutorials;
+
+import com.sun.mail.smtp.SMTPTransport;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Provider;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of connected and authenticated SMTP transports.
+ * Opening a transport costs a TCP connect, STARTTLS handshake and authentication, so transports are kept
+ * open between messages. Transports idle for a while are checked with NOOP before reuse, and the ones
+ * idle for longer than the server would likely keep them are closed and replaced.
+ * SMTP transports are created tracking whether the content of the last message reached the server,
+ * see {@link #mayHaveSentContent(Transport)}.
+ */
+public class SmtpTransportPool implements AutoCloseable {
+  private final JavaMailSenderImpl mailSender;
+  private final int maxIdleTransports;
+  private final long validateAfterIdleMillis;
+  private final long maxIdleMillis;
+  private final Deque<IdleTransport> idleTransports = new ArrayDeque<>();
+  private boolean closed;
+
+  /**
+   * Creates pool instance.
+   * @param mailSender - source of the mail session and SMTP server settings
+   * @param maxIdleTransports - maximum number of open transports kept in the pool
+   * @param validateAfterIdleMillis - idle time after which a transport is checked with NOOP before reuse
+   * @param maxIdleMillis - idle time after which a transport is closed instead of reused
+   */
+  public SmtpTransportPool(JavaMailSenderImpl mailSender, int maxIdleTransports,
+                           long validateAfterIdleMillis, long maxIdleMillis) {
+    this.mailSender = mailSender;
+    this.maxIdleTransports = maxIdleTransports;
+    this.validateAfterIdleMillis = validateAfterIdleMillis;
+    this.maxIdleMillis = maxIdleMillis;
+  }
+
+  /**
+   * Takes an open transport from the pool, connecting a new one if there is no usable idle transport.
+   * The transport must be given back with {@link #release(Transport)} or {@link #discard(Transport)}.
+   */
+  public Transport borrow() throws MessagingException {
+    while (true) {
+      IdleTransport idle;
+      synchronized (idleTransports) {
+        if (closed) {
+          throw new MessagingException("SMTP transport pool is closed");
+        }
+        // The most recently used transport is the most likely to be still alive.
+        idle = idleTransports.pollLast();
+      }
+      if (idle == null) {
+        return connect();
+      }
+      long idleMillis = System.currentTimeMillis() - idle.releasedAt;
+      if (idleMillis > maxIdleMillis
+          || (idleMillis > validateAfterIdleMillis && !idle.transport.isConnected())) {
+        closeQuietly(idle.transport);
+        continue;
+      }
+      return idle.transport;
+    }
+  }
+
+  /**
+   * Returns healthy transport into the pool.
+   */
+  public void release(Transport transport) {
+    synchronized (idleTransports) {
+      if (!closed && idleTransports.size() < maxIdleTransports) {
+        idleTransports.addLast(new IdleTransport(transport, System.currentTimeMillis()));
+        return;
+      }
+    }
+    closeQuietly(transport);
+  }
+
+  /**
+   * Closes transport that failed and must not be reused.
+   */
+  public void discard(Transport transport) {
+    if (transport != null) {
+      closeQuietly(transport);
+    }
+  }
+
+  /**
+   * Closes all idle transports. Borrowed transports are closed when they are released.
+   */
+  @Override
+  public void close() {
+    synchronized (idleTransports) {
+      closed = true;
+      for (IdleTransport idle : idleTransports) {
+        closeQuietly(idle.transport);
+      }
+      idleTransports.clear();
+    }
+  }
+
+  /**
+   * Returns whether the transport might have passed the content of the last message to the server.
+   * A server that received the content might have accepted the message even if sending failed afterwards,
+   * e.g. on a timeout waiting for the final reply, so such a message must not be sent again.
+   * Transports not created by the pool are assumed to have sent it.
+   */
+  public static boolean mayHaveSentContent(Transport transport) {
+    return !(transport instanceof ContentTrackingTransport) || ((ContentTrackingTransport) transport).contentSent;
+  }
+
+  private Transport connect() throws MessagingException {
+    Session session = mailSender.getSession();
+    String protocol = mailSender.getProtocol();
+    if (protocol == null) {
+      protocol = session.getProperty("mail.transport.protocol");
+    }
+    if (protocol == null) {
+      protocol = "smtp";
+    }
+    Transport transport;
+    if (protocol.equals("smtp") || protocol.equals("smtps")) {
+      transport = session.getTransport(new Provider(Provider.Type.TRANSPORT, protocol,
+          ContentTrackingTransport.class.getName(), "", ""));
+    } else {
+      transport = session.getTransport(protocol);
+    }
+    transport.connect(mailSender.getHost(), mailSender.getPort(), mailSender.getUsername(), mailSender.getPassword());
+    return transport;
+  }
+
+  private static void closeQuietly(Transport transport) {
+    try {
+      transport.close();
+    } catch (MessagingException ex) {
+      System.err.println(String.format("Failed to close SMTP transport: %s", ex));
+    }
+  }
+
+  private static class IdleTransport {
+    private final Transport transport;
+    private final long releasedAt;
+
+    private IdleTransport(Transport transport, long releasedAt) {
+      this.transport = transport;
+      this.releasedAt = releasedAt;
+    }
+  }
+
+  /**
+   * SMTP transport recording whether the content of the message being sent was passed to the server.
+   * Instantiated by the mail session.
+   */
+  public static class ContentTrackingTransport extends SMTPTransport {
+    private volatile boolean contentSent;
+
+    public ContentTrackingTransport(Session session, URLName urlname) {
+      super(session, urlname, urlname.getProtocol(), urlname.getProtocol().equals("smtps"));
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+      contentSent = false;
+      super.sendMessage(message, addresses);
+    }
+
+    @Override
+    protected void finishData() throws IOException, MessagingException {
+      // The server delivers the message once it reads the terminating dot, even if its reply is lost.
+      contentSent = true;
+      super.finishData();
+    }
+
+    @Override
+    protected OutputStream bdat() throws MessagingException {
+      // The last chunk may be sent from within the writes to the stream.
+      contentSent = true;
+      return super.bdat();
+    }
+  }
+}
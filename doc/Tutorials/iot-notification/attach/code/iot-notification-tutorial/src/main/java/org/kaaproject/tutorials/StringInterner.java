@@ -0,0 +1,60 @@
+package org.kaaproject.tutorials;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded tables deduplicating low-cardinality strings while decoding, e.g. application version names and
+ * endpoint IDs that repeat in every message of a device. Strings are looked up straight from their UTF-8 bytes,
+ * so a known string costs a hash of the bytes instead of a new {@code String}, and all decoded events refer to
+ * the same instance. Each field and the map keys have a {@link ValueKeys} table of their own, so that a field of
+ * unexpectedly high cardinality only fills its own table; strings beyond the bound are decoded as new strings.
+ * Adding a string copies its table, so bounds should stay in the thousands or tens of thousands.
+ */
+public class StringInterner {
+  /**
+   * Low-cardinality string fields of the time series events.
+   */
+  public static final Set<String> TIME_SERIES_EVENT_FIELDS = Set.of("appVersionName", "endpointId", "timeSeriesName");
+
+  private final Map<String, ValueKeys> fieldTables;
+  private final ValueKeys mapKeys;
+
+  /**
+   * Creates interner instance.
+   * @param fields - names of top-level string fields to intern, e.g. {@link #TIME_SERIES_EVENT_FIELDS}
+   * @param maxStringsPerField - maximum number of distinct strings interned per field, e.g. the number of
+   *                           endpoints a service instance handles
+   * @param mapKeys - table interning map keys, e.g. one shared with a {@link PrimitiveEventDecoder},
+   *                or {@code null} to decode map keys as new strings
+   */
+  public StringInterner(Set<String> fields, int maxStringsPerField, ValueKeys mapKeys) {
+    Map<String, ValueKeys> fieldTables = new HashMap<>();
+    for (String field : fields) {
+      fieldTables.put(field, new ValueKeys(maxStringsPerField));
+    }
+    this.fieldTables = Collections.unmodifiableMap(fieldTables);
+    this.mapKeys = mapKeys;
+  }
+
+  /**
+   * Returns table of the field.
+   * @return table, or {@code null} if the field is not interned
+   */
+  public ValueKeys getFieldTable(String field) {
+    return fieldTables.get(field);
+  }
+
+  public Set<String> getFields() {
+    return fieldTables.keySet();
+  }
+
+  /**
+   * Returns table of the map keys, or {@code null} if map keys are not interned.
+   */
+  public ValueKeys getMapKeys() {
+    return mapKeys;
+  }
+}
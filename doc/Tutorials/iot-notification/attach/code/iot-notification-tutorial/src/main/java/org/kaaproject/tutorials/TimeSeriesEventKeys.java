@@ -0,0 +1,134 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.SchemaNormalization;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Extracts routing keys from raw Avro encoded {@link TimeSeriesEvent} messages without decoding them.
+ * The leading fields of the event are {@code correlationId}, {@code timestamp}, {@code timeout},
+ * {@code appVersionName} and {@code endpointId}, so the endpoint ID is found by skipping four varint
+ * encoded values and is hashed straight from its UTF-8 bytes, and the expiry is read from the second and third.
+ */
+public final class TimeSeriesEventKeys {
+  /**
+   * Returned when the key cannot be extracted, e.g. the message is written with a different schema.
+   */
+  public static final long UNKNOWN = 0;
+  /**
+   * Returned as the expiry of messages without timeout or whose expiry cannot be extracted.
+   */
+  public static final long NEVER = Long.MAX_VALUE;
+
+  private static final long SCHEMA_FINGERPRINT = SchemaNormalization.parsingFingerprint64(TimeSeriesEvent.getClassSchema());
+
+  private TimeSeriesEventKeys() {
+  }
+
+  /**
+   * Hashes endpoint ID of the raw message.
+   * @return hash equal to {@link #endpointIdHash(String)} of the endpoint ID, or {@link #UNKNOWN}
+   */
+  public static long endpointIdHash(byte[] data) {
+    int position = bodyStart(data);
+    // correlationId, timestamp, timeout and appVersionName
+    position = skipString(data, position);
+    position = skipVarLong(data, position);
+    position = skipVarLong(data, position);
+    position = skipString(data, position);
+    long lengthAndPosition = readLength(data, position);
+    if (lengthAndPosition < 0) {
+      return UNKNOWN;
+    }
+    int start = (int) lengthAndPosition;
+    return hash(data, start, start + (int) (lengthAndPosition >>> 32));
+  }
+
+  /**
+   * Reads time at which the raw message expires, its {@code timestamp} plus {@code timeout}.
+   * @return UNIX time in milliseconds, or {@link #NEVER}
+   */
+  public static long expiresAt(byte[] data) {
+    // correlationId
+    int position = skipString(data, bodyStart(data));
+    int timeoutPosition = skipVarLong(data, position);
+    int end = skipVarLong(data, timeoutPosition);
+    if (end < 0) {
+      return NEVER;
+    }
+    long timeout = readVarLong(data, timeoutPosition, end);
+    return timeout > 0 ? readVarLong(data, position, timeoutPosition) + timeout : NEVER;
+  }
+
+  /**
+   * Hashes endpoint ID the same way {@link #endpointIdHash(byte[])} does.
+   */
+  public static long endpointIdHash(String endpointId) {
+    byte[] bytes = endpointId.getBytes(StandardCharsets.UTF_8);
+    return hash(bytes, 0, bytes.length);
+  }
+
+  // 64-bit FNV-1a followed by the MurmurHash3 finalizer to spread the bits.
+  private static long hash(byte[] data, int from, int to) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = from; i < to; i++) {
+      hash ^= data[i] & 0xFF;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash == UNKNOWN ? 1 : hash;
+  }
+
+  // The helpers below return -1 for truncated or malformed input and pass -1 through.
+
+  private static int bodyStart(byte[] data) {
+    if (SingleObjectEncoding.hasHeader(data, 0, data.length)) {
+      return SingleObjectEncoding.readFingerprint(data, 0) == SCHEMA_FINGERPRINT ? SingleObjectEncoding.HEADER_LENGTH : -1;
+    }
+    return 0;
+  }
+
+  private static int skipString(byte[] data, int position) {
+    long lengthAndPosition = readLength(data, position);
+    return lengthAndPosition < 0 ? -1 : (int) lengthAndPosition + (int) (lengthAndPosition >>> 32);
+  }
+
+  // Reads zig-zag encoded length, returning it in the high half and the position after it in the low half.
+  private static long readLength(byte[] data, int position) {
+    int end = skipVarLong(data, position);
+    if (end < 0 || end - position > 5) {
+      return -1;
+    }
+    long length = readVarLong(data, position, end);
+    if (length < 0 || end + length > data.length) {
+      return -1;
+    }
+    return (length << 32) | end;
+  }
+
+  // Reads zig-zag encoded long between the positions returned by skipVarLong.
+  private static long readVarLong(byte[] data, int position, int end) {
+    long value = 0;
+    for (int i = end - 1; i >= position; i--) {
+      value = (value << 7) | (data[i] & 0x7F);
+    }
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int skipVarLong(byte[] data, int position) {
+    if (position < 0) {
+      return -1;
+    }
+    for (int i = position; i < data.length && i - position < 10; i++) {
+      if ((data[i] & 0x80) == 0) {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,189 @@
+package org.kaaproject.tutorials;
+
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Time series events of a {@link TimeSeriesEventService} as a {@link Flow.Publisher}, e.g. to be composed with
+ * {@link FlowOperators}. The JDK Flow interfaces mirror <a href="https://www.reactive-streams.org/">Reactive
+ * Streams</a> ones, so the publisher can be adapted to other reactive libraries with their Flow adapters.
+ * The publisher has a single subscriber, which starts the service. Events are emitted on the thread handling
+ * them, the NATS dispatcher or a shard thread, once the subscriber has requested them. Without demand,
+ * the handling thread waits, so messages pile up in the bounded NATS pending buffer, where they count towards
+ * the load pressure of the {@link LoadShedder} and are eventually dropped by NATS as for a slow consumer.
+ * Events of a service reusing events are copied, so that subscribers can keep them after {@code onNext} returns.
+ * The subscriber is completed when the service shuts down. Cancelling the subscription shuts the service down.
+ */
+public class TimeSeriesEventPublisher implements Flow.Publisher<TimeSeriesEvent> {
+  private final TimeSeriesEventService service;
+  private final Duration drainTimeout;
+  // Emitting threads take turns, as signals to the subscriber must not overlap.
+  private final ReentrantLock emitLock = new ReentrantLock();
+  private final ReentrantLock demandLock = new ReentrantLock();
+  private final Condition demandAvailable = demandLock.newCondition();
+  private final LongAdder droppedCount = new LongAdder();
+  private Flow.Subscriber<? super TimeSeriesEvent> subscriber;
+  private long demand;
+  private boolean cancelled;
+  private boolean completed;
+
+  /**
+   * Creates publisher of the events of the service, which must not be started yet.
+   * @param service - service to start on subscription
+   * @param drainTimeout - time given to in-flight events on shutdown of the service after cancellation
+   */
+  public TimeSeriesEventPublisher(TimeSeriesEventService service, Duration drainTimeout) {
+    this.service = service;
+    this.drainTimeout = drainTimeout;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super TimeSeriesEvent> subscriber) {
+    Objects.requireNonNull(subscriber, "Subscriber must not be null");
+    demandLock.lock();
+    try {
+      if (this.subscriber != null) {
+        subscriber.onSubscribe(FlowOperators.NO_SUBSCRIPTION);
+        subscriber.onError(new IllegalStateException("Time series event publisher only supports one subscriber"));
+        return;
+      }
+      this.subscriber = subscriber;
+    } finally {
+      demandLock.unlock();
+    }
+    subscriber.onSubscribe(new EventSubscription());
+    try {
+      service.addShutdownTask(this::complete);
+      service.start(this::emit);
+    } catch (RuntimeException ex) {
+      terminate(ex);
+    }
+  }
+
+  /**
+   * Returns number of events dropped as they were handled after cancellation or completion.
+   */
+  public long getDroppedCount() {
+    return droppedCount.sum();
+  }
+
+  private void emit(TimeSeriesEvent event) {
+    emitLock.lock();
+    try {
+      demandLock.lock();
+      try {
+        while (demand == 0 && !cancelled && !completed) {
+          demandAvailable.await();
+        }
+        if (cancelled || completed) {
+          droppedCount.increment();
+          return;
+        }
+        if (demand != Long.MAX_VALUE) {
+          demand--;
+        }
+      } finally {
+        demandLock.unlock();
+      }
+      subscriber.onNext(service.isReusingEvents() ? TimeSeriesEvent.newBuilder(event).build() : event);
+    } catch (InterruptedException ex) {
+      // The service gave up waiting for in-flight events on shutdown.
+      Thread.currentThread().interrupt();
+      droppedCount.increment();
+    } finally {
+      emitLock.unlock();
+    }
+  }
+
+  private void complete() {
+    terminate(null);
+  }
+
+  private void terminate(Throwable error) {
+    demandLock.lock();
+    try {
+      if (cancelled || completed) {
+        return;
+      }
+      completed = true;
+      demandAvailable.signalAll();
+    } finally {
+      demandLock.unlock();
+    }
+    // Threads waiting for demand drop their events and give the lock up.
+    emitLock.lock();
+    try {
+      if (error != null) {
+        subscriber.onError(error);
+      } else {
+        subscriber.onComplete();
+      }
+    } finally {
+      emitLock.unlock();
+    }
+  }
+
+  private class EventSubscription implements Flow.Subscription {
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        if (!cancelIfActive()) {
+          // Already completed or cancelled, no more signals are due.
+          return;
+        }
+        // Signalled from a separate thread, as the emitting threads might be waiting for this very request.
+        Thread thread = new Thread(() -> {
+          emitLock.lock();
+          try {
+            subscriber.onError(new IllegalArgumentException("Requested number of events must be positive"));
+          } finally {
+            emitLock.unlock();
+          }
+        }, "time-series-event-publisher-error");
+        thread.setDaemon(true);
+        thread.start();
+        return;
+      }
+      demandLock.lock();
+      try {
+        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+        demandAvailable.signalAll();
+      } finally {
+        demandLock.unlock();
+      }
+    }
+
+    @Override
+    public void cancel() {
+      cancelIfActive();
+    }
+
+    /**
+     * Cancels the subscription and shuts the service down.
+     * @return {@code true} if the subscription was active, {@code false} if already completed or cancelled
+     */
+    private boolean cancelIfActive() {
+      demandLock.lock();
+      try {
+        if (cancelled || completed) {
+          return false;
+        }
+        cancelled = true;
+        demandAvailable.signalAll();
+      } finally {
+        demandLock.unlock();
+      }
+      // Shutdown drains in-flight events, so it must not run on a thread handling them.
+      Thread thread = new Thread(() -> service.shutdown(drainTimeout), "time-series-event-publisher-cancel");
+      thread.setDaemon(true);
+      thread.start();
+      return true;
+    }
+  }
+}
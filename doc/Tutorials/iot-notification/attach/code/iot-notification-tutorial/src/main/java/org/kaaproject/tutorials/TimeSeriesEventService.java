@@ -2,48 +2,842 @@ package org.kaaproject.tutorials;
 
 import io.nats.client.Connection;
 import io.nats.client.Dispatcher;
+import io.nats.client.ErrorListener;
 import io.nats.client.Message;
 import io.nats.client.Nats;
+import io.nats.client.Options;
+import io.nats.client.Statistics;
+import org.apache.avro.util.Utf8;
 
 import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 public class TimeSeriesEventService {
 
-  // Inbound message <a href="https://en.wikipedia.org/wiki/Apache_Avro">Avro</a> converter.
-  private static final AvroConverter<TimeSeriesEvent> AVRO_CONVERTER = new AvroConverter<>(TimeSeriesEvent.class);
-
   private static final String NATS_URL = "nats://localhost:4222";
 
   // Time series and <a href="https://docs.kaaiot.io/EPTS/docs/current/Overview/">EPTS</a> information.
   private static final String TIME_SERIES_NAME = "notification";
   private static final String EPTS_SERVICE_INSTANCE_NAME = "epts";
-  private static final String TSTP_SUBSCRIBE_SUBJECT = String
-      .format("kaa.v1.events.%s.endpoint.data-collection.data-points-received.%s", EPTS_SERVICE_INSTANCE_NAME, TIME_SERIES_NAME);
+  private static final String TSTP_SUBJECT_PREFIX = "kaa.v1.events.";
+  private static final String TSTP_SUBJECT_INFIX = ".endpoint.data-collection.data-points-received.";
+
+  // Maximum number of distinct subjects whose routes are cached.
+  private static final int MAX_CACHED_ROUTES = 10_000;
+  private static final Consumer<TimeSeriesEvent> NO_HANDLER = event -> { };
+
+  // Number of idle decoded events kept for reuse per dispatcher thread.
+  private static final int EVENT_POOL_SIZE = 4;
+
+  // Sequence of events that are not spooled.
+  private static final long NO_SEQUENCE = -1;
+  private static final Runnable NO_ACKNOWLEDGEMENT = () -> { };
+
+  // Receipt time of events whose stage latencies are not measured.
+  private static final long NOT_MEASURED = 0;
+  private static final long NANOS_PER_MILLI = 1_000_000;
+
+  // Messages logged per event are written at up to this rate, off the event handling threads.
+  private static final EventLog.Level DEFAULT_EVENT_LOG_LEVEL = EventLog.Level.DEBUG;
+  private static final int DEFAULT_EVENT_LOG_RATE = 100;
+  private static final int DEFAULT_EVENT_LOG_CAPACITY = 1024;
+
+  // Messages between samples of the load pressure, as reading queue sizes takes their locks.
+  private static final int PRESSURE_SAMPLE_INTERVAL = 16;
+  private static final int PERCENT = 100;
+
+  // Time given to in-flight events to be processed when the JVM shuts down.
+  private static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(30);
 
   private final Connection natsConnection;
+  // Inbound message <a href="https://en.wikipedia.org/wiki/Apache_Avro">Avro</a> converter.
+  private final AvroConverter<TimeSeriesEvent> avroConverter;
+  private final RecordPool<TimeSeriesEvent> eventPool;
+  private final List<Runnable> shutdownTasks = new CopyOnWriteArrayList<>();
+  private final List<SubjectSubscription> subscriptions = new ArrayList<>();
+  private final Map<String, Consumer<TimeSeriesEvent>> handlers = new HashMap<>();
+  // Handlers resolved by message subject, so that subjects are parsed once rather than per message.
+  private final ConcurrentHashMap<String, Consumer<TimeSeriesEvent>> routes = new ConcurrentHashMap<>();
+  private final AtomicBoolean shutdownStarted = new AtomicBoolean();
+  private final CountDownLatch terminated = new CountDownLatch(1);
+  // Spool sequence of the event whose callback runs on the current thread.
+  private final ThreadLocal<long[]> currentSequence = ThreadLocal.withInitial(() -> new long[] {NO_SEQUENCE});
+  // Event each thread decodes into when events are batched into columns.
+  private final ThreadLocal<PrimitiveTimeSeriesEvent> primitiveEvent =
+      ThreadLocal.withInitial(PrimitiveTimeSeriesEvent::new);
+  private volatile Dispatcher dispatcher;
+  private volatile CorrelationIdDeduplicator deduplicator;
+  private volatile KeyedExecutor keyedExecutor;
+  private volatile EventSpool spool;
+  private volatile StageMetrics stageMetrics;
+  private volatile EventLog eventLog;
+  private volatile LoadShedder loadShedder;
+  private volatile ColumnarBatcher columnarBatcher;
+  private long pendingMessageLimit = io.nats.client.Consumer.DEFAULT_MAX_MESSAGES;
+  private long pendingByteLimit = io.nats.client.Consumer.DEFAULT_MAX_BYTES;
+  // Load pressure and messages left until it is sampled again, only used by the NATS dispatcher thread.
+  private double pressure;
+  private int messagesUntilPressureSample;
+  // Events left until the next one whose stage latencies are measured, only used by the NATS dispatcher thread.
+  private int eventsUntilMeasured;
+  private volatile boolean drainedInTime = true;
 
   public TimeSeriesEventService() throws Exception {
-    this.natsConnection = Nats.connect(NATS_URL);
+    this(false);
   }
 
+  /**
+   * Creates service instance and connects to NATS.
+   * @param reuseEvents - when {@code true}, events are decoded into pooled instances that are recycled
+   *                    right after the callback returns, see {@link #onTimeSeriesEvent(Consumer)}
+   */
+  public TimeSeriesEventService(boolean reuseEvents) throws Exception {
+    this(new AvroConverter<>(TimeSeriesEvent.class), reuseEvents);
+  }
+
+  /**
+   * Creates service instance with a custom converter, e.g. one decoding only a projection of the event.
+   * @param avroConverter - converter for inbound messages
+   * @param reuseEvents - whether to decode events into pooled instances
+   */
+  public TimeSeriesEventService(AvroConverter<TimeSeriesEvent> avroConverter, boolean reuseEvents) throws Exception {
+    this(new ConnectionErrorListener(), avroConverter, reuseEvents);
+  }
+
+  private TimeSeriesEventService(ConnectionErrorListener errorListener, AvroConverter<TimeSeriesEvent> avroConverter,
+                                 boolean reuseEvents) throws Exception {
+    this(Nats.connect(new Options.Builder().server(NATS_URL).errorListener(errorListener).build()),
+        avroConverter, reuseEvents);
+    errorListener.service = this;
+  }
+
+  // Visible for benchmarks, which feed messages directly into the handler.
+  TimeSeriesEventService(Connection natsConnection, AvroConverter<TimeSeriesEvent> avroConverter, boolean reuseEvents) {
+    this.natsConnection = natsConnection;
+    this.avroConverter = avroConverter;
+    this.eventPool = reuseEvents ? new RecordPool<>(TimeSeriesEvent::new, EVENT_POOL_SIZE) : null;
+    this.eventLog = new EventLog(DEFAULT_EVENT_LOG_LEVEL, DEFAULT_EVENT_LOG_RATE, DEFAULT_EVENT_LOG_CAPACITY);
+  }
+
+  /**
+   * Subscribes callback to the time series events and blocks until the service is shut down.
+   * The service is shut down with a graceful drain when the JVM exits.
+   * @see #start(Consumer)
+   */
   public void onTimeSeriesEvent(Consumer<TimeSeriesEvent> onTimeSeriesEventCallback) {
-    Dispatcher dispatcher = natsConnection.createDispatcher((msg) -> handleNatsMessage(msg, onTimeSeriesEventCallback));
-    dispatcher.subscribe(TSTP_SUBSCRIBE_SUBJECT);
-    System.out.println(String.format("Subscribed to the time series [%s] events", TIME_SERIES_NAME));
-    while (true) {
-      // loop forever
+    start(onTimeSeriesEventCallback);
+    registerShutdownHook(DEFAULT_DRAIN_TIMEOUT);
+    try {
+      awaitShutdown();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Builds subject of the time series events.
+   * @param eptsServiceInstanceName - EPTS service instance name, or {@code *} for any instance
+   * @param timeSeriesName - time series name, or {@code *} for any time series
+   */
+  public static String subject(String eptsServiceInstanceName, String timeSeriesName) {
+    return TSTP_SUBJECT_PREFIX + eptsServiceInstanceName + TSTP_SUBJECT_INFIX + timeSeriesName;
+  }
+
+  /**
+   * Adds NATS subscription made on start. Without any, the service subscribes to the tutorial time series.
+   * @param subject - subject to subscribe to, may contain wildcards,
+   *                e.g. {@code kaa.v1.events.*.endpoint.data-collection.data-points-received.>}
+   * @param queueGroup - queue group shared by service replicas so that each event is handled by one of them,
+   *                   or {@code null} to receive all events
+   */
+  public synchronized void addSubscription(String subject, String queueGroup) {
+    checkNotStarted();
+    subscriptions.add(new SubjectSubscription(subject, queueGroup));
+  }
+
+  /**
+   * Routes events of the time series, as named in the message subject, to a dedicated callback
+   * instead of the one passed to {@link #start(Consumer)}.
+   */
+  public synchronized void addHandler(String timeSeriesName, Consumer<TimeSeriesEvent> callback) {
+    checkNotStarted();
+    handlers.put(timeSeriesName, callback);
+  }
+
+  /**
+   * Subscribes callback to the time series events and returns immediately.
+   * When the service is created with event reuse enabled, the event passed to the callback, its data points
+   * and value maps are only valid until the callback returns. Callbacks that need the event afterwards
+   * (e.g. hand it over to another thread) must copy it with {@code TimeSeriesEvent.newBuilder(event).build()}.
+   * To consume events as a {@link java.util.concurrent.Flow.Publisher}, subscribe to a
+   * {@link TimeSeriesEventPublisher} instead, which starts the service. To consume data points in columnar
+   * batches, start the service with {@link #startColumnar(ColumnarBatcher)} instead.
+   * @param onTimeSeriesEventCallback - callback for time series without a dedicated handler, may be {@code null}
+   */
+  public synchronized void start(Consumer<TimeSeriesEvent> onTimeSeriesEventCallback) {
+    checkNotStarted();
+    if (subscriptions.isEmpty()) {
+      subscriptions.add(new SubjectSubscription(subject(EPTS_SERVICE_INSTANCE_NAME, TIME_SERIES_NAME), null));
+    }
+    if (spool != null) {
+      replaySpool(onTimeSeriesEventCallback);
+    }
+    dispatcher = natsConnection.createDispatcher((msg) -> handleNatsMessage(msg, onTimeSeriesEventCallback));
+    dispatcher.setPendingLimits(pendingMessageLimit, pendingByteLimit);
+    for (SubjectSubscription subscription : subscriptions) {
+      if (subscription.queueGroup != null) {
+        dispatcher.subscribe(subscription.subject, subscription.queueGroup);
+      } else {
+        dispatcher.subscribe(subscription.subject);
+      }
+      System.out.println(String.format("Subscribed to the time series events on [%s], queue group [%s]",
+          subscription.subject, subscription.queueGroup));
+    }
+  }
+
+  /**
+   * Subscribes to the time series events like {@link #start(Consumer)}, but decodes them with the decoder of
+   * the batcher and hands their data points to it, to be consumed as columnar batches rather than one event
+   * at a time. A spooled event is acknowledged once the batch holding it is consumed. Duplicates are dropped
+   * as configured, while dedicated handlers do not apply. The batcher is closed on shutdown, flushing
+   * the batch being filled before shutdown tasks run.
+   * @param batcher - batcher of the decoded events
+   */
+  public synchronized void startColumnar(ColumnarBatcher batcher) {
+    checkNotStarted();
+    if (!handlers.isEmpty()) {
+      throw new IllegalStateException("Dedicated handlers are not supported with columnar batches");
+    }
+    columnarBatcher = batcher;
+    start(null);
+  }
+
+  /**
+   * Returns whether events passed to callbacks are pooled instances, only valid until the callback returns.
+   */
+  public boolean isReusingEvents() {
+    return eventPool != null;
+  }
+
+  private void checkNotStarted() {
+    if (dispatcher != null || shutdownStarted.get()) {
+      throw new IllegalStateException("Time series event service can only be configured and started once");
+    }
+  }
+
+  /**
+   * Enables dropping of events whose correlation ID was already seen, e.g. NATS redeliveries and EPTS retries.
+   * Duplicates are dropped before the callback is invoked. Events without decoded correlation ID are passed through.
+   * @param deduplicator - set of recently seen correlation IDs, or {@code null} to disable deduplication
+   */
+  public void setDeduplicator(CorrelationIdDeduplicator deduplicator) {
+    this.deduplicator = deduplicator;
+  }
+
+  /**
+   * Limits messages received from NATS and waiting for the dispatcher thread, which bounds memory taken
+   * by a burst. Beyond a limit NATS drops messages and reports the service as a slow consumer.
+   * Without limits set, the NATS client defaults apply.
+   * @param maxMessages - maximum number of pending messages, 0 for no limit
+   * @param maxBytes - maximum size of pending messages in bytes, 0 for no limit
+   */
+  public synchronized void setPendingLimits(long maxMessages, long maxBytes) {
+    checkNotStarted();
+    this.pendingMessageLimit = maxMessages;
+    this.pendingByteLimit = maxBytes;
+  }
+
+  /**
+   * Enables dropping of received events under load, before they are spooled. The load pressure is the fill ratio
+   * of the fullest of NATS pending messages and bytes, the spool and the shard or lane queues, sampled every
+   * {@value #PRESSURE_SAMPLE_INTERVAL} messages. Slow consumer reports of NATS are passed to the policy.
+   * @param loadShedder - policy of dropping events, or {@code null} to handle all received events
+   */
+  public synchronized void setLoadShedder(LoadShedder loadShedder) {
+    checkNotStarted();
+    this.loadShedder = loadShedder;
+  }
+
+  /**
+   * Moves decoding and callback invocation from the NATS dispatcher thread onto shard threads selected
+   * by endpoint ID. Events of the same endpoint are handled in order, events of different endpoints in parallel,
+   * so callbacks must be thread-safe. The dispatcher thread only extracts the endpoint ID from the raw message.
+   * @param shardCount - number of shard threads, e.g. the number of available cores
+   * @param queueCapacity - maximum number of messages waiting per shard, the dispatcher blocks when exceeded
+   */
+  public synchronized void setShards(int shardCount, int queueCapacity) {
+    checkNotStarted();
+    setKeyedExecutor(new ShardedExecutor("time-series-event-shard", shardCount, queueCapacity));
+  }
+
+  /**
+   * Moves decoding and callback invocation from the NATS dispatcher thread into lanes selected by endpoint ID,
+   * each running on a virtual thread while it has events. Events of the same endpoint are handled in order,
+   * events of different endpoints in parallel, so callbacks must be thread-safe. Unlike shards, a callback
+   * blocked on I/O, e.g. a synchronous email send, only holds up the endpoints of its lane, so this mode suits
+   * blocking callbacks. Where virtual threads are not supported, lanes run on a pool of platform threads.
+   * @param laneCount - number of lanes, e.g. thousands
+   * @param maxQueued - maximum number of messages waiting in all lanes, the dispatcher blocks when exceeded
+   * @param fallbackThreads - number of platform threads running lanes where virtual threads are not supported
+   */
+  public synchronized void setEndpointLanes(int laneCount, int maxQueued, int fallbackThreads) {
+    checkNotStarted();
+    setKeyedExecutor(new LaneExecutor("time-series-event-lane", laneCount, maxQueued, fallbackThreads));
+  }
+
+  private void setKeyedExecutor(KeyedExecutor keyedExecutor) {
+    if (this.keyedExecutor != null) {
+      this.keyedExecutor.shutdown(Duration.ZERO);
+    }
+    this.keyedExecutor = keyedExecutor;
+  }
+
+  /**
+   * Enables spooling of received messages to local disk before they are processed. Messages left unprocessed
+   * by the previous run are replayed on start, before subscribing. A message is acknowledged in the spool when
+   * the callback returns, unless the callback takes over with {@link #deferAcknowledgement()}.
+   * The spool is closed on shutdown after shutdown tasks, so acknowledgements made by them are checkpointed.
+   */
+  public synchronized void setSpool(EventSpool spool) {
+    checkNotStarted();
+    this.spool = spool;
+  }
+
+  /**
+   * Replaces log of per-event messages: received events at debug level and failures to handle them.
+   * By default, debug messages are written at up to {@value #DEFAULT_EVENT_LOG_RATE} messages per second.
+   * The log is closed on shutdown.
+   */
+  public synchronized void setEventLog(EventLog eventLog) {
+    checkNotStarted();
+    this.eventLog.close();
+    this.eventLog = eventLog;
+  }
+
+  /**
+   * Enables measurement of the pipeline stages: spooling, waiting for a shard, decoding and the callback,
+   * as well as the lag of events behind their creation time. Events are counted one by one, while stage
+   * latencies are measured on a sample of events to keep clock reads off the path of most events.
+   * Queue depths and NATS connection statistics are registered as gauges sampled when metrics are read.
+   * @param metrics - registry to add the service metrics to
+   * @param sampleInterval - stage latencies are measured for every {@code sampleInterval}-th received event,
+   *                       1 to measure all of them
+   */
+  public synchronized void setMetrics(PipelineMetrics metrics, int sampleInterval) {
+    checkNotStarted();
+    if (sampleInterval <= 0) {
+      throw new IllegalArgumentException("Sample interval must be positive");
+    }
+    StageMetrics stageMetrics = new StageMetrics(metrics, sampleInterval);
+    metrics.gauge("tstp_shard_queue_depth", "Time series events waiting for a shard or lane thread",
+        () -> keyedExecutor != null ? keyedExecutor.getQueuedCount() : 0);
+    metrics.gauge("tstp_spool_unacknowledged", "Spooled time series events not processed yet",
+        () -> spool != null ? spool.getUnacknowledgedCount() : 0);
+    metrics.counter("tstp_events_duplicate_total", "Time series events dropped as duplicates",
+        () -> deduplicator != null ? deduplicator.getDuplicateCount() : 0);
+    metrics.gauge("nats_dispatcher_pending_messages", "Messages received from NATS and waiting for the dispatcher",
+        () -> dispatcher != null ? dispatcher.getPendingMessageCount() : 0);
+    metrics.gauge("tstp_load_pressure_percent", "Fill ratio of the fullest queue between NATS and the callbacks",
+        () -> (long) (measurePressure() * PERCENT));
+    metrics.counter("tstp_events_shed_expired_total", "Expired time series events dropped under load",
+        () -> loadShedder != null ? loadShedder.getExpiredCount() : 0);
+    metrics.counter("tstp_events_shed_low_priority_total", "Low priority time series events dropped under load",
+        () -> loadShedder != null ? loadShedder.getLowPriorityCount() : 0);
+    metrics.counter("tstp_events_shed_normal_priority_total", "Normal priority time series events dropped under load",
+        () -> loadShedder != null ? loadShedder.getNormalPriorityCount() : 0);
+    metrics.counter("nats_slow_consumer_total", "Slow consumer reports of NATS",
+        () -> loadShedder != null ? loadShedder.getSlowConsumerCount() : 0);
+    if (natsConnection != null) {
+      Statistics statistics = natsConnection.getStatistics();
+      metrics.counter("nats_in_messages_total", "Messages received from NATS", statistics::getInMsgs);
+      metrics.counter("nats_in_bytes_total", "Bytes received from NATS", statistics::getInBytes);
+      metrics.counter("nats_out_messages_total", "Messages sent to NATS", statistics::getOutMsgs);
+      metrics.counter("nats_out_bytes_total", "Bytes sent to NATS", statistics::getOutBytes);
+      metrics.counter("nats_reconnects_total", "Reconnects to NATS", statistics::getReconnects);
+      metrics.counter("nats_dropped_messages_total", "Messages dropped by NATS client, e.g. as a slow consumer",
+          statistics::getDroppedCount);
+    }
+    this.stageMetrics = stageMetrics;
+  }
+
+  /**
+   * Defers spool acknowledgement of the event whose callback is running on the current thread, e.g. until
+   * a notification built from it is sent. Must be called from within the callback.
+   * @return acknowledgement to run once the event is processed, it does nothing if the event is not spooled
+   */
+  public Runnable deferAcknowledgement() {
+    long[] sequence = currentSequence.get();
+    EventSpool spool = this.spool;
+    if (spool == null || sequence[0] == NO_SEQUENCE) {
+      return NO_ACKNOWLEDGEMENT;
+    }
+    long deferred = sequence[0];
+    sequence[0] = NO_SEQUENCE;
+    return () -> spool.acknowledge(deferred);
+  }
+
+  /**
+   * Registers task to run on shutdown after in-flight events are drained and before NATS connection is closed,
+   * e.g. flushing of pending notifications. Tasks run in registration order.
+   */
+  public void addShutdownTask(Runnable task) {
+    shutdownTasks.add(task);
+  }
+
+  /**
+   * Shuts the service down when the JVM exits.
+   * @param drainTimeout - time given to in-flight events to be processed
+   */
+  public void registerShutdownHook(Duration drainTimeout) {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(drainTimeout), "time-series-event-service-shutdown"));
+  }
+
+  /**
+   * Blocks until the service is shut down.
+   */
+  public void awaitShutdown() throws InterruptedException {
+    terminated.await();
+  }
+
+  /**
+   * Gracefully shuts the service down: unsubscribes the dispatcher and waits for in-flight callbacks,
+   * runs shutdown tasks and closes NATS connection. Concurrent calls wait for the first one to complete.
+   * @param drainTimeout - time given to in-flight events to be processed
+   * @return {@code true} if all in-flight events were processed within the timeout
+   */
+  public boolean shutdown(Duration drainTimeout) {
+    if (!shutdownStarted.compareAndSet(false, true)) {
+      try {
+        awaitShutdown();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      return drainedInTime;
+    }
+    System.out.println("Shutting down time series event service...");
+    try {
+      long deadline = System.nanoTime() + drainTimeout.toNanos();
+      drainedInTime = drainDispatcher(drainTimeout);
+      if (keyedExecutor != null) {
+        Duration remaining = Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+        drainedInTime &= keyedExecutor.shutdown(remaining);
+      }
+      if (columnarBatcher != null) {
+        columnarBatcher.close();
+      }
+      for (Runnable task : shutdownTasks) {
+        try {
+          task.run();
+        } catch (Exception ex) {
+          System.err.println(String.format("Exception occurred during shutdown task: %s", ex));
+        }
+      }
+      closeSpool();
+      if (natsConnection != null) {
+        natsConnection.close();
+      }
+    } catch (InterruptedException ex) {
+      drainedInTime = false;
+      Thread.currentThread().interrupt();
+    } finally {
+      eventLog.close();
+      terminated.countDown();
+    }
+    System.out.println(String.format("Time series event service is shut down, drained in time: %s", drainedInTime));
+    return drainedInTime;
+  }
+
+  private boolean drainDispatcher(Duration drainTimeout) throws InterruptedException {
+    Dispatcher dispatcher = this.dispatcher;
+    if (dispatcher == null) {
+      return true;
+    }
+    try {
+      return dispatcher.drain(drainTimeout).get(drainTimeout.toMillis(), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException ex) {
+      return false;
+    } catch (ExecutionException ex) {
+      System.err.println(String.format("Exception occurred during draining time series events: %s", ex));
+      return false;
     }
   }
 
-  private void handleNatsMessage(Message msg, Consumer<TimeSeriesEvent> onTimeSeriesEventCallback) {
+  void handleNatsMessage(Message msg, Consumer<TimeSeriesEvent> onTimeSeriesEventCallback) {
+    String subject = msg.getSubject();
+    byte[] data = msg.getData();
+    StageMetrics stageMetrics = this.stageMetrics;
+    if (stageMetrics != null) {
+      stageMetrics.received.increment();
+    }
+    LoadShedder loadShedder = this.loadShedder;
+    if (loadShedder != null && loadShedder.shed(samplePressure(), subject, data)) {
+      return;
+    }
+    long receivedAt = NOT_MEASURED;
+    if (stageMetrics != null && --eventsUntilMeasured <= 0) {
+      eventsUntilMeasured = stageMetrics.sampleInterval;
+      receivedAt = System.nanoTime();
+    }
+    long sequence = NO_SEQUENCE;
+    EventSpool spool = this.spool;
+    if (spool != null) {
+      try {
+        sequence = spool.append(subject, data);
+      } catch (IOException | InterruptedException ex) {
+        if (ex instanceof InterruptedException) {
+          Thread.currentThread().interrupt();
+        }
+        // The event is still processed, it is just not recoverable.
+        eventLog.error("Failed to spool time series event: %s", ex);
+      }
+      if (receivedAt != NOT_MEASURED) {
+        stageMetrics.spoolAppend.recordSince(receivedAt);
+      }
+    }
+    dispatch(subject, data, sequence, receivedAt, onTimeSeriesEventCallback);
+  }
+
+  private double samplePressure() {
+    if (--messagesUntilPressureSample <= 0) {
+      messagesUntilPressureSample = PRESSURE_SAMPLE_INTERVAL;
+      pressure = measurePressure();
+    }
+    return pressure;
+  }
+
+  private double measurePressure() {
+    double pressure = 0;
+    Dispatcher dispatcher = this.dispatcher;
+    if (dispatcher != null) {
+      pressure = Math.max(ratio(dispatcher.getPendingMessageCount(), dispatcher.getPendingMessageLimit()),
+          ratio(dispatcher.getPendingByteCount(), dispatcher.getPendingByteLimit()));
+    }
+    EventSpool spool = this.spool;
+    if (spool != null) {
+      pressure = Math.max(pressure, ratio(spool.getUnacknowledgedCount(), spool.getMaxUnacknowledged()));
+    }
+    KeyedExecutor keyedExecutor = this.keyedExecutor;
+    if (keyedExecutor != null) {
+      pressure = Math.max(pressure, keyedExecutor.getFillRatio());
+    }
+    return pressure;
+  }
+
+  private static double ratio(long count, long limit) {
+    return limit > 0 ? (double) count / limit : 0;
+  }
+
+  void handleSlowConsumer(io.nats.client.Consumer consumer) {
+    LoadShedder loadShedder = this.loadShedder;
+    if (loadShedder != null) {
+      loadShedder.onSlowConsumer();
+    }
+    eventLog.warn("NATS drops messages as time series events are not handled in time, dropped so far: %d",
+        consumer.getDroppedCount());
+  }
+
+  private void replaySpool(Consumer<TimeSeriesEvent> onTimeSeriesEventCallback) {
+    int recoveredCount = spool.getRecoveredCount();
+    try {
+      spool.replay((subject, data, sequence) -> dispatch(subject, data, sequence, NOT_MEASURED, onTimeSeriesEventCallback));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    System.out.println(String.format("Replayed %d spooled time series events", recoveredCount));
+  }
+
+  private void dispatch(String subject, byte[] data, long sequence, long receivedAt,
+                        Consumer<TimeSeriesEvent> onTimeSeriesEventCallback) {
+    KeyedExecutor keyedExecutor = this.keyedExecutor;
+    if (keyedExecutor == null) {
+      processMessage(subject, data, sequence, receivedAt, onTimeSeriesEventCallback);
+      return;
+    }
+    try {
+      long endpointIdHash = TimeSeriesEventKeys.endpointIdHash(data);
+      if (endpointIdHash != TimeSeriesEventKeys.UNKNOWN) {
+        keyedExecutor.execute(endpointIdHash,
+            () -> processMessage(subject, data, sequence, receivedAt, onTimeSeriesEventCallback));
+      } else {
+        // Messages written with another schema version are decoded here to find out their endpoint.
+        long decodeStart = receivedAt != NOT_MEASURED ? System.nanoTime() : NOT_MEASURED;
+        TimeSeriesEvent timeSeriesEvent = avroConverter.decode(data);
+        if (receivedAt != NOT_MEASURED) {
+          stageMetrics.decode.recordSince(decodeStart);
+        }
+        String endpointId = timeSeriesEvent.getEndpointId();
+        long hash = endpointId != null ? TimeSeriesEventKeys.endpointIdHash(endpointId) : TimeSeriesEventKeys.UNKNOWN;
+        ColumnarBatcher columnarBatcher = this.columnarBatcher;
+        if (columnarBatcher != null) {
+          // Decoded again by the fallback converter of the batcher, these messages are rare.
+          keyedExecutor.execute(hash, () -> processColumnar(columnarBatcher, data, sequence, receivedAt));
+        } else {
+          keyedExecutor.execute(hash,
+              () -> processEvent(subject, timeSeriesEvent, sequence, receivedAt, onTimeSeriesEventCallback));
+        }
+      }
+    } catch (RejectedExecutionException ex) {
+      // The service is shutting down, a spooled event stays unacknowledged and is replayed on the next start.
+      eventLog.warn("Time series event is not handled: %s", ex);
+    } catch (Exception ex) {
+      eventLog.error("Exception occurred during handling time series event: %s", ex);
+      countFailure();
+      acknowledge(sequence);
+    }
+  }
+
+  private void processMessage(String subject, byte[] data, long sequence, long receivedAt,
+                              Consumer<TimeSeriesEvent> onTimeSeriesEventCallback) {
+    ColumnarBatcher columnarBatcher = this.columnarBatcher;
+    if (columnarBatcher != null) {
+      processColumnar(columnarBatcher, data, sequence, receivedAt);
+      return;
+    }
+    // Events are only measured after metrics are set, so the metrics are there.
+    StageMetrics stageMetrics = this.stageMetrics;
+    long decodeStart = NOT_MEASURED;
+    if (receivedAt != NOT_MEASURED) {
+      decodeStart = System.nanoTime();
+      stageMetrics.queueWait.record(decodeStart - receivedAt);
+    }
+    TimeSeriesEvent reuse = eventPool != null ? eventPool.acquire() : null;
+    TimeSeriesEvent timeSeriesEvent;
+    try {
+      timeSeriesEvent = avroConverter.decodeInto(data, reuse);
+      if (receivedAt != NOT_MEASURED) {
+        stageMetrics.decode.recordSince(decodeStart);
+      }
+    } catch (Exception ex) {
+      eventLog.error("Exception occurred during handling time series event: %s", ex);
+      countFailure();
+      acknowledge(sequence);
+      if (eventPool != null) {
+        eventPool.release(reuse);
+      }
+      return;
+    }
+    try {
+      processEvent(subject, timeSeriesEvent, sequence, receivedAt, onTimeSeriesEventCallback);
+    } finally {
+      if (eventPool != null) {
+        eventPool.release(reuse);
+      }
+    }
+  }
+
+  private void processEvent(String subject, TimeSeriesEvent timeSeriesEvent, long sequence, long receivedAt,
+                            Consumer<TimeSeriesEvent> onTimeSeriesEventCallback) {
+    long[] current = currentSequence.get();
+    current[0] = sequence;
+    try {
+      CorrelationIdDeduplicator deduplicator = this.deduplicator;
+      if (deduplicator != null && timeSeriesEvent.getCorrelationId() != null
+          && !deduplicator.markSeen(timeSeriesEvent.getCorrelationId())) {
+        return;
+      }
+      eventLog.debug("Handling incoming time series event: %s", timeSeriesEvent);
+      long callbackStart = receivedAt != NOT_MEASURED ? System.nanoTime() : NOT_MEASURED;
+      Consumer<TimeSeriesEvent> handler = route(subject);
+      if (handler != NO_HANDLER) {
+        handler.accept(timeSeriesEvent);
+      } else if (onTimeSeriesEventCallback != null) {
+        onTimeSeriesEventCallback.accept(timeSeriesEvent);
+      }
+      if (receivedAt != NOT_MEASURED) {
+        StageMetrics stageMetrics = this.stageMetrics;
+        stageMetrics.callback.recordSince(callbackStart);
+        // Events whose timestamp is not decoded, e.g. left out of the projection, have no lag.
+        long timestamp = timeSeriesEvent.getTimestamp();
+        if (timestamp > 0) {
+          stageMetrics.lag.record((System.currentTimeMillis() - timestamp) * NANOS_PER_MILLI);
+        }
+      }
+    } catch (Exception ex) {
+      eventLog.error("Exception occurred during handling time series event: %s", ex);
+      countFailure();
+    } finally {
+      // Not deferred by the callback.
+      acknowledge(current[0]);
+      current[0] = NO_SEQUENCE;
+    }
+  }
+
+  private void processColumnar(ColumnarBatcher batcher, byte[] data, long sequence, long receivedAt) {
+    StageMetrics stageMetrics = this.stageMetrics;
+    long decodeStart = NOT_MEASURED;
+    if (receivedAt != NOT_MEASURED) {
+      decodeStart = System.nanoTime();
+      stageMetrics.queueWait.record(decodeStart - receivedAt);
+    }
     try {
-      TimeSeriesEvent timeSeriesEvent = AVRO_CONVERTER.decode(msg.getData());
-      System.out.println(String.format("Handling incoming time series event: %s", timeSeriesEvent));
-      onTimeSeriesEventCallback.accept(timeSeriesEvent);
+      PrimitiveTimeSeriesEvent event = batcher.getDecoder().decodeInto(data, 0, data.length, primitiveEvent.get());
+      long appendStart = NOT_MEASURED;
+      if (receivedAt != NOT_MEASURED) {
+        appendStart = System.nanoTime();
+        stageMetrics.decode.record(appendStart - decodeStart);
+      }
+      CorrelationIdDeduplicator deduplicator = this.deduplicator;
+      if (deduplicator != null && !markSeen(deduplicator, event)) {
+        acknowledge(sequence);
+        return;
+      }
+      EventSpool spool = this.spool;
+      batcher.append(event, spool != null && sequence != NO_SEQUENCE ? () -> spool.acknowledge(sequence) : null);
+      if (receivedAt != NOT_MEASURED) {
+        // Includes consuming the batch when this event fills it.
+        stageMetrics.callback.recordSince(appendStart);
+        long timestamp = event.getTimestamp();
+        if (timestamp > 0) {
+          stageMetrics.lag.record((System.currentTimeMillis() - timestamp) * NANOS_PER_MILLI);
+        }
+      }
     } catch (Exception ex) {
-      System.err.println(String.format("Exception occurred during handling time series event: %s", ex));
+      eventLog.error("Exception occurred during handling time series event: %s", ex);
+      countFailure();
+      acknowledge(sequence);
+    }
+  }
+
+  // The correlation ID is hashed straight from its decoded bytes, as columnar consumers rarely read it as a string.
+  private static boolean markSeen(CorrelationIdDeduplicator deduplicator, PrimitiveTimeSeriesEvent event) {
+    Utf8 lazyCorrelationId = event.getLazyCorrelationId();
+    if (lazyCorrelationId != null) {
+      return deduplicator.markSeen(lazyCorrelationId);
+    }
+    String correlationId = event.getCorrelationId();
+    return correlationId == null || deduplicator.markSeen(correlationId);
+  }
+
+  private void acknowledge(long sequence) {
+    EventSpool spool = this.spool;
+    if (spool != null && sequence != NO_SEQUENCE) {
+      spool.acknowledge(sequence);
+    }
+  }
+
+  private void countFailure() {
+    StageMetrics stageMetrics = this.stageMetrics;
+    if (stageMetrics != null) {
+      stageMetrics.failed.increment();
+    }
+  }
+
+  private void closeSpool() {
+    EventSpool spool = this.spool;
+    if (spool != null) {
+      try {
+        spool.close();
+      } catch (IOException ex) {
+        System.err.println(String.format("Failed to close event spool: %s", ex));
+      }
+    }
+  }
+
+  /**
+   * Extracts time series name from subject of the time series events.
+   * @return time series name, or {@code null} if the subject is not a time series event subject
+   */
+  static String timeSeriesName(String subject) {
+    int nameStart = subject.indexOf(TSTP_SUBJECT_INFIX);
+    return nameStart >= 0 ? subject.substring(nameStart + TSTP_SUBJECT_INFIX.length()) : null;
+  }
+
+  private Consumer<TimeSeriesEvent> route(String subject) {
+    if (handlers.isEmpty()) {
+      return NO_HANDLER;
+    }
+    Consumer<TimeSeriesEvent> handler = routes.get(subject);
+    if (handler == null) {
+      String timeSeriesName = timeSeriesName(subject);
+      if (timeSeriesName != null) {
+        handler = handlers.get(timeSeriesName);
+      }
+      if (handler == null) {
+        handler = NO_HANDLER;
+      }
+      if (routes.size() < MAX_CACHED_ROUTES) {
+        routes.put(subject, handler);
+      }
+    }
+    return handler;
+  }
+
+  private static class StageMetrics {
+    private final int sampleInterval;
+    private final LongAdder received;
+    private final LongAdder failed;
+    private final LatencyHistogram spoolAppend;
+    private final LatencyHistogram queueWait;
+    private final LatencyHistogram decode;
+    private final LatencyHistogram callback;
+    private final LatencyHistogram lag;
+
+    private StageMetrics(PipelineMetrics metrics, int sampleInterval) {
+      this.sampleInterval = sampleInterval;
+      received = metrics.counter("tstp_events_received_total", "Time series events received from NATS");
+      failed = metrics.counter("tstp_events_failed_total", "Time series events failed to be decoded or handled");
+      spoolAppend = metrics.histogram("tstp_spool_append_seconds", "Time to spool received time series event");
+      queueWait = metrics.histogram("tstp_queue_wait_seconds",
+          "Time from receipt of time series event until it is decoded, including spooling and waiting for a shard");
+      decode = metrics.histogram("tstp_decode_seconds", "Time to decode time series event");
+      callback = metrics.histogram("tstp_callback_seconds", "Time spent in time series event callback");
+      lag = metrics.histogram("tstp_end_to_end_lag_seconds",
+          "Time from creation of time series event until its callback returns");
+    }
+  }
+
+  // Passes NATS connection errors to the service, which is created after the connection.
+  private static class ConnectionErrorListener implements ErrorListener {
+    private volatile TimeSeriesEventService service;
+
+    @Override
+    public void errorOccurred(Connection connection, String error) {
+      TimeSeriesEventService service = this.service;
+      if (service != null) {
+        service.eventLog.error("NATS error occurred: %s", error);
+      }
+    }
+
+    @Override
+    public void exceptionOccurred(Connection connection, Exception exception) {
+      TimeSeriesEventService service = this.service;
+      if (service != null) {
+        service.eventLog.error("NATS exception occurred: %s", exception);
+      }
+    }
+
+    @Override
+    public void slowConsumerDetected(Connection connection, io.nats.client.Consumer consumer) {
+      TimeSeriesEventService service = this.service;
+      if (service != null) {
+        service.handleSlowConsumer(consumer);
+      }
+    }
+  }
+
+  private static class SubjectSubscription {
+    private final String subject;
+    private final String queueGroup;
+
+    private SubjectSubscription(String subject, String queueGroup) {
+      this.subject = subject;
+      this.queueGroup = queueGroup;
     }
   }
 }
@@ -0,0 +1,199 @@
+package org.kaaproject.tutorials;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of data point value names, e.g. {@code temperature}, assigning each a dense integer ID.
+ * The table is shared by all events decoded with it, so an ID found once, e.g. when a consumer is set up,
+ * identifies the value in every event. Names are looked up straight from their UTF-8 bytes while decoding,
+ * so known names cost a hash of the bytes rather than a string. The table is bounded, as value names
+ * come from devices, and names beyond the bound are not assigned IDs. The same table interns other
+ * low-cardinality strings, see {@link StringInterner}.
+ */
+public class ValueKeys {
+  /**
+   * Returned for names without ID, as the table is full.
+   */
+  public static final int UNKNOWN = -1;
+
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  // Odd 64-bit multiplier mixing the bytes of each step into the high bits, the golden ratio as in Fibonacci hashing.
+  private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private final int maxKeys;
+  private final Map<String, Integer> idsByName = new ConcurrentHashMap<>();
+  // Immutable snapshot replaced on each new name, as names are looked up far more often than added.
+  private volatile Table table = new Table(new String[0], new byte[0][], new int[0], new int[16]);
+
+  /**
+   * Creates table instance.
+   * @param maxKeys - maximum number of names assigned IDs
+   */
+  public ValueKeys(int maxKeys) {
+    if (maxKeys <= 0) {
+      throw new IllegalArgumentException("Maximum number of keys must be positive");
+    }
+    this.maxKeys = maxKeys;
+  }
+
+  /**
+   * Returns ID of the name, assigning the next free one to a new name.
+   * @return ID from 0, or {@link #UNKNOWN} if the name is new and the table is full
+   */
+  public int idOf(String name) {
+    Integer id = idsByName.get(name);
+    return id != null ? id : add(name.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns ID of the name encoded in UTF-8, assigning the next free one to a new name.
+   * @param utf8 - array holding the encoded name
+   * @param offset - index of the first byte of the name
+   * @param length - number of bytes of the name
+   * @return ID from 0, or {@link #UNKNOWN} if the name is new and the table is full
+   */
+  public int idOf(byte[] utf8, int offset, int length) {
+    Table current = table;
+    int id = current.find(utf8, offset, length);
+    if (id != UNKNOWN || current.names.length == maxKeys) {
+      return id;
+    }
+    return add(Arrays.copyOfRange(utf8, offset, offset + length));
+  }
+
+  /**
+   * Returns the name encoded in UTF-8 as a string, the same instance for all lookups of a name with an ID.
+   * @param utf8 - array holding the encoded name
+   * @param offset - index of the first byte of the name
+   * @param length - number of bytes of the name
+   * @return string of the table, or a new string if the name is new and the table is full
+   */
+  public String intern(byte[] utf8, int offset, int length) {
+    Table current = table;
+    int id = current.find(utf8, offset, length);
+    if (id != UNKNOWN) {
+      return current.names[id];
+    }
+    // Once the table is full, strings of a field of unexpectedly high cardinality skip the lock.
+    if (current.names.length < maxKeys) {
+      id = add(Arrays.copyOfRange(utf8, offset, offset + length));
+    }
+    return id != UNKNOWN ? name(id) : new String(utf8, offset, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Returns ID of the name without assigning one.
+   * @return ID from 0, or {@link #UNKNOWN} if the name has none
+   */
+  public int find(String name) {
+    Integer id = idsByName.get(name);
+    return id != null ? id : UNKNOWN;
+  }
+
+  /**
+   * Returns name of the ID.
+   */
+  public String name(int id) {
+    return table.names[id];
+  }
+
+  /**
+   * Returns number of names assigned IDs, IDs are below this number.
+   */
+  public int size() {
+    return table.names.length;
+  }
+
+  public int getMaxKeys() {
+    return maxKeys;
+  }
+
+  private synchronized int add(byte[] utf8) {
+    Table current = table;
+    int id = current.find(utf8, 0, utf8.length);
+    if (id != UNKNOWN || current.names.length == maxKeys) {
+      return id;
+    }
+    id = current.names.length;
+    String name = new String(utf8, StandardCharsets.UTF_8);
+    String[] names = Arrays.copyOf(current.names, id + 1);
+    names[id] = name;
+    byte[][] encodedNames = Arrays.copyOf(current.encodedNames, id + 1);
+    encodedNames[id] = utf8;
+    int[] hashes = Arrays.copyOf(current.hashes, id + 1);
+    hashes[id] = hash(utf8, 0, utf8.length);
+    // Slots are kept at most half full, so that probe sequences stay short.
+    Table updated;
+    if (current.slots.length >= 2 * (id + 1)) {
+      updated = new Table(names, encodedNames, hashes, current.slots.clone());
+      updated.insert(id);
+    } else {
+      updated = new Table(names, encodedNames, hashes, new int[2 * current.slots.length]);
+      for (int i = 0; i <= id; i++) {
+        updated.insert(i);
+      }
+    }
+    table = updated;
+    idsByName.put(name, id);
+    return id;
+  }
+
+  // Hashes eight bytes per step, as names are hashed on every lookup, unlike strings whose hash is cached.
+  private static int hash(byte[] utf8, int offset, int length) {
+    long hash = length;
+    int end = offset + length;
+    int i = offset;
+    for (; i + Long.BYTES <= end; i += Long.BYTES) {
+      hash = (hash ^ (long) LONGS.get(utf8, i)) * HASH_MULTIPLIER;
+    }
+    long tail = 0;
+    for (; i < end; i++) {
+      tail = (tail << 8) | (utf8[i] & 0xFF);
+    }
+    hash = (hash ^ tail) * HASH_MULTIPLIER;
+    return (int) (hash ^ (hash >>> 32));
+  }
+
+  private static class Table {
+    private final String[] names;
+    private final byte[][] encodedNames;
+    private final int[] hashes;
+    // Open addressing table of IDs plus one, 0 marking a free slot.
+    private final int[] slots;
+
+    private Table(String[] names, byte[][] encodedNames, int[] hashes, int[] slots) {
+      this.names = names;
+      this.encodedNames = encodedNames;
+      this.hashes = hashes;
+      this.slots = slots;
+    }
+
+    private int find(byte[] utf8, int offset, int length) {
+      int hash = hash(utf8, offset, length);
+      int mask = slots.length - 1;
+      for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+        int id = slots[slot] - 1;
+        byte[] candidate = encodedNames[id];
+        if (hashes[id] == hash && Arrays.equals(candidate, 0, candidate.length, utf8, offset, offset + length)) {
+          return id;
+        }
+      }
+      return UNKNOWN;
+    }
+
+    private void insert(int id) {
+      int mask = slots.length - 1;
+      int slot = hashes[id] & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id + 1;
+    }
+  }
+}
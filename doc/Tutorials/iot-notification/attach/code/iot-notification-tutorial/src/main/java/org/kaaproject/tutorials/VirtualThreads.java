@@ -0,0 +1,75 @@
+package org.kaaproject.tutorials;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Access to virtual threads of JDK 21 and later. The project targets an earlier release, so they are looked up
+ * reflectively, and are reported as unsupported on JDKs without them or with them only as a preview feature.
+ */
+final class VirtualThreads {
+  private static final Method OF_VIRTUAL;
+  private static final Method NAME;
+  private static final Method FACTORY;
+  private static final Method IS_VIRTUAL;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method factory = null;
+    Method isVirtual = null;
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builderClass.getMethod("name", String.class, long.class);
+      factory = builderClass.getMethod("factory");
+      isVirtual = Thread.class.getMethod("isVirtual");
+      // Without preview features enabled, JDK 19 and 20 fail here rather than on lookup.
+      ofVirtual.invoke(null);
+    } catch (ReflectiveOperationException | RuntimeException ex) {
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    FACTORY = factory;
+    IS_VIRTUAL = isVirtual;
+  }
+
+  private VirtualThreads() {
+  }
+
+  public static boolean isSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Returns factory of unstarted virtual threads.
+   * @param namePrefix - prefix of thread names, followed by a sequence number
+   * @throws UnsupportedOperationException if virtual threads are not supported
+   */
+  public static ThreadFactory factory(String namePrefix) {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Virtual threads require JDK 21 or later");
+    }
+    try {
+      Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 0L);
+      return (ThreadFactory) FACTORY.invoke(builder);
+    } catch (ReflectiveOperationException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Returns whether the thread is virtual, always {@code false} where virtual threads are not supported.
+   */
+  public static boolean isVirtual(Thread thread) {
+    if (!isSupported()) {
+      return false;
+    }
+    try {
+      return (Boolean) IS_VIRTUAL.invoke(thread);
+    } catch (ReflectiveOperationException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
@@ -0,0 +1,419 @@
+package org.kaaproject.tutorials;
+
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Sliding-window alert conditions per endpoint, e.g. average temperature over 5 minutes above 30,
+ * or more than 3 {@code WINDOW_OPENED} events in 1 minute.
+ * <p>
+ * Windows are in event time of {@link DataPoint#getTimestamp()} and slide by buckets: a window is split into
+ * a fixed number of buckets kept in primitive ring buffers of counts and sums or extremes, so memory per endpoint
+ * and condition does not depend on the number of data points. Data points later than the allowed lateness
+ * behind the newest one of the series are dropped. Alerts are edge-triggered: the listener is called when
+ * the condition becomes true, and again only after it has been false in between.
+ * Series are striped over independently locked maps like in {@link EndpointRateLimiter}, and endpoints without
+ * data points for the longest window plus lateness are evicted a few at a time on every call into their stripe,
+ * see {@link IdleEvictingMap}.
+ */
+public class WindowedAlerts {
+
+  /**
+   * Aggregation of the values within a window.
+   */
+  public enum Aggregation {
+    COUNT, SUM, AVERAGE, MIN, MAX
+  }
+
+  /**
+   * Listener of alerts.
+   */
+  public interface AlertListener {
+    /**
+     * @param endpointId - endpoint whose series crossed the threshold
+     * @param condition - condition that became true
+     * @param value - aggregated value of the window
+     */
+    void onAlert(String endpointId, Condition condition, double value);
+  }
+
+  /**
+   * Alert condition of an aggregate over a sliding window compared to a threshold.
+   */
+  public static class Condition {
+    private final String name;
+    private final Aggregation aggregation;
+    private final String valueName;
+    private final String filter;
+    private final long windowMillis;
+    private final boolean above;
+    private final double threshold;
+
+    private Condition(String name, Aggregation aggregation, String valueName, String filter,
+                      Duration window, boolean above, double threshold) {
+      if (window.toMillis() <= 0) {
+        throw new IllegalArgumentException("Window must be at least one millisecond");
+      }
+      this.name = name;
+      this.aggregation = aggregation;
+      this.valueName = valueName;
+      this.filter = filter;
+      this.windowMillis = window.toMillis();
+      this.above = above;
+      this.threshold = threshold;
+    }
+
+    /**
+     * Condition on the number of data points within the window being above the threshold.
+     * @param filter - {@link NotificationRules} expression that data points must match to be counted
+     */
+    public static Condition countAbove(String name, String filter, Duration window, double threshold) {
+      return new Condition(name, Aggregation.COUNT, null, filter, window, true, threshold);
+    }
+
+    /**
+     * Condition on the aggregate of numeric values of the name within the window being above the threshold.
+     */
+    public static Condition above(String name, Aggregation aggregation, String valueName, Duration window,
+                                  double threshold) {
+      return new Condition(name, aggregation, valueName, null, window, true, threshold);
+    }
+
+    /**
+     * Condition on the aggregate of numeric values of the name within the window being below the threshold.
+     */
+    public static Condition below(String name, Aggregation aggregation, String valueName, Duration window,
+                                  double threshold) {
+      return new Condition(name, aggregation, valueName, null, window, false, threshold);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s(%s) over %d ms %s %s", aggregation, filter != null ? filter : valueName,
+          windowMillis, above ? ">" : "<", threshold);
+    }
+  }
+
+  private final Condition[] conditions;
+  private final int bucketCount;
+  // Per condition, bucket length in milliseconds and number of buckets that data points may be late by.
+  private final long[] bucketMillis;
+  private final int[] latenessBuckets;
+  private final long idleNanos;
+  private final NotificationRules filters;
+  // Condition index by filter rule index.
+  private final int[] filterConditions;
+  private final boolean[] unfiltered;
+  private final Set<String> keys;
+  private final AlertListener listener;
+  private final Stripe[] stripes;
+  private final int stripeMask;
+  private final ThreadLocal<Matches> threadLocalMatches;
+  private final LongAdder lateCount = new LongAdder();
+  private final LongAdder alertCount = new LongAdder();
+
+  /**
+   * Creates alerts instance.
+   * @param conditions - alert conditions evaluated for every endpoint
+   * @param bucketsPerWindow - number of buckets a window slides by, more buckets are more precise and take more memory
+   * @param allowedLateness - how far behind the newest data point of a series a data point may be, capped at the window
+   * @param listener - listener of alerts, called on the thread adding the event
+   * @param concurrency - expected number of concurrently calling threads
+   */
+  public WindowedAlerts(List<Condition> conditions, int bucketsPerWindow, Duration allowedLateness,
+                        AlertListener listener, int concurrency) {
+    if (bucketsPerWindow <= 0) {
+      throw new IllegalArgumentException("Number of buckets per window must be positive");
+    }
+    this.conditions = conditions.toArray(new Condition[0]);
+    this.bucketCount = bucketsPerWindow;
+    this.bucketMillis = new long[this.conditions.length];
+    this.latenessBuckets = new int[this.conditions.length];
+    this.unfiltered = new boolean[this.conditions.length];
+    Map<String, String> filterExpressions = new LinkedHashMap<>();
+    List<Integer> filterConditions = new ArrayList<>();
+    Set<String> keys = new LinkedHashSet<>();
+    long maxWindowMillis = 0;
+    for (int i = 0; i < this.conditions.length; i++) {
+      Condition condition = this.conditions[i];
+      bucketMillis[i] = Math.max(1, condition.windowMillis / bucketsPerWindow);
+      long lateness = (allowedLateness.toMillis() + bucketMillis[i] - 1) / bucketMillis[i];
+      latenessBuckets[i] = (int) Math.min(bucketsPerWindow - 1, lateness);
+      maxWindowMillis = Math.max(maxWindowMillis, condition.windowMillis);
+      if (condition.filter != null) {
+        filterExpressions.put(condition.name + "#" + i, condition.filter);
+        filterConditions.add(i);
+      } else {
+        unfiltered[i] = true;
+      }
+      if (condition.valueName != null) {
+        keys.add(condition.valueName);
+      }
+    }
+    this.filters = new NotificationRules(filterExpressions);
+    this.filterConditions = filterConditions.stream().mapToInt(Integer::intValue).toArray();
+    keys.addAll(filters.getKeys());
+    this.keys = Collections.unmodifiableSet(keys);
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(maxWindowMillis + allowedLateness.toMillis());
+    this.listener = listener;
+    int stripeCount = Integer.highestOneBit(Math.max(1, concurrency * 4 - 1) << 1);
+    this.stripes = new Stripe[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new Stripe(idleNanos);
+    }
+    this.stripeMask = stripeCount - 1;
+    int conditionCount = this.conditions.length;
+    this.threadLocalMatches = ThreadLocal.withInitial(() -> new Matches(conditionCount));
+  }
+
+  /**
+   * Returns value keys referenced by the conditions, e.g. to decode only the values that conditions need.
+   */
+  public Set<String> getKeys() {
+    return keys;
+  }
+
+  /**
+   * Adds data points of the event into the windows of its endpoint and calls the listener for conditions
+   * that became true.
+   */
+  public void add(TimeSeriesEvent event) {
+    add(event, System.nanoTime());
+  }
+
+  // Visible for tests, which pass the time explicitly.
+  void add(TimeSeriesEvent event, long now) {
+    String endpointId = event.getEndpointId();
+    if (endpointId == null || event.getDataPoints() == null) {
+      return;
+    }
+    int hash = endpointId.hashCode();
+    Stripe stripe = stripes[(hash ^ (hash >>> 16)) & stripeMask];
+    Matches matches = threadLocalMatches.get();
+    List<Alert> alerts = null;
+    synchronized (stripe) {
+      EndpointSeries endpoint = stripe.endpoints.get(endpointId, now);
+      if (endpoint == null) {
+        endpoint = new EndpointSeries(conditions.length);
+        stripe.endpoints.put(endpointId, endpoint);
+      }
+      endpoint.lastUpdateNanos = now;
+      for (DataPoint dataPoint : event.getDataPoints()) {
+        Map<String, Object> values = dataPoint.getValues();
+        System.arraycopy(unfiltered, 0, matches.matched, 0, unfiltered.length);
+        filters.matchIndexes(values, matches);
+        for (int i = 0; i < conditions.length; i++) {
+          if (matches.matched[i]) {
+            Double aggregate = addValue(endpoint, i, dataPoint.getTimestamp(), values);
+            if (aggregate != null) {
+              if (alerts == null) {
+                alerts = new ArrayList<>(1);
+              }
+              alerts.add(new Alert(conditions[i], aggregate));
+            }
+          }
+        }
+      }
+    }
+    if (alerts != null) {
+      for (Alert alert : alerts) {
+        alertCount.increment();
+        listener.onAlert(endpointId, alert.condition, alert.value);
+      }
+    }
+  }
+
+  public long getLateCount() {
+    return lateCount.sum();
+  }
+
+  public long getAlertCount() {
+    return alertCount.sum();
+  }
+
+  /**
+   * Returns number of endpoints currently tracked, i.e. endpoints with data points within the longest window.
+   */
+  public int getEndpointCount() {
+    int count = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        count += stripe.endpoints.size();
+      }
+    }
+    return count;
+  }
+
+  // Returns the aggregate if the condition became true, null otherwise.
+  private Double addValue(EndpointSeries endpoint, int index, long timestamp, Map<String, Object> values) {
+    Condition condition = conditions[index];
+    double value = 1;
+    if (condition.aggregation != Aggregation.COUNT) {
+      Object raw = values.get(condition.valueName);
+      if (!(raw instanceof Number)) {
+        return null;
+      }
+      value = ((Number) raw).doubleValue();
+    }
+    Series series = endpoint.series[index];
+    if (series == null) {
+      series = new Series(condition.aggregation, bucketCount);
+      endpoint.series[index] = series;
+    }
+    if (!series.add(Math.floorDiv(timestamp, bucketMillis[index]), latenessBuckets[index], value)) {
+      lateCount.increment();
+      return null;
+    }
+    double aggregate = series.aggregate();
+    boolean crossed = !Double.isNaN(aggregate) && (condition.above ? aggregate > condition.threshold
+        : aggregate < condition.threshold);
+    boolean fire = crossed && !series.firing;
+    series.firing = crossed;
+    return fire ? aggregate : null;
+  }
+
+  // Conditions matched by the current data point, reused per thread.
+  private class Matches implements IntConsumer {
+    private final boolean[] matched;
+
+    private Matches(int conditionCount) {
+      this.matched = new boolean[conditionCount];
+    }
+
+    @Override
+    public void accept(int filterRule) {
+      matched[filterConditions[filterRule]] = true;
+    }
+  }
+
+  private static class Alert {
+    private final Condition condition;
+    private final double value;
+
+    private Alert(Condition condition, double value) {
+      this.condition = condition;
+      this.value = value;
+    }
+  }
+
+  private static class Stripe {
+    private final IdleEvictingMap<String, EndpointSeries> endpoints;
+
+    private Stripe(long idleNanos) {
+      this.endpoints = new IdleEvictingMap<>((endpoint, now) -> now - endpoint.lastUpdateNanos >= idleNanos);
+    }
+  }
+
+  private static class EndpointSeries {
+    private final Series[] series;
+    private long lastUpdateNanos;
+
+    private EndpointSeries(int conditionCount) {
+      this.series = new Series[conditionCount];
+    }
+  }
+
+  /**
+   * Ring buffer of bucket aggregates of one endpoint and condition.
+   */
+  private static class Series {
+    private final Aggregation aggregation;
+    private final int[] counts;
+    // Sums for SUM and AVERAGE, extremes for MIN and MAX, absent for COUNT.
+    private final double[] values;
+    private long headBucket = Long.MIN_VALUE;
+    private boolean firing;
+
+    private Series(Aggregation aggregation, int bucketCount) {
+      this.aggregation = aggregation;
+      this.counts = new int[bucketCount];
+      this.values = aggregation != Aggregation.COUNT ? new double[bucketCount] : null;
+    }
+
+    private boolean add(long bucket, int latenessBuckets, double value) {
+      if (headBucket == Long.MIN_VALUE || bucket - headBucket >= counts.length) {
+        Arrays.fill(counts, 0);
+        headBucket = bucket;
+      } else if (bucket > headBucket) {
+        // Buckets that slid out of the window are reused for the new ones.
+        for (long cleared = headBucket + 1; cleared <= bucket; cleared++) {
+          counts[(int) Math.floorMod(cleared, (long) counts.length)] = 0;
+        }
+        headBucket = bucket;
+      } else if (headBucket - bucket > latenessBuckets) {
+        return false;
+      }
+      int index = (int) Math.floorMod(bucket, (long) counts.length);
+      int count = counts[index]++;
+      switch (aggregation) {
+        case SUM:
+        case AVERAGE:
+          values[index] = count == 0 ? value : values[index] + value;
+          break;
+        case MIN:
+          values[index] = count == 0 ? value : Math.min(values[index], value);
+          break;
+        case MAX:
+          values[index] = count == 0 ? value : Math.max(values[index], value);
+          break;
+        default:
+          break;
+      }
+      return true;
+    }
+
+    private double aggregate() {
+      long count = 0;
+      double result = aggregation == Aggregation.MIN ? Double.POSITIVE_INFINITY
+          : aggregation == Aggregation.MAX ? Double.NEGATIVE_INFINITY : 0;
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] == 0) {
+          continue;
+        }
+        count += counts[i];
+        switch (aggregation) {
+          case SUM:
+          case AVERAGE:
+            result += values[i];
+            break;
+          case MIN:
+            result = Math.min(result, values[i]);
+            break;
+          case MAX:
+            result = Math.max(result, values[i]);
+            break;
+          default:
+            break;
+        }
+      }
+      if (count == 0) {
+        return Double.NaN;
+      }
+      switch (aggregation) {
+        case COUNT:
+          return count;
+        case AVERAGE:
+          return result / count;
+        default:
+          return result;
+      }
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class AvroConverterTest {
+
+  private static final TimeSeriesEvent EVENT = TimeSeriesEvent.newBuilder()
+      .setCorrelationId("correlation-1")
+      .setTimestamp(2000L)
+      .setTimeout(0L)
+      .setAppVersionName("smart-house-v1")
+      .setEndpointId("endpoint-1")
+      .setTimeSeriesName("notification")
+      .setDataPoints(Collections.singletonList(new DataPoint(1000L, Collections.singletonMap("humidity", 40.0))))
+      .build();
+
+  @Test
+  public void decodesDirectBufferWithoutMovingPosition() throws IOException {
+    byte[] bytes = encode(EVENT);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 2);
+    buffer.put(new byte[] {7, 7}).put(bytes);
+    buffer.position(2);
+    assertEquals(EVENT, new AvroConverter<>(TimeSeriesEvent.class).decode(buffer));
+    assertEquals(2, buffer.position());
+    assertEquals(bytes.length, buffer.remaining());
+  }
+
+  @Test
+  public void decodesHeapBufferWithoutMovingPosition() throws IOException {
+    byte[] bytes = encode(EVENT);
+    ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 2);
+    buffer.put(new byte[] {7, 7}).put(bytes);
+    buffer.position(2);
+    assertEquals(EVENT, new AvroConverter<>(TimeSeriesEvent.class).decode(buffer.slice()));
+    assertEquals(EVENT, new AvroConverter<>(TimeSeriesEvent.class).decode(buffer));
+    assertEquals(2, buffer.position());
+  }
+
+  private static byte[] encode(TimeSeriesEvent event) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+    new SpecificDatumWriter<>(TimeSeriesEvent.class).write(event, encoder);
+    encoder.flush();
+    return out.toByteArray();
+  }
+}
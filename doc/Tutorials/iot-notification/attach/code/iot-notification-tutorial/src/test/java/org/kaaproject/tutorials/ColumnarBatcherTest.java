@@ -0,0 +1,106 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ColumnarBatcherTest {
+
+  @Test
+  public void flushesFullBatches() {
+    List<Double> sums = new ArrayList<>();
+    AtomicInteger acknowledged = new AtomicInteger();
+    ColumnarBatcher batcher = new ColumnarBatcher(decoder(), 4, Duration.ofMinutes(1),
+        batch -> sums.add(batch.getColumn("temperature").sum()));
+    for (int i = 0; i < 5; i++) {
+      batcher.append(event(batcher, 2, 10), acknowledged::incrementAndGet);
+    }
+    assertEquals(Arrays.asList(40.0, 40.0), sums);
+    assertEquals(4, acknowledged.get());
+    batcher.close();
+    assertEquals(Arrays.asList(40.0, 40.0, 20.0), sums);
+    assertEquals(5, acknowledged.get());
+  }
+
+  @Test
+  public void flushesOnTimerDespiteSlowConsumerOfAnotherBatcher() throws Exception {
+    CountDownLatch slowConsumerEntered = new CountDownLatch(1);
+    CountDownLatch releaseSlowConsumer = new CountDownLatch(1);
+    ColumnarBatcher slow = new ColumnarBatcher(decoder(), 1000, Duration.ofMillis(10), batch -> {
+      slowConsumerEntered.countDown();
+      try {
+        releaseSlowConsumer.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    CountDownLatch fastFlushed = new CountDownLatch(1);
+    ColumnarBatcher fast = new ColumnarBatcher(decoder(), 1000, Duration.ofMillis(10), batch -> fastFlushed.countDown());
+    try {
+      slow.append(event(slow, 1, 1), null);
+      assertTrue(slowConsumerEntered.await(5, TimeUnit.SECONDS));
+      fast.append(event(fast, 1, 1), null);
+      assertTrue(fastFlushed.await(5, TimeUnit.SECONDS));
+    } finally {
+      releaseSlowConsumer.countDown();
+      slow.close();
+      fast.close();
+    }
+  }
+
+  @Test
+  public void flushesEventsAppendedAfterClose() {
+    List<Integer> rowCounts = new ArrayList<>();
+    ColumnarBatcher batcher = new ColumnarBatcher(decoder(), 1000, Duration.ofMinutes(1),
+        batch -> rowCounts.add(batch.getRowCount()));
+    batcher.close();
+    batcher.append(event(batcher, 3, 1), null);
+    assertEquals(Collections.singletonList(3), rowCounts);
+  }
+
+  private static PrimitiveEventDecoder decoder() {
+    return new PrimitiveEventDecoder(new ValueKeys(16), null);
+  }
+
+  private static PrimitiveTimeSeriesEvent event(ColumnarBatcher batcher, int dataPointCount, double temperature) {
+    List<DataPoint> dataPoints = new ArrayList<>();
+    for (int i = 0; i < dataPointCount; i++) {
+      dataPoints.add(new DataPoint(1000L + i, Collections.singletonMap("temperature", temperature)));
+    }
+    TimeSeriesEvent event = TimeSeriesEvent.newBuilder()
+        .setCorrelationId("correlation-1")
+        .setTimestamp(2000L)
+        .setTimeout(0L)
+        .setAppVersionName("smart-house-v1")
+        .setEndpointId("endpoint-1")
+        .setTimeSeriesName("notification")
+        .setDataPoints(dataPoints)
+        .build();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+      new SpecificDatumWriter<>(TimeSeriesEvent.class).write(event, encoder);
+      encoder.flush();
+      return batcher.getDecoder().decode(out.toByteArray());
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CorrelationIdDeduplicatorTest {
+
+  @Test
+  public void dropsRepeatedIds() {
+    CorrelationIdDeduplicator deduplicator = new CorrelationIdDeduplicator(Duration.ofMinutes(1), 1000, 1);
+    assertTrue(deduplicator.markSeen("6f1c5a0e-1d2b-4c3a-9e8f-0a1b2c3d4e5f"));
+    assertTrue(deduplicator.markSeen("6f1c5a0e-1d2b-4c3a-9e8f-0a1b2c3d4e60"));
+    assertFalse(deduplicator.markSeen("6f1c5a0e-1d2b-4c3a-9e8f-0a1b2c3d4e5f"));
+    assertEquals(1, deduplicator.getDuplicateCount());
+  }
+
+  @Test
+  public void treatsBytesAndStringsOfIdAlike() {
+    CorrelationIdDeduplicator deduplicator = new CorrelationIdDeduplicator(Duration.ofMinutes(1), 1000, 1);
+    assertTrue(deduplicator.markSeen("ascii-id"));
+    assertFalse(deduplicator.markSeen(new Utf8("ascii-id")));
+    assertTrue(deduplicator.markSeen(new Utf8("bytes-first")));
+    assertFalse(deduplicator.markSeen("bytes-first"));
+    assertTrue(deduplicator.markSeen(new Utf8("temp\u00e9rature-1")));
+    assertFalse(deduplicator.markSeen("temp\u00e9rature-1"));
+    assertFalse(deduplicator.markSeen(new Utf8("temp\u00e9rature-1")));
+  }
+
+  @Test
+  public void hashesOnlyValidBytesOfReusedBuffer() {
+    CorrelationIdDeduplicator deduplicator = new CorrelationIdDeduplicator(Duration.ofMinutes(1), 1000, 1);
+    Utf8 buffer = new Utf8("a-much-longer-correlation-id");
+    buffer.set("short-id");
+    assertTrue(deduplicator.markSeen(buffer));
+    assertFalse(deduplicator.markSeen("short-id"));
+  }
+}
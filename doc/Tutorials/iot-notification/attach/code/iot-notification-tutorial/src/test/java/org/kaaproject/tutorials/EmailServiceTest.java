@@ -0,0 +1,106 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EmailServiceTest {
+
+  @Test
+  public void rejectsNotificationsAfterShutdown() {
+    EmailService emailService = new EmailService(unreachableMailSender(), 1, 10, EmailService.OverflowPolicy.REJECT);
+    emailService.shutdown(Duration.ofSeconds(1));
+    assertTrue(emailService.sendNotificationAsync("to@example.com", "subject", "text").isCompletedExceptionally());
+  }
+
+  @Test
+  public void completesNotificationsSubmittedDuringShutdown() throws Exception {
+    for (int round = 0; round < 20; round++) {
+      EmailService emailService = new EmailService(unreachableMailSender(), 1, 1000, EmailService.OverflowPolicy.REJECT);
+      List<CompletableFuture<Void>> futures = new ArrayList<>();
+      CountDownLatch started = new CountDownLatch(1);
+      Thread submitter = new Thread(() -> {
+        started.countDown();
+        for (int i = 0; i < 500; i++) {
+          futures.add(emailService.sendNotificationAsync("to@example.com", "subject", "text"));
+        }
+      });
+      submitter.start();
+      started.await();
+      emailService.shutdown(Duration.ofMillis(round % 4 * 50));
+      submitter.join();
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+          .handle((result, ex) -> null)
+          .get(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void retriesConnectionDroppedBeforeContent() throws Exception {
+    try (ScriptedSmtpServer server = new ScriptedSmtpServer()) {
+      server.dropOnMail(1);
+      EmailService emailService = new EmailService(localMailSender(server), 1, 10, EmailService.OverflowPolicy.REJECT);
+      emailService.sendNotification("to@example.com", "subject", "text");
+      assertEquals(1, server.getReceivedMessageCount());
+      assertEquals(2, server.getConnectionCount());
+      emailService.shutdown(Duration.ofSeconds(1));
+    }
+  }
+
+  @Test
+  public void doesNotResendMessageWhoseReplyTimesOut() throws Exception {
+    try (ScriptedSmtpServer server = new ScriptedSmtpServer()) {
+      server.stallAfterContent(1);
+      JavaMailSenderImpl mailSender = localMailSender(server);
+      mailSender.getJavaMailProperties().put("mail.smtp.timeout", "200");
+      EmailService emailService = new EmailService(mailSender, 1, 10, EmailService.OverflowPolicy.REJECT);
+      try {
+        emailService.sendNotification("to@example.com", "subject", "text");
+        fail("Notification whose delivery is not confirmed must fail");
+      } catch (MailSendException ex) {
+        // expected
+      }
+      assertEquals(1, server.getReceivedMessageCount());
+      emailService.shutdown(Duration.ofSeconds(1));
+    }
+  }
+
+  @Test
+  public void resendsToRecipientRejectedBeforeContent() throws Exception {
+    try (ScriptedSmtpServer server = new ScriptedSmtpServer()) {
+      server.rejectRecipient(1);
+      EmailService emailService = new EmailService(localMailSender(server), 1, 10, EmailService.OverflowPolicy.REJECT);
+      emailService.sendNotification("to@example.com", "subject", "text");
+      assertEquals(1, server.getReceivedMessageCount());
+      assertEquals(1, server.getConnectionCount());
+      emailService.shutdown(Duration.ofSeconds(1));
+    }
+  }
+
+  private static JavaMailSenderImpl localMailSender(ScriptedSmtpServer server) {
+    JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+    mailSender.setHost("127.0.0.1");
+    mailSender.setPort(server.getPort());
+    mailSender.getJavaMailProperties().put("mail.smtp.timeout", "5000");
+    return mailSender;
+  }
+
+  // Sends fail fast with a refused connection, only completion of the futures matters.
+  private static JavaMailSenderImpl unreachableMailSender() {
+    JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+    mailSender.setHost("127.0.0.1");
+    mailSender.setPort(1);
+    return mailSender;
+  }
+}
@@ -0,0 +1,127 @@
+package org.kaaproject.tutorials;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EndpointMetadataCacheTest {
+
+  private static final Duration TTL = Duration.ofSeconds(60);
+  private static final Duration REFRESH_AHEAD = Duration.ofSeconds(10);
+  private static final Duration NEGATIVE_TTL = Duration.ofSeconds(5);
+
+  private final AtomicLong now = new AtomicLong(TimeUnit.SECONDS.toNanos(1));
+  private final AtomicInteger version = new AtomicInteger();
+  private EndpointMetadataCache cache;
+
+  @After
+  public void shutdown() {
+    cache.shutdown();
+  }
+
+  @Test
+  public void sharesOneLoadBetweenConcurrentLookups() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    cache = cache(10, endpointId -> {
+      release.await(10, TimeUnit.SECONDS);
+      return metadata(version.incrementAndGet());
+    });
+    assertNull(cache.get("endpoint-1"));
+    CompletableFuture<Map<String, Object>> first = cache.getAsync("endpoint-1");
+    CompletableFuture<Map<String, Object>> second = cache.getAsync("endpoint-1");
+    release.countDown();
+    assertEquals(metadata(1), first.get(10, TimeUnit.SECONDS));
+    assertEquals(metadata(1), second.get(10, TimeUnit.SECONDS));
+    assertEquals(metadata(1), cache.get("endpoint-1"));
+    assertEquals(1, cache.getLoadCount());
+    assertEquals(3, cache.getMissCount());
+    assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void refreshesMetadataAheadOfExpiry() throws Exception {
+    cache = cache(10, endpointId -> metadata(version.incrementAndGet()));
+    assertEquals(metadata(1), load("endpoint-1"));
+    advance(TTL.minus(REFRESH_AHEAD).minusSeconds(1));
+    assertEquals(metadata(1), cache.get("endpoint-1"));
+    assertEquals(1, cache.getLoadCount());
+    // Valid metadata is returned while it is reloaded in the background.
+    advance(Duration.ofSeconds(2));
+    assertEquals(metadata(1), cache.get("endpoint-1"));
+    // The original metadata expires here, the refreshed one does not.
+    advance(REFRESH_AHEAD);
+    assertEquals(metadata(2), load("endpoint-1"));
+    assertEquals(2, cache.getLoadCount());
+  }
+
+  @Test
+  public void reloadsExpiredMetadata() throws Exception {
+    cache = cache(10, endpointId -> metadata(version.incrementAndGet()));
+    assertEquals(metadata(1), load("endpoint-1"));
+    advance(TTL);
+    cache.get("endpoint-1");
+    assertEquals(2, cache.getMissCount());
+    assertEquals(metadata(2), load("endpoint-1"));
+    assertEquals(2, cache.getLoadCount());
+  }
+
+  @Test
+  public void cachesUnregisteredEndpointsAndFailedLoadsForNegativeTtl() throws Exception {
+    cache = cache(10, endpointId -> {
+      if (endpointId.equals("failing")) {
+        throw new IllegalStateException("Endpoint Register is not available");
+      }
+      return null;
+    });
+    assertNull(load("unregistered"));
+    assertNull(load("failing"));
+    advance(NEGATIVE_TTL.minusSeconds(1));
+    assertNull(cache.get("unregistered"));
+    assertNull(cache.get("failing"));
+    assertEquals(2, cache.getLoadCount());
+    advance(Duration.ofSeconds(1));
+    assertNull(load("unregistered"));
+    assertNull(load("failing"));
+    assertEquals(4, cache.getLoadCount());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEndpoints() throws Exception {
+    cache = cache(2, endpointId -> metadata(version.incrementAndGet()));
+    assertEquals(metadata(1), load("endpoint-1"));
+    assertEquals(metadata(2), load("endpoint-2"));
+    assertEquals(metadata(1), cache.get("endpoint-1"));
+    assertEquals(metadata(3), load("endpoint-3"));
+    assertEquals(metadata(1), cache.get("endpoint-1"));
+    // Evicted endpoint is loaded again.
+    assertEquals(metadata(4), load("endpoint-2"));
+    assertEquals(4, cache.getLoadCount());
+  }
+
+  private EndpointMetadataCache cache(int maxSize, EndpointMetadataCache.Loader loader) {
+    return new EndpointMetadataCache(loader, maxSize, TTL, REFRESH_AHEAD, NEGATIVE_TTL, 1, now::get);
+  }
+
+  private Map<String, Object> load(String endpointId) throws Exception {
+    return cache.getAsync(endpointId).get(10, TimeUnit.SECONDS);
+  }
+
+  private void advance(Duration duration) {
+    now.addAndGet(duration.toNanos());
+  }
+
+  private static Map<String, Object> metadata(int version) {
+    return Collections.singletonMap("floor", version);
+  }
+}
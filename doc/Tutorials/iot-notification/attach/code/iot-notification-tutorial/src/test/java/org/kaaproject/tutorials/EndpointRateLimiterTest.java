@@ -0,0 +1,97 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EndpointRateLimiterTest {
+
+  private static final long START = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void allowsBurstThenRefillsAtRate() {
+    EndpointRateLimiter limiter = new EndpointRateLimiter(new EndpointRateLimiter.Rate(10, 2),
+        Collections.emptyMap(), 1);
+    assertTrue(limiter.tryAcquire("endpoint-1", null, START));
+    assertTrue(limiter.tryAcquire("endpoint-1", null, START));
+    assertFalse(limiter.tryAcquire("endpoint-1", null, START));
+    // One permit per 100 ms.
+    assertFalse(limiter.tryAcquire("endpoint-1", null, START + millis(50)));
+    assertTrue(limiter.tryAcquire("endpoint-1", null, START + millis(100)));
+    assertFalse(limiter.tryAcquire("endpoint-1", null, START + millis(100)));
+    // Refill is capped at the burst.
+    assertTrue(limiter.tryAcquire("endpoint-1", null, START + millis(10_000)));
+    assertTrue(limiter.tryAcquire("endpoint-1", null, START + millis(10_000)));
+    assertFalse(limiter.tryAcquire("endpoint-1", null, START + millis(10_000)));
+    assertEquals(5, limiter.getAllowedCount());
+    assertEquals(4, limiter.getSuppressedCount());
+  }
+
+  @Test
+  public void limitsEndpointsSeparatelyAtRateOfTheirAppVersion() {
+    EndpointRateLimiter limiter = new EndpointRateLimiter(new EndpointRateLimiter.Rate(1, 1),
+        Collections.singletonMap("premium", new EndpointRateLimiter.Rate(1, 3)), 1);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(limiter.tryAcquire("premium-endpoint", "premium", START));
+    }
+    assertFalse(limiter.tryAcquire("premium-endpoint", "premium", START));
+    assertTrue(limiter.tryAcquire("basic-endpoint", "basic", START));
+    assertFalse(limiter.tryAcquire("basic-endpoint", "basic", START));
+  }
+
+  @Test
+  public void evictsRefilledBucketsIncrementally() {
+    EndpointRateLimiter limiter = new EndpointRateLimiter(new EndpointRateLimiter.Rate(10, 2),
+        Collections.singletonMap("slow", new EndpointRateLimiter.Rate(0.001, 1)), 1);
+    for (int i = 0; i < 100; i++) {
+      limiter.tryAcquire("idle-" + i, null, START);
+    }
+    assertEquals(100, limiter.getBucketCount());
+    // The buckets are full again after 200 ms, and each call evicts only a few of them.
+    long later = START + millis(1000);
+    limiter.tryAcquire("active-0", "slow", later);
+    assertTrue(limiter.getBucketCount() >= 97);
+    for (int i = 1; i < 100; i++) {
+      limiter.tryAcquire("active-" + i, "slow", later);
+    }
+    assertEquals(100, limiter.getBucketCount());
+    // Buckets of slow endpoints are not full yet and stay.
+    for (int i = 0; i < 100; i++) {
+      assertFalse(limiter.tryAcquire("active-" + i, "slow", later + millis(1000)));
+    }
+  }
+
+  @Test
+  public void wrappedCallbackSeesOnlyEventsWithinRate() {
+    EndpointRateLimiter limiter = new EndpointRateLimiter(new EndpointRateLimiter.Rate(0.001, 2),
+        Collections.emptyMap(), 1);
+    List<TimeSeriesEvent> received = new ArrayList<>();
+    Consumer<TimeSeriesEvent> callback = limiter.wrap(received::add);
+    for (int i = 0; i < 3; i++) {
+      callback.accept(TimeSeriesEvent.newBuilder()
+          .setCorrelationId("correlation-" + i)
+          .setTimestamp(1000L)
+          .setTimeout(0L)
+          .setAppVersionName("smart-house-v1")
+          .setEndpointId("endpoint-1")
+          .setTimeSeriesName("notification")
+          .setDataPoints(Collections.emptyList())
+          .build());
+    }
+    assertEquals(2, received.size());
+    assertEquals(1, limiter.getSuppressedCount());
+  }
+
+  private static long millis(long millis) {
+    return TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
@@ -0,0 +1,107 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventLogTest {
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+  @Test
+  public void writesEnabledLevelsToTheirStreams() {
+    EventLog eventLog = eventLog(new PrintStream(out, true), EventLog.Level.INFO, 1000, 16);
+    assertFalse(eventLog.isEnabled(EventLog.Level.DEBUG));
+    eventLog.debug("debug %d", 1);
+    eventLog.info("info %d", 2);
+    eventLog.warn("warn %d", 3);
+    eventLog.error("error %d", 4);
+    eventLog.setLevel(EventLog.Level.DEBUG);
+    eventLog.debug("debug %d", 5);
+    eventLog.close();
+    assertEquals(lines("info 2", "debug 5"), text(out));
+    assertEquals(lines("warn 3", "error 4"), text(err));
+  }
+
+  @Test
+  public void suppressesMessagesOverRateLimit() {
+    EventLog eventLog = eventLog(new PrintStream(out, true), EventLog.Level.DEBUG, 10, 1024);
+    int count = 100;
+    for (int i = 0; i < count; i++) {
+      eventLog.info("message %d", i);
+    }
+    eventLog.close();
+    // One permit is handed out every 100 ms.
+    long suppressed = eventLog.getSuppressedCount();
+    assertTrue(String.valueOf(suppressed), suppressed >= count - 5);
+    assertEquals(count - suppressed, text(out).split(System.lineSeparator()).length);
+    assertEquals(0, eventLog.getDroppedCount());
+    assertEquals(lines(String.format("Event log suppressed %d messages over the rate limit and dropped 0", suppressed)),
+        text(err));
+  }
+
+  @Test
+  public void dropsMessagesWhenWriterFallsBehind() throws InterruptedException {
+    CountDownLatch writing = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    PrintStream blockingOut = new PrintStream(new ByteArrayOutputStream() {
+      @Override
+      public synchronized void write(byte[] bytes, int offset, int length) {
+        writing.countDown();
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+        out.write(bytes, offset, length);
+      }
+    }, true);
+    EventLog eventLog = eventLog(blockingOut, EventLog.Level.DEBUG, 1000, 2);
+    eventLog.info("message %d", 0);
+    assertTrue(writing.await(10, TimeUnit.SECONDS));
+    // The writer is stuck on the first message, so the buffer holds two more.
+    for (int i = 1; i < 5; i++) {
+      eventLog.info("message %d", i);
+    }
+    assertEquals(2, eventLog.getDroppedCount());
+    release.countDown();
+    eventLog.close();
+    assertEquals(lines("message 0", "message 1", "message 2"), text(out));
+    assertEquals(lines("Event log suppressed 0 messages over the rate limit and dropped 2"), text(err));
+  }
+
+  @Test
+  public void ignoresMessagesAfterClose() {
+    EventLog eventLog = eventLog(new PrintStream(out, true), EventLog.Level.DEBUG, 1000, 16);
+    eventLog.info("message %d", 1);
+    eventLog.close();
+    eventLog.info("message %d", 2);
+    assertEquals(lines("message 1"), text(out));
+    assertEquals(0, eventLog.getSuppressedCount() + eventLog.getDroppedCount());
+  }
+
+  private EventLog eventLog(PrintStream out, EventLog.Level level, int maxMessagesPerSecond, int bufferCapacity) {
+    return new EventLog(out, new PrintStream(err, true), level, maxMessagesPerSecond, bufferCapacity);
+  }
+
+  private static String text(ByteArrayOutputStream stream) {
+    return new String(stream.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String lines(String... lines) {
+    StringBuilder text = new StringBuilder();
+    for (String line : lines) {
+      text.append(line).append(System.lineSeparator());
+    }
+    return text.toString();
+  }
+}
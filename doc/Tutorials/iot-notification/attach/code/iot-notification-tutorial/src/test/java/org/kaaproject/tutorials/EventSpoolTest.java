@@ -0,0 +1,191 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventSpoolTest {
+
+  private static final String SUBJECT = "kaa.v1.events.epts";
+  // Length of one record, header plus subject plus eight data bytes, so that two records fit into a segment.
+  private static final int RECORD_LENGTH = 4 + 4 + 2 + SUBJECT.length() + 8;
+  private static final int SEGMENT_SIZE = 2 * RECORD_LENGTH + 10;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void replaysUnacknowledgedRecordsAfterReopen() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    try (EventSpool spool = open(directory)) {
+      long first = spool.append(SUBJECT, data(1));
+      spool.append(SUBJECT, data(2));
+      spool.append(SUBJECT, data(3));
+      spool.acknowledge(first);
+    }
+    try (EventSpool spool = open(directory)) {
+      assertEquals(2, spool.getRecoveredCount());
+      assertEquals(Arrays.asList(SUBJECT + ":2", SUBJECT + ":3"), replay(spool));
+      assertEquals(0, spool.getRecoveredCount());
+      assertEquals(2, spool.getUnacknowledgedCount());
+    }
+  }
+
+  @Test
+  public void skipsCorruptedLastRecord() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    try (EventSpool spool = open(directory)) {
+      spool.append(SUBJECT, data(1));
+      spool.append(SUBJECT, data(2));
+    }
+    // Flips the last data byte of the second record.
+    int position = 2 * RECORD_LENGTH - 1;
+    overwrite(segmentFile(directory, 0), position, (byte) ~readByte(segmentFile(directory, 0), position));
+    try (EventSpool spool = open(directory)) {
+      assertEquals(1, spool.getRecoveredCount());
+      assertEquals(Collections.singletonList(SUBJECT + ":1"), replay(spool));
+    }
+  }
+
+  @Test
+  public void skipsTruncatedLastRecordAndAppendsAfterValidOnes() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    try (EventSpool spool = open(directory)) {
+      spool.append(SUBJECT, data(1));
+      spool.append(SUBJECT, data(2));
+    }
+    // Zeroes the data of the second record, as if the process died before its pages were written.
+    for (int position = 2 * RECORD_LENGTH - 8; position < 2 * RECORD_LENGTH; position++) {
+      overwrite(segmentFile(directory, 0), position, (byte) 0);
+    }
+    try (EventSpool spool = open(directory)) {
+      assertEquals(Collections.singletonList(SUBJECT + ":1"), replay(spool));
+      spool.append(SUBJECT, data(3));
+    }
+    try (EventSpool spool = open(directory)) {
+      assertEquals(Arrays.asList(SUBJECT + ":1", SUBJECT + ":3"), replay(spool));
+    }
+  }
+
+  @Test
+  public void keepsCheckpointAcrossRestarts() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    try (EventSpool spool = open(directory)) {
+      spool.acknowledge(spool.append(SUBJECT, data(1)));
+      spool.acknowledge(spool.append(SUBJECT, data(2)));
+      spool.flush();
+    }
+    assertTrue(Files.exists(directory.resolve("checkpoint")));
+    try (EventSpool spool = open(directory)) {
+      assertEquals(0, spool.getRecoveredCount());
+      assertEquals(Collections.emptyList(), replay(spool));
+      spool.append(SUBJECT, data(3));
+    }
+    try (EventSpool spool = open(directory)) {
+      assertEquals(Collections.singletonList(SUBJECT + ":3"), replay(spool));
+    }
+  }
+
+  @Test
+  public void deletesFullyAcknowledgedSegments() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    try (EventSpool spool = open(directory)) {
+      List<Long> sequences = new ArrayList<>();
+      for (int i = 1; i <= 5; i++) {
+        sequences.add(spool.append(SUBJECT, data(i)));
+      }
+      spool.acknowledge(sequences.get(0));
+      spool.acknowledge(sequences.get(1));
+      spool.acknowledge(sequences.get(3));
+      spool.flush();
+      // The first segment is still needed, as the first record of the second one is not acknowledged.
+      assertTrue(Files.exists(segmentFile(directory, 0)));
+      spool.acknowledge(sequences.get(2));
+      spool.flush();
+      assertFalse(Files.exists(segmentFile(directory, 0)));
+      assertTrue(Files.exists(segmentFile(directory, SEGMENT_SIZE)));
+      spool.acknowledge(sequences.get(4));
+      spool.flush();
+      assertFalse(Files.exists(segmentFile(directory, SEGMENT_SIZE)));
+      assertTrue(Files.exists(segmentFile(directory, 2 * SEGMENT_SIZE)));
+    }
+    try (EventSpool spool = open(directory)) {
+      assertEquals(0, spool.getRecoveredCount());
+    }
+  }
+
+  @Test
+  public void rollsOverToNewSegmentAtSizeLimit() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    try (EventSpool spool = open(directory)) {
+      spool.append(SUBJECT, data(1));
+      spool.append(SUBJECT, data(2));
+      spool.append(SUBJECT, data(3));
+    }
+    assertEquals(SEGMENT_SIZE, Files.size(segmentFile(directory, 0)));
+    assertEquals(RECORD_LENGTH, recordLength(directory, SEGMENT_SIZE));
+    try (EventSpool spool = open(directory)) {
+      assertEquals(Arrays.asList(SUBJECT + ":1", SUBJECT + ":2", SUBJECT + ":3"), replay(spool));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsRecordLargerThanSegment() throws Exception {
+    try (EventSpool spool = open(folder.getRoot().toPath())) {
+      spool.append(SUBJECT, new byte[SEGMENT_SIZE]);
+    }
+  }
+
+  private static EventSpool open(Path directory) throws IOException {
+    // Flushes are triggered by the tests and by close.
+    return new EventSpool(directory, SEGMENT_SIZE, 16, Duration.ofMinutes(10));
+  }
+
+  private static List<String> replay(EventSpool spool) throws InterruptedException {
+    List<String> records = new ArrayList<>();
+    spool.replay((subject, data, sequence) -> records.add(subject + ":" + ByteBuffer.wrap(data).getLong()));
+    return records;
+  }
+
+  private static byte[] data(long value) {
+    return ByteBuffer.allocate(8).putLong(value).array();
+  }
+
+  private static Path segmentFile(Path directory, long baseOffset) {
+    return directory.resolve(String.format("%020d.log", baseOffset));
+  }
+
+  private static int recordLength(Path directory, long baseOffset) throws IOException {
+    try (FileChannel channel = FileChannel.open(segmentFile(directory, baseOffset), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(4);
+      channel.read(buffer, 0);
+      return buffer.getInt(0);
+    }
+  }
+
+  private static byte readByte(Path file, int position) throws IOException {
+    return Files.readAllBytes(file)[position];
+  }
+
+  private static void overwrite(Path file, int position, byte value) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {value}), position);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class LaneExecutorTest {
+
+  private static final int KEY_COUNT = 8;
+  private static final int TASKS_PER_KEY = 200;
+
+  @Test
+  public void runsTasksOnVirtualThreads() {
+    assumeTrue("Virtual threads are not supported by this JDK", VirtualThreads.isSupported());
+    LaneExecutor executor = new LaneExecutor("virtual-lane", 1024, 64, 2, true);
+    assertTrue(executor.isVirtual());
+    List<Thread> threads = runTasks(executor);
+    for (Thread thread : threads) {
+      assertTrue(VirtualThreads.isVirtual(thread));
+    }
+  }
+
+  @Test
+  public void runsTasksOnFallbackPool() {
+    LaneExecutor executor = new LaneExecutor("fallback-lane", 1024, 64, 2, false);
+    assertFalse(executor.isVirtual());
+    List<Thread> threads = runTasks(executor);
+    for (Thread thread : threads) {
+      assertFalse(VirtualThreads.isVirtual(thread));
+      assertTrue(thread.getName().startsWith("fallback-lane-"));
+    }
+  }
+
+  @Test
+  public void selectsPathByJdkSupport() {
+    LaneExecutor executor = new LaneExecutor("default-lane", 16, 16, 1);
+    assertEquals(VirtualThreads.isSupported(), executor.isVirtual());
+    assertTrue(executor.shutdown(Duration.ofSeconds(10)));
+  }
+
+  @Test
+  public void returnsQueuedTasksOnShutdownNow() throws InterruptedException {
+    LaneExecutor executor = new LaneExecutor("stopped-lane", 4, 16, 1, false);
+    CountDownLatch finished = blockLane(executor);
+    List<Runnable> ran = new CopyOnWriteArrayList<>();
+    Runnable first = () -> ran.add(null);
+    Runnable second = () -> ran.add(null);
+    Runnable third = () -> ran.add(null);
+    executor.execute(0, first);
+    executor.execute(1, second);
+    executor.execute(1, third);
+    assertEquals(4, executor.getQueuedCount());
+
+    assertEquals(Arrays.asList(first, second, third), executor.shutdownNow());
+    // The blocked task is interrupted and nothing runs after it.
+    assertTrue(finished.await(10, TimeUnit.SECONDS));
+    assertTrue(ran.isEmpty());
+    try {
+      executor.execute(2, first);
+      fail("Task is accepted after shutdown");
+    } catch (RejectedExecutionException ex) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void abandonsQueuedTasksWhenShutdownTimesOut() throws InterruptedException {
+    LaneExecutor executor = new LaneExecutor("timed-out-lane", 4, 16, 1, false);
+    CountDownLatch finished = blockLane(executor);
+    List<Integer> ran = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      int index = i;
+      executor.execute(i, () -> ran.add(index));
+    }
+    assertFalse(executor.shutdown(Duration.ofMillis(100)));
+    assertTrue(finished.await(10, TimeUnit.SECONDS));
+    assertTrue(ran.isEmpty());
+    for (int i = 0; i < 100 && executor.getQueuedCount() > 0; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, executor.getQueuedCount());
+  }
+
+  /**
+   * Occupies the only fallback thread with a task of the key 0 that runs until interrupted.
+   * @return latch released when the task finishes
+   */
+  private static CountDownLatch blockLane(LaneExecutor executor) throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch finished = new CountDownLatch(1);
+    executor.execute(0, () -> {
+      started.countDown();
+      try {
+        Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      } finally {
+        finished.countDown();
+      }
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    return finished;
+  }
+
+  /**
+   * Runs tasks of several keys through the executor and checks that each key's tasks ran in submission order.
+   * @return threads that ran the tasks
+   */
+  private static List<Thread> runTasks(LaneExecutor executor) {
+    List<List<Integer>> completed = new ArrayList<>();
+    for (int key = 0; key < KEY_COUNT; key++) {
+      completed.add(Collections.synchronizedList(new ArrayList<>()));
+    }
+    List<Thread> threads = new CopyOnWriteArrayList<>();
+    for (int i = 0; i < TASKS_PER_KEY; i++) {
+      for (int key = 0; key < KEY_COUNT; key++) {
+        List<Integer> keyCompleted = completed.get(key);
+        int index = i;
+        executor.execute(key, () -> {
+          threads.add(Thread.currentThread());
+          keyCompleted.add(index);
+        });
+      }
+    }
+    assertTrue(executor.shutdown(Duration.ofSeconds(10)));
+    assertEquals(0, executor.getQueuedCount());
+    for (List<Integer> keyCompleted : completed) {
+      assertEquals(TASKS_PER_KEY, keyCompleted.size());
+      for (int i = 0; i < TASKS_PER_KEY; i++) {
+        assertEquals(i, (int) keyCompleted.get(i));
+      }
+    }
+    return threads;
+  }
+}
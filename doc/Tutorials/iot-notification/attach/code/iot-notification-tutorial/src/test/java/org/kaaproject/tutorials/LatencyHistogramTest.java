@@ -0,0 +1,62 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void reportsNothingRecordedAsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getValueAtQuantile(0.99));
+    assertEquals(0, histogram.getMaxNanos());
+  }
+
+  @Test
+  public void keepsSmallValuesExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long nanos = 0; nanos < 64; nanos++) {
+      histogram.record(nanos);
+    }
+    assertEquals(31, histogram.getValueAtQuantile(0.5));
+    assertEquals(57, histogram.getValueAtQuantile(0.9));
+    assertEquals(63, histogram.getValueAtQuantile(1));
+    assertEquals(0, histogram.getValueAtQuantile(0));
+  }
+
+  @Test
+  public void reportsQuantilesWithinRelativeError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    long step = TimeUnit.MICROSECONDS.toNanos(7);
+    int count = 100_000;
+    for (int i = 1; i <= count; i++) {
+      histogram.record(i * step);
+    }
+    for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+      long actual = (long) Math.ceil(quantile * count) * step;
+      long reported = histogram.getValueAtQuantile(quantile);
+      assertTrue(quantile + ": " + reported, reported >= actual && reported <= actual + actual / 32);
+    }
+    assertEquals(count * step, histogram.getValueAtQuantile(1));
+    assertEquals(count, histogram.getCount());
+    assertEquals(step * count * (count + 1L) / 2, histogram.getSumNanos());
+  }
+
+  @Test
+  public void coversValuesFromNegativeToLargest() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(TimeUnit.DAYS.toNanos(30));
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(0, histogram.getValueAtQuantile(0.1));
+    long days = histogram.getValueAtQuantile(0.5);
+    assertTrue(days >= TimeUnit.DAYS.toNanos(30) && days <= TimeUnit.DAYS.toNanos(31));
+    assertEquals(Long.MAX_VALUE, histogram.getValueAtQuantile(1));
+    assertEquals(Long.MAX_VALUE, histogram.getMaxNanos());
+  }
+}
@@ -0,0 +1,103 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LoadShedderTest {
+
+  private static final String SUBJECT_PREFIX = "kaa.v1.events.epts.endpoint.data-collection.data-points-received.";
+  private static final byte[] FRESH = raw(0L);
+  private static final byte[] EXPIRED = raw(1L);
+
+  @Test
+  public void dropsNothingBelowExpiredThreshold() {
+    LoadShedder shedder = shedder(Duration.ofMinutes(1));
+    shedder.setPriority("humidity", LoadShedder.Priority.LOW);
+    assertFalse(shedder.shed(0.4, SUBJECT_PREFIX + "humidity", EXPIRED));
+    assertEquals(0, shedder.getExpiredCount() + shedder.getLowPriorityCount());
+  }
+
+  @Test
+  public void dropsExpiredEventsFirst() {
+    LoadShedder shedder = shedder(Duration.ofMinutes(1));
+    shedder.setPriority("humidity", LoadShedder.Priority.LOW);
+    assertTrue(shedder.shed(0.6, SUBJECT_PREFIX + "temperature", EXPIRED));
+    assertFalse(shedder.shed(0.6, SUBJECT_PREFIX + "temperature", FRESH));
+    assertFalse(shedder.shed(0.6, SUBJECT_PREFIX + "humidity", FRESH));
+    assertEquals(1, shedder.getExpiredCount());
+  }
+
+  @Test
+  public void dropsLowerPrioritiesAsPressureGrows() {
+    LoadShedder shedder = shedder(Duration.ofMinutes(1));
+    assertFalse(shedder.shed(0.8, SUBJECT_PREFIX + "humidity", FRESH));
+    // Priority changes apply to subjects seen before.
+    shedder.setPriority("humidity", LoadShedder.Priority.LOW);
+    shedder.setPriority("smoke", LoadShedder.Priority.HIGH);
+    assertTrue(shedder.shed(0.8, SUBJECT_PREFIX + "humidity", FRESH));
+    assertFalse(shedder.shed(0.8, SUBJECT_PREFIX + "temperature", FRESH));
+    assertTrue(shedder.shed(0.95, SUBJECT_PREFIX + "temperature", FRESH));
+    assertTrue(shedder.shed(0.95, "kaa.v1.events.epts.endpoint.other", FRESH));
+    assertFalse(shedder.shed(1, SUBJECT_PREFIX + "smoke", FRESH));
+    assertTrue(shedder.shed(1, SUBJECT_PREFIX + "smoke", EXPIRED));
+    assertEquals(1, shedder.getLowPriorityCount());
+    assertEquals(2, shedder.getNormalPriorityCount());
+    assertEquals(1, shedder.getExpiredCount());
+  }
+
+  @Test
+  public void slowConsumerDropsLowPriorityEventsForCooldown() throws InterruptedException {
+    LoadShedder shedder = shedder(Duration.ofMillis(100));
+    shedder.setPriority("humidity", LoadShedder.Priority.LOW);
+    shedder.onSlowConsumer();
+    assertTrue(shedder.shed(0, SUBJECT_PREFIX + "humidity", FRESH));
+    assertFalse(shedder.shed(0, SUBJECT_PREFIX + "temperature", FRESH));
+    Thread.sleep(300);
+    assertFalse(shedder.shed(0, SUBJECT_PREFIX + "humidity", FRESH));
+    assertEquals(1, shedder.getSlowConsumerCount());
+    assertEquals(1, shedder.getLowPriorityCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsThresholdsOutOfOrder() {
+    new LoadShedder(0.5, 0.9, 0.7, Duration.ofMinutes(1));
+  }
+
+  private static LoadShedder shedder(Duration slowConsumerCooldown) {
+    return new LoadShedder(0.5, 0.7, 0.9, slowConsumerCooldown);
+  }
+
+  // Events with a timeout expired long ago, the others never expire.
+  private static byte[] raw(long timeout) {
+    TimeSeriesEvent event = TimeSeriesEvent.newBuilder()
+        .setCorrelationId("correlation-1")
+        .setTimestamp(1000L)
+        .setTimeout(timeout)
+        .setAppVersionName("smart-house-v1")
+        .setEndpointId("endpoint-1")
+        .setTimeSeriesName("notification")
+        .setDataPoints(Collections.emptyList())
+        .build();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+      new SpecificDatumWriter<>(TimeSeriesEvent.class).write(event, encoder);
+      encoder.flush();
+      return out.toByteArray();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
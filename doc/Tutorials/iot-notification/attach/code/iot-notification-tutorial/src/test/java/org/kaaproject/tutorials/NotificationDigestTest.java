@@ -0,0 +1,121 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationDigestTest {
+
+  @Test
+  public void sendsDigestOnceEventLimitIsReached() {
+    RecordingEmailService emailService = new RecordingEmailService();
+    NotificationDigest digest = new NotificationDigest(emailService, "Digest", Duration.ofMinutes(1), 3, 10, false);
+    digest.add("ops@example.com", "endpoint-1", "overheat");
+    digest.add("ops@example.com", "endpoint-2", "overheat");
+    assertTrue(emailService.texts.isEmpty());
+    digest.add("ops@example.com", "endpoint-1", "door-open");
+    assertEquals(1, emailService.texts.size());
+    String text = emailService.texts.get(0);
+    assertTrue(text, text.startsWith("3 events have occurred"));
+    assertTrue(text, text.contains("overheat: 2"));
+    assertTrue(text, text.contains("door-open: 1"));
+    assertTrue(text, text.contains("Endpoints: endpoint-1, endpoint-2"));
+    assertEquals("ops@example.com", emailService.recipients.get(0));
+    digest.shutdown();
+  }
+
+  @Test
+  public void flushSendsOpenDigestsAndRunsAcknowledgements() {
+    RecordingEmailService emailService = new RecordingEmailService();
+    NotificationDigest digest = new NotificationDigest(emailService, "Digest", Duration.ofMinutes(1), 100, 10, false);
+    AtomicInteger acknowledged = new AtomicInteger();
+    digest.add("ops@example.com", "endpoint-1", "overheat", acknowledged::incrementAndGet);
+    digest.add("ops@example.com", "endpoint-1", "overheat", acknowledged::incrementAndGet);
+    digest.add("owner@example.com", "endpoint-2", "overheat", acknowledged::incrementAndGet);
+    assertEquals(0, acknowledged.get());
+    digest.flush();
+    assertEquals(2, emailService.texts.size());
+    assertEquals(3, acknowledged.get());
+    digest.flush();
+    assertEquals(2, emailService.texts.size());
+    digest.shutdown();
+  }
+
+  @Test
+  public void runsAcknowledgementsWhenSendFails() {
+    RecordingEmailService emailService = new RecordingEmailService();
+    emailService.failing = true;
+    NotificationDigest digest = new NotificationDigest(emailService, "Digest", Duration.ofMinutes(1), 1, 10, false);
+    AtomicInteger acknowledged = new AtomicInteger();
+    digest.add("ops@example.com", "endpoint-1", "overheat", acknowledged::incrementAndGet);
+    assertEquals(1, acknowledged.get());
+    digest.shutdown();
+  }
+
+  @Test
+  public void sendsDigestOnceWindowEnds() throws Exception {
+    RecordingEmailService emailService = new RecordingEmailService();
+    NotificationDigest digest = new NotificationDigest(emailService, "Digest", Duration.ofMillis(20), 100, 10, false);
+    digest.add("ops@example.com", "endpoint-1", "overheat");
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (emailService.texts.isEmpty() && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(1, emailService.texts.size());
+    digest.shutdown();
+  }
+
+  @Test
+  public void sendsEldestDigestEarlyWhenOpenLimitIsReached() {
+    RecordingEmailService emailService = new RecordingEmailService();
+    NotificationDigest digest = new NotificationDigest(emailService, "Digest", Duration.ofMinutes(1), 100, 2, false);
+    digest.add("first@example.com", "endpoint-1", "overheat");
+    digest.add("second@example.com", "endpoint-1", "overheat");
+    digest.add("third@example.com", "endpoint-1", "overheat");
+    assertEquals(1, emailService.recipients.size());
+    assertEquals("first@example.com", emailService.recipients.get(0));
+    digest.shutdown();
+  }
+
+  @Test
+  public void separatesEndpointsWhenDigestingPerEndpoint() {
+    RecordingEmailService emailService = new RecordingEmailService();
+    NotificationDigest digest = new NotificationDigest(emailService, "Digest", Duration.ofMinutes(1), 100, 10, true,
+        endpointId -> endpointId + " (kitchen)");
+    digest.add("ops@example.com", "endpoint-1", "overheat");
+    digest.add("ops@example.com", "endpoint-2", "overheat");
+    digest.flush();
+    assertEquals(2, emailService.texts.size());
+    assertTrue(emailService.texts.get(0), emailService.texts.get(0).contains("Endpoints: endpoint-1 (kitchen)"));
+    assertTrue(emailService.texts.get(1), emailService.texts.get(1).contains("Endpoints: endpoint-2 (kitchen)"));
+    digest.shutdown();
+  }
+
+  // Records notifications instead of sending them.
+  private static class RecordingEmailService extends EmailService {
+    private final List<String> recipients = new CopyOnWriteArrayList<>();
+    private final List<String> texts = new CopyOnWriteArrayList<>();
+    private volatile boolean failing;
+
+    @Override
+    public CompletableFuture<Void> sendNotificationAsync(String to, String subject, String text) {
+      recipients.add(to);
+      texts.add(text);
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      if (failing) {
+        future.completeExceptionally(new IllegalStateException("Send failed"));
+      } else {
+        future.complete(null);
+      }
+      return future;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.util.Utf8;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationRulesTest {
+
+  @Test
+  public void numberNotEqual() {
+    assertTrue(matches("temperature != 60", values("temperature", 61.5)));
+    assertTrue(matches("temperature != 60", values("temperature", 59)));
+    assertFalse(matches("temperature != 60", values("temperature", 60L)));
+    assertFalse(matches("temperature != 60", values("temperature", Double.NaN)));
+  }
+
+  @Test
+  public void numberNotEqualWithMissingOrOtherTypeValue() {
+    assertFalse(matches("temperature != 60", values()));
+    assertFalse(matches("temperature != 60", values("temperature", "hot")));
+    assertFalse(matches("temperature != 60", values("temperature", true)));
+  }
+
+  @Test
+  public void stringNotEqual() {
+    assertTrue(matches("state != CLOSED", values("state", "OPEN")));
+    assertTrue(matches("state != CLOSED", values("state", new Utf8("OPEN"))));
+    assertFalse(matches("state != CLOSED", values("state", "CLOSED")));
+    assertFalse(matches("state != CLOSED", values("state", new Utf8("CLOSED"))));
+  }
+
+  @Test
+  public void stringNotEqualWithMissingOrOtherTypeValue() {
+    assertFalse(matches("state != CLOSED", values()));
+    assertFalse(matches("state != CLOSED", values("state", 1)));
+    assertFalse(matches("state != CLOSED", values("state", false)));
+  }
+
+  @Test
+  public void booleanNotEqual() {
+    assertTrue(matches("alarm != true", values("alarm", false)));
+    assertFalse(matches("alarm != true", values("alarm", true)));
+  }
+
+  @Test
+  public void booleanNotEqualWithMissingOrOtherTypeValue() {
+    assertFalse(matches("alarm != true", values()));
+    assertFalse(matches("alarm != true", values("alarm", "false")));
+    assertFalse(matches("alarm != true", values("alarm", 0)));
+  }
+
+  @Test
+  public void notIn() {
+    String rule = "event_type not in (DOOR_OPENED, SMOKE, 7)";
+    assertTrue(matches(rule, values("event_type", "DOOR_CLOSED")));
+    assertTrue(matches(rule, values("event_type", 8)));
+    assertFalse(matches(rule, values("event_type", "SMOKE")));
+    assertFalse(matches(rule, values("event_type", new Utf8("DOOR_OPENED"))));
+    assertFalse(matches(rule, values("event_type", 7.0)));
+  }
+
+  @Test
+  public void notInWithMissingOrOtherTypeValue() {
+    assertFalse(matches("event_type not in (DOOR_OPENED, SMOKE)", values()));
+    assertFalse(matches("event_type not in (DOOR_OPENED, SMOKE)", values("event_type", 3)));
+    assertFalse(matches("event_type not in (DOOR_OPENED, SMOKE)", values("event_type", true)));
+    assertFalse(matches("level not in (1, 2)", values("level", "3")));
+    assertFalse(matches("armed not in (true)", values("armed", "false")));
+  }
+
+  @Test
+  public void notKeywordNegatesWholeComparison() {
+    assertTrue(matches("not temperature = 60", values()));
+    assertTrue(matches("not state in (CLOSED)", values("state", 1)));
+    assertFalse(matches("not temperature = 60", values("temperature", 60)));
+  }
+
+  @Test
+  public void sharedSubexpressionsMatchPerRule() {
+    Map<String, String> expressions = new HashMap<>();
+    expressions.put("open", "state = OPEN and temperature != 60");
+    expressions.put("notOpen", "state != OPEN and temperature != 60");
+    NotificationRules rules = new NotificationRules(expressions);
+    List<String> matched = new ArrayList<>();
+    rules.match(values("state", "OPEN", "temperature", 20), matched::add);
+    assertEquals(Collections.singletonList("open"), matched);
+    matched.clear();
+    rules.match(values("state", "OPEN"), matched::add);
+    assertTrue(matched.isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsOrderingOfStrings() {
+    new NotificationRules(Collections.singletonMap("rule", "state > OPEN"));
+  }
+
+  private static boolean matches(String expression, Map<String, Object> values) {
+    NotificationRules rules = new NotificationRules(Collections.singletonMap("rule", expression));
+    List<String> matched = new ArrayList<>();
+    rules.match(values, matched::add);
+    return !matched.isEmpty();
+  }
+
+  private static Map<String, Object> values(Object... keysAndValues) {
+    Map<String, Object> values = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      values.put((String) keysAndValues[i], keysAndValues[i + 1]);
+    }
+    return values;
+  }
+}
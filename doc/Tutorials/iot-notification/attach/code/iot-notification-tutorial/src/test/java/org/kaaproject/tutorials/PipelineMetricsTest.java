@@ -0,0 +1,113 @@
+package org.kaaproject.tutorials;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class PipelineMetricsTest {
+
+  private static final String OBJECT_NAME = "org.kaaproject.tutorials:type=PipelineMetricsTest";
+  private static final String EXPECTED_TEXT = "# HELP events_total Received events\n"
+      + "# TYPE events_total counter\n"
+      + "events_total 3\n"
+      + "# HELP queue_depth Queued events\n"
+      + "# TYPE queue_depth gauge\n"
+      + "queue_depth 7\n"
+      + "# HELP decode_seconds Decode latency\n"
+      + "# TYPE decode_seconds summary\n"
+      + "decode_seconds{quantile=\"0.5\"} 1.5\n"
+      + "decode_seconds{quantile=\"0.9\"} 1.5\n"
+      + "decode_seconds{quantile=\"0.99\"} 1.5\n"
+      + "decode_seconds{quantile=\"0.999\"} 1.5\n"
+      + "decode_seconds_sum 1.5\n"
+      + "decode_seconds_count 1\n"
+      + "# TYPE decode_seconds_max gauge\n"
+      + "decode_seconds_max 1.5\n";
+
+  private final PipelineMetrics metrics = new PipelineMetrics();
+
+  @After
+  public void close() {
+    metrics.close();
+  }
+
+  @Test
+  public void formatsPrometheusText() {
+    registerMetrics();
+    assertEquals(EXPECTED_TEXT, metrics.toPrometheusText());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsDuplicateNames() {
+    metrics.counter("events_total", "Received events");
+    metrics.gauge("events_total", "Received events", () -> 0);
+  }
+
+  @Test
+  public void servesPrometheusTextOverHttp() throws IOException {
+    registerMetrics();
+    int port;
+    try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+      port = socket.getLocalPort();
+    }
+    metrics.startHttpServer(port);
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/metrics").openConnection();
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("text/plain; version=0.0.4; charset=utf-8", connection.getContentType());
+    try (InputStream in = connection.getInputStream()) {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int read; (read = in.read(buffer)) > 0; ) {
+        body.write(buffer, 0, read);
+      }
+      assertEquals(EXPECTED_TEXT, new String(body.toByteArray(), StandardCharsets.UTF_8));
+    }
+  }
+
+  @Test
+  public void exposesMetricsAsMBeanAttributes() throws Exception {
+    registerMetrics();
+    metrics.registerMBean(OBJECT_NAME);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName objectName = new ObjectName(OBJECT_NAME);
+    assertEquals(3L, server.getAttribute(objectName, "events_total"));
+    assertEquals(7L, server.getAttribute(objectName, "queue_depth"));
+    assertEquals(1L, server.getAttribute(objectName, "decode_seconds_count"));
+    assertEquals(1.5, (double) server.getAttribute(objectName, "decode_seconds_p99"), 0);
+    assertEquals(1.5, (double) server.getAttribute(objectName, "decode_seconds_max"), 0);
+    assertEquals(8, server.getMBeanInfo(objectName).getAttributes().length);
+    try {
+      server.getAttribute(objectName, "decode_seconds_p75");
+      fail("Attribute without a metric is read");
+    } catch (AttributeNotFoundException ex) {
+      // Expected.
+    }
+    metrics.close();
+    assertFalse(server.isRegistered(objectName));
+  }
+
+  private void registerMetrics() {
+    LongAdder events = metrics.counter("events_total", "Received events");
+    events.add(3);
+    metrics.gauge("queue_depth", "Queued events", () -> 7);
+    metrics.histogram("decode_seconds", "Decode latency").record(TimeUnit.MILLISECONDS.toNanos(1500));
+  }
+}
@@ -0,0 +1,158 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PrimitiveEventDecoderTest {
+
+  @Test
+  public void decodesHeaderAndUnboxedValues() {
+    ValueKeys keys = new ValueKeys(16);
+    PrimitiveTimeSeriesEvent event = new PrimitiveEventDecoder(keys, null).decode(raw(event(allTypes())));
+    assertEquals("correlation-1", event.getCorrelationId());
+    assertEquals(2000L, event.getTimestamp());
+    assertEquals(500L, event.getTimeout());
+    assertEquals("smart-house-v1", event.getAppVersionName());
+    assertEquals("endpoint-1", event.getEndpointId());
+    assertEquals("notification", event.getTimeSeriesName());
+    assertEquals(1, event.getDataPointCount());
+
+    PrimitiveDataPoint dataPoint = event.getDataPoint(0);
+    assertEquals(1000L, dataPoint.getTimestamp());
+    assertEquals(8, dataPoint.size());
+    assertTrue(dataPoint.getBoolean(keys.find("open"), false));
+    assertEquals(3, dataPoint.getLong(keys.find("floor"), -1));
+    assertEquals(1_600_000_000_000L, dataPoint.getLong(keys.find("uptime"), -1));
+    assertEquals(21.5, dataPoint.getDouble(keys.find("temperature")), 0);
+    assertEquals(0.25, dataPoint.getDouble(keys.find("humidity")), 0);
+    assertEquals("living-room", dataPoint.getString(keys.find("room")));
+    assertEquals(ByteBuffer.wrap(new byte[] {1, 2}), dataPoint.getBytes(keys.find("raw")));
+    assertEquals(PrimitiveDataPoint.ValueType.NULL, dataPoint.getType(keys.find("battery")));
+    // Values of other types read as missing.
+    assertEquals(-1, dataPoint.getLong(keys.find("temperature"), -1));
+    assertTrue(Double.isNaN(dataPoint.getDouble(keys.find("room"))));
+    assertNull(dataPoint.getString(keys.find("floor")));
+  }
+
+  @Test
+  public void matchesEventConvertedFromValueMap() {
+    TimeSeriesEvent event = event(allTypes());
+    ValueKeys keys = new ValueKeys(16);
+    PrimitiveTimeSeriesEvent decoded = new PrimitiveEventDecoder(keys, null).decode(raw(event));
+    PrimitiveTimeSeriesEvent converted = new PrimitiveTimeSeriesEvent();
+    converted.copyFrom(event, keys);
+    PrimitiveDataPoint decodedPoint = decoded.getDataPoint(0);
+    PrimitiveDataPoint convertedPoint = converted.getDataPoint(0);
+    assertEquals(convertedPoint.size(), decodedPoint.size());
+    for (String name : event.getDataPoints().get(0).getValues().keySet()) {
+      int keyId = keys.find(name);
+      assertEquals(convertedPoint.getType(keyId), decodedPoint.getType(keyId));
+      assertEquals(convertedPoint.getSlotValue(convertedPoint.slotOf(keyId)),
+          decodedPoint.getSlotValue(decodedPoint.slotOf(keyId)));
+    }
+  }
+
+  @Test
+  public void dropsValuesWhoseNamesGetNoId() {
+    ValueKeys keys = new ValueKeys(1);
+    Map<String, Object> values = new LinkedHashMap<>();
+    values.put("temperature", 21.5);
+    values.put("room", "living-room");
+    values.put("raw", ByteBuffer.wrap(new byte[] {1, 2}));
+    values.put("floor", 3);
+    PrimitiveTimeSeriesEvent event = new PrimitiveEventDecoder(keys, null)
+        .decode(raw(event(Arrays.asList(new DataPoint(1000L, values), new DataPoint(1001L, values)))));
+    assertEquals(2, event.getDataPointCount());
+    for (int i = 0; i < 2; i++) {
+      PrimitiveDataPoint dataPoint = event.getDataPoint(i);
+      assertEquals(1000L + i, dataPoint.getTimestamp());
+      assertEquals(1, dataPoint.size());
+      assertEquals(21.5, dataPoint.getDouble(keys.find("temperature")), 0);
+    }
+  }
+
+  @Test
+  public void reusesEventAndDecodesAtOffset() {
+    PrimitiveEventDecoder decoder = new PrimitiveEventDecoder(new ValueKeys(16), null);
+    DataPoint dataPoint = new DataPoint(1000L, Collections.singletonMap("temperature", 21.5));
+    PrimitiveTimeSeriesEvent reuse = decoder.decode(raw(event(Arrays.asList(dataPoint, dataPoint, dataPoint))));
+    PrimitiveDataPoint first = reuse.getDataPoint(0);
+
+    byte[] raw = raw(event(Collections.singletonList(new DataPoint(3000L, Collections.singletonMap("open", true)))));
+    byte[] padded = new byte[raw.length + 5];
+    System.arraycopy(raw, 0, padded, 3, raw.length);
+    assertSame(reuse, decoder.decodeInto(padded, 3, raw.length, reuse));
+    assertEquals(1, reuse.getDataPointCount());
+    assertSame(first, reuse.getDataPoint(0));
+    assertEquals(3000L, first.getTimestamp());
+    assertEquals(1, first.size());
+    assertTrue(first.getBoolean(decoder.getKeys().find("open"), false));
+    assertFalse(first.getBoolean(decoder.getKeys().find("temperature"), false));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void failsOnUnknownSchemaWithoutFallback() throws IOException {
+    ByteBuffer buffer = TimeSeriesEvent.getEncoder().encode(event(allTypes()));
+    byte[] singleObject = new byte[buffer.remaining()];
+    buffer.get(singleObject);
+    // Fingerprint follows the two marker bytes.
+    singleObject[2] ^= 1;
+    new PrimitiveEventDecoder(new ValueKeys(16), null).decode(singleObject);
+  }
+
+  private static List<DataPoint> allTypes() {
+    Map<String, Object> values = new LinkedHashMap<>();
+    values.put("open", true);
+    values.put("floor", 3);
+    values.put("uptime", 1_600_000_000_000L);
+    values.put("humidity", 0.25f);
+    values.put("temperature", 21.5);
+    values.put("room", "living-room");
+    values.put("raw", ByteBuffer.wrap(new byte[] {1, 2}));
+    values.put("battery", null);
+    return Collections.singletonList(new DataPoint(1000L, values));
+  }
+
+  private static TimeSeriesEvent event(List<DataPoint> dataPoints) {
+    return TimeSeriesEvent.newBuilder()
+        .setCorrelationId("correlation-1")
+        .setTimestamp(2000L)
+        .setTimeout(500L)
+        .setAppVersionName("smart-house-v1")
+        .setEndpointId("endpoint-1")
+        .setTimeSeriesName("notification")
+        .setDataPoints(dataPoints)
+        .build();
+  }
+
+  private static byte[] raw(TimeSeriesEvent event) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+      new SpecificDatumWriter<>(TimeSeriesEvent.class).write(event, encoder);
+      encoder.flush();
+      return out.toByteArray();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
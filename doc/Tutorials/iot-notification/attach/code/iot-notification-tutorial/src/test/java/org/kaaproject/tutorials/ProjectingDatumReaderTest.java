@@ -0,0 +1,112 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ProjectingDatumReaderTest {
+
+  @Test
+  public void internsTopLevelFieldsOnly() {
+    // The correlation ID is at the position of the timestamp of nested data points.
+    StringInterner interner = new StringInterner(new HashSet<>(Arrays.asList("correlationId", "endpointId")),
+        16, new ValueKeys(16));
+    AvroConverter<TimeSeriesEvent> converter = new AvroConverter<>(TimeSeriesEvent.class, null, null, null, interner);
+    TimeSeriesEvent event = event("endpoint-1", 3);
+    byte[] bytes = encode(event);
+
+    TimeSeriesEvent first = converter.decode(bytes);
+    TimeSeriesEvent second = converter.decode(bytes);
+    assertEquals(event, first);
+    assertEquals(event, second);
+    assertSame(first.getEndpointId(), second.getEndpointId());
+    assertSame(first.getCorrelationId(), second.getCorrelationId());
+  }
+
+  @Test
+  public void projectsFieldsAndMapKeys() {
+    AvroConverter<TimeSeriesEvent> converter = new AvroConverter<>(TimeSeriesEvent.class,
+        new HashSet<>(Arrays.asList("endpointId", "dataPoints")), Collections.singleton("temperature"));
+    TimeSeriesEvent decoded = converter.decode(encode(event("endpoint-2", 2)));
+
+    assertEquals("endpoint-2", decoded.getEndpointId());
+    assertNull(decoded.getAppVersionName());
+    assertEquals(2, decoded.getDataPoints().size());
+    for (DataPoint dataPoint : decoded.getDataPoints()) {
+      assertEquals(Collections.singleton("temperature"), dataPoint.getValues().keySet());
+    }
+  }
+
+  @Test
+  public void skipsProjectedOutNullValues() {
+    // The skipped null comes first, so the values after it are only read right if it is consumed.
+    Map<String, Object> values = new LinkedHashMap<>();
+    values.put("battery", null);
+    values.put("temperature", 21.5);
+    values.put("event_type", "DOOR_OPENED");
+    TimeSeriesEvent event = event("endpoint-3", 0);
+    event.setDataPoints(Arrays.asList(new DataPoint(1000L, values), new DataPoint(1001L, values)));
+    AvroConverter<TimeSeriesEvent> converter = new AvroConverter<>(TimeSeriesEvent.class, null,
+        new HashSet<>(Arrays.asList("temperature", "event_type")));
+    TimeSeriesEvent decoded = converter.decode(encode(event));
+
+    Map<String, Object> projected = new HashMap<>(values);
+    projected.remove("battery");
+    assertEquals(2, decoded.getDataPoints().size());
+    for (int i = 0; i < 2; i++) {
+      assertEquals(1000L + i, (long) decoded.getDataPoints().get(i).getTimestamp());
+      assertEquals(projected, decoded.getDataPoints().get(i).getValues());
+    }
+    assertEquals("notification", decoded.getTimeSeriesName());
+  }
+
+  private static TimeSeriesEvent event(String endpointId, int dataPointCount) {
+    List<DataPoint> dataPoints = new ArrayList<>();
+    for (int i = 0; i < dataPointCount; i++) {
+      Map<String, Object> values = new HashMap<>();
+      values.put("temperature", 20.5 + i);
+      values.put("event_type", "DOOR_OPENED");
+      values.put("battery", null);
+      dataPoints.add(new DataPoint(1000L + i, values));
+    }
+    return TimeSeriesEvent.newBuilder()
+        .setCorrelationId("correlation-" + endpointId)
+        .setTimestamp(2000L)
+        .setTimeout(0L)
+        .setAppVersionName("smart-house-v1")
+        .setEndpointId(endpointId)
+        .setTimeSeriesName("notification")
+        .setDataPoints(dataPoints)
+        .build();
+  }
+
+  private static byte[] encode(TimeSeriesEvent event) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+      new SpecificDatumWriter<>(TimeSeriesEvent.class).write(event, encoder);
+      encoder.flush();
+      return out.toByteArray();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
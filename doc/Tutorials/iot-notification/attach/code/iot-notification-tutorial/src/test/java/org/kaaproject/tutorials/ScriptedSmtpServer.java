@@ -0,0 +1,142 @@
+package org.kaaproject.tutorials;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local SMTP server accepting every message, except for the configured number of failures injected
+ * at the start of a transaction, at a recipient or after the message content.
+ */
+class ScriptedSmtpServer implements AutoCloseable {
+  private final ServerSocket serverSocket;
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger receivedMessages = new AtomicInteger();
+  // Remaining failures of each kind.
+  private final AtomicInteger dropsOnMail = new AtomicInteger();
+  private final AtomicInteger rejectionsOnRecipient = new AtomicInteger();
+  private final AtomicInteger stallsAfterContent = new AtomicInteger();
+  private volatile boolean closed;
+
+  ScriptedSmtpServer() throws IOException {
+    serverSocket = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+    Thread acceptor = new Thread(this::acceptConnections, "scripted-smtp-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  int getConnectionCount() {
+    return connections.get();
+  }
+
+  /**
+   * Returns number of messages whose content was received completely, including ones not replied to.
+   */
+  int getReceivedMessageCount() {
+    return receivedMessages.get();
+  }
+
+  /**
+   * Closes the connection on the next {@code count} MAIL commands.
+   */
+  void dropOnMail(int count) {
+    dropsOnMail.set(count);
+  }
+
+  /**
+   * Rejects the next {@code count} RCPT commands with a temporary failure.
+   */
+  void rejectRecipient(int count) {
+    rejectionsOnRecipient.set(count);
+  }
+
+  /**
+   * Stops replying after receiving the content of the next {@code count} messages, until the client disconnects.
+   */
+  void stallAfterContent(int count) {
+    stallsAfterContent.set(count);
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    serverSocket.close();
+  }
+
+  private void acceptConnections() {
+    while (!closed) {
+      try {
+        Socket socket = serverSocket.accept();
+        connections.incrementAndGet();
+        Thread handler = new Thread(() -> handle(socket), "scripted-smtp-session");
+        handler.setDaemon(true);
+        handler.start();
+      } catch (IOException ex) {
+        // server socket closed
+      }
+    }
+  }
+
+  private void handle(Socket socket) {
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.US_ASCII));
+         OutputStream out = s.getOutputStream()) {
+      reply(out, "220 localhost ESMTP");
+      String line;
+      while ((line = in.readLine()) != null) {
+        String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toUpperCase();
+        switch (command) {
+          case "EHLO":
+            reply(out, "250-localhost\r\n250 8BITMIME");
+            break;
+          case "MAIL":
+            if (dropsOnMail.getAndDecrement() > 0) {
+              return;
+            }
+            reply(out, "250 OK");
+            break;
+          case "RCPT":
+            reply(out, rejectionsOnRecipient.getAndDecrement() > 0 ? "452 Try again later" : "250 OK");
+            break;
+          case "DATA":
+            reply(out, "354 End data with <CR><LF>.<CR><LF>");
+            while ((line = in.readLine()) != null && !line.equals(".")) {
+              // message content is discarded
+            }
+            receivedMessages.incrementAndGet();
+            if (stallsAfterContent.getAndDecrement() > 0) {
+              while (in.readLine() != null) {
+                // commands are ignored
+              }
+              return;
+            }
+            reply(out, "250 OK");
+            break;
+          case "QUIT":
+            reply(out, "221 Bye");
+            return;
+          default:
+            // HELO, RSET and NOOP
+            reply(out, "250 OK");
+        }
+      }
+    } catch (IOException ex) {
+      // connection dropped by the client
+    }
+  }
+
+  private static void reply(OutputStream out, String reply) throws IOException {
+    out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+  }
+}
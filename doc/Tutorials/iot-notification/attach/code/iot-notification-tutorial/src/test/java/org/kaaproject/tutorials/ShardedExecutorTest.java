@@ -0,0 +1,116 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedExecutorTest {
+
+  private static final int KEY_COUNT = 16;
+  private static final int TASKS_PER_KEY = 100;
+
+  @Test
+  public void runsTasksOfKeyOnOneShardInSubmissionOrder() {
+    ShardedExecutor executor = new ShardedExecutor("ordered-shard", 4, 8);
+    List<List<Integer>> completed = new ArrayList<>();
+    List<Set<String>> threadNames = new ArrayList<>();
+    for (int key = 0; key < KEY_COUNT; key++) {
+      completed.add(Collections.synchronizedList(new ArrayList<>()));
+      threadNames.add(ConcurrentHashMap.newKeySet());
+    }
+    for (int i = 0; i < TASKS_PER_KEY; i++) {
+      for (int key = 0; key < KEY_COUNT; key++) {
+        List<Integer> keyCompleted = completed.get(key);
+        Set<String> keyThreadNames = threadNames.get(key);
+        int index = i;
+        executor.execute(TimeSeriesEventKeys.endpointIdHash("endpoint-" + key), () -> {
+          keyThreadNames.add(Thread.currentThread().getName());
+          keyCompleted.add(index);
+        });
+      }
+    }
+    assertTrue(executor.shutdown(Duration.ofSeconds(10)));
+    for (int key = 0; key < KEY_COUNT; key++) {
+      assertEquals(1, threadNames.get(key).size());
+      List<Integer> keyCompleted = completed.get(key);
+      assertEquals(TASKS_PER_KEY, keyCompleted.size());
+      for (int i = 0; i < TASKS_PER_KEY; i++) {
+        assertEquals(i, (int) keyCompleted.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void blocksSubmitterWhileShardQueueIsFull() throws InterruptedException {
+    ShardedExecutor executor = new ShardedExecutor("full-shard", 1, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(1, () -> {
+      started.countDown();
+      awaitQuietly(release);
+    });
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    executor.execute(1, () -> { });
+    assertEquals(1.0, executor.getFillRatio(), 0);
+
+    CountDownLatch submitted = new CountDownLatch(1);
+    Thread submitter = new Thread(() -> {
+      executor.execute(1, () -> { });
+      submitted.countDown();
+    });
+    submitter.start();
+    assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+    release.countDown();
+    assertTrue(submitted.await(10, TimeUnit.SECONDS));
+    assertTrue(executor.shutdown(Duration.ofSeconds(10)));
+    assertEquals(0, executor.getQueuedCount());
+  }
+
+  @Test
+  public void keepsRunningAfterFailedTask() {
+    ShardedExecutor executor = new ShardedExecutor("failing-shard", 1, 4);
+    List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+    executor.execute(1, () -> {
+      throw new IllegalStateException("Task failed");
+    });
+    executor.execute(1, () -> completed.add(1));
+    assertTrue(executor.shutdown(Duration.ofSeconds(10)));
+    assertEquals(Collections.singletonList(1), completed);
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void rejectsTasksAfterShutdown() {
+    ShardedExecutor executor = new ShardedExecutor("stopped-shard", 2, 4);
+    assertTrue(executor.shutdown(Duration.ofSeconds(10)));
+    executor.execute(1, () -> { });
+  }
+
+  @Test
+  public void reportsTasksNotCompletedWithinTimeout() {
+    ShardedExecutor executor = new ShardedExecutor("slow-shard", 1, 4);
+    CountDownLatch release = new CountDownLatch(1);
+    executor.execute(1, () -> awaitQuietly(release));
+    assertFalse(executor.shutdown(Duration.ofMillis(100)));
+    release.countDown();
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.SchemaNormalization;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.message.SchemaStore;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SingleObjectEncodingTest {
+
+  private static final TimeSeriesEvent EVENT = TimeSeriesEvent.newBuilder()
+      .setCorrelationId("correlation-1")
+      .setTimestamp(2000L)
+      .setTimeout(0L)
+      .setAppVersionName("smart-house-v1")
+      .setEndpointId("endpoint-1")
+      .setTimeSeriesName("notification")
+      .setDataPoints(Collections.singletonList(new DataPoint(1000L, Collections.singletonMap("temperature", 21.5))))
+      .build();
+
+  @Test
+  public void readsHeader() throws IOException {
+    byte[] singleObject = singleObject(EVENT);
+    assertTrue(SingleObjectEncoding.hasHeader(singleObject, 0, singleObject.length));
+    assertEquals(SchemaNormalization.parsingFingerprint64(TimeSeriesEvent.getClassSchema()),
+        SingleObjectEncoding.readFingerprint(singleObject, 0));
+
+    byte[] shifted = new byte[singleObject.length + 3];
+    System.arraycopy(singleObject, 0, shifted, 3, singleObject.length);
+    assertTrue(SingleObjectEncoding.hasHeader(shifted, 3, singleObject.length));
+    assertEquals(SingleObjectEncoding.readFingerprint(singleObject, 0), SingleObjectEncoding.readFingerprint(shifted, 3));
+    assertFalse(SingleObjectEncoding.hasHeader(singleObject, 0, SingleObjectEncoding.HEADER_LENGTH - 1));
+  }
+
+  @Test
+  public void rawRecordHasNoHeader() {
+    byte[] raw = raw(EVENT);
+    assertFalse(SingleObjectEncoding.hasHeader(raw, 0, raw.length));
+  }
+
+  @Test
+  public void decodersSkipHeader() throws IOException {
+    byte[] singleObject = singleObject(EVENT);
+    SchemaStore.Cache schemaStore = new SchemaStore.Cache();
+    schemaStore.addSchema(TimeSeriesEvent.getClassSchema());
+
+    assertEquals(EVENT, new AvroConverter<>(TimeSeriesEvent.class, null, null, schemaStore).decode(singleObject));
+    assertEquals("endpoint-1", new PrimitiveEventDecoder(new ValueKeys(16), null).decode(singleObject).getEndpointId());
+    assertEquals(TimeSeriesEventKeys.endpointIdHash("endpoint-1"), TimeSeriesEventKeys.endpointIdHash(singleObject));
+    assertEquals(TimeSeriesEventKeys.endpointIdHash(raw(EVENT)), TimeSeriesEventKeys.endpointIdHash(singleObject));
+  }
+
+  private static byte[] singleObject(TimeSeriesEvent event) throws IOException {
+    ByteBuffer buffer = TimeSeriesEvent.getEncoder().encode(event);
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  private static byte[] raw(TimeSeriesEvent event) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+      new SpecificDatumWriter<>(TimeSeriesEvent.class).write(event, encoder);
+      encoder.flush();
+      return out.toByteArray();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.mail.Message;
+import javax.mail.Transport;
+import javax.mail.internet.MimeMessage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SmtpTransportPoolTest {
+
+  @Test
+  public void reusesReleasedTransport() throws Exception {
+    try (ScriptedSmtpServer server = new ScriptedSmtpServer();
+         SmtpTransportPool pool = new SmtpTransportPool(mailSender(server), 2, 60_000, 60_000)) {
+      Transport transport = pool.borrow();
+      pool.release(transport);
+      assertSame(transport, pool.borrow());
+      assertEquals(1, server.getConnectionCount());
+    }
+  }
+
+  @Test
+  public void replacesTransportIdleForTooLong() throws Exception {
+    try (ScriptedSmtpServer server = new ScriptedSmtpServer();
+         SmtpTransportPool pool = new SmtpTransportPool(mailSender(server), 2, 0, 0)) {
+      Transport transport = pool.borrow();
+      pool.release(transport);
+      Thread.sleep(5);
+      assertNotSame(transport, pool.borrow());
+      assertFalse(transport.isConnected());
+      assertEquals(2, server.getConnectionCount());
+    }
+  }
+
+  @Test
+  public void closesTransportsBeyondIdleLimit() throws Exception {
+    try (ScriptedSmtpServer server = new ScriptedSmtpServer();
+         SmtpTransportPool pool = new SmtpTransportPool(mailSender(server), 1, 60_000, 60_000)) {
+      Transport first = pool.borrow();
+      Transport second = pool.borrow();
+      pool.release(first);
+      pool.release(second);
+      assertTrue(first.isConnected());
+      assertFalse(second.isConnected());
+    }
+  }
+
+  @Test
+  public void discardedTransportIsNotReused() throws Exception {
+    try (ScriptedSmtpServer server = new ScriptedSmtpServer();
+         SmtpTransportPool pool = new SmtpTransportPool(mailSender(server), 2, 60_000, 60_000)) {
+      Transport transport = pool.borrow();
+      pool.discard(transport);
+      assertNotSame(transport, pool.borrow());
+      assertEquals(2, server.getConnectionCount());
+    }
+  }
+
+  @Test
+  public void tracksWhetherContentWasSent() throws Exception {
+    try (ScriptedSmtpServer server = new ScriptedSmtpServer();
+         SmtpTransportPool pool = new SmtpTransportPool(mailSender(server), 1, 60_000, 60_000)) {
+      Transport transport = pool.borrow();
+      assertFalse(SmtpTransportPool.mayHaveSentContent(transport));
+      MimeMessage message = mailSender(server).createMimeMessage();
+      message.setRecipients(Message.RecipientType.TO, "to@example.com");
+      message.setText("text");
+      message.saveChanges();
+      transport.sendMessage(message, message.getAllRecipients());
+      assertTrue(SmtpTransportPool.mayHaveSentContent(transport));
+      pool.release(transport);
+    }
+  }
+
+  private static JavaMailSenderImpl mailSender(ScriptedSmtpServer server) {
+    JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+    mailSender.setHost("127.0.0.1");
+    mailSender.setPort(server.getPort());
+    return mailSender;
+  }
+}
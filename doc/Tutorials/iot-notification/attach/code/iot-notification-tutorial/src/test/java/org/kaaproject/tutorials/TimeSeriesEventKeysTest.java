@@ -0,0 +1,82 @@
+package org.kaaproject.tutorials;
+
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TimeSeriesEventKeysTest {
+
+  @Test
+  public void hashesEndpointIdOfRawMessage() {
+    byte[] raw = raw(event("endpoint-\u00e9\u4e2d", 2000L, 0L));
+    assertEquals(TimeSeriesEventKeys.endpointIdHash("endpoint-\u00e9\u4e2d"), TimeSeriesEventKeys.endpointIdHash(raw));
+    assertNotEquals(TimeSeriesEventKeys.endpointIdHash("endpoint-2"), TimeSeriesEventKeys.endpointIdHash(raw));
+    assertNotEquals(TimeSeriesEventKeys.UNKNOWN, TimeSeriesEventKeys.endpointIdHash(raw));
+  }
+
+  @Test
+  public void readsExpiryFromTimestampAndTimeout() {
+    assertEquals(1_600_000_000_500L, TimeSeriesEventKeys.expiresAt(raw(event("endpoint-1", 1_600_000_000_000L, 500L))));
+    assertEquals(TimeSeriesEventKeys.NEVER, TimeSeriesEventKeys.expiresAt(raw(event("endpoint-1", 2000L, 0L))));
+  }
+
+  @Test
+  public void returnsUnknownForTruncatedMessages() {
+    byte[] raw = raw(event("endpoint-1", 2000L, 500L));
+    // The message is cut in the middle of the endpoint ID.
+    byte[] truncated = Arrays.copyOf(raw, 1 + "correlation-1".length() + 2 + 2 + 1 + "smart-house-v1".length() + 1 + 4);
+    assertEquals(TimeSeriesEventKeys.UNKNOWN, TimeSeriesEventKeys.endpointIdHash(truncated));
+    assertEquals(2500L, TimeSeriesEventKeys.expiresAt(truncated));
+    assertEquals(TimeSeriesEventKeys.UNKNOWN, TimeSeriesEventKeys.endpointIdHash(Arrays.copyOf(raw, 3)));
+    assertEquals(TimeSeriesEventKeys.NEVER, TimeSeriesEventKeys.expiresAt(Arrays.copyOf(raw, 3)));
+    assertEquals(TimeSeriesEventKeys.UNKNOWN, TimeSeriesEventKeys.endpointIdHash(new byte[0]));
+  }
+
+  @Test
+  public void returnsUnknownForMessagesOfOtherSchema() throws IOException {
+    ByteBuffer buffer = TimeSeriesEvent.getEncoder().encode(event("endpoint-1", 2000L, 500L));
+    byte[] singleObject = new byte[buffer.remaining()];
+    buffer.get(singleObject);
+    assertEquals(TimeSeriesEventKeys.endpointIdHash("endpoint-1"), TimeSeriesEventKeys.endpointIdHash(singleObject));
+    assertEquals(2500L, TimeSeriesEventKeys.expiresAt(singleObject));
+    // Fingerprint follows the two marker bytes.
+    singleObject[2] ^= 1;
+    assertEquals(TimeSeriesEventKeys.UNKNOWN, TimeSeriesEventKeys.endpointIdHash(singleObject));
+    assertEquals(TimeSeriesEventKeys.NEVER, TimeSeriesEventKeys.expiresAt(singleObject));
+  }
+
+  private static TimeSeriesEvent event(String endpointId, long timestamp, long timeout) {
+    return TimeSeriesEvent.newBuilder()
+        .setCorrelationId("correlation-1")
+        .setTimestamp(timestamp)
+        .setTimeout(timeout)
+        .setAppVersionName("smart-house-v1")
+        .setEndpointId(endpointId)
+        .setTimeSeriesName("notification")
+        .setDataPoints(Collections.emptyList())
+        .build();
+  }
+
+  private static byte[] raw(TimeSeriesEvent event) {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+      new SpecificDatumWriter<>(TimeSeriesEvent.class).write(event, encoder);
+      encoder.flush();
+      return out.toByteArray();
+    } catch (IOException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.kaaproject.tutorials;
+
+import io.nats.client.Connection;
+import io.nats.client.Dispatcher;
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimeSeriesEventPublisherTest {
+
+  // Time given to signals sent from separate threads.
+  private static final long SIGNAL_WAIT_MILLIS = 200;
+
+  @Test
+  public void signalsErrorOnceForNonPositiveRequest() throws Exception {
+    RecordingSubscriber subscriber = subscribe();
+    subscriber.subscription.request(0);
+    assertTrue(subscriber.terminated.await(5, TimeUnit.SECONDS));
+    subscriber.subscription.request(-1);
+    Thread.sleep(SIGNAL_WAIT_MILLIS);
+    assertEquals(1, subscriber.signals.size());
+    assertTrue(subscriber.signals.get(0) instanceof IllegalArgumentException);
+  }
+
+  @Test
+  public void ignoresNonPositiveRequestAfterCancel() throws Exception {
+    RecordingSubscriber subscriber = subscribe();
+    subscriber.subscription.cancel();
+    subscriber.subscription.request(0);
+    Thread.sleep(SIGNAL_WAIT_MILLIS);
+    assertTrue(subscriber.signals.isEmpty());
+  }
+
+  @Test
+  public void ignoresNonPositiveRequestAfterCompletion() throws Exception {
+    TimeSeriesEventService service = service();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new TimeSeriesEventPublisher(service, Duration.ofSeconds(1)).subscribe(subscriber);
+    service.shutdown(Duration.ofSeconds(1));
+    subscriber.subscription.request(0);
+    Thread.sleep(SIGNAL_WAIT_MILLIS);
+    assertEquals(1, subscriber.signals.size());
+    assertEquals("complete", subscriber.signals.get(0));
+  }
+
+  private static RecordingSubscriber subscribe() {
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new TimeSeriesEventPublisher(service(), Duration.ofSeconds(1)).subscribe(subscriber);
+    return subscriber;
+  }
+
+  // Service over a connection stub that accepts subscriptions and never delivers messages.
+  private static TimeSeriesEventService service() {
+    Dispatcher dispatcher = stub(Dispatcher.class);
+    Connection connection = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] {Connection.class}, (proxy, method, args) ->
+            method.getName().equals("createDispatcher") ? dispatcher : defaultValue(method.getReturnType()));
+    return new TimeSeriesEventService(connection, new AvroConverter<>(TimeSeriesEvent.class), true);
+  }
+
+  private static <T> T stub(Class<T> type) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+      if (method.getName().equals("drain")) {
+        return CompletableFuture.completedFuture(true);
+      }
+      return method.getReturnType().isInstance(proxy) ? proxy : defaultValue(method.getReturnType());
+    }));
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == long.class) {
+      return 0L;
+    } else if (type == int.class) {
+      return 0;
+    } else if (type == boolean.class) {
+      return false;
+    }
+    return null;
+  }
+
+  private static class RecordingSubscriber implements Flow.Subscriber<TimeSeriesEvent> {
+    private final List<Object> signals = new CopyOnWriteArrayList<>();
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private volatile Flow.Subscription subscription;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(TimeSeriesEvent item) {
+      signals.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      signals.add(throwable);
+      terminated.countDown();
+    }
+
+    @Override
+    public void onComplete() {
+      signals.add("complete");
+      terminated.countDown();
+    }
+  }
+}
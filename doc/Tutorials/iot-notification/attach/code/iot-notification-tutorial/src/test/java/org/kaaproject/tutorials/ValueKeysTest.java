@@ -0,0 +1,74 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ValueKeysTest {
+
+  @Test
+  public void assignsIdsInOrderOfFirstLookup() {
+    ValueKeys keys = new ValueKeys(16);
+    assertEquals(0, keys.idOf("temperature"));
+    assertEquals(1, keys.idOf("humidity"));
+    assertEquals(0, keys.idOf("temperature"));
+    byte[] padded = "[humidity]".getBytes(StandardCharsets.UTF_8);
+    assertEquals(1, keys.idOf(padded, 1, "humidity".length()));
+    assertEquals(ValueKeys.UNKNOWN, keys.find("pressure"));
+    assertEquals(2, keys.size());
+    assertEquals("humidity", keys.name(1));
+  }
+
+  @Test
+  public void findsNamesAcrossTableGrowth() {
+    ValueKeys keys = new ValueKeys(1000);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, keys.idOf(name(i)));
+    }
+    for (int i = 0; i < 1000; i++) {
+      byte[] utf8 = name(i).getBytes(StandardCharsets.UTF_8);
+      assertEquals(i, keys.idOf(utf8, 0, utf8.length));
+      assertEquals(i, keys.find(name(i)));
+    }
+    assertEquals(1000, keys.size());
+  }
+
+  @Test
+  public void stopsAssigningIdsWhenFull() {
+    ValueKeys keys = new ValueKeys(2);
+    keys.idOf("temperature");
+    keys.idOf("humidity");
+    byte[] pressure = "pressure".getBytes(StandardCharsets.UTF_8);
+    assertEquals(ValueKeys.UNKNOWN, keys.idOf("pressure"));
+    assertEquals(ValueKeys.UNKNOWN, keys.idOf(pressure, 0, pressure.length));
+    assertEquals(1, keys.idOf("humidity"));
+    assertEquals(2, keys.size());
+  }
+
+  @Test
+  public void internsNamesWithIds() {
+    ValueKeys keys = new ValueKeys(1);
+    byte[] first = "living-room".getBytes(StandardCharsets.UTF_8);
+    byte[] second = "living-room".getBytes(StandardCharsets.UTF_8);
+    String interned = keys.intern(first, 0, first.length);
+    assertSame(interned, keys.intern(second, 0, second.length));
+    byte[] other = "kitchen".getBytes(StandardCharsets.UTF_8);
+    String notInterned = keys.intern(other, 0, other.length);
+    assertEquals("kitchen", notInterned);
+    assertNotSame(notInterned, keys.intern(other, 0, other.length));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsEmptyTable() {
+    new ValueKeys(0);
+  }
+
+  // Names of various lengths, longer than a hashing step and with multi-byte characters.
+  private static String name(int index) {
+    return index % 3 == 0 ? "value-" + index : index % 3 == 1 ? "sensor.reading.\u00b0C." + index : "k" + index;
+  }
+}
@@ -0,0 +1,106 @@
+package org.kaaproject.tutorials;
+
+import org.junit.Test;
+import org.kaaproject.ipc.tstp.gen.v1.DataPoint;
+import org.kaaproject.ipc.tstp.gen.v1.TimeSeriesEvent;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WindowedAlertsTest {
+
+  private static final long START = TimeUnit.SECONDS.toNanos(1);
+  private static final Duration WINDOW = Duration.ofSeconds(10);
+  private static final Duration LATENESS = Duration.ofSeconds(2);
+
+  private final List<String> alerts = new ArrayList<>();
+
+  @Test
+  public void firesWhenConditionBecomesTrueAndAgainOnlyAfterItWasFalse() {
+    WindowedAlerts windowedAlerts = alerts(WindowedAlerts.Condition.above("hot", WindowedAlerts.Aggregation.AVERAGE,
+        "temperature", WINDOW, 30));
+    windowedAlerts.add(event("endpoint-1", 0, "temperature", 25), START);
+    assertEquals(0, alerts.size());
+    windowedAlerts.add(event("endpoint-1", 1000, "temperature", 40), START);
+    assertEquals(Collections.singletonList("endpoint-1 hot 32.5"), alerts);
+    windowedAlerts.add(event("endpoint-1", 2000, "temperature", 40), START);
+    assertEquals(1, alerts.size());
+    // The average drops to 25, and rises above the threshold again.
+    windowedAlerts.add(event("endpoint-1", 3000, "temperature", 10), START);
+    windowedAlerts.add(event("endpoint-1", 3000, "temperature", 10), START);
+    assertEquals(1, alerts.size());
+    windowedAlerts.add(event("endpoint-1", 4000, "temperature", 100), START);
+    assertEquals(2, alerts.size());
+    assertEquals(2, windowedAlerts.getAlertCount());
+  }
+
+  @Test
+  public void slidesWindowByBuckets() {
+    WindowedAlerts windowedAlerts = alerts(WindowedAlerts.Condition.above("sum", WindowedAlerts.Aggregation.SUM,
+        "power", WINDOW, 100));
+    windowedAlerts.add(event("within", 0, "power", 60), START);
+    windowedAlerts.add(event("within", 9999, "power", 60), START);
+    // The first bucket slid out of the window by the time of the second data point.
+    windowedAlerts.add(event("slid-out", 0, "power", 60), START);
+    windowedAlerts.add(event("slid-out", 10_000, "power", 60), START);
+    windowedAlerts.add(event("slid-out", 15_000, "power", 30), START);
+    assertEquals(Collections.singletonList("within sum 120.0"), alerts);
+  }
+
+  @Test
+  public void dropsDataPointsLaterThanAllowed() {
+    WindowedAlerts windowedAlerts = alerts(WindowedAlerts.Condition.countAbove("opened", "event_type = WINDOW_OPENED",
+        WINDOW, 2));
+    windowedAlerts.add(event("endpoint-1", 5000, "event_type", "WINDOW_OPENED"), START);
+    windowedAlerts.add(event("endpoint-1", 2000, "event_type", "WINDOW_OPENED"), START);
+    assertEquals(1, windowedAlerts.getLateCount());
+    windowedAlerts.add(event("endpoint-1", 4000, "event_type", "DOOR_OPENED"), START);
+    windowedAlerts.add(event("endpoint-1", 4000, "event_type", "WINDOW_OPENED"), START);
+    assertEquals(0, alerts.size());
+    windowedAlerts.add(event("endpoint-1", 5000, "event_type", "WINDOW_OPENED"), START);
+    assertEquals(Collections.singletonList("endpoint-1 opened 3.0"), alerts);
+    assertEquals(1, windowedAlerts.getLateCount());
+  }
+
+  @Test
+  public void evictsIdleEndpointsIncrementally() {
+    WindowedAlerts windowedAlerts = alerts(WindowedAlerts.Condition.below("cold", WindowedAlerts.Aggregation.MIN,
+        "temperature", WINDOW, 5));
+    for (int i = 0; i < 100; i++) {
+      windowedAlerts.add(event("idle-" + i, 0, "temperature", 20), START);
+    }
+    assertEquals(100, windowedAlerts.getEndpointCount());
+    // Endpoints are idle after the window plus the lateness, and each call evicts only a few of them.
+    long later = START + TimeUnit.SECONDS.toNanos(13);
+    windowedAlerts.add(event("active-0", 0, "temperature", 3), later);
+    assertEquals(Collections.singletonList("active-0 cold 3.0"), alerts);
+    assertTrue(windowedAlerts.getEndpointCount() >= 97);
+    for (int i = 1; i < 100; i++) {
+      windowedAlerts.add(event("active-" + i, 0, "temperature", 20), later);
+    }
+    assertEquals(100, windowedAlerts.getEndpointCount());
+  }
+
+  private WindowedAlerts alerts(WindowedAlerts.Condition condition) {
+    return new WindowedAlerts(Collections.singletonList(condition), 10, LATENESS,
+        (endpointId, alertCondition, value) -> alerts.add(endpointId + " " + alertCondition.getName() + " " + value), 1);
+  }
+
+  private static TimeSeriesEvent event(String endpointId, long timestamp, String valueName, Object value) {
+    return TimeSeriesEvent.newBuilder()
+        .setCorrelationId("correlation-1")
+        .setTimestamp(timestamp)
+        .setTimeout(0L)
+        .setAppVersionName("smart-house-v1")
+        .setEndpointId(endpointId)
+        .setTimeSeriesName("notification")
+        .setDataPoints(Collections.singletonList(new DataPoint(timestamp, Collections.singletonMap(valueName, value))))
+        .build();
+  }
+}